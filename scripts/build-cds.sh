@@ -0,0 +1,43 @@
+#!/bin/bash
+
+# Builds the startup-optimized distribution:
+# - Spring AOT processing (Maven profile "startup")
+# - Extracted jar layout required by class data sharing
+# - AppCDS archive recorded from a training run that renders the warm-up corpus
+
+cd "$(dirname "$0")/.."
+
+echo "Building PUML Server with Spring AOT..."
+./mvnw clean package -DskipTests -Pstartup
+if [ $? -ne 0 ]; then
+    echo "Build failed!"
+    exit 1
+fi
+
+rm -rf target/cds
+java -Djarmode=tools -jar target/puml-server-0.0.8-SNAPSHOT.jar extract --destination target/cds
+if [ $? -ne 0 ]; then
+    echo "Jar extraction failed!"
+    exit 1
+fi
+
+echo ""
+echo "Training run: recording AppCDS archive..."
+java --add-opens java.desktop/com.sun.imageio.plugins.png=ALL-UNNAMED \
+--add-opens java.desktop/com.sun.imageio.plugins.jpeg=ALL-UNNAMED \
+--add-opens java.desktop/com.sun.imageio.plugins.gif=ALL-UNNAMED \
+--add-opens java.desktop/com.sun.imageio.plugins.bmp=ALL-UNNAMED \
+--add-opens java.desktop/com.sun.imageio.plugins.wbmp=ALL-UNNAMED \
+-XX:ArchiveClassesAtExit=target/cds/puml-server.jsa \
+-Dspring.aot.enabled=true \
+-Dserver.port=0 \
+-Dpuml.warmup.exit-after=true \
+-jar target/cds/puml-server-0.0.8-SNAPSHOT.jar
+
+if [ ! -f "target/cds/puml-server.jsa" ]; then
+    echo "AppCDS archive was not created!"
+    exit 1
+fi
+
+echo ""
+echo "Build successful! Start with scripts/start-cds.sh"
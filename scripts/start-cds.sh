@@ -0,0 +1,31 @@
+#!/bin/bash
+
+cd "$(dirname "$0")/.."
+
+echo "Starting PUML Server on port 7235 (AppCDS + Spring AOT)..."
+echo ""
+
+if [ ! -f "target/cds/puml-server.jsa" ]; then
+    echo "AppCDS archive not found. Building it first..."
+    ./scripts/build-cds.sh
+    if [ $? -ne 0 ]; then
+        echo "Build failed. Cannot start server."
+        exit 1
+    fi
+    echo ""
+fi
+
+java --add-opens java.desktop/com.sun.imageio.plugins.png=ALL-UNNAMED \
+--add-opens java.desktop/com.sun.imageio.plugins.jpeg=ALL-UNNAMED \
+--add-opens java.desktop/com.sun.imageio.plugins.gif=ALL-UNNAMED \
+--add-opens java.desktop/com.sun.imageio.plugins.bmp=ALL-UNNAMED \
+--add-opens java.desktop/com.sun.imageio.plugins.wbmp=ALL-UNNAMED \
+-XX:SharedArchiveFile=target/cds/puml-server.jsa \
+-Dspring.aot.enabled=true \
+-jar target/cds/puml-server-0.0.8-SNAPSHOT.jar
+
+if [ $? -ne 0 ]; then
+    echo ""
+    echo "Server failed to start!"
+    exit 1
+fi
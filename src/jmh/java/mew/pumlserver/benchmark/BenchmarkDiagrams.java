@@ -0,0 +1,57 @@
+package mew.pumlserver.benchmark;
+
+/**
+ * Diagram corpus shared by the JMH benchmarks.
+ */
+final class BenchmarkDiagrams {
+
+  static final String SEQUENCE = "@startuml\n\nBob -> Alice : hello\nAlice --> Bob : hi\n\n@enduml";
+
+  static final String CLASS_SMALL = "@startuml\n"
+      + "class User {\n  +id : String\n  +name : String\n}\n"
+      + "class Order {\n  +id : String\n  +total : double\n}\n"
+      + "class Item\n"
+      + "User \"1\" --> \"*\" Order\n"
+      + "Order *-- Item\n"
+      + "@enduml";
+
+  static final String CLASS_MEDIUM = classDiagram(40);
+
+  static final String COMPONENT = "@startuml\n"
+      + "package \"Frontend\" {\n  [Editor]\n  [Viewer]\n}\n"
+      + "package \"Backend\" {\n  [API]\n  [Renderer]\n  [Cache]\n}\n"
+      + "database \"Store\"\n"
+      + "[Editor] --> [API]\n[Viewer] --> [API]\n[API] --> [Renderer]\n"
+      + "[API] --> [Cache]\n[Cache] --> Store\n"
+      + "@enduml";
+
+  private BenchmarkDiagrams() {
+  }
+
+  static String byName(String name) {
+    switch (name) {
+      case "sequence":
+        return SEQUENCE;
+      case "class-small":
+        return CLASS_SMALL;
+      case "class-medium":
+        return CLASS_MEDIUM;
+      case "component":
+        return COMPONENT;
+      default:
+        throw new IllegalArgumentException("Unknown benchmark diagram: " + name);
+    }
+  }
+
+  private static String classDiagram(int classes) {
+    StringBuilder sb = new StringBuilder("@startuml\n");
+    for (int i = 0; i < classes; i++) {
+      sb.append("class C").append(i).append(" {\n  +field").append(i).append(" : int\n  +op").append(i)
+          .append("()\n}\n");
+    }
+    for (int i = 1; i < classes; i++) {
+      sb.append("C").append(i / 2).append(" --> C").append(i).append('\n');
+    }
+    return sb.append("@enduml").toString();
+  }
+}
@@ -0,0 +1,70 @@
+package mew.pumlserver.benchmark;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
+import mew.pumlserver.model.RenderedArtifact;
+import mew.pumlserver.service.GraphvizLayoutService;
+import mew.pumlserver.service.IncludeResolver;
+import mew.pumlserver.service.PngExportService;
+import mew.pumlserver.service.RenderBufferPool;
+import mew.pumlserver.service.RenderService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares SVG render latency of Graphviz-laid-out diagrams across layout engines.
+ *
+ * Run with: ./mvnw -Pbenchmark test-compile exec:exec -Djmh.args="LayoutEngine"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {
+    "-Djava.awt.headless=true",
+    "--add-opens", "java.desktop/com.sun.imageio.plugins.png=ALL-UNNAMED" })
+public class LayoutEngineBenchmark {
+
+  @Param({ "dot", "jdot" })
+  public String engine;
+
+  @Param({ "class-small", "class-medium", "component" })
+  public String diagram;
+
+  private RenderService renderService;
+  private String puml;
+
+  @Setup
+  public void setUp() {
+    GraphvizLayoutService layoutService = new GraphvizLayoutService(engine, "", 0, 5000, 3,
+        new SimpleMeterRegistry());
+    if ("dot".equals(engine) && !layoutService.isDotHealthy()) {
+      throw new IllegalStateException("Graphviz dot executable not found, skipping dot engine");
+    }
+    RenderBufferPool bufferPool = new RenderBufferPool(16, 65536, 8 * 1024 * 1024, new SimpleMeterRegistry());
+    PngExportService pngExportService = new PngExportService(6, true, true, 1_000_000L, false, false, bufferPool,
+        new SimpleMeterRegistry(), ObservationRegistry.NOOP);
+    pngExportService.registerWriter();
+    renderService = new RenderService(layoutService, new IncludeResolver("", false, 1048576, new SimpleMeterRegistry()),
+        pngExportService, bufferPool, 16_000_000L, ObservationRegistry.NOOP);
+    puml = BenchmarkDiagrams.byName(diagram);
+  }
+
+  @Benchmark
+  public RenderedArtifact renderSvg() throws IOException {
+    return renderService.renderSvg(puml);
+  }
+}
@@ -0,0 +1,113 @@
+package mew.pumlserver.benchmark;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
+import mew.pumlserver.model.PngOptions;
+import mew.pumlserver.service.GraphvizLayoutService;
+import mew.pumlserver.service.IncludeResolver;
+import mew.pumlserver.service.PngEncoder;
+import mew.pumlserver.service.PngExportService;
+import mew.pumlserver.service.RenderBufferPool;
+import mew.pumlserver.service.RenderService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PNG encode time of rendered diagrams: the JDK ImageIO writer (what PlantUML
+ * uses by default) against {@link PngEncoder} at several settings. The encoded
+ * size of every configuration is printed as a "png-size" line before its run.
+ *
+ * Run with: ./mvnw -Pbenchmark test-compile exec:exec -Djmh.args="PngEncode"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {
+    "-Djava.awt.headless=true",
+    "--add-opens", "java.desktop/com.sun.imageio.plugins.png=ALL-UNNAMED" })
+public class PngEncodeBenchmark {
+
+  @Param({ "sequence", "class-medium", "component" })
+  public String diagram;
+
+  @Param({ "1", "6", "9" })
+  public int level;
+
+  @Param({ "true", "false" })
+  public boolean palette;
+
+  @Param({ "false", "true" })
+  public boolean parallel;
+
+  private BufferedImage image;
+  private RenderBufferPool bufferPool;
+  private PngEncoder encoder;
+  private PngOptions options;
+  private ExecutorService executor;
+
+  @Setup
+  public void setUp() throws IOException {
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    GraphvizLayoutService layoutService = new GraphvizLayoutService("auto", "", 0, 5000, 3, registry);
+    bufferPool = new RenderBufferPool(16, 65536, Integer.MAX_VALUE, registry);
+    PngExportService pngExportService = new PngExportService(6, true, false, Long.MAX_VALUE, false, false, bufferPool,
+        registry, ObservationRegistry.NOOP);
+    pngExportService.registerWriter();
+    RenderService renderService = new RenderService(layoutService, new IncludeResolver("", false, 1048576, registry),
+        pngExportService, bufferPool, 16_000_000L, ObservationRegistry.NOOP);
+
+    // Decode into the same raster type PlantUML draws on
+    BufferedImage decoded = ImageIO.read(renderService.renderPng(BenchmarkDiagrams.byName(diagram)).asInputStream());
+    image = new BufferedImage(decoded.getWidth(), decoded.getHeight(), BufferedImage.TYPE_INT_RGB);
+    image.getGraphics().drawImage(decoded, 0, 0, null);
+
+    int threads = Runtime.getRuntime().availableProcessors();
+    executor = Executors.newFixedThreadPool(threads);
+    encoder = new PngEncoder(executor, threads, 0, bufferPool);
+    options = new PngOptions(level, palette, parallel);
+
+    System.out.printf("%npng-size diagram=%s pixels=%dx%d imageio=%d encoder(level=%d,palette=%s,parallel=%s)=%d%n",
+        diagram, image.getWidth(), image.getHeight(), imageIo().length, level, palette, parallel,
+        encoder());
+  }
+
+  @TearDown
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Benchmark
+  public byte[] imageIo() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(image, "png", out);
+    return out.toByteArray();
+  }
+
+  @Benchmark
+  public int encoder() throws IOException {
+    try (RenderBufferPool.Buffer out = bufferPool.acquire()) {
+      encoder.encode(image, options, out);
+      return out.size();
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package mew.pumlserver.benchmark;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
+import mew.pumlserver.model.RenderedArtifact;
+import mew.pumlserver.service.GraphvizLayoutService;
+import mew.pumlserver.service.IncludeResolver;
+import mew.pumlserver.service.PngExportService;
+import mew.pumlserver.service.RenderBufferPool;
+import mew.pumlserver.service.RenderService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allocation per render, with pooled output buffers and with a fresh buffer per
+ * render (a pool that retains nothing). Meant to be run with the GC profiler;
+ * compare gc.alloc.rate.norm (bytes per render) between the two.
+ *
+ * Run with: ./mvnw -Pbenchmark test-compile exec:exec -Djmh.args="RenderAllocation -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {
+    "-Djava.awt.headless=true",
+    "--add-opens", "java.desktop/com.sun.imageio.plugins.png=ALL-UNNAMED" })
+public class RenderAllocationBenchmark {
+
+  @Param({ "sequence", "class-medium" })
+  public String diagram;
+
+  @Param({ "pooled", "fresh" })
+  public String buffers;
+
+  private RenderService renderService;
+  private String puml;
+
+  @Setup
+  public void setUp() {
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    GraphvizLayoutService layoutService = new GraphvizLayoutService("auto", "", 0, 5000, 3, registry);
+    RenderBufferPool bufferPool = "pooled".equals(buffers)
+        ? new RenderBufferPool(16, 65536, Integer.MAX_VALUE, registry)
+        : new RenderBufferPool(1, 65536, 0, registry);
+    PngExportService pngExportService = new PngExportService(6, true, false, Long.MAX_VALUE, false, false, bufferPool,
+        registry, ObservationRegistry.NOOP);
+    pngExportService.registerWriter();
+    renderService = new RenderService(layoutService, new IncludeResolver("", false, 1048576, registry),
+        pngExportService, bufferPool, 16_000_000L, ObservationRegistry.NOOP);
+    puml = BenchmarkDiagrams.byName(diagram);
+  }
+
+  @Benchmark
+  public RenderedArtifact renderSvg() throws IOException {
+    return renderService.renderSvg(puml);
+  }
+
+  @Benchmark
+  public RenderedArtifact renderPng() throws IOException {
+    return renderService.renderPng(puml);
+  }
+
+  @Benchmark
+  public RenderedArtifact renderText() throws IOException {
+    return renderService.renderText(puml);
+  }
+}
@@ -0,0 +1,123 @@
+package mew.pumlserver.loadtest;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency histograms (HdrHistogram, microseconds) and error counts per endpoint.
+ *
+ * Writes a summary CSV, which a later run can take as its baseline to print the
+ * change in throughput and percentiles between two releases, and one .hgrm
+ * percentile distribution per endpoint for the HdrHistogram plotter.
+ */
+final class LatencyReport {
+
+  private static final long HIGHEST_MICROS = TimeUnit.MINUTES.toMicros(5);
+  private static final String HEADER = "endpoint,count,errors,throughput,p50_ms,p90_ms,p99_ms,p999_ms,max_ms";
+
+  private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+  private final Map<String, AtomicLong> errors = new ConcurrentHashMap<>();
+  private final List<String> order = new ArrayList<>();
+
+  LatencyReport(List<String> endpoints) {
+    for (String endpoint : endpoints) {
+      order.add(endpoint);
+      histograms.put(endpoint, new ConcurrentHistogram(HIGHEST_MICROS, 3));
+      errors.put(endpoint, new AtomicLong());
+    }
+  }
+
+  void record(String endpoint, long nanos) {
+    histograms.get(endpoint).recordValue(Math.min(HIGHEST_MICROS, Math.max(1, nanos / 1000)));
+  }
+
+  void recordError(String endpoint) {
+    errors.get(endpoint).incrementAndGet();
+  }
+
+  /**
+   * Print the table and write the CSV and .hgrm files to the output directory
+   */
+  void write(PrintStream out, double seconds, Path outputDir, Path baseline) throws IOException {
+    Map<String, double[]> before = baseline == null ? Map.of() : readCsv(baseline);
+    Files.createDirectories(outputDir);
+    List<String> csv = new ArrayList<>();
+    csv.add(HEADER);
+
+    out.printf("%n%-22s %8s %7s %9s %9s %9s %9s %9s %9s%n", "endpoint", "count", "errors", "req/s",
+        "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+    for (String endpoint : order) {
+      Histogram histogram = histograms.get(endpoint);
+      long count = histogram.getTotalCount();
+      long errorCount = errors.get(endpoint).get();
+      if (count == 0 && errorCount == 0) {
+        continue;
+      }
+      double[] row = {
+          count, errorCount, count / seconds,
+          millis(histogram, 50), millis(histogram, 90), millis(histogram, 99), millis(histogram, 99.9),
+          histogram.getMaxValue() / 1000.0 };
+      out.printf(Locale.ROOT, "%-22s %8d %7d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n", endpoint,
+          count, errorCount, row[2], row[3], row[4], row[5], row[6], row[7]);
+      double[] previous = before.get(endpoint);
+      if (previous != null) {
+        out.printf(Locale.ROOT, "%-22s %8s %7s %9s %9s %9s %9s %9s %9s%n", "  vs baseline", "", "",
+            change(row[2], previous[2]), change(row[3], previous[3]), change(row[4], previous[4]),
+            change(row[5], previous[5]), change(row[6], previous[6]), change(row[7], previous[7]));
+      }
+
+      StringBuilder line = new StringBuilder(endpoint);
+      for (double value : row) {
+        line.append(',').append(String.format(Locale.ROOT, "%.3f", value));
+      }
+      csv.add(line.toString());
+      try (PrintStream hgrm = new PrintStream(
+          Files.newOutputStream(outputDir.resolve(endpoint + ".hgrm")), false, StandardCharsets.UTF_8)) {
+        histogram.outputPercentileDistribution(hgrm, 1000.0);
+      }
+    }
+    Path summary = outputDir.resolve("summary.csv");
+    Files.write(summary, csv, StandardCharsets.UTF_8);
+    out.println();
+    out.println("Summary written to " + summary + (baseline == null ? "" : ", compared with " + baseline));
+  }
+
+  private static double millis(Histogram histogram, double percentile) {
+    return histogram.getValueAtPercentile(percentile) / 1000.0;
+  }
+
+  private static String change(double now, double before) {
+    if (before == 0) {
+      return "-";
+    }
+    return String.format(Locale.ROOT, "%+.1f%%", (now - before) * 100 / before);
+  }
+
+  private static Map<String, double[]> readCsv(Path file) throws IOException {
+    Map<String, double[]> rows = new HashMap<>();
+    List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+    for (String line : lines.subList(Math.min(1, lines.size()), lines.size())) {
+      String[] fields = line.split(",");
+      double[] row = new double[fields.length - 1];
+      for (int i = 1; i < fields.length; i++) {
+        row[i - 1] = Double.parseDouble(fields[i]);
+      }
+      rows.put(fields[0], row);
+    }
+    return rows;
+  }
+}
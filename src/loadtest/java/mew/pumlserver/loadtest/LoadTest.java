@@ -0,0 +1,356 @@
+package mew.pumlserver.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import mew.pumlserver.PumlServerApplication;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End-to-end HTTP load test: starts the application on a random port, with a
+ * local stub LLM as its upstream group, and replays a mix of traffic:
+ *
+ * - render: POST /api/v1/render/svg with a diagram never seen before
+ * - hot: POST /api/v1/render/svg with one of a few repeated diagrams
+ * - raw: GET /api/v1/render/{type}/{id}/raw for a previously rendered diagram
+ * - stream: streaming POST /api/v1/puml/generate, read to the end of the SSE stream
+ *   (time to the first event is reported as stream.first-event)
+ * - conversation: a turn of a multi-turn conversation, POST /api/v1/puml/generate
+ *
+ * The load is open-loop: requests arrive as a Poisson process at the given rate
+ * whether or not earlier ones have finished, and latency is measured from each
+ * request's intended start, so a stalled server shows up in the percentiles
+ * instead of slowing down the load (no coordinated omission).
+ *
+ * Run with: ./mvnw -Ploadtest test-compile exec:exec -Dloadtest.args="duration=60 rate=20"
+ *
+ * Options (key=value): duration and warmup in seconds, rate in requests per second,
+ * threads, seed, mix (default render:5,hot:30,raw:45,stream:5,conversation:15),
+ * llm-delay-ms, out (output directory) and baseline (summary.csv of an earlier run).
+ * Arguments starting with -- are passed to the application, e.g. --puml.cache.max-size=500.
+ */
+public final class LoadTest {
+
+  private static final List<String> ENDPOINTS = List.of("render", "hot", "raw", "stream", "stream.first-event",
+      "conversation");
+  private static final String[] HOT_DIAGRAMS = {
+      "@startuml\nBob -> Alice : hello\nAlice --> Bob : hi\n@enduml",
+      "@startuml\n[*] --> Idle\nIdle --> Busy : start\nBusy --> Idle : done\n@enduml",
+      "@startuml\nclass User\nclass Order\nUser --> Order\n@enduml",
+      "@startuml\nstart\n:load;\nif (ok?) then (yes)\n:render;\nelse (no)\n:fail;\nendif\nstop\n@enduml",
+      "@startuml\n[API] --> [Renderer]\n[API] --> [Cache]\n@enduml" };
+  private static final int SEEDED_DIAGRAMS = 50;
+  private static final int TURNS_PER_CONVERSATION = 5;
+
+  private final Map<String, String> options;
+  private final HttpClient client = HttpClient.newBuilder()
+      .version(HttpClient.Version.HTTP_1_1)
+      .connectTimeout(Duration.ofSeconds(10))
+      .build();
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private final List<String> renderedIds = new ArrayList<>();
+  private final ConcurrentLinkedQueue<IdleConversation> conversations = new ConcurrentLinkedQueue<>();
+  private final AtomicLong uniqueDiagrams = new AtomicLong();
+  private final LatencyReport report = new LatencyReport(ENDPOINTS);
+  private String baseUrl;
+
+  private LoadTest(Map<String, String> options) {
+    this.options = options;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new LinkedHashMap<>();
+    List<String> appArgs = new ArrayList<>();
+    for (String arg : args) {
+      if (arg.startsWith("--")) {
+        appArgs.add(arg);
+      } else if (arg.contains("=")) {
+        options.put(arg.substring(0, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+      } else {
+        throw new IllegalArgumentException("Expected key=value or --app.property=value: " + arg);
+      }
+    }
+
+    System.setProperty("PLANTUML_LIMIT_SIZE", "8192");
+    System.setProperty("java.awt.headless", "true");
+    try (StubLlmServer llm = new StubLlmServer(Long.parseLong(options.getOrDefault("llm-delay-ms", "200")))) {
+      appArgs.add(0, "--server.port=0");
+      appArgs.add(1, "--puml.llm.upstreams=" + llm.getBaseUrl());
+      appArgs.add(2, "--puml.llm.api-key=loadtest");
+      appArgs.add(3, "--logging.level.root=WARN");
+      ConfigurableApplicationContext context = SpringApplication.run(PumlServerApplication.class,
+          appArgs.toArray(new String[0]));
+      try {
+        LoadTest loadTest = new LoadTest(options);
+        loadTest.baseUrl = "http://127.0.0.1:" + ((WebServerApplicationContext) context).getWebServer().getPort();
+        loadTest.run();
+        System.out.println("Stub LLM requests: " + llm.getRequests());
+      } finally {
+        context.close();
+      }
+    }
+  }
+
+  private void run() throws Exception {
+    long durationSeconds = Long.parseLong(options.getOrDefault("duration", "60"));
+    long warmupSeconds = Long.parseLong(options.getOrDefault("warmup", "10"));
+    double rate = Double.parseDouble(options.getOrDefault("rate", "20"));
+    int threads = Integer.parseInt(options.getOrDefault("threads", "64"));
+    Random random = new Random(Long.parseLong(options.getOrDefault("seed", "42")));
+    Mix mix = new Mix(options.getOrDefault("mix", "render:5,hot:30,raw:45,stream:5,conversation:15"));
+
+    seed();
+    System.out.printf("Load test against %s: %.0f req/s for %ds after %ds of warm-up, mix %s%n", baseUrl, rate,
+        durationSeconds, warmupSeconds, mix);
+
+    AtomicInteger threadCount = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable, "loadtest-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    long start = System.nanoTime();
+    long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+    long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+    long intended = start;
+    while (true) {
+      // Exponential inter-arrival times: a Poisson process at the given rate
+      intended += (long) (-Math.log(1 - random.nextDouble()) / rate * 1_000_000_000L);
+      if (intended >= end) {
+        break;
+      }
+      long wait;
+      while ((wait = intended - System.nanoTime()) > 0) {
+        LockSupport.parkNanos(wait);
+      }
+      String endpoint = mix.pick(random);
+      boolean measured = intended >= measureFrom;
+      long startAt = intended;
+      executor.execute(() -> send(endpoint, startAt, measured));
+    }
+    executor.shutdown();
+    if (!executor.awaitTermination(2, TimeUnit.MINUTES)) {
+      System.out.println("Requests still running after 2 minutes, reporting without them");
+      executor.shutdownNow();
+    }
+
+    report.write(System.out, durationSeconds, Path.of(options.getOrDefault("out", "target/loadtest")),
+        options.containsKey("baseline") ? Path.of(options.get("baseline")) : null);
+  }
+
+  /**
+   * Render the diagrams that raw requests fetch, and warm the hot ones
+   */
+  private void seed() throws IOException, InterruptedException {
+    for (int i = 0; i < SEEDED_DIAGRAMS; i++) {
+      renderedIds.add(render(uniqueDiagram()));
+    }
+    for (String puml : HOT_DIAGRAMS) {
+      render(puml);
+    }
+  }
+
+  private void send(String endpoint, long intended, boolean measured) {
+    try {
+      boolean ok = switch (endpoint) {
+        case "render" -> post("/api/v1/render/svg", renderBody(uniqueDiagram())).statusCode() == 200;
+        case "hot" -> post("/api/v1/render/svg",
+            renderBody(HOT_DIAGRAMS[ThreadLocalRandom.current().nextInt(HOT_DIAGRAMS.length)])).statusCode() == 200;
+        case "raw" -> raw();
+        case "stream" -> stream(intended, measured);
+        case "conversation" -> conversationTurn();
+        default -> throw new IllegalStateException("Unknown endpoint " + endpoint);
+      };
+      if (measured) {
+        if (ok) {
+          report.record(endpoint, System.nanoTime() - intended);
+        } else {
+          report.recordError(endpoint);
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      if (measured) {
+        report.recordError(endpoint);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private boolean raw() throws IOException, InterruptedException {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    String id = renderedIds.get(random.nextInt(renderedIds.size()));
+    int roll = random.nextInt(10);
+    String type = roll < 7 ? "svg" : roll < 9 ? "png" : "text";
+    HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/api/v1/render/" + type + "/" + id + "/raw"))
+        .GET()
+        .build();
+    return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200;
+  }
+
+  /**
+   * Streaming generate, read to the end of the stream; records the time to the first event separately
+   */
+  private boolean stream(long intended, boolean measured) throws IOException, InterruptedException {
+    String body = objectMapper.writeValueAsString(Map.of("model", "stub", "prompt", "Draw a login flow",
+        "stream", true));
+    HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/api/v1/puml/generate"))
+        .header("Content-Type", "application/json")
+        .header("Accept", "text/event-stream")
+        .POST(HttpRequest.BodyPublishers.ofString(body))
+        .build();
+    HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+    boolean firstEvent = false;
+    boolean idEvent = false;
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(response.body(), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (!firstEvent && line.startsWith("data:")) {
+          firstEvent = true;
+          if (measured) {
+            report.record("stream.first-event", System.nanoTime() - intended);
+          }
+        }
+        idEvent |= line.equals("event:id");
+      }
+    }
+    return response.statusCode() == 200 && idEvent;
+  }
+
+  /**
+   * One turn of a conversation taken from the idle pool (or a new one); it goes back
+   * to the pool until it has had TURNS_PER_CONVERSATION turns
+   */
+  private boolean conversationTurn() throws IOException, InterruptedException {
+    IdleConversation conversation = conversations.poll();
+    Map<String, Object> request = new LinkedHashMap<>();
+    request.put("model", "stub");
+    request.put("prompt", "Add another step to the diagram");
+    if (conversation != null) {
+      request.put("conversationId", conversation.id);
+    }
+    HttpResponse<String> response = post("/api/v1/puml/generate", objectMapper.writeValueAsString(request));
+    if (response.statusCode() != 200) {
+      return false;
+    }
+    int turns = conversation == null ? 1 : conversation.turns + 1;
+    if (turns < TURNS_PER_CONVERSATION) {
+      String id = objectMapper.readTree(response.body()).path("conversationId").asText();
+      conversations.add(new IdleConversation(id, turns));
+    }
+    return true;
+  }
+
+  private String render(String puml) throws IOException, InterruptedException {
+    HttpResponse<String> response = post("/api/v1/render/svg", renderBody(puml));
+    JsonNode json = objectMapper.readTree(response.body());
+    if (response.statusCode() != 200) {
+      throw new IllegalStateException("Seeding render failed: " + response.body());
+    }
+    return json.path("id").asText();
+  }
+
+  private String renderBody(String puml) throws IOException {
+    return objectMapper.writeValueAsString(Map.of("puml", puml));
+  }
+
+  private HttpResponse<String> post(String path, String body) throws IOException, InterruptedException {
+    HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + path))
+        .header("Content-Type", "application/json")
+        .POST(HttpRequest.BodyPublishers.ofString(body))
+        .build();
+    return client.send(request, HttpResponse.BodyHandlers.ofString());
+  }
+
+  /**
+   * A class diagram of 3 to 15 classes that no earlier request has used
+   */
+  private String uniqueDiagram() {
+    long n = uniqueDiagrams.incrementAndGet();
+    int classes = 3 + (int) (n % 13);
+    StringBuilder sb = new StringBuilder("@startuml\ntitle Load ").append(n).append('\n');
+    for (int i = 0; i < classes; i++) {
+      sb.append("class C").append(i).append(" {\n  +field").append(i).append(" : int\n}\n");
+    }
+    for (int i = 1; i < classes; i++) {
+      sb.append("C").append(i / 2).append(" --> C").append(i).append('\n');
+    }
+    return sb.append("@enduml").toString();
+  }
+
+  private static final class IdleConversation {
+    private final String id;
+    private final int turns;
+
+    IdleConversation(String id, int turns) {
+      this.id = id;
+      this.turns = turns;
+    }
+  }
+
+  /**
+   * Weighted choice of endpoint
+   */
+  private static final class Mix {
+    private final Map<String, Integer> weights = new LinkedHashMap<>();
+    private final int total;
+
+    Mix(String spec) {
+      int sum = 0;
+      for (String part : spec.split(",")) {
+        String[] pair = part.strip().split(":");
+        String endpoint = pair[0];
+        if (!ENDPOINTS.contains(endpoint) || endpoint.equals("stream.first-event")) {
+          throw new IllegalArgumentException("Unknown endpoint in mix: " + endpoint);
+        }
+        int weight = Integer.parseInt(pair[1]);
+        weights.put(endpoint, weight);
+        sum += weight;
+      }
+      this.total = sum;
+    }
+
+    String pick(Random random) {
+      int roll = random.nextInt(total);
+      for (Map.Entry<String, Integer> entry : weights.entrySet()) {
+        roll -= entry.getValue();
+        if (roll < 0) {
+          return entry.getKey();
+        }
+      }
+      throw new IllegalStateException("Empty mix");
+    }
+
+    @Override
+    public String toString() {
+      return weights.toString();
+    }
+  }
+}
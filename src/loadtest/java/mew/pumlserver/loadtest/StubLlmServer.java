@@ -0,0 +1,72 @@
+package mew.pumlserver.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local OpenAI-compatible chat completion endpoint for the load test, answering
+ * after a fixed delay with one of a few small diagrams, so generate and
+ * conversation traffic exercises the server without a real provider.
+ */
+final class StubLlmServer implements AutoCloseable {
+
+  private static final int DISTINCT_ANSWERS = 20;
+
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "stub-llm");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final AtomicInteger requests = new AtomicInteger();
+
+  StubLlmServer(long delayMillis) throws IOException {
+    ObjectMapper objectMapper = new ObjectMapper();
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.setExecutor(executor);
+    server.createContext("/v1/chat/completions", exchange -> {
+      int n = requests.incrementAndGet() % DISTINCT_ANSWERS;
+      exchange.getRequestBody().readAllBytes();
+      String puml = "@startuml\nUser -> Service : request " + n + "\nService -> Store : load\n"
+          + "Store --> Service : rows\nService --> User : response " + n + "\n@enduml";
+      byte[] body = objectMapper.writeValueAsBytes(
+          Map.of("choices", List.of(Map.of("message", Map.of("role", "assistant", "content", puml)))));
+      try {
+        Thread.sleep(delayMillis);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+          out.write(body);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        exchange.close();
+      }
+    });
+    server.start();
+  }
+
+  String getBaseUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/v1";
+  }
+
+  int getRequests() {
+    return requests.get();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+}
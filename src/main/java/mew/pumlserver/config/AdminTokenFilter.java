@@ -0,0 +1,87 @@
+package mew.pumlserver.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Guards the admin endpoints (/api/v1/admin, /actuator/profile and /actuator/metrics,
+ * whose tags name tenants, models and upstreams) with
+ * puml.admin.token, sent as "Authorization: Bearer &lt;token&gt;". Without a
+ * configured token the admin endpoints answer 404, as if they didn't exist.
+ *
+ * This is a filter rather than a check in the handlers because actuator endpoints
+ * aren't served through the application's controllers and exception handlers.
+ */
+@Component
+public class AdminTokenFilter extends OncePerRequestFilter {
+
+    private static final String BEARER = "Bearer ";
+
+    private final byte[] token;
+    private final List<String> protectedPaths;
+    private final ObjectMapper objectMapper;
+
+    public AdminTokenFilter(
+            @Value("${puml.admin.token:}") String token,
+            @Value("${management.endpoints.web.base-path:/actuator}") String actuatorBasePath,
+            ObjectMapper objectMapper) {
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+        this.protectedPaths = List.of("/api/v1/admin", actuatorBasePath + "/profile",
+                actuatorBasePath + "/metrics");
+        this.objectMapper = objectMapper;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        return protectedPaths.stream().noneMatch(prefix -> path.equals(prefix) || path.startsWith(prefix + "/"));
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        if (token.length == 0) {
+            reject(request, response, HttpStatus.NOT_FOUND, "Admin endpoints are not enabled");
+            return;
+        }
+        String authorization = request.getHeader(HttpHeaders.AUTHORIZATION);
+        byte[] presented = authorization != null && authorization.startsWith(BEARER)
+                ? authorization.substring(BEARER.length()).trim().getBytes(StandardCharsets.UTF_8)
+                : new byte[0];
+        if (!MessageDigest.isEqual(token, presented)) {
+            reject(request, response, HttpStatus.FORBIDDEN, "Invalid admin token");
+            return;
+        }
+        chain.doFilter(request, response);
+    }
+
+    private void reject(HttpServletRequest request, HttpServletResponse response, HttpStatus status, String message)
+            throws IOException {
+        Map<String, Object> body = new HashMap<>();
+        body.put("error", status.getReasonPhrase());
+        body.put("message", message);
+        body.put("status", status.value());
+        body.put("path", request.getRequestURI());
+        body.put("timestamp", LocalDateTime.now());
+        response.setStatus(status.value());
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        objectMapper.writeValue(response.getOutputStream(), body);
+    }
+}
@@ -0,0 +1,16 @@
+package mew.pumlserver.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class HttpMessageConverterConfig {
+
+    /**
+     * Picked up by Spring Boot and added to the MVC message converters
+     */
+    @Bean
+    public RenderedArtifactHttpMessageConverter renderedArtifactHttpMessageConverter() {
+        return new RenderedArtifactHttpMessageConverter();
+    }
+}
@@ -0,0 +1,31 @@
+package mew.pumlserver.config;
+
+import mew.pumlserver.service.LoadShedService;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.stereotype.Component;
+
+/**
+ * "loadShed" health: DEGRADED while {@link LoadShedService} rejects new renders and
+ * LLM calls, with the signal that started it and the last sampled signals.
+ */
+@Component
+public class LoadShedHealthIndicator implements HealthIndicator {
+
+    public static final Status DEGRADED = new Status("DEGRADED", "Rejecting new renders and LLM calls");
+
+    private final LoadShedService loadShedService;
+
+    public LoadShedHealthIndicator(LoadShedService loadShedService) {
+        this.loadShedService = loadShedService;
+    }
+
+    @Override
+    public Health health() {
+        Health.Builder health = loadShedService.isShedding()
+                ? Health.status(DEGRADED).withDetail("reason", loadShedService.getReason())
+                : Health.up();
+        return health.withDetails(loadShedService.getSignals()).build();
+    }
+}
@@ -0,0 +1,46 @@
+package mew.pumlserver.config;
+
+import mew.pumlserver.model.RenderedArtifact;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+import java.io.IOException;
+
+/**
+ * Writes a {@link RenderedArtifact} response body straight from its backing
+ * array, with the Content-Type set by the controller. Write-only.
+ */
+public class RenderedArtifactHttpMessageConverter extends AbstractHttpMessageConverter<RenderedArtifact> {
+
+    public RenderedArtifactHttpMessageConverter() {
+        super(MediaType.ALL);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return RenderedArtifact.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    protected boolean canRead(MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected RenderedArtifact readInternal(Class<? extends RenderedArtifact> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Rendered artifacts can't be read from requests", inputMessage);
+    }
+
+    @Override
+    protected Long getContentLength(RenderedArtifact artifact, MediaType contentType) {
+        return (long) artifact.size();
+    }
+
+    @Override
+    protected void writeInternal(RenderedArtifact artifact, HttpOutputMessage outputMessage) throws IOException {
+        artifact.writeTo(outputMessage.getBody());
+    }
+}
@@ -0,0 +1,71 @@
+package mew.pumlserver.config;
+
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.servlet.mvc.method.annotation.RequestBodyAdviceAdapter;
+
+import java.lang.reflect.Type;
+
+/**
+ * Observes reading and binding of @RequestBody arguments as puml.http.bind, a child
+ * of the request's http.server.requests observation, so JSON binding time shows up
+ * separately in traces.
+ */
+@ControllerAdvice
+public class RequestBodyObservationAdvice extends RequestBodyAdviceAdapter {
+
+    private static final String ATTRIBUTE = RequestBodyObservationAdvice.class.getName() + ".observation";
+
+    private final ObservationRegistry observationRegistry;
+
+    public RequestBodyObservationAdvice(ObservationRegistry observationRegistry) {
+        this.observationRegistry = observationRegistry;
+    }
+
+    @Override
+    public boolean supports(MethodParameter methodParameter, Type targetType,
+            Class<? extends HttpMessageConverter<?>> converterType) {
+        return !observationRegistry.isNoop();
+    }
+
+    @Override
+    public HttpInputMessage beforeBodyRead(HttpInputMessage inputMessage, MethodParameter parameter, Type targetType,
+            Class<? extends HttpMessageConverter<?>> converterType) {
+        Observation observation = Observation.createNotStarted("puml.http.bind", observationRegistry)
+                .lowCardinalityKeyValue("type", parameter.getParameterType().getSimpleName())
+                .start();
+        // A body that fails to parse leaves the observation unstopped, and it isn't reported
+        RequestContextHolder.currentRequestAttributes()
+                .setAttribute(ATTRIBUTE, observation, RequestAttributes.SCOPE_REQUEST);
+        return inputMessage;
+    }
+
+    @Override
+    public Object afterBodyRead(Object body, HttpInputMessage inputMessage, MethodParameter parameter,
+            Type targetType, Class<? extends HttpMessageConverter<?>> converterType) {
+        stop();
+        return body;
+    }
+
+    @Override
+    public Object handleEmptyBody(Object body, HttpInputMessage inputMessage, MethodParameter parameter,
+            Type targetType, Class<? extends HttpMessageConverter<?>> converterType) {
+        stop();
+        return body;
+    }
+
+    private void stop() {
+        RequestAttributes attributes = RequestContextHolder.currentRequestAttributes();
+        Object observation = attributes.getAttribute(ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+        if (observation instanceof Observation) {
+            attributes.removeAttribute(ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+            ((Observation) observation).stop();
+        }
+    }
+}
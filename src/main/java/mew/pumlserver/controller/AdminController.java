@@ -0,0 +1,60 @@
+package mew.pumlserver.controller;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import mew.pumlserver.dto.CacheStatsResponse;
+import mew.pumlserver.exception.BadRequestException;
+import mew.pumlserver.exception.NotFoundException;
+import mew.pumlserver.service.RenderCacheService;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Cache introspection and purging for operators. Requires the admin token
+ * (see AdminTokenFilter). Only this node's cache is inspected or purged.
+ */
+@RestController
+@RequestMapping("/api/v1/admin")
+@Tag(name = "Admin", description = "Cache introspection and purging (requires the admin token)")
+public class AdminController {
+
+  private static final Pattern RENDER_KEY = Pattern.compile("[0-9a-f]{32}");
+  private static final int MAX_TOP = 1000;
+
+  private final RenderCacheService cacheService;
+
+  public AdminController(RenderCacheService cacheService) {
+    this.cacheService = cacheService;
+  }
+
+  @GetMapping(value = "/cache", produces = MediaType.APPLICATION_JSON_VALUE)
+  @Operation(summary = "Cache statistics", description = "Entry counts, bytes per format, age histogram, hits and misses, and the top hottest and largest entries of this node's cache")
+  public ResponseEntity<CacheStatsResponse> getCacheStats(@RequestParam(defaultValue = "20") int top) {
+    if (top < 1 || top > MAX_TOP) {
+      throw new BadRequestException("top must be between 1 and " + MAX_TOP);
+    }
+    return ResponseEntity.ok(cacheService.getStats(top));
+  }
+
+  @DeleteMapping(value = "/cache/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
+  @Operation(summary = "Purge a cache entry", description = "Removes the entry with this ID from this node's cache")
+  public ResponseEntity<Map<String, Integer>> purgeEntry(@PathVariable String id) {
+    if (!cacheService.purge(id)) {
+      throw new NotFoundException("Entry not found or expired. ID: " + id);
+    }
+    return ResponseEntity.ok(Map.of("purged", 1));
+  }
+
+  @DeleteMapping(value = "/cache", produces = MediaType.APPLICATION_JSON_VALUE)
+  @Operation(summary = "Purge entries by content hash", description = "Removes all entries whose canonical source has this render key (the first 32 hex digits of their IDs)")
+  public ResponseEntity<Map<String, Integer>> purgeRenderKey(@RequestParam String renderKey) {
+    if (!RENDER_KEY.matcher(renderKey).matches()) {
+      throw new BadRequestException("Invalid render key: " + renderKey + ". Expected 32 lowercase hex digits");
+    }
+    return ResponseEntity.ok(Map.of("purged", cacheService.purgeRenderKey(renderKey)));
+  }
+}
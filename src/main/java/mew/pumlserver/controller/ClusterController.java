@@ -0,0 +1,89 @@
+package mew.pumlserver.controller;
+
+import io.swagger.v3.oas.annotations.Hidden;
+import mew.pumlserver.exception.BadRequestException;
+import mew.pumlserver.exception.ForbiddenException;
+import mew.pumlserver.exception.NotFoundException;
+import mew.pumlserver.model.RenderedArtifact;
+import mew.pumlserver.service.ClusterService;
+import mew.pumlserver.service.HttpPeerClient;
+import mew.pumlserver.service.PeerClient;
+import mew.pumlserver.service.RenderCacheService;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Internal API between the nodes of a render cache cluster. Only the owner of
+ * an entry is asked, and it never forwards the request again.
+ */
+@Hidden
+@RestController
+@RequestMapping("/api/v1/cluster")
+public class ClusterController {
+
+  private static final Set<String> FORMATS = Set.of("svg", "png", "text", "puml");
+
+  private final RenderCacheService cacheService;
+  private final ClusterService clusterService;
+
+  public ClusterController(RenderCacheService cacheService, ClusterService clusterService) {
+    this.cacheService = cacheService;
+    this.clusterService = clusterService;
+  }
+
+  @PutMapping(value = "/entries/{id}", consumes = MediaType.TEXT_PLAIN_VALUE)
+  public ResponseEntity<Map<String, String>> storeEntry(
+      @PathVariable String id,
+      @RequestParam(defaultValue = "none") String render,
+      @RequestHeader(value = HttpPeerClient.TOKEN_HEADER, required = false) String token,
+      @RequestBody String puml) throws IOException {
+    checkAccess(token);
+    if (!id.equals(cacheService.contentIdOf(puml))) {
+      throw new BadRequestException("Entry ID doesn't match its source. ID: " + id);
+    }
+    PeerClient.RenderMode mode;
+    try {
+      mode = PeerClient.RenderMode.valueOf(render.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException("Invalid render mode: " + render + ". Supported modes: none, async, sync");
+    }
+    cacheService.storeFromPeer(id, puml, mode);
+    return ResponseEntity.ok(Map.of("id", id));
+  }
+
+  @GetMapping(value = "/entries/{id}/{format}")
+  public ResponseEntity<RenderedArtifact> getEntry(
+      @PathVariable String id,
+      @PathVariable String format,
+      @RequestHeader(value = HttpPeerClient.TOKEN_HEADER, required = false) String token) throws IOException {
+    checkAccess(token);
+    if (!FORMATS.contains(format)) {
+      throw new BadRequestException("Invalid format: " + format + ". Supported formats: svg, png, text, puml");
+    }
+    RenderedArtifact artifact = cacheService.getForPeer(id, format);
+    if (artifact == null) {
+      throw new NotFoundException("Entry not found or expired. ID: " + id);
+    }
+    return ResponseEntity.ok()
+        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+        .body(artifact);
+  }
+
+  private void checkAccess(String token) {
+    if (!clusterService.isEnabled()) {
+      throw new NotFoundException("Cluster mode is not enabled");
+    }
+    if (!clusterService.hasToken()) {
+      throw new ForbiddenException("Cluster token is not configured");
+    }
+    if (!clusterService.isTrusted(token)) {
+      throw new ForbiddenException("Invalid cluster token");
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package mew.pumlserver.controller;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.ExampleObject;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.validation.Valid;
+import mew.pumlserver.dto.DocumentResponse;
+import mew.pumlserver.dto.RenderRequest;
+import mew.pumlserver.dto.SvgDeltaResponse;
+import mew.pumlserver.exception.NotFoundException;
+import mew.pumlserver.model.DiagramDocument;
+import mew.pumlserver.model.RenderedArtifact;
+import mew.pumlserver.service.DocumentService;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Versioned diagram documents: a stable ID whose versions are rendered as they are
+ * updated, and whose SVG is sent as a delta to clients holding an older version.
+ */
+@RestController
+@RequestMapping("/api/v1/documents")
+@Tag(name = "Documents", description = "Versioned diagrams with delta SVG updates")
+public class DocumentController {
+
+  public static final String VERSION_HEADER = "X-Document-Version";
+
+  private final DocumentService documentService;
+
+  public DocumentController(DocumentService documentService) {
+    this.documentService = documentService;
+  }
+
+  @PostMapping(consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
+  @Operation(summary = "Create a document", description = "Creates a versioned document with the PlantUML source as version 1, rendered right away. Documents expire after 30 minutes without use.")
+  @io.swagger.v3.oas.annotations.parameters.RequestBody(description = "PlantUML diagram source code", required = true, content = @Content(mediaType = "application/json", schema = @Schema(implementation = RenderRequest.class), examples = @ExampleObject(name = "Example PUML", value = "{\"puml\":\"@startuml\\n\\nBob -> Alice : hello\\n\\n@enduml\"}")))
+  public ResponseEntity<DocumentResponse> createDocument(
+      @Valid @org.springframework.web.bind.annotation.RequestBody RenderRequest request) throws IOException {
+    return ResponseEntity.ok(toResponse(documentService.create(request.getPuml())));
+  }
+
+  @PutMapping(value = "/{id}", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
+  @Operation(summary = "Update a document", description = "Renders the PlantUML source as the next version of the document. Sending the source of the latest version again keeps its version number.")
+  public ResponseEntity<DocumentResponse> updateDocument(
+      @PathVariable String id,
+      @Valid @org.springframework.web.bind.annotation.RequestBody RenderRequest request) throws IOException {
+    DiagramDocument document = documentService.update(id, request.getPuml());
+    if (document == null) {
+      throw new NotFoundException("Document not found or expired. ID: " + id);
+    }
+    return ResponseEntity.ok(toResponse(document));
+  }
+
+  @GetMapping(value = "/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
+  @Operation(summary = "Get a document", description = "Latest version, its render cache ID and the versions a delta can be computed from")
+  public ResponseEntity<DocumentResponse> getDocument(@PathVariable String id) {
+    return ResponseEntity.ok(toResponse(find(id)));
+  }
+
+  @GetMapping(value = "/{id}/svg")
+  @Operation(summary = "Get the SVG of a document", description = "Returns the SVG of the latest version (image/svg+xml). With since=N, the version the client already has: "
+      + "304 if it is the latest, otherwise a delta (application/json) when N is still in the history and the delta is smaller than the SVG. "
+      + "A delta lists operations on the characters of the old SVG: a number n copies the next n characters, -n skips them, a string is inserted. "
+      + "The version sent is in the X-Document-Version header.", responses = {
+          @io.swagger.v3.oas.annotations.responses.ApiResponse(responseCode = "200", description = "Full SVG or delta", content = {
+              @Content(mediaType = "image/svg+xml"),
+              @Content(mediaType = "application/json", schema = @Schema(implementation = SvgDeltaResponse.class), examples = @ExampleObject(name = "Delta", value = "{\"id\":\"550e8400-e29b-41d4-a716-446655440000\",\"version\":3,\"baseVersion\":2,\"ops\":[1830,-5,\"hello\",412]}"))
+          }),
+          @io.swagger.v3.oas.annotations.responses.ApiResponse(responseCode = "304", description = "The client has the latest version"),
+          @io.swagger.v3.oas.annotations.responses.ApiResponse(responseCode = "400", description = "The document has no such version"),
+          @io.swagger.v3.oas.annotations.responses.ApiResponse(responseCode = "404", description = "Document not found or expired")
+      })
+  public ResponseEntity<RenderedArtifact> getSvg(
+      @PathVariable String id,
+      @io.swagger.v3.oas.annotations.Parameter(description = "Version of the document the client already has", example = "2")
+      @RequestParam(required = false) Integer since) throws IOException {
+    DocumentService.SvgUpdate update = documentService.svg(find(id), since);
+    String version = String.valueOf(update.getVersion());
+    if (update.getKind() == DocumentService.SvgUpdate.Kind.NOT_MODIFIED) {
+      return ResponseEntity.status(HttpStatus.NOT_MODIFIED).header(VERSION_HEADER, version).build();
+    }
+    MediaType contentType = update.getKind() == DocumentService.SvgUpdate.Kind.DELTA
+        ? MediaType.APPLICATION_JSON
+        : MediaType.parseMediaType("image/svg+xml");
+    return ResponseEntity.ok()
+        .header(VERSION_HEADER, version)
+        .contentType(contentType)
+        .body(update.getBody());
+  }
+
+  @DeleteMapping(value = "/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
+  @Operation(summary = "Delete a document", description = "Deletes the document and its version history")
+  public ResponseEntity<Map<String, String>> deleteDocument(@PathVariable String id) {
+    if (!documentService.delete(id)) {
+      throw new NotFoundException("Document not found or expired. ID: " + id);
+    }
+    return ResponseEntity.ok(Map.of("message", "Document deleted successfully", "id", id));
+  }
+
+  private DiagramDocument find(String id) {
+    DiagramDocument document = documentService.get(id);
+    if (document == null) {
+      throw new NotFoundException("Document not found or expired. ID: " + id);
+    }
+    return document;
+  }
+
+  private static DocumentResponse toResponse(DiagramDocument document) {
+    DiagramDocument.Version latest = document.getLatest();
+    return new DocumentResponse(document.getId(), latest.getNumber(), latest.getCacheId(),
+        document.getVersionNumbers());
+  }
+}
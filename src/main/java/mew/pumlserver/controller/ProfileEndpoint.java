@@ -0,0 +1,77 @@
+package mew.pumlserver.controller;
+
+import mew.pumlserver.dto.ProfileResponse;
+import mew.pumlserver.exception.BadRequestException;
+import mew.pumlserver.exception.ConflictException;
+import mew.pumlserver.service.ProfilingService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.actuate.endpoint.web.WebEndpointResponse;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * /actuator/profile: POST records a JFR session and returns its summary,
+ * GET /actuator/profile/{id} downloads the recording. Protected by the admin
+ * token (see AdminTokenFilter).
+ */
+@Component
+@Endpoint(id = "profile")
+public class ProfileEndpoint {
+
+  private final ProfilingService profilingService;
+  private final int defaultSeconds;
+
+  public ProfileEndpoint(
+      ProfilingService profilingService,
+      @Value("${puml.profile.default-seconds:30}") int defaultSeconds) {
+    this.profilingService = profilingService;
+    this.defaultSeconds = defaultSeconds;
+  }
+
+  @WriteOperation
+  public WebEndpointResponse<Object> profile(@Nullable Integer seconds) throws IOException {
+    try {
+      ProfileResponse response = profilingService.record(seconds == null ? defaultSeconds : seconds);
+      response.setRecording("/profile/" + response.getId());
+      return new WebEndpointResponse<>(response);
+    } catch (BadRequestException e) {
+      return error(WebEndpointResponse.STATUS_BAD_REQUEST, "Bad Request", e.getMessage());
+    } catch (ConflictException e) {
+      return error(409, "Conflict", e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return error(WebEndpointResponse.STATUS_SERVICE_UNAVAILABLE, "Service Unavailable",
+          "Profiling was interrupted");
+    }
+  }
+
+  @ReadOperation(produces = "application/octet-stream")
+  public WebEndpointResponse<Resource> recording(@Selector String id) {
+    Path file = profilingService.getRecording(id);
+    if (file == null) {
+      return new WebEndpointResponse<>(WebEndpointResponse.STATUS_NOT_FOUND);
+    }
+    return new WebEndpointResponse<>(new FileSystemResource(file));
+  }
+
+  private static WebEndpointResponse<Object> error(int status, String error, String message) {
+    Map<String, Object> body = new HashMap<>();
+    body.put("error", error);
+    body.put("message", message);
+    body.put("status", status);
+    body.put("timestamp", LocalDateTime.now().toString());
+    return new WebEndpointResponse<>(body, status);
+  }
+}
@@ -6,26 +6,33 @@ import io.swagger.v3.oas.annotations.media.ExampleObject;
 import io.swagger.v3.oas.annotations.media.Schema;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import jakarta.validation.Valid;
+import mew.pumlserver.dto.ConversationStatsResponse;
 import mew.pumlserver.dto.ExplainRequest;
 import mew.pumlserver.dto.ExplainResponse;
 import mew.pumlserver.dto.GenerateRequest;
 import mew.pumlserver.dto.GenerateResponse;
 import mew.pumlserver.dto.OptimizeRequest;
+import mew.pumlserver.dto.OptimizeResponse;
 import mew.pumlserver.dto.PumlResponse;
 import mew.pumlserver.dto.RenderRequest;
 import mew.pumlserver.dto.RenderResponse;
+import mew.pumlserver.exception.ConflictException;
 import mew.pumlserver.exception.NotFoundException;
 import mew.pumlserver.model.CacheEntry;
 import mew.pumlserver.model.Conversation;
+import mew.pumlserver.model.LlmUsage;
+import mew.pumlserver.model.RenderContext;
 import mew.pumlserver.service.ConversationService;
 import mew.pumlserver.service.PumlGenerationService;
 import mew.pumlserver.service.RenderCacheService;
+import mew.pumlserver.service.StreamTaskService;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.io.IOException;
 import java.util.Map;
 
 @RestController
@@ -36,12 +43,14 @@ public class PumlController {
   private final RenderCacheService cacheService;
   private final PumlGenerationService generationService;
   private final ConversationService conversationService;
+  private final StreamTaskService streamTaskService;
 
   public PumlController(RenderCacheService cacheService, PumlGenerationService generationService,
-      ConversationService conversationService) {
+      ConversationService conversationService, StreamTaskService streamTaskService) {
     this.cacheService = cacheService;
     this.generationService = generationService;
     this.conversationService = conversationService;
+    this.streamTaskService = streamTaskService;
   }
 
   @PostMapping(consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
@@ -65,11 +74,15 @@ public class PumlController {
       "- If conversationId is provided, maintains context from previous messages. " +
       "- If conversationId is not provided, a new conversation will be created and its ID will be returned. " +
       "- If stream is true, returns Server-Sent Events (SSE) stream with text/event-stream content type. " +
-      "- If stream is false, returns JSON response with generated PUML code and conversationId. " +
+      "- If stream is false, returns JSON response with generated PUML code, conversationId and cache id. " +
+      "The generated diagram is rendered in the background right away, so GET /api/v1/render/{type}/{id}/raw is usually served from cache. " +
+      "When streaming, the cache id is sent as a final event named 'id'. " +
+      "Requests on one conversation run one at a time; a request sent while another is in progress is rejected with 409. " +
       "Conversations automatically expire after 30 minutes of inactivity.", responses = {
-          @io.swagger.v3.oas.annotations.responses.ApiResponse(responseCode = "200", description = "Successfully generated PUML code", content = @Content(mediaType = "application/json", schema = @Schema(implementation = GenerateResponse.class), examples = @ExampleObject(name = "Non-streaming response", value = "{\"puml\":\"@startuml\\n\\nBob -> Alice : hello\\n\\n@enduml\",\"conversationId\":\"550e8400-e29b-41d4-a716-446655440000\"}"))),
+          @io.swagger.v3.oas.annotations.responses.ApiResponse(responseCode = "200", description = "Successfully generated PUML code", content = @Content(mediaType = "application/json", schema = @Schema(implementation = GenerateResponse.class), examples = @ExampleObject(name = "Non-streaming response", value = "{\"puml\":\"@startuml\\n\\nBob -> Alice : hello\\n\\n@enduml\",\"conversationId\":\"550e8400-e29b-41d4-a716-446655440000\",\"id\":\"d5628b086764294d6eecb34595727c90720078c57958d995\"}"))),
           @io.swagger.v3.oas.annotations.responses.ApiResponse(responseCode = "200", description = "Streaming response (when stream=true)", content = @Content(mediaType = "text/event-stream")),
-          @io.swagger.v3.oas.annotations.responses.ApiResponse(responseCode = "404", description = "Conversation not found or expired (when conversationId is provided)")
+          @io.swagger.v3.oas.annotations.responses.ApiResponse(responseCode = "404", description = "Conversation not found or expired (when conversationId is provided)"),
+          @io.swagger.v3.oas.annotations.responses.ApiResponse(responseCode = "409", description = "Another request on the same conversation is still in progress")
       })
   @io.swagger.v3.oas.annotations.parameters.RequestBody(description = "OpenAI generation request", required = true, content = @Content(mediaType = "application/json", schema = @Schema(implementation = GenerateRequest.class), examples = {
       @ExampleObject(name = "New conversation (non-streaming)", value = "{\"baseUrl\":\"https://api.openai.com/v1\",\"apiKey\":\"sk-...\",\"model\":\"gpt-4\",\"prompt\":\"Create a sequence diagram showing user login flow\",\"stream\":false}"),
@@ -77,6 +90,7 @@ public class PumlController {
   }))
   public ResponseEntity<?> generatePuml(
       @Valid @org.springframework.web.bind.annotation.RequestBody GenerateRequest request) {
+    generationService.checkUpstream(request.getBaseUrl(), request.getApiKey());
 
     String conversationId = request.getConversationId();
     Conversation conversation;
@@ -91,58 +105,86 @@ public class PumlController {
       conversation = conversationService.getConversation(conversationId);
     }
 
-    final Conversation finalConversation = conversation;
-    conversation.addMessage("user", request.getPrompt());
+    // One turn at a time per conversation; its prompt and answer are added when it completes
+    Conversation.Turn turn = conversation.beginTurn(request.getPrompt());
+    if (turn == null) {
+      throw new ConflictException("Another request on this conversation is in progress. ID: " + conversationId);
+    }
 
     if (Boolean.TRUE.equals(request.getStream())) {
       SseEmitter emitter = new SseEmitter(60000L);
-
-      new Thread(() -> {
-        try {
-          StringBuilder fullContent = new StringBuilder();
-
-          String generatedPuml = generationService.generatePumlCode(
-              request.getBaseUrl(),
-              request.getApiKey(),
-              request.getModel(),
-              request.getPrompt(),
-              finalConversation);
-
-          for (char c : generatedPuml.toCharArray()) {
-            emitter.send(SseEmitter.event().data(String.valueOf(c)));
-            fullContent.append(c);
-            Thread.sleep(10);
+      // The stream runs on another thread, which doesn't see this request's tenant and client
+      RenderContext context = cacheService.currentContext();
+
+      try {
+        streamTaskService.run(emitter, "generate", frames -> {
+          try {
+            StringBuilder fullContent = new StringBuilder();
+
+            String generatedPuml = generationService.generatePumlCode(
+                request.getBaseUrl(),
+                request.getApiKey(),
+                request.getModel(),
+                request.getPrompt(),
+                turn.getHistory(),
+                conversation.getUsage());
+
+            // Start rendering while the code is still being streamed to the client
+            String id = cacheService.cachePumlCode(generatedPuml, context);
+            cacheService.prerenderAsync(id, context);
+
+            try {
+              for (char c : generatedPuml.toCharArray()) {
+                frames.append(String.valueOf(c));
+                fullContent.append(c);
+                Thread.sleep(10);
+              }
+            } catch (InterruptedException | IOException e) {
+              // The client went away before receiving the id, the pre-render is not needed
+              cacheService.cancelPrerender(id);
+              throw e;
+            }
+
+            turn.complete(fullContent.toString());
+            frames.event("id", id);
+            frames.complete();
+          } finally {
+            // No effect if the turn completed
+            turn.abort();
           }
-
-          finalConversation.addMessage("assistant", fullContent.toString());
-          cacheService.cachePumlCode(fullContent.toString());
-
-          emitter.complete();
-        } catch (Exception e) {
-          emitter.completeWithError(e);
-        }
-      }).start();
+        });
+      } catch (RuntimeException e) {
+        turn.abort();
+        throw e;
+      }
 
       return ResponseEntity.ok()
           .contentType(MediaType.TEXT_EVENT_STREAM)
           .body(emitter);
     } else {
-      String generatedPuml = generationService.generatePumlCode(
-          request.getBaseUrl(),
-          request.getApiKey(),
-          request.getModel(),
-          request.getPrompt(),
-          conversation);
+      String generatedPuml;
+      try {
+        generatedPuml = generationService.generatePumlCode(
+            request.getBaseUrl(),
+            request.getApiKey(),
+            request.getModel(),
+            request.getPrompt(),
+            turn.getHistory(),
+            conversation.getUsage());
+        turn.complete(generatedPuml);
+      } finally {
+        turn.abort();
+      }
 
-      conversation.addMessage("assistant", generatedPuml);
-      cacheService.cachePumlCode(generatedPuml);
+      String id = cacheService.cachePumlCode(generatedPuml);
+      cacheService.prerenderAsync(id);
 
       HttpHeaders headers = new HttpHeaders();
       headers.setContentType(MediaType.APPLICATION_JSON);
       return ResponseEntity
           .ok()
           .headers(headers)
-          .body(new GenerateResponse(generatedPuml, conversationId));
+          .body(new GenerateResponse(generatedPuml, conversationId, id));
     }
   }
 
@@ -151,9 +193,11 @@ public class PumlController {
       +
       "Supports streaming. " +
       "- If stream is true, returns Server-Sent Events (SSE) stream with text/event-stream content type. " +
-      "- If stream is false, returns JSON response with optimized PUML code. " +
+      "- If stream is false, returns JSON response with optimized PUML code and cache id. " +
+      "The optimized diagram is rendered in the background right away, so GET /api/v1/render/{type}/{id}/raw is usually served from cache. " +
+      "When streaming, the cache id is sent as a final event named 'id'. " +
       "This endpoint does not maintain conversation context.", responses = {
-          @io.swagger.v3.oas.annotations.responses.ApiResponse(responseCode = "200", description = "Successfully optimized PUML code", content = @Content(mediaType = "application/json", schema = @Schema(implementation = PumlResponse.class), examples = @ExampleObject(name = "Non-streaming response", value = "{\"puml\":\"@startuml\\n\\nBob -> Alice : hello\\n\\n@enduml\"}"))),
+          @io.swagger.v3.oas.annotations.responses.ApiResponse(responseCode = "200", description = "Successfully optimized PUML code", content = @Content(mediaType = "application/json", schema = @Schema(implementation = OptimizeResponse.class), examples = @ExampleObject(name = "Non-streaming response", value = "{\"puml\":\"@startuml\\n\\nBob -> Alice : hello\\n\\n@enduml\",\"id\":\"d5628b086764294d6eecb34595727c90720078c57958d995\"}"))),
           @io.swagger.v3.oas.annotations.responses.ApiResponse(responseCode = "200", description = "Streaming response (when stream=true)", content = @Content(mediaType = "text/event-stream"))
       })
   @io.swagger.v3.oas.annotations.parameters.RequestBody(description = "OpenAI optimization request", required = true, content = @Content(mediaType = "application/json", schema = @Schema(implementation = OptimizeRequest.class), examples = {
@@ -162,33 +206,41 @@ public class PumlController {
   }))
   public ResponseEntity<?> optimizePuml(
       @Valid @org.springframework.web.bind.annotation.RequestBody OptimizeRequest request) {
+    generationService.checkUpstream(request.getBaseUrl(), request.getApiKey());
 
     if (Boolean.TRUE.equals(request.getStream())) {
       SseEmitter emitter = new SseEmitter(60000L);
+      // The stream runs on another thread, which doesn't see this request's tenant and client
+      RenderContext context = cacheService.currentContext();
 
-      new Thread(() -> {
-        try {
-          StringBuilder fullContent = new StringBuilder();
+      streamTaskService.run(emitter, "optimize", frames -> {
+        StringBuilder fullContent = new StringBuilder();
 
-          String optimizedPuml = generationService.optimizePumlCode(
-              request.getBaseUrl(),
-              request.getApiKey(),
-              request.getModel(),
-              request.getPuml());
+        String optimizedPuml = generationService.optimizePumlCode(
+            request.getBaseUrl(),
+            request.getApiKey(),
+            request.getModel(),
+            request.getPuml());
 
+        // Start rendering while the code is still being streamed to the client
+        String id = cacheService.cachePumlCode(optimizedPuml, context);
+        cacheService.prerenderAsync(id, context);
+
+        try {
           for (char c : optimizedPuml.toCharArray()) {
-            emitter.send(SseEmitter.event().data(String.valueOf(c)));
+            frames.append(String.valueOf(c));
             fullContent.append(c);
             Thread.sleep(10);
           }
-
-          cacheService.cachePumlCode(fullContent.toString());
-
-          emitter.complete();
-        } catch (Exception e) {
-          emitter.completeWithError(e);
+        } catch (InterruptedException | IOException e) {
+          // The client went away before receiving the id, the pre-render is not needed
+          cacheService.cancelPrerender(id);
+          throw e;
         }
-      }).start();
+
+        frames.event("id", id);
+        frames.complete();
+      });
 
       return ResponseEntity.ok()
           .contentType(MediaType.TEXT_EVENT_STREAM)
@@ -200,14 +252,15 @@ public class PumlController {
           request.getModel(),
           request.getPuml());
 
-      cacheService.cachePumlCode(optimizedPuml);
+      String id = cacheService.cachePumlCode(optimizedPuml);
+      cacheService.prerenderAsync(id);
 
       HttpHeaders headers = new HttpHeaders();
       headers.setContentType(MediaType.APPLICATION_JSON);
       return ResponseEntity
           .ok()
           .headers(headers)
-          .body(new PumlResponse(optimizedPuml));
+          .body(new OptimizeResponse(optimizedPuml, id));
     }
   }
 
@@ -228,6 +281,7 @@ public class PumlController {
   }))
   public ResponseEntity<?> explainPuml(
       @Valid @org.springframework.web.bind.annotation.RequestBody ExplainRequest request) {
+    generationService.checkUpstream(request.getBaseUrl(), request.getApiKey());
 
     String language = request.getLanguage();
     if (language == null || language.isBlank()) {
@@ -238,28 +292,24 @@ public class PumlController {
     if (Boolean.TRUE.equals(request.getStream())) {
       SseEmitter emitter = new SseEmitter(60000L);
 
-      new Thread(() -> {
-        try {
-          StringBuilder fullContent = new StringBuilder();
-
-          String explanation = generationService.explainPumlCode(
-              request.getBaseUrl(),
-              request.getApiKey(),
-              request.getModel(),
-              request.getPuml(),
-              finalLanguage);
+      streamTaskService.run(emitter, "explain", frames -> {
+        StringBuilder fullContent = new StringBuilder();
 
-          for (char c : explanation.toCharArray()) {
-            emitter.send(SseEmitter.event().data(String.valueOf(c)));
-            fullContent.append(c);
-            Thread.sleep(10);
-          }
+        String explanation = generationService.explainPumlCode(
+            request.getBaseUrl(),
+            request.getApiKey(),
+            request.getModel(),
+            request.getPuml(),
+            finalLanguage);
 
-          emitter.complete();
-        } catch (Exception e) {
-          emitter.completeWithError(e);
+        for (char c : explanation.toCharArray()) {
+          frames.append(String.valueOf(c));
+          fullContent.append(c);
+          Thread.sleep(10);
         }
-      }).start();
+
+        frames.complete();
+      });
 
       return ResponseEntity.ok()
           .contentType(MediaType.TEXT_EVENT_STREAM)
@@ -281,6 +331,28 @@ public class PumlController {
     }
   }
 
+  @GetMapping(value = "/conversation/{conversationId}/stats", produces = MediaType.APPLICATION_JSON_VALUE)
+  @Operation(summary = "Get conversation stats", description = "Prompt and completion tokens, as reported in the usage of each completion, "
+      + "and the time to response and latency of the LLM calls made for the conversation. "
+      + "Tokens and latency per model are exported as the puml.llm.tokens, puml.llm.time-to-response and puml.llm.latency metrics.", responses = {
+          @io.swagger.v3.oas.annotations.responses.ApiResponse(responseCode = "200", description = "Conversation stats", content = @Content(mediaType = "application/json", schema = @Schema(implementation = ConversationStatsResponse.class))),
+          @io.swagger.v3.oas.annotations.responses.ApiResponse(responseCode = "404", description = "Conversation not found or expired")
+      })
+  public ResponseEntity<ConversationStatsResponse> getConversationStats(@PathVariable String conversationId) {
+    Conversation conversation = conversationService.getConversation(conversationId);
+    if (conversation == null) {
+      throw new NotFoundException("Conversation not found or expired. ID: " + conversationId);
+    }
+
+    LlmUsage usage = conversation.getUsage();
+    long calls = usage.getCalls();
+    return ResponseEntity.ok(new ConversationStatsResponse(conversationId, conversation.getMessages().size() / 2,
+        calls, usage.getPromptTokens(), usage.getCompletionTokens(),
+        calls == 0 ? 0 : usage.getTimeToResponseMillis() / calls,
+        calls == 0 ? 0 : usage.getLatencyMillis() / calls,
+        usage.getLatencyMillis()));
+  }
+
   @DeleteMapping(value = "/conversation/{conversationId}")
   @Operation(summary = "Delete conversation", description = "Deletes a conversation by ID. The conversation and all its context will be removed permanently.", responses = {
       @io.swagger.v3.oas.annotations.responses.ApiResponse(responseCode = "200", description = "Conversation deleted successfully", content = @Content(mediaType = "application/json", examples = @ExampleObject(name = "Success response", value = "{\"message\":\"Conversation deleted successfully\",\"conversationId\":\"550e8400-e29b-41d4-a716-446655440000\"}"))),
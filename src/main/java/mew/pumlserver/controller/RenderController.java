@@ -10,6 +10,9 @@ import mew.pumlserver.dto.RenderRequest;
 import mew.pumlserver.dto.RenderResponse;
 import mew.pumlserver.exception.NotFoundException;
 import mew.pumlserver.model.CacheEntry;
+import mew.pumlserver.model.PngOptions;
+import mew.pumlserver.model.RenderedArtifact;
+import mew.pumlserver.service.PngExportService;
 import mew.pumlserver.service.RenderCacheService;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
@@ -17,6 +20,7 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 @RestController
 @RequestMapping("/api/v1/render")
@@ -24,9 +28,11 @@ import java.io.IOException;
 public class RenderController {
 
   private final RenderCacheService cacheService;
+  private final PngExportService pngExportService;
 
-  public RenderController(RenderCacheService cacheService) {
+  public RenderController(RenderCacheService cacheService, PngExportService pngExportService) {
     this.cacheService = cacheService;
+    this.pngExportService = pngExportService;
   }
 
   @PostMapping(value = "/svg", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
@@ -71,10 +77,14 @@ public class RenderController {
   }
 
   @GetMapping(value = "/{type}/{id}/raw")
-  @Operation(summary = "Get rendered content by ID", description = "Retrieves cached rendered content by ID and format type. The ID can be obtained from any endpoint that returns an ID (POST /api/v1/puml, POST /api/v1/render/svg, etc.). If the ID was created via POST /api/v1/puml without rendering, the content will be automatically rendered on first access. The same ID can be used to retrieve SVG, PNG, or Text formats. Content expires after 30 minutes.")
+  @Operation(summary = "Get rendered content by ID", description = "Retrieves cached rendered content by ID and format type. The ID can be obtained from any endpoint that returns an ID (POST /api/v1/puml, POST /api/v1/render/svg, etc.). If the ID was created via POST /api/v1/puml without rendering, the content will be automatically rendered on first access. The same ID can be used to retrieve SVG, PNG, or Text formats. Content expires after 30 minutes. For PNG, the optional compression (0-9) and palette parameters override the server's PNG encoding settings.")
   public ResponseEntity<?> getRawContent(
       @PathVariable String type,
-      @PathVariable String id) throws IOException {
+      @PathVariable String id,
+      @io.swagger.v3.oas.annotations.Parameter(description = "PNG only: deflate compression level, 0 (fastest) to 9 (smallest)", example = "9")
+      @RequestParam(required = false) Integer compression,
+      @io.swagger.v3.oas.annotations.Parameter(description = "PNG only: write an indexed-palette PNG when the diagram has at most 256 colors", example = "true")
+      @RequestParam(required = false) Boolean palette) throws IOException {
     CacheEntry entry = cacheService.getCachedEntry(id);
 
     if (entry == null) {
@@ -86,7 +96,7 @@ public class RenderController {
     HttpHeaders headers = new HttpHeaders();
 
     if ("text".equals(type)) {
-      headers.setContentType(MediaType.TEXT_PLAIN);
+      headers.setContentType(new MediaType(MediaType.TEXT_PLAIN, StandardCharsets.UTF_8));
       return ResponseEntity.ok()
           .headers(headers)
           .body(entry.getTextContent());
@@ -96,10 +106,15 @@ public class RenderController {
           .headers(headers)
           .body(entry.getSvgContent());
     } else if ("png".equals(type)) {
+      RenderedArtifact png = entry.getPngContent();
+      if (compression != null || palette != null) {
+        PngOptions options = pngExportService.resolve(compression, palette);
+        png = cacheService.getPngVariant(entry, options);
+      }
       headers.setContentType(MediaType.IMAGE_PNG);
       return ResponseEntity.ok()
           .headers(headers)
-          .body(entry.getPngContent());
+          .body(png);
     } else {
       throw new NotFoundException("Invalid content type: " + type + ". Supported types: svg, png, text");
     }
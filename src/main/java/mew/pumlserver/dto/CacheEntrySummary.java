@@ -0,0 +1,27 @@
+package mew.pumlserver.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class CacheEntrySummary {
+    private String id;
+    private String renderKey;
+    /** Requests counted by the hot key sketch, an upper bound; null if not among the counted keys */
+    private Long requests;
+    /** Overestimate of requests: the real count is at least requests - requestsError */
+    private Long requestsError;
+    /** Null if the entry isn't stored on this node (expired, purged, or owned by another node) */
+    private Long hits;
+    private Long misses;
+    private Long sourceBytes;
+    /** Bytes of the rendered formats, compressed if the entry is in the cold tier */
+    private Long renderedBytes;
+    private Boolean cold;
+    private Long ageSeconds;
+}
@@ -0,0 +1,29 @@
+package mew.pumlserver.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+import java.util.Map;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CacheStatsResponse {
+    private int entries;
+    private int renderedEntries;
+    private int coldEntries;
+    private int hotSetEntries;
+    private int inFlightRenders;
+    /** Bytes held per format (source, svg, png, text); renders shared by several entries count once */
+    private Map<String, Long> bytes;
+    /** Entries per age bucket, by time since they were cached */
+    private Map<String, Long> ageHistogram;
+    private long hits;
+    private long misses;
+    /** Requests counted by the hot key sketch since startup */
+    private long requests;
+    private List<CacheEntrySummary> hottest;
+    private List<CacheEntrySummary> largest;
+}
@@ -0,0 +1,37 @@
+package mew.pumlserver.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Schema(description = "Token usage and latency of a conversation's LLM calls")
+public class ConversationStatsResponse {
+
+    @Schema(description = "Conversation ID", example = "550e8400-e29b-41d4-a716-446655440000")
+    private String conversationId;
+
+    @Schema(description = "Completed turns (prompt and answer) in the conversation's history", example = "3")
+    private int turns;
+
+    @Schema(description = "Successful LLM calls", example = "3")
+    private long calls;
+
+    @Schema(description = "Prompt tokens, as reported by the LLM", example = "1250")
+    private long promptTokens;
+
+    @Schema(description = "Completion tokens, as reported by the LLM", example = "610")
+    private long completionTokens;
+
+    @Schema(description = "Average time until the LLM's response started arriving, in milliseconds", example = "820")
+    private long averageTimeToResponseMillis;
+
+    @Schema(description = "Average latency of a call in milliseconds, failovers included", example = "2450")
+    private long averageLatencyMillis;
+
+    @Schema(description = "Total latency of the calls in milliseconds", example = "7350")
+    private long totalLatencyMillis;
+}
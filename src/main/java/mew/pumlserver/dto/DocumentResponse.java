@@ -0,0 +1,23 @@
+package mew.pumlserver.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DocumentResponse {
+    private String id;
+    private Integer version;
+    /**
+     * Render cache ID of the latest version, usable with GET /api/v1/render/{type}/{id}/raw
+     */
+    private String cacheId;
+    /**
+     * Versions a delta can be computed from
+     */
+    private List<Integer> versions;
+}
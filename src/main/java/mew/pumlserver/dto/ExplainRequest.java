@@ -12,12 +12,10 @@ import lombok.NoArgsConstructor;
 @Schema(description = "Request body for explaining PlantUML code using OpenAI")
 public class ExplainRequest {
 
-  @NotBlank(message = "Base URL cannot be blank")
-  @Schema(description = "OpenAI API base URL", example = "https://api.openai.com/v1")
+  @Schema(description = "OpenAI API base URL. Optional when the server has an upstream group (puml.llm.upstreams), which is used when it is omitted", example = "https://api.openai.com/v1")
   private String baseUrl;
 
-  @NotBlank(message = "API key cannot be blank")
-  @Schema(description = "OpenAI API key", example = "sk-...")
+  @Schema(description = "OpenAI API key. Required with baseUrl; with the upstream group it defaults to the server's key", example = "sk-...")
   private String apiKey;
 
   @NotBlank(message = "Model cannot be blank")
@@ -16,5 +16,8 @@ public class GenerateResponse {
     
     @Schema(description = "Conversation ID for maintaining context in subsequent requests", example = "550e8400-e29b-41d4-a716-446655440000")
     private String conversationId;
+    
+    @Schema(description = "Cache ID of the generated diagram, usable with GET /api/v1/render/{type}/{id}/raw", example = "d5628b086764294d6eecb34595727c90720078c57958d995")
+    private String id;
 }
 
@@ -0,0 +1,19 @@
+package mew.pumlserver.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Schema(description = "Response for PUML code optimization")
+public class OptimizeResponse {
+    
+    @Schema(description = "Optimized PlantUML code", example = "@startuml\n\nBob -> Alice : hello\n\n@enduml")
+    private String puml;
+    
+    @Schema(description = "Cache ID of the optimized diagram, usable with GET /api/v1/render/{type}/{id}/raw", example = "d5628b086764294d6eecb34595727c90720078c57958d995")
+    private String id;
+}
@@ -0,0 +1,38 @@
+package mew.pumlserver.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ProfileResponse {
+    private String id;
+    private String startedAt;
+    private int seconds;
+    private long recordingBytes;
+    /** Path of the .jfr file, relative to the actuator base path */
+    private String recording;
+    private long executionSamples;
+    private long allocatedBytes;
+    private List<Site> hotMethods;
+    private List<Site> allocationSites;
+    private List<Site> lockContention;
+
+    /**
+     * A method in the profiled packages, with the samples, bytes or blocked
+     * milliseconds attributed to it (its own and those of the library code it called)
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Site {
+        private String method;
+        private long count;
+        private long total;
+        private double percent;
+    }
+}
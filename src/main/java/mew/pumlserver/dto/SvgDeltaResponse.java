@@ -0,0 +1,21 @@
+package mew.pumlserver.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Delta from the SVG of baseVersion to the SVG of version (see SvgDiff): a number n
+ * copies the next n characters of the old SVG, -n skips them, a string is inserted
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SvgDeltaResponse {
+    private String id;
+    private Integer version;
+    private Integer baseVersion;
+    private List<Object> ops;
+}
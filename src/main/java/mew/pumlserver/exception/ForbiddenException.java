@@ -0,0 +1,12 @@
+package mew.pumlserver.exception;
+
+public class ForbiddenException extends RuntimeException {
+    
+    public ForbiddenException(String message) {
+        super(message);
+    }
+    
+    public ForbiddenException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
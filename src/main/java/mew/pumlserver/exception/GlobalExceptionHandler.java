@@ -1,5 +1,6 @@
 package mew.pumlserver.exception;
 
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.MethodArgumentNotValidException;
@@ -62,6 +63,78 @@ public class GlobalExceptionHandler {
     return new ResponseEntity<>(body, HttpStatus.NOT_FOUND);
   }
 
+  @ExceptionHandler(ForbiddenException.class)
+  public ResponseEntity<Map<String, Object>> handleForbiddenException(
+      ForbiddenException ex, WebRequest request) {
+
+    Map<String, Object> body = new HashMap<>();
+    body.put("error", "Forbidden");
+    body.put("message", ex.getMessage());
+    body.put("status", HttpStatus.FORBIDDEN.value());
+    body.put("path", request.getDescription(false).replace("uri=", ""));
+    body.put("timestamp", LocalDateTime.now());
+
+    return new ResponseEntity<>(body, HttpStatus.FORBIDDEN);
+  }
+
+  @ExceptionHandler(ConflictException.class)
+  public ResponseEntity<Map<String, Object>> handleConflictException(
+      ConflictException ex, WebRequest request) {
+
+    Map<String, Object> body = new HashMap<>();
+    body.put("error", "Conflict");
+    body.put("message", ex.getMessage());
+    body.put("status", HttpStatus.CONFLICT.value());
+    body.put("path", request.getDescription(false).replace("uri=", ""));
+    body.put("timestamp", LocalDateTime.now());
+
+    return new ResponseEntity<>(body, HttpStatus.CONFLICT);
+  }
+
+  @ExceptionHandler(PayloadTooLargeException.class)
+  public ResponseEntity<Map<String, Object>> handlePayloadTooLargeException(
+      PayloadTooLargeException ex, WebRequest request) {
+
+    Map<String, Object> body = new HashMap<>();
+    body.put("error", "Payload Too Large");
+    body.put("message", ex.getMessage());
+    body.put("status", HttpStatus.PAYLOAD_TOO_LARGE.value());
+    body.put("path", request.getDescription(false).replace("uri=", ""));
+    body.put("timestamp", LocalDateTime.now());
+
+    return new ResponseEntity<>(body, HttpStatus.PAYLOAD_TOO_LARGE);
+  }
+
+  @ExceptionHandler(UnprocessableEntityException.class)
+  public ResponseEntity<Map<String, Object>> handleUnprocessableEntityException(
+      UnprocessableEntityException ex, WebRequest request) {
+
+    Map<String, Object> body = new HashMap<>();
+    body.put("error", "Unprocessable Entity");
+    body.put("message", ex.getMessage());
+    body.put("status", HttpStatus.UNPROCESSABLE_ENTITY.value());
+    body.put("path", request.getDescription(false).replace("uri=", ""));
+    body.put("timestamp", LocalDateTime.now());
+
+    return new ResponseEntity<>(body, HttpStatus.UNPROCESSABLE_ENTITY);
+  }
+
+  @ExceptionHandler(ServiceUnavailableException.class)
+  public ResponseEntity<Map<String, Object>> handleServiceUnavailableException(
+      ServiceUnavailableException ex, WebRequest request) {
+
+    Map<String, Object> body = new HashMap<>();
+    body.put("error", "Service Unavailable");
+    body.put("message", ex.getMessage());
+    body.put("status", HttpStatus.SERVICE_UNAVAILABLE.value());
+    body.put("path", request.getDescription(false).replace("uri=", ""));
+    body.put("timestamp", LocalDateTime.now());
+
+    return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+        .header(HttpHeaders.RETRY_AFTER, "1")
+        .body(body);
+  }
+
   @ExceptionHandler(IOException.class)
   public ResponseEntity<Map<String, Object>> handleIOException(
       IOException ex, WebRequest request) {
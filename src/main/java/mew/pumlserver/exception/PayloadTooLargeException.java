@@ -0,0 +1,12 @@
+package mew.pumlserver.exception;
+
+public class PayloadTooLargeException extends RuntimeException {
+    
+    public PayloadTooLargeException(String message) {
+        super(message);
+    }
+    
+    public PayloadTooLargeException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,12 @@
+package mew.pumlserver.exception;
+
+public class UnprocessableEntityException extends RuntimeException {
+    
+    public UnprocessableEntityException(String message) {
+        super(message);
+    }
+    
+    public UnprocessableEntityException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -1,20 +1,38 @@
 package mew.pumlserver.model;
 
-import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
 import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Data
 @NoArgsConstructor
-@AllArgsConstructor
 public class CacheEntry {
     private String id;
     private String puml;
     private LocalDateTime createdAt;
-    private byte[] svgContent; // SVG format
-    private byte[] pngContent; // PNG format
-    private String textContent; // Text format
-}
+    private RenderedArtifact svgContent; // SVG format
+    private RenderedArtifact pngContent; // PNG format
+    private RenderedArtifact textContent; // Text format (UTF-8)
+    private final Map<PngOptions, RenderedArtifact> pngVariants = new ConcurrentHashMap<>(); // PNG re-encoded with per-request options
+    private volatile CompressedRender coldRender; // Rendered formats while demoted to the cold tier
+    private volatile long lastAccessMillis; // Last read of the rendered formats
+    private final AtomicLong hits = new AtomicLong(); // Reads served from the rendered formats
+    private final AtomicLong misses = new AtomicLong(); // Reads that had to wait for a render
+    private volatile String tenant; // Tenant the entry's bytes are charged to
+    private final AtomicLong chargedBytes = new AtomicLong(-1); // Bytes charged, -1 while not in the local cache
 
+    public CacheEntry(String id, String puml, LocalDateTime createdAt, RenderedArtifact svgContent,
+            RenderedArtifact pngContent, RenderedArtifact textContent) {
+        this.id = id;
+        this.puml = puml;
+        this.createdAt = createdAt;
+        this.svgContent = svgContent;
+        this.pngContent = pngContent;
+        this.textContent = textContent;
+        this.lastAccessMillis = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,69 @@
+package mew.pumlserver.model;
+
+/**
+ * Rendered formats of an idle cache entry, demoted to the cold tier.
+ *
+ * SVG and text are held deflated; PNG is already deflate-compressed and is
+ * kept as it is. Immutable, so entries sharing a render can share it too.
+ */
+public final class CompressedRender {
+
+    private final byte[] svg;
+    private final int svgSize;
+    private final byte[] text;
+    private final int textSize;
+    private final RenderedArtifact png;
+
+    public CompressedRender(byte[] svg, int svgSize, byte[] text, int textSize, RenderedArtifact png) {
+        this.svg = svg;
+        this.svgSize = svgSize;
+        this.text = text;
+        this.textSize = textSize;
+        this.png = png;
+    }
+
+    /**
+     * Deflated SVG. The caller must not modify it.
+     */
+    public byte[] getSvg() {
+        return svg;
+    }
+
+    public int getSvgSize() {
+        return svgSize;
+    }
+
+    /**
+     * Deflated text. The caller must not modify it.
+     */
+    public byte[] getText() {
+        return text;
+    }
+
+    public int getTextSize() {
+        return textSize;
+    }
+
+    public RenderedArtifact getPng() {
+        return png;
+    }
+
+    /**
+     * Bytes held by the uncompressed formats
+     */
+    public long rawSize() {
+        return (long) svgSize + textSize + png.size();
+    }
+
+    /**
+     * Bytes held in the cold tier
+     */
+    public long compressedSize() {
+        return (long) svg.length + text.length + png.size();
+    }
+
+    @Override
+    public String toString() {
+        return "CompressedRender[" + rawSize() + " -> " + compressedSize() + " bytes]";
+    }
+}
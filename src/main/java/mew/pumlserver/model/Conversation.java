@@ -1,40 +1,160 @@
 package mew.pumlserver.model;
 
-import lombok.AllArgsConstructor;
-import lombok.Data;
-import lombok.NoArgsConstructor;
+import lombok.Value;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
-@Data
-@NoArgsConstructor
-@AllArgsConstructor
+/**
+ * A conversation with the LLM.
+ *
+ * The message history is an immutable snapshot, replaced with compare-and-set,
+ * so readers never lock and never see a partial append, and conversations
+ * never contend with each other. One turn runs at a time: a turn started while
+ * another is in flight is rejected, which keeps user and assistant messages
+ * strictly alternating. A turn in flight for longer than TURN_TIMEOUT (e.g. one
+ * whose stream was cancelled before it started) no longer blocks new turns.
+ */
 public class Conversation {
-    private String id;
-    private LocalDateTime createdAt;
-    private LocalDateTime lastAccessedAt;
-    private List<Message> messages;
+
+    private static final Duration TURN_TIMEOUT = Duration.ofMinutes(5);
+
+    private final String id;
+    private final LocalDateTime createdAt;
+    private volatile LocalDateTime lastAccessedAt;
+    private final AtomicReference<History> history = new AtomicReference<>(History.EMPTY);
+    private final LlmUsage usage = new LlmUsage();
 
     public Conversation(String id) {
         this.id = id;
         this.createdAt = LocalDateTime.now();
-        this.lastAccessedAt = LocalDateTime.now();
-        this.messages = new ArrayList<>();
+        this.lastAccessedAt = createdAt;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public LocalDateTime getLastAccessedAt() {
+        return lastAccessedAt;
+    }
+
+    public void setLastAccessedAt(LocalDateTime lastAccessedAt) {
+        this.lastAccessedAt = lastAccessedAt;
+    }
+
+    /**
+     * Tokens and latency of the LLM calls made for this conversation
+     */
+    public LlmUsage getUsage() {
+        return usage;
+    }
+
+    /**
+     * Messages of the completed turns (immutable snapshot)
+     */
+    public List<Message> getMessages() {
+        return history.get().messages;
     }
 
-    public void addMessage(String role, String content) {
-        this.messages.add(new Message(role, content));
-        this.lastAccessedAt = LocalDateTime.now();
+    /**
+     * Start a turn with the user's prompt. Returns null if another turn of this
+     * conversation is in flight.
+     */
+    public Turn beginTurn(String prompt) {
+        while (true) {
+            History current = history.get();
+            if (current.turn != null && !current.turn.isStale()) {
+                return null;
+            }
+            // A stale turn is dropped along with its prompt
+            History before = current.turn != null ? current.turn.before : current;
+            Turn turn = new Turn(before, prompt);
+            if (history.compareAndSet(current, new History(before.messages, turn))) {
+                lastAccessedAt = LocalDateTime.now();
+                return turn;
+            }
+        }
     }
 
-    @Data
-    @NoArgsConstructor
-    @AllArgsConstructor
+    /**
+     * Immutable message history, with the turn in flight if there is one
+     */
+    private static final class History {
+        private static final History EMPTY = new History(List.of(), null);
+
+        private final List<Message> messages;
+        private final Turn turn;
+
+        History(List<Message> messages, Turn turn) {
+            this.messages = messages;
+            this.turn = turn;
+        }
+    }
+
+    /**
+     * A user prompt and the assistant's answer, added to the history together when the turn completes
+     */
+    public final class Turn {
+        private final History before;
+        private final Message prompt;
+        private final long startedAt = System.nanoTime();
+
+        private Turn(History before, String prompt) {
+            this.before = before;
+            this.prompt = new Message("user", prompt);
+        }
+
+        /**
+         * Messages of the turns before this one, to build the prompt from
+         */
+        public List<Message> getHistory() {
+            return before.messages;
+        }
+
+        /**
+         * Append the prompt and the answer to the history. Returns false if the turn
+         * already ended, or was dropped as stale.
+         */
+        public boolean complete(String answer) {
+            History current = history.get();
+            if (current.turn != this) {
+                return false;
+            }
+            List<Message> messages = new ArrayList<>(before.messages.size() + 2);
+            messages.addAll(before.messages);
+            messages.add(prompt);
+            messages.add(new Message("assistant", answer));
+            lastAccessedAt = LocalDateTime.now();
+            return history.compareAndSet(current, new History(Collections.unmodifiableList(messages), null));
+        }
+
+        /**
+         * End the turn without changing the history. No effect once the turn has ended.
+         */
+        public void abort() {
+            History current = history.get();
+            if (current.turn == this) {
+                history.compareAndSet(current, before);
+            }
+        }
+
+        private boolean isStale() {
+            return System.nanoTime() - startedAt > TURN_TIMEOUT.toNanos();
+        }
+    }
+
+    @Value
     public static class Message {
-        private String role;
-        private String content;
+        String role;
+        String content;
     }
 }
-
@@ -0,0 +1,155 @@
+package mew.pumlserver.model;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A diagram document: a stable ID whose source changes version by version.
+ *
+ * The most recent versions are kept by render cache ID, up to the history size, so
+ * a client holding one of them can be sent a delta to the latest version; their SVG
+ * stays in the render cache. Only the latest source is kept, to render it again
+ * if the cache dropped it. Deltas to the latest version are kept until the next
+ * version is added, and their bytes are charged to the document's tenant.
+ */
+public class DiagramDocument {
+
+    private final String id;
+    private final String tenant;
+    private final int historySize;
+    private final Deque<Version> versions = new ArrayDeque<>();
+    private final Map<Integer, byte[]> deltasToLatest = new HashMap<>();
+    private String latestPuml;
+    private long deltaBytes;
+    private boolean closed;
+    private volatile long lastAccessedMillis;
+
+    public DiagramDocument(String id, String tenant, int historySize) {
+        this.id = id;
+        this.tenant = tenant;
+        this.historySize = Math.max(1, historySize);
+        this.lastAccessedMillis = System.currentTimeMillis();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Tenant that created the document, charged for its deltas
+     */
+    public String getTenant() {
+        return tenant;
+    }
+
+    public long getLastAccessedMillis() {
+        return lastAccessedMillis;
+    }
+
+    public void touch() {
+        lastAccessedMillis = System.currentTimeMillis();
+    }
+
+    public synchronized Version getLatest() {
+        return versions.peekLast();
+    }
+
+    /**
+     * A version still in the history, or null
+     */
+    public synchronized Version getVersion(int number) {
+        for (Version version : versions) {
+            if (version.number == number) {
+                return version;
+            }
+        }
+        return null;
+    }
+
+    public synchronized List<Integer> getVersionNumbers() {
+        return versions.stream().map(Version::getNumber).toList();
+    }
+
+    /**
+     * Source of the latest version
+     */
+    public synchronized String getLatestPuml() {
+        return latestPuml;
+    }
+
+    /**
+     * Bytes of the deltas kept for the latest version
+     */
+    public synchronized long getDeltaBytes() {
+        return deltaBytes;
+    }
+
+    /**
+     * Add a version, unless the source renders to the same cache entry as the latest;
+     * returns the latest version
+     */
+    public synchronized Version addVersion(String cacheId, String puml) {
+        Version latest = versions.peekLast();
+        if (latest != null && latest.cacheId.equals(cacheId)) {
+            return latest;
+        }
+        Version version = new Version(latest == null ? 1 : latest.number + 1, cacheId);
+        versions.addLast(version);
+        while (versions.size() > historySize) {
+            versions.removeFirst();
+        }
+        latestPuml = puml;
+        deltasToLatest.clear();
+        deltaBytes = 0;
+        return version;
+    }
+
+    /**
+     * Serialized delta from a base version to the given version, if it is still the latest
+     */
+    public synchronized byte[] getDelta(Version version, int baseVersion) {
+        return version == versions.peekLast() ? deltasToLatest.get(baseVersion) : null;
+    }
+
+    public synchronized void putDelta(Version version, int baseVersion, byte[] delta) {
+        if (version == versions.peekLast() && !closed) {
+            byte[] previous = deltasToLatest.put(baseVersion, delta);
+            deltaBytes += delta.length - (previous == null ? 0 : previous.length);
+        }
+    }
+
+    /**
+     * Drop the deltas and keep no more; returns their bytes
+     */
+    public synchronized long close() {
+        long freed = deltaBytes;
+        closed = true;
+        deltasToLatest.clear();
+        deltaBytes = 0;
+        return freed;
+    }
+
+    public static final class Version {
+        private final int number;
+        private final String cacheId;
+
+        Version(int number, String cacheId) {
+            this.number = number;
+            this.cacheId = cacheId;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        /**
+         * Render cache ID of the version's source
+         */
+        public String getCacheId() {
+            return cacheId;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package mew.pumlserver.model;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running totals of LLM calls: tokens as reported in the usage block of each
+ * completion, time until the response arrived and total latency. Kept per conversation and
+ * per model; safe to update from concurrent calls.
+ */
+public class LlmUsage {
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder promptTokens = new LongAdder();
+    private final LongAdder completionTokens = new LongAdder();
+    private final LongAdder timeToResponseNanos = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+
+    public void record(long promptTokens, long completionTokens, long timeToResponseNanos, long latencyNanos) {
+        this.promptTokens.add(promptTokens);
+        this.completionTokens.add(completionTokens);
+        this.timeToResponseNanos.add(timeToResponseNanos);
+        this.latencyNanos.add(latencyNanos);
+        calls.increment();
+    }
+
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    public long getPromptTokens() {
+        return promptTokens.sum();
+    }
+
+    public long getCompletionTokens() {
+        return completionTokens.sum();
+    }
+
+    /**
+     * Sum of the calls' times until their response status and headers arrived
+     */
+    public long getTimeToResponseMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(timeToResponseNanos.sum());
+    }
+
+    /**
+     * Sum of the calls' latencies
+     */
+    public long getLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(latencyNanos.sum());
+    }
+}
@@ -0,0 +1,14 @@
+package mew.pumlserver.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PngOptions {
+    private int compressionLevel; // 0 (none) .. 9 (best)
+    private boolean palette; // indexed output when the image has at most 256 colors
+    private boolean parallel; // deflate image strips on several threads
+}
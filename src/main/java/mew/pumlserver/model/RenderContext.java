@@ -0,0 +1,15 @@
+package mew.pumlserver.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import mew.pumlserver.service.RenderScheduler;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RenderContext {
+    private String clientKey; // X-Client-Id header or remote address
+    private RenderScheduler.Lane lane; // X-Render-Priority header, interactive by default
+    private String tenant; // From the API key or X-Tenant-Id header, "default" otherwise
+}
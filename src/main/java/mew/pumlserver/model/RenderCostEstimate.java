@@ -0,0 +1,18 @@
+package mew.pumlserver.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RenderCostEstimate {
+    private String diagramType;
+    private int nodes;
+    private int edges;
+    private boolean usesGraphviz;
+    private double estimatedMillis; // all formats, calibrated
+    private long estimatedPixels; // PNG raster area before downscaling
+    private boolean heavy; // routed to the bulk render lane
+}
@@ -0,0 +1,78 @@
+package mew.pumlserver.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Immutable rendered output (SVG, PNG or text bytes).
+ *
+ * The bytes are exposed as a read-only {@link ByteBuffer} and written to
+ * responses straight from the backing array, so a cached artifact is never
+ * copied on its way out.
+ */
+public final class RenderedArtifact {
+
+    private final byte[] bytes;
+    private final int offset;
+    private final int length;
+
+    private RenderedArtifact(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Take ownership of an array. The caller must not modify it afterwards.
+     */
+    public static RenderedArtifact wrap(byte[] bytes) {
+        return new RenderedArtifact(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Copy a range of an array into a new artifact of exactly that size
+     */
+    public static RenderedArtifact copyOf(byte[] bytes, int offset, int length) {
+        return new RenderedArtifact(Arrays.copyOfRange(bytes, offset, offset + length), 0, length);
+    }
+
+    public int size() {
+        return length;
+    }
+
+    /**
+     * Read-only view of the content, positioned at its start
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(bytes, offset, length).slice().asReadOnlyBuffer();
+    }
+
+    public InputStream asInputStream() {
+        return new ByteArrayInputStream(bytes, offset, length);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, offset, length);
+    }
+
+    /**
+     * Copy of the content, for callers that need an array of their own
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOfRange(bytes, offset, offset + length);
+    }
+
+    public String toString(Charset charset) {
+        return new String(bytes, offset, length, charset);
+    }
+
+    @Override
+    public String toString() {
+        return "RenderedArtifact[" + length + " bytes]";
+    }
+}
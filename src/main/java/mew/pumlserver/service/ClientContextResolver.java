@@ -0,0 +1,108 @@
+package mew.pumlserver.service;
+
+import jakarta.servlet.http.HttpServletRequest;
+import mew.pumlserver.model.RenderContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves who is asking for render work and in which lane it should run.
+ *
+ * - Client key: X-Client-Id header, otherwise the first X-Forwarded-For hop,
+ * otherwise the remote address.
+ * - Lane: X-Render-Priority header ("interactive" or "bulk"), interactive by default.
+ * - Tenant: the tenant of the X-Api-Key header in puml.tenant.api-keys (key=tenant,
+ * comma-separated), otherwise the X-Tenant-Id header (when puml.tenant.trust-header
+ * is set, and always on the internal cluster API), otherwise "default".
+ *
+ * Work started outside an HTTP request (warm-up, background jobs) runs in the
+ * bulk lane under the "system" client key and tenant.
+ */
+@Service
+public class ClientContextResolver {
+
+    public static final String CLIENT_ID_HEADER = "X-Client-Id";
+    public static final String PRIORITY_HEADER = "X-Render-Priority";
+    public static final String TENANT_HEADER = "X-Tenant-Id";
+    public static final String API_KEY_HEADER = "X-Api-Key";
+    public static final String SYSTEM_CLIENT = "system";
+    public static final String DEFAULT_TENANT = "default";
+
+    private static final Pattern TENANT_ID = Pattern.compile("[A-Za-z0-9._-]{1,64}");
+
+    private final Map<String, String> tenantsByApiKey;
+    private final boolean trustTenantHeader;
+
+    public ClientContextResolver(
+            @Value("${puml.tenant.api-keys:}") String apiKeys,
+            @Value("${puml.tenant.trust-header:false}") boolean trustTenantHeader) {
+        this.tenantsByApiKey = new HashMap<>();
+        for (String mapping : apiKeys.split(",")) {
+            int separator = mapping.lastIndexOf('=');
+            if (separator > 0) {
+                tenantsByApiKey.put(mapping.substring(0, separator).trim(), mapping.substring(separator + 1).trim());
+            }
+        }
+        this.trustTenantHeader = trustTenantHeader;
+    }
+
+    /**
+     * Resolve the render context of the current request
+     */
+    public RenderContext current() {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (!(attributes instanceof ServletRequestAttributes)) {
+            return background();
+        }
+        HttpServletRequest request = ((ServletRequestAttributes) attributes).getRequest();
+        return new RenderContext(resolveClientKey(request), resolveLane(request), resolveTenant(request));
+    }
+
+    /**
+     * Render context for work that isn't tied to a request
+     */
+    public RenderContext background() {
+        return new RenderContext(SYSTEM_CLIENT, RenderScheduler.Lane.BULK, SYSTEM_CLIENT);
+    }
+
+    private String resolveClientKey(HttpServletRequest request) {
+        String clientId = request.getHeader(CLIENT_ID_HEADER);
+        if (clientId != null && !clientId.isBlank()) {
+            return "id:" + clientId.trim();
+        }
+        String forwardedFor = request.getHeader("X-Forwarded-For");
+        if (forwardedFor != null && !forwardedFor.isBlank()) {
+            return "ip:" + forwardedFor.split(",")[0].trim();
+        }
+        return "ip:" + request.getRemoteAddr();
+    }
+
+    private RenderScheduler.Lane resolveLane(HttpServletRequest request) {
+        String priority = request.getHeader(PRIORITY_HEADER);
+        if (priority != null && "bulk".equalsIgnoreCase(priority.trim())) {
+            return RenderScheduler.Lane.BULK;
+        }
+        return RenderScheduler.Lane.INTERACTIVE;
+    }
+
+    private String resolveTenant(HttpServletRequest request) {
+        String apiKey = request.getHeader(API_KEY_HEADER);
+        if (apiKey != null && tenantsByApiKey.containsKey(apiKey.trim())) {
+            return tenantsByApiKey.get(apiKey.trim());
+        }
+        // Peers forward the tenant of the original request; the cluster API checks their token
+        boolean fromPeer = request.getRequestURI().startsWith(request.getContextPath() + "/api/v1/cluster/");
+        String tenant = request.getHeader(TENANT_HEADER);
+        if ((trustTenantHeader || fromPeer) && tenant != null && TENANT_ID.matcher(tenant.trim()).matches()) {
+            return tenant.trim();
+        }
+        return DEFAULT_TENANT;
+    }
+}
@@ -0,0 +1,175 @@
+package mew.pumlserver.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Cluster membership for the distributed render cache.
+ *
+ * With puml.cluster.enabled=true every cache entry has an owner node, picked
+ * by consistent hashing of its content ID over the peer list. The peer list
+ * is puml.cluster.peers (comma-separated base URLs) plus, when configured,
+ * the URLs in puml.cluster.peers-file (one per line, # for comments), which is
+ * re-read periodically. This node (puml.cluster.self-url) is always a member.
+ *
+ * Requests between nodes carry puml.cluster.token. The cluster API trusts the
+ * tenant peers forward, so in cluster mode it refuses every request until a token
+ * is configured.
+ */
+@Service
+public class ClusterService {
+
+  private static final Logger log = LoggerFactory.getLogger(ClusterService.class);
+
+  private final boolean enabled;
+  private final String selfUrl;
+  private final List<String> staticPeers;
+  private final Path peersFile;
+  private final int virtualNodes;
+  private final byte[] token;
+  private volatile ConsistentHashRing ring;
+
+  public ClusterService(
+      @Value("${puml.cluster.enabled:false}") boolean enabled,
+      @Value("${puml.cluster.self-url:}") String selfUrl,
+      @Value("${puml.cluster.peers:}") String peers,
+      @Value("${puml.cluster.peers-file:}") String peersFile,
+      @Value("${puml.cluster.virtual-nodes:128}") int virtualNodes,
+      @Value("${puml.cluster.token:}") String token) {
+    this.enabled = enabled;
+    this.selfUrl = normalize(selfUrl);
+    this.staticPeers = parsePeers(List.of(peers.split(",")));
+    this.peersFile = peersFile.isBlank() ? null : Path.of(peersFile.trim());
+    this.virtualNodes = virtualNodes;
+    this.token = token.getBytes(StandardCharsets.UTF_8);
+    if (enabled && this.selfUrl.isEmpty()) {
+      throw new IllegalStateException("puml.cluster.self-url is required when puml.cluster.enabled=true");
+    }
+    this.ring = buildRing(readPeersFile());
+    if (enabled) {
+      log.info("Cluster mode: self={}, peers={}", this.selfUrl, ring.getNodes());
+      if (this.token.length == 0) {
+        log.warn("puml.cluster.token is not set: the cluster API refuses all requests and nodes render locally");
+      }
+    }
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public String getSelfUrl() {
+    return selfUrl;
+  }
+
+  public List<String> getPeers() {
+    return ring.getNodes();
+  }
+
+  /**
+   * Whether a token is configured; without one no peer request is trusted
+   */
+  public boolean hasToken() {
+    return token.length > 0;
+  }
+
+  /**
+   * Whether a peer request's token matches the configured one
+   */
+  public boolean isTrusted(String requestToken) {
+    if (token.length == 0 || requestToken == null) {
+      return false;
+    }
+    return MessageDigest.isEqual(token, requestToken.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Owner of a content ID when it is another node, otherwise (this node owns it,
+   * or cluster mode is off) null
+   */
+  public String remoteOwner(String id) {
+    if (!enabled) {
+      return null;
+    }
+    String owner = ring.nodeFor(id);
+    return owner == null || owner.equals(selfUrl) ? null : owner;
+  }
+
+  /**
+   * Pick up changes to the peers file
+   */
+  @Scheduled(fixedDelayString = "${puml.cluster.peers-file-refresh-ms:10000}")
+  public void reloadPeersFile() {
+    if (!enabled || peersFile == null) {
+      return;
+    }
+    ConsistentHashRing current = ring;
+    ConsistentHashRing updated = buildRing(readPeersFile());
+    if (!updated.getNodes().equals(current.getNodes())) {
+      ring = updated;
+      log.info("Cluster peers changed: {}", updated.getNodes());
+    }
+  }
+
+  private ConsistentHashRing buildRing(List<String> filePeers) {
+    Set<String> nodes = new LinkedHashSet<>(staticPeers);
+    nodes.addAll(filePeers);
+    if (!selfUrl.isEmpty()) {
+      nodes.add(selfUrl);
+    }
+    List<String> sorted = new ArrayList<>(nodes);
+    sorted.sort(null);
+    return new ConsistentHashRing(sorted, virtualNodes);
+  }
+
+  private List<String> readPeersFile() {
+    if (peersFile == null) {
+      return List.of();
+    }
+    try {
+      List<String> lines = new ArrayList<>();
+      for (String line : Files.readAllLines(peersFile, StandardCharsets.UTF_8)) {
+        int comment = line.indexOf('#');
+        lines.add(comment >= 0 ? line.substring(0, comment) : line);
+      }
+      return parsePeers(lines);
+    } catch (IOException e) {
+      // Keep the current peers rather than collapsing the ring
+      log.warn("Could not read cluster peers file {}: {}", peersFile, e.getMessage());
+      ConsistentHashRing current = ring;
+      return current == null ? List.of() : current.getNodes();
+    }
+  }
+
+  private static List<String> parsePeers(List<String> values) {
+    List<String> peers = new ArrayList<>();
+    for (String value : values) {
+      String peer = normalize(value);
+      if (!peer.isEmpty()) {
+        peers.add(peer);
+      }
+    }
+    return peers;
+  }
+
+  private static String normalize(String url) {
+    String trimmed = url == null ? "" : url.trim();
+    while (trimmed.endsWith("/")) {
+      trimmed = trimmed.substring(0, trimmed.length() - 1);
+    }
+    return trimmed;
+  }
+}
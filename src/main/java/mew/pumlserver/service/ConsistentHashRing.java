@@ -0,0 +1,54 @@
+package mew.pumlserver.service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring over a set of nodes. Each node is placed at several
+ * points (virtual nodes) so keys spread evenly, and adding or removing a node
+ * only moves the keys next to its points.
+ */
+public final class ConsistentHashRing {
+
+  private final TreeMap<Long, String> points = new TreeMap<>();
+  private final List<String> nodes;
+
+  public ConsistentHashRing(Collection<String> nodes, int virtualNodes) {
+    this.nodes = List.copyOf(nodes);
+    for (String node : this.nodes) {
+      for (int i = 0; i < Math.max(1, virtualNodes); i++) {
+        points.put(hash(node + "#" + i), node);
+      }
+    }
+  }
+
+  /**
+   * The node owning a key, or null if the ring is empty
+   */
+  public String nodeFor(String key) {
+    if (points.isEmpty()) {
+      return null;
+    }
+    Map.Entry<Long, String> point = points.ceilingEntry(hash(key));
+    return point != null ? point.getValue() : points.firstEntry().getValue();
+  }
+
+  public List<String> getNodes() {
+    return nodes;
+  }
+
+  private static long hash(String value) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+      return ByteBuffer.wrap(digest).getLong();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 not available", e);
+    }
+  }
+}
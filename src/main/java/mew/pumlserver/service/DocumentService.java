@@ -0,0 +1,312 @@
+package mew.pumlserver.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import mew.pumlserver.dto.SvgDeltaResponse;
+import mew.pumlserver.exception.BadRequestException;
+import mew.pumlserver.exception.ServiceUnavailableException;
+import mew.pumlserver.model.CacheEntry;
+import mew.pumlserver.model.DiagramDocument;
+import mew.pumlserver.model.RenderedArtifact;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Versioned diagram documents ({@link DiagramDocument}) for clients that edit a
+ * diagram step by step.
+ *
+ * Every version is rendered through the render cache, and the history only holds
+ * cache IDs: a version's SVG is charged, bounded and evicted like any other cache
+ * entry. A client that already has the SVG of a version still in the history
+ * (puml.document.history) gets a delta to the latest version ({@link SvgDiff}), or
+ * the full SVG when the delta wouldn't be smaller, takes more than
+ * puml.document.max-delta-edits tag edits, or its version was evicted from the cache.
+ * Deltas kept for reuse are charged to the document's tenant and not kept while it
+ * is over its quota or the cache is over puml.cache.max-bytes.
+ *
+ * At most puml.document.max-documents documents are kept; beyond that the least
+ * recently used one is dropped, and documents not used for 30 minutes expire.
+ * SVG responses are counted in puml.document.svg by result (full, delta,
+ * not-modified), and bytes saved by deltas in puml.document.delta.saved.
+ */
+@Service
+public class DocumentService {
+
+  private static final long DOCUMENT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(30);
+  // Remembered in place of a delta that exceeds the edit limit
+  private static final byte[] NO_DELTA = new byte[0];
+
+  private final Map<String, DiagramDocument> documents = new ConcurrentHashMap<>();
+  private final RenderCacheService cacheService;
+  private final TenantUsageService tenantUsage;
+  private final ObjectMapper objectMapper;
+  private final int history;
+  private final int maxDocuments;
+  private final int maxDeltaEdits;
+  private final long maxBytes;
+  private final Counter fullResponses;
+  private final Counter deltaResponses;
+  private final Counter notModifiedResponses;
+  private final Counter savedBytes;
+
+  public DocumentService(RenderCacheService cacheService, TenantUsageService tenantUsage, ObjectMapper objectMapper,
+      @Value("${puml.document.history:10}") int history,
+      @Value("${puml.document.max-documents:1000}") int maxDocuments,
+      @Value("${puml.document.max-delta-edits:1000}") int maxDeltaEdits,
+      @Value("${puml.cache.max-bytes:0}") long maxBytes,
+      MeterRegistry meterRegistry) {
+    this.cacheService = cacheService;
+    this.tenantUsage = tenantUsage;
+    this.objectMapper = objectMapper;
+    this.history = history;
+    this.maxDocuments = Math.max(1, maxDocuments);
+    this.maxDeltaEdits = maxDeltaEdits;
+    this.maxBytes = maxBytes;
+    this.fullResponses = meterRegistry.counter("puml.document.svg", "result", "full");
+    this.deltaResponses = meterRegistry.counter("puml.document.svg", "result", "delta");
+    this.notModifiedResponses = meterRegistry.counter("puml.document.svg", "result", "not-modified");
+    this.savedBytes = Counter.builder("puml.document.delta.saved")
+        .description("Bytes not sent thanks to SVG deltas")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+    Gauge.builder("puml.document.count", documents, Map::size)
+        .register(meterRegistry);
+  }
+
+  /**
+   * Create a document with its source as version 1
+   */
+  public DiagramDocument create(String puml) throws IOException {
+    DiagramDocument document = new DiagramDocument(UUID.randomUUID().toString(),
+        cacheService.currentContext().getTenant(), history);
+    addVersion(document, puml);
+    while (documents.size() >= maxDocuments) {
+      documents.values().stream()
+          .min(Comparator.comparingLong(DiagramDocument::getLastAccessedMillis))
+          .ifPresent(oldest -> {
+            if (documents.remove(oldest.getId(), oldest)) {
+              close(oldest);
+            }
+          });
+    }
+    documents.put(document.getId(), document);
+    return document;
+  }
+
+  /**
+   * Add a version to a document; an unchanged source keeps the latest version.
+   * Returns null if the document doesn't exist or has expired.
+   */
+  public DiagramDocument update(String id, String puml) throws IOException {
+    DiagramDocument document = get(id);
+    if (document != null) {
+      addVersion(document, puml);
+    }
+    return document;
+  }
+
+  public DiagramDocument get(String id) {
+    DiagramDocument document = documents.get(id);
+    if (document == null) {
+      return null;
+    }
+    if (isExpired(document)) {
+      if (documents.remove(id, document)) {
+        close(document);
+      }
+      return null;
+    }
+    document.touch();
+    return document;
+  }
+
+  public boolean delete(String id) {
+    DiagramDocument document = documents.remove(id);
+    if (document == null) {
+      return false;
+    }
+    close(document);
+    return true;
+  }
+
+  /**
+   * SVG of the latest version for a client that has the given version (null if none):
+   * nothing if it's the latest, a delta if it's in the history and the delta is
+   * smaller, the full SVG otherwise
+   */
+  public SvgUpdate svg(DiagramDocument document, Integer since) throws IOException {
+    DiagramDocument.Version latest = document.getLatest();
+    if (since != null && (since < 1 || since > latest.getNumber())) {
+      throw new BadRequestException("Unknown version " + since + " of document " + document.getId()
+          + ". Latest version: " + latest.getNumber());
+    }
+    if (since != null && since == latest.getNumber()) {
+      notModifiedResponses.increment();
+      return new SvgUpdate(SvgUpdate.Kind.NOT_MODIFIED, latest.getNumber(), null);
+    }
+    RenderedArtifact latestSvg = latestSvg(document, latest);
+    DiagramDocument.Version base = since == null ? null : document.getVersion(since);
+    if (base != null) {
+      byte[] delta = document.getDelta(latest, since);
+      if (delta == null) {
+        RenderedArtifact baseSvg = cachedSvg(base.getCacheId());
+        delta = baseSvg == null ? NO_DELTA : delta(document, base, baseSvg, latest, latestSvg);
+        keepDelta(document, latest, since, delta);
+      }
+      if (delta != NO_DELTA && delta.length < latestSvg.size()) {
+        deltaResponses.increment();
+        savedBytes.increment(latestSvg.size() - delta.length);
+        return new SvgUpdate(SvgUpdate.Kind.DELTA, latest.getNumber(), RenderedArtifact.wrap(delta));
+      }
+    }
+    fullResponses.increment();
+    return new SvgUpdate(SvgUpdate.Kind.FULL, latest.getNumber(), latestSvg);
+  }
+
+  /**
+   * SVG of the latest version, rendered again from its source if the cache dropped it
+   */
+  private RenderedArtifact latestSvg(DiagramDocument document, DiagramDocument.Version latest) throws IOException {
+    RenderedArtifact svg = cachedSvg(latest.getCacheId());
+    if (svg == null) {
+      svg = render(document.getLatestPuml());
+    }
+    return svg;
+  }
+
+  /**
+   * SVG of a cache entry, or null if it was evicted
+   */
+  private RenderedArtifact cachedSvg(String cacheId) throws IOException {
+    CacheEntry entry = cacheService.getCachedEntry(cacheId);
+    if (entry == null) {
+      return null;
+    }
+    cacheService.ensureRenderedContent(entry);
+    return entry.getSvgContent();
+  }
+
+  private RenderedArtifact render(String puml) throws IOException {
+    CacheEntry entry = cacheService.getCachedEntry(cacheService.cacheAllFormats(puml));
+    if (entry == null) {
+      throw new ServiceUnavailableException("Rendered diagram was evicted before it could be stored, try again");
+    }
+    cacheService.ensureRenderedContent(entry);
+    return entry.getSvgContent();
+  }
+
+  /**
+   * Keep a delta for the next client with the same version, unless the document's tenant
+   * is over its quota or the cache over its byte limit
+   */
+  private void keepDelta(DiagramDocument document, DiagramDocument.Version latest, int since, byte[] delta) {
+    TenantUsageService.Usage usage = tenantUsage.usage(document.getTenant());
+    if ((usage.getQuota() > 0 && usage.getBytes() + delta.length > usage.getQuota())
+        || (maxBytes > 0 && tenantUsage.getTotalBytes() + delta.length > maxBytes)) {
+      return;
+    }
+    synchronized (document) {
+      long before = document.getDeltaBytes();
+      document.putDelta(latest, since, delta);
+      usage.addBytes(document.getDeltaBytes() - before);
+    }
+  }
+
+  /**
+   * Drop a removed document's deltas and give back their bytes
+   */
+  private void close(DiagramDocument document) {
+    synchronized (document) {
+      tenantUsage.usage(document.getTenant()).addBytes(-document.close());
+    }
+  }
+
+  /**
+   * Serialized delta, or NO_DELTA when it takes more edits than the limit
+   */
+  private byte[] delta(DiagramDocument document, DiagramDocument.Version base, RenderedArtifact baseSvg,
+      DiagramDocument.Version target, RenderedArtifact targetSvg) {
+    List<Object> ops = SvgDiff.diff(baseSvg.toString(StandardCharsets.UTF_8),
+        targetSvg.toString(StandardCharsets.UTF_8), maxDeltaEdits);
+    if (ops == null) {
+      return NO_DELTA;
+    }
+    try {
+      return objectMapper.writeValueAsBytes(
+          new SvgDeltaResponse(document.getId(), target.getNumber(), base.getNumber(), ops));
+    } catch (JsonProcessingException e) {
+      throw new IllegalStateException("Can't serialize SVG delta", e);
+    }
+  }
+
+  private void addVersion(DiagramDocument document, String puml) throws IOException {
+    // Renders the version, so a source that doesn't render is rejected here
+    String cacheId = cacheService.cacheAllFormats(puml);
+    synchronized (document) {
+      long before = document.getDeltaBytes();
+      document.addVersion(cacheId, puml);
+      tenantUsage.usage(document.getTenant()).addBytes(document.getDeltaBytes() - before);
+    }
+  }
+
+  private static boolean isExpired(DiagramDocument document) {
+    return document.getLastAccessedMillis() + DOCUMENT_TTL_MILLIS < System.currentTimeMillis();
+  }
+
+  /**
+   * Clean up expired documents every 5 minutes
+   */
+  @Scheduled(fixedRate = 300000)
+  public void cleanupExpiredDocuments() {
+    documents.values().removeIf(document -> {
+      if (!isExpired(document)) {
+        return false;
+      }
+      close(document);
+      return true;
+    });
+  }
+
+  public static final class SvgUpdate {
+
+    public enum Kind { FULL, DELTA, NOT_MODIFIED }
+
+    private final Kind kind;
+    private final int version;
+    private final RenderedArtifact body;
+
+    SvgUpdate(Kind kind, int version, RenderedArtifact body) {
+      this.kind = kind;
+      this.version = version;
+      this.body = body;
+    }
+
+    public Kind getKind() {
+      return kind;
+    }
+
+    public int getVersion() {
+      return version;
+    }
+
+    /**
+     * The SVG, the serialized {@link SvgDeltaResponse}, or null when not modified
+     */
+    public RenderedArtifact getBody() {
+      return body;
+    }
+  }
+}
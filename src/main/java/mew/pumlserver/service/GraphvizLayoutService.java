@@ -0,0 +1,271 @@
+package mew.pumlserver.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import net.sourceforge.plantuml.cucadiagram.dot.GraphvizUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Manages the Graphviz layout engine used by class, component, state and
+ * (legacy) activity diagrams.
+ *
+ * Two engines are available:
+ * - DOT: the external Graphviz "dot" executable. PlantUML 8059 forks one
+ * process per layout, so this service resolves the executable once, bounds
+ * the number of concurrent layout processes with a fixed pool of slots and
+ * periodically health-checks the binary.
+ * - JDOT: PlantUML's in-process Java port of dot, selected per diagram with
+ * "!pragma graphviz_dot jdot". No process is forked.
+ *
+ * In AUTO mode DOT is used while it is healthy and JDOT takes over when the
+ * executable is missing or keeps failing its health check.
+ */
+@Service
+public class GraphvizLayoutService {
+
+  private static final Logger log = LoggerFactory.getLogger(GraphvizLayoutService.class);
+
+  private static final Pattern STARTUML = Pattern.compile("(?m)^\\s*@startuml.*$");
+  private static final Pattern DOT_PRAGMA = Pattern.compile("(?im)^\\s*!pragma\\s+graphviz_dot\\b");
+  private static final String JDOT_PRAGMA = "!pragma graphviz_dot jdot";
+  private static final String HEALTH_CHECK_GRAPH = "digraph g { a -> b; }";
+
+  public enum Engine {
+    DOT, JDOT, AUTO
+  }
+
+  private final Engine configuredEngine;
+  private final String configuredDotPath;
+  private final long healthCheckTimeoutMillis;
+  private final int maxConsecutiveFailures;
+  private final Semaphore dotSlots;
+  private final int dotSlotCount;
+  private final MeterRegistry meterRegistry;
+
+  private volatile File dotExecutable;
+  private volatile boolean dotHealthy;
+  private volatile int consecutiveFailures;
+
+  public GraphvizLayoutService(
+      @Value("${puml.layout.engine:auto}") String engine,
+      @Value("${puml.layout.dot.path:}") String dotPath,
+      @Value("${puml.layout.dot.max-concurrent:0}") int maxConcurrent,
+      @Value("${puml.layout.dot.health-check-timeout-ms:5000}") long healthCheckTimeoutMillis,
+      @Value("${puml.layout.dot.max-failures:3}") int maxConsecutiveFailures,
+      MeterRegistry meterRegistry) {
+    this.configuredEngine = Engine.valueOf(engine.trim().toUpperCase(Locale.ROOT));
+    this.configuredDotPath = dotPath;
+    this.healthCheckTimeoutMillis = healthCheckTimeoutMillis;
+    this.maxConsecutiveFailures = Math.max(1, maxConsecutiveFailures);
+    this.dotSlotCount = maxConcurrent > 0 ? maxConcurrent : Runtime.getRuntime().availableProcessors();
+    this.dotSlots = new Semaphore(dotSlotCount, true);
+    this.meterRegistry = meterRegistry;
+
+    this.dotExecutable = resolveDotExecutable();
+    if (dotExecutable != null) {
+      GraphvizUtils.setDotExecutable(dotExecutable.getAbsolutePath());
+    }
+    this.dotHealthy = configuredEngine != Engine.JDOT && checkDot();
+
+    Gauge.builder("puml.layout.dot.healthy", this, s -> s.dotHealthy ? 1 : 0)
+        .description("Whether the external Graphviz dot executable passed its last health check")
+        .register(meterRegistry);
+    Gauge.builder("puml.layout.dot.slots.available", dotSlots, Semaphore::availablePermits)
+        .description("Free slots for concurrent dot layout processes")
+        .register(meterRegistry);
+
+    log.info("Graphviz layout engine: configured={}, active={}, dot={}, slots={}",
+        configuredEngine, getActiveEngine(), dotExecutable, dotSlotCount);
+  }
+
+  /**
+   * Get the engine that will be used for the next layout
+   */
+  public Engine getActiveEngine() {
+    if (configuredEngine == Engine.AUTO) {
+      return dotHealthy ? Engine.DOT : Engine.JDOT;
+    }
+    return configuredEngine;
+  }
+
+  /**
+   * Whether the external dot executable passed its last health check
+   */
+  public boolean isDotHealthy() {
+    return dotHealthy;
+  }
+
+  /**
+   * Adjust PUML source for the active engine. When JDOT is active, the jdot pragma
+   * is inserted right after @startuml unless the source already selects an engine.
+   */
+  public String prepareSource(String puml) {
+    return prepareSource(puml, getActiveEngine());
+  }
+
+  /**
+   * Adjust PUML source for the given engine.
+   */
+  public String prepareSource(String puml, Engine engine) {
+    if (engine != Engine.JDOT || DOT_PRAGMA.matcher(puml).find()) {
+      return puml;
+    }
+    Matcher matcher = STARTUML.matcher(puml);
+    if (!matcher.find()) {
+      return puml;
+    }
+    return puml.substring(0, matcher.end()) + "\n" + JDOT_PRAGMA + puml.substring(matcher.end());
+  }
+
+  /**
+   * Run a layout-bound render. When the diagram needs the external dot executable,
+   * the call waits for one of the bounded dot slots so that bursts of Graphviz
+   * diagrams don't fork an unbounded number of processes.
+   *
+   * @param usesGraphviz whether the diagram type is laid out by Graphviz
+   * @param task the render to run
+   * @return the task result
+   * @throws IOException if rendering fails or the wait for a slot is interrupted
+   */
+  public <T> T runLayout(boolean usesGraphviz, LayoutTask<T> task) throws IOException {
+    Engine engine = getActiveEngine();
+    if (!usesGraphviz) {
+      return task.run();
+    }
+
+    Timer.Sample sample = Timer.start(meterRegistry);
+    boolean acquired = false;
+    try {
+      if (engine == Engine.DOT) {
+        dotSlots.acquire();
+        acquired = true;
+      }
+      return task.run();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for a Graphviz layout slot", e);
+    } finally {
+      if (acquired) {
+        dotSlots.release();
+      }
+      sample.stop(meterRegistry.timer("puml.layout.render", "engine", engine.name().toLowerCase(Locale.ROOT)));
+    }
+  }
+
+  /**
+   * Re-check the dot executable every minute and switch engines in AUTO mode
+   * when it starts or stops failing.
+   */
+  @Scheduled(fixedRate = 60000)
+  public void healthCheck() {
+    if (configuredEngine == Engine.JDOT) {
+      return;
+    }
+    if (dotExecutable == null) {
+      dotExecutable = resolveDotExecutable();
+      if (dotExecutable != null) {
+        GraphvizUtils.setDotExecutable(dotExecutable.getAbsolutePath());
+      }
+    }
+
+    boolean wasHealthy = dotHealthy;
+    if (checkDot()) {
+      consecutiveFailures = 0;
+      dotHealthy = true;
+    } else if (++consecutiveFailures >= maxConsecutiveFailures || dotExecutable == null) {
+      dotHealthy = false;
+    }
+
+    if (wasHealthy != dotHealthy) {
+      log.warn("Graphviz dot health changed: healthy={}, active engine={}", dotHealthy, getActiveEngine());
+    }
+  }
+
+  /**
+   * Lay out a trivial graph with the dot executable and check that SVG comes back.
+   */
+  private boolean checkDot() {
+    if (dotExecutable == null) {
+      return false;
+    }
+    Process process = null;
+    File output = null;
+    try {
+      // Output goes to a file, so a dot that hangs or floods stdout can't block the wait below
+      output = File.createTempFile("puml-dot-health", ".svg");
+      process = new ProcessBuilder(dotExecutable.getAbsolutePath(), "-Tsvg")
+          .redirectErrorStream(true)
+          .redirectOutput(output)
+          .start();
+      try (OutputStream stdin = process.getOutputStream()) {
+        stdin.write(HEALTH_CHECK_GRAPH.getBytes(StandardCharsets.US_ASCII));
+      }
+      if (!process.waitFor(healthCheckTimeoutMillis, TimeUnit.MILLISECONDS)) {
+        return false;
+      }
+      return process.exitValue() == 0
+          && Files.readString(output.toPath(), StandardCharsets.UTF_8).contains("<svg");
+    } catch (IOException e) {
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      if (process != null && process.isAlive()) {
+        process.destroyForcibly();
+      }
+      if (output != null && !output.delete()) {
+        output.deleteOnExit();
+      }
+    }
+  }
+
+  /**
+   * Find the dot executable: explicit configuration, then GRAPHVIZ_DOT, then PATH.
+   */
+  private File resolveDotExecutable() {
+    if (configuredDotPath != null && !configuredDotPath.isBlank()) {
+      File file = new File(configuredDotPath);
+      return file.canExecute() ? file : null;
+    }
+    String env = GraphvizUtils.getenvGraphvizDot();
+    if (env != null && new File(env).canExecute()) {
+      return new File(env);
+    }
+    String path = System.getenv("PATH");
+    if (path == null) {
+      return null;
+    }
+    String[] names = File.separatorChar == '\\' ? new String[] { "dot.exe" } : new String[] { "dot" };
+    for (String dir : path.split(File.pathSeparator)) {
+      for (String name : names) {
+        File candidate = new File(dir, name);
+        if (candidate.isFile() && candidate.canExecute()) {
+          return candidate;
+        }
+      }
+    }
+    return null;
+  }
+
+  @FunctionalInterface
+  public interface LayoutTask<T> {
+    T run() throws IOException;
+  }
+}
@@ -0,0 +1,107 @@
+package mew.pumlserver.service;
+
+import mew.pumlserver.model.RenderContext;
+import mew.pumlserver.model.RenderedArtifact;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Locale;
+
+/**
+ * {@link PeerClient} over the peers' internal HTTP API (/api/v1/cluster).
+ *
+ * The original client key and lane travel as X-Client-Id and X-Render-Priority,
+ * so the owner's render scheduler treats forwarded work like a direct request.
+ */
+@Service
+public class HttpPeerClient implements PeerClient {
+
+  public static final String TOKEN_HEADER = "X-Cluster-Token";
+
+  private final HttpClient httpClient;
+  private final Duration timeout;
+  private final Duration renderTimeout;
+  private final String token;
+
+  public HttpPeerClient(
+      @Value("${puml.cluster.timeout-ms:2000}") long timeoutMs,
+      @Value("${puml.cluster.render-timeout-ms:60000}") long renderTimeoutMs,
+      @Value("${puml.cluster.token:}") String token) {
+    this.timeout = Duration.ofMillis(timeoutMs);
+    this.renderTimeout = Duration.ofMillis(renderTimeoutMs);
+    this.token = token;
+    this.httpClient = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1)
+        .connectTimeout(timeout)
+        .build();
+  }
+
+  @Override
+  public void store(String peer, String id, String puml, RenderMode mode, RenderContext context)
+      throws IOException {
+    URI uri = URI.create(peer + "/api/v1/cluster/entries/" + id + "?render="
+        + mode.name().toLowerCase(Locale.ROOT));
+    HttpRequest request = request(uri, context, mode == RenderMode.SYNC ? renderTimeout : timeout)
+        .header("Content-Type", "text/plain;charset=UTF-8")
+        .PUT(HttpRequest.BodyPublishers.ofString(puml, StandardCharsets.UTF_8))
+        .build();
+    HttpResponse<byte[]> response = send(request);
+    if (response.statusCode() != 200) {
+      throw new IOException("Peer " + peer + " rejected entry " + id + ": HTTP " + response.statusCode());
+    }
+  }
+
+  @Override
+  public RenderedArtifact fetch(String peer, String id, String format, RenderContext context)
+      throws IOException {
+    URI uri = URI.create(peer + "/api/v1/cluster/entries/" + id + "/" + format);
+    // Any format but the source may have to be rendered first
+    Duration requestTimeout = "puml".equals(format) ? timeout : renderTimeout;
+    HttpResponse<byte[]> response = send(request(uri, context, requestTimeout).GET().build());
+    if (response.statusCode() == 404) {
+      return null;
+    }
+    if (response.statusCode() != 200) {
+      throw new IOException("Peer " + peer + " failed to serve " + format + " of " + id + ": HTTP "
+          + response.statusCode());
+    }
+    return RenderedArtifact.wrap(response.body());
+  }
+
+  private HttpRequest.Builder request(URI uri, RenderContext context, Duration requestTimeout) {
+    HttpRequest.Builder builder = HttpRequest.newBuilder(uri).timeout(requestTimeout);
+    String clientKey = context.getClientKey();
+    if (clientKey != null) {
+      // The owner prefixes X-Client-Id with "id:" again
+      builder.header(ClientContextResolver.CLIENT_ID_HEADER,
+          clientKey.startsWith("id:") ? clientKey.substring(3) : clientKey);
+    }
+    if (context.getLane() != null) {
+      builder.header(ClientContextResolver.PRIORITY_HEADER, context.getLane().name().toLowerCase(Locale.ROOT));
+    }
+    if (context.getTenant() != null) {
+      builder.header(ClientContextResolver.TENANT_HEADER, context.getTenant());
+    }
+    if (!token.isEmpty()) {
+      builder.header(TOKEN_HEADER, token);
+    }
+    return builder;
+  }
+
+  private HttpResponse<byte[]> send(HttpRequest request) throws IOException {
+    try {
+      return httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while calling peer " + request.uri());
+    }
+  }
+}
@@ -0,0 +1,399 @@
+package mew.pumlserver.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves !include directives against a local include library (puml.include.root),
+ * so shared style and definition files are read and parsed once, instead of by
+ * PlantUML on every render of every format.
+ *
+ * Files under the root are cached as preprocessed fragments: their lines, split into
+ * @startuml blocks, with the targets of their own includes already resolved. Fragments
+ * are keyed by path and modification time. While puml.include.watch is on, a
+ * WatchService drops changed files from the cache; otherwise each use checks the
+ * modification time.
+ *
+ * {@link #resolve} inlines the includes of a diagram that resolve to files under the
+ * root, as PlantUML would: relative to the including file, a file with @startuml blocks
+ * contributes the block picked by its "!n" or "!id" suffix (the first by default),
+ * !include adds a file once per diagram and !include_many every time. It also returns
+ * the content hashes of the files used, which go into the cache ID. Other includes are
+ * left to PlantUML. Fragment cache hits and misses are counted in puml.include.cache.
+ */
+@Service
+public class IncludeResolver {
+
+  private static final Logger log = LoggerFactory.getLogger(IncludeResolver.class);
+  // PlantUML's !include and !include_many (not !includeurl), with an optional "!suffix" on the path
+  private static final Pattern INCLUDE = Pattern.compile("^\\s*!include(_many)?\\s+\"?([^\"]+?)\"?\\s*$");
+
+  private final Path root;
+  private final long maxFileBytes;
+  private final Map<Path, Fragment> fragments = new ConcurrentHashMap<>();
+  private final Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+  // Bumped on every invalidation, so a fragment read while its file changed isn't cached
+  private final AtomicLong invalidations = new AtomicLong();
+  private final Counter hits;
+  private final Counter misses;
+  private WatchService watchService;
+  private volatile boolean watching;
+
+  public IncludeResolver(
+      @Value("${puml.include.root:}") String root,
+      @Value("${puml.include.watch:true}") boolean watch,
+      @Value("${puml.include.max-file-bytes:1048576}") long maxFileBytes,
+      MeterRegistry meterRegistry) {
+    this.root = root.isBlank() ? null : Path.of(root).toAbsolutePath().normalize();
+    this.maxFileBytes = maxFileBytes;
+    this.hits = meterRegistry.counter("puml.include.cache", "result", "hit");
+    this.misses = meterRegistry.counter("puml.include.cache", "result", "miss");
+    Gauge.builder("puml.include.cache.entries", fragments, Map::size)
+        .description("Include files cached as preprocessed fragments")
+        .register(meterRegistry);
+    if (this.root != null) {
+      if (!Files.isDirectory(this.root)) {
+        throw new IllegalArgumentException("puml.include.root is not a directory: " + this.root);
+      }
+      if (watch) {
+        startWatching();
+      }
+    }
+  }
+
+  public boolean isEnabled() {
+    return root != null;
+  }
+
+  /**
+   * Inline the includes of a diagram source that resolve under the include root
+   */
+  public Resolution resolve(String puml) {
+    if (root == null || !puml.contains("!include")) {
+      return new Resolution(puml, "");
+    }
+    Expansion expansion = new Expansion();
+    boolean resolved = false;
+    for (String text : puml.split("\n", -1)) {
+      if (text.strip().startsWith("@start")) {
+        // PlantUML forgets the files included by the previous diagram
+        expansion.included.clear();
+      }
+      Line line = Line.parse(text, root, root);
+      if (line.target != null && expansion.inline(line)) {
+        resolved = true;
+      } else {
+        expansion.source.append(text).append('\n');
+      }
+    }
+    if (!resolved) {
+      return new Resolution(puml, "");
+    }
+    expansion.source.setLength(expansion.source.length() - 1);
+    return new Resolution(expansion.source.toString(), expansion.versions.toString());
+  }
+
+  private Fragment fragment(Path path) {
+    Fragment fragment = fragments.get(path);
+    if (fragment != null && (watching || fragment.isCurrent(path))) {
+      hits.increment();
+      return fragment;
+    }
+    misses.increment();
+    long generation = invalidations.get();
+    fragment = load(path);
+    if (fragment == null) {
+      fragments.remove(path);
+    } else if (invalidations.get() == generation) {
+      fragments.put(path, fragment);
+    }
+    return fragment;
+  }
+
+  private Fragment load(Path path) {
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+      if (!attributes.isRegularFile() || attributes.size() > maxFileBytes) {
+        return null;
+      }
+      byte[] content = Files.readAllBytes(path);
+      return new Fragment(root.relativize(path).toString().replace('\\', '/'), attributes, content,
+          path.getParent(), root);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private void startWatching() {
+    try {
+      watchService = root.getFileSystem().newWatchService();
+      registerTree(root);
+      Thread thread = new Thread(this::watch, "include-watch");
+      thread.setDaemon(true);
+      thread.start();
+      watching = true;
+    } catch (IOException | UnsupportedOperationException e) {
+      log.warn("Can't watch include root {}, checking modification times instead: {}", root, e.getMessage());
+    }
+  }
+
+  private void registerTree(Path dir) throws IOException {
+    Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+        directories.put(directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), directory);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private void watch() {
+    while (true) {
+      WatchKey key;
+      try {
+        key = watchService.take();
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        return;
+      }
+      Path dir = directories.get(key);
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+          // Events were lost: start over
+          invalidations.incrementAndGet();
+          fragments.clear();
+          continue;
+        }
+        Path path = dir.resolve((Path) event.context());
+        invalidate(path);
+        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+            && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+          try {
+            registerTree(path);
+          } catch (IOException e) {
+            log.warn("Can't watch include directory {}: {}", path, e.getMessage());
+          }
+        }
+      }
+      if (!key.reset()) {
+        directories.remove(key);
+      }
+    }
+  }
+
+  /**
+   * Drop a changed file, or everything under a changed directory, from the cache
+   */
+  void invalidate(Path path) {
+    invalidations.incrementAndGet();
+    fragments.keySet().removeIf(cached -> cached.startsWith(path));
+  }
+
+  @PreDestroy
+  public void shutdown() throws IOException {
+    if (watchService != null) {
+      watchService.close();
+    }
+  }
+
+  /**
+   * A diagram source with its includes inlined, and the versions of the included files
+   */
+  public static final class Resolution {
+    private final String source;
+    private final String includeVersions;
+
+    Resolution(String source, String includeVersions) {
+      this.source = source;
+      this.includeVersions = includeVersions;
+    }
+
+    public String getSource() {
+      return source;
+    }
+
+    /**
+     * Path and content hash of each included file, in include order; empty without includes
+     */
+    public String getIncludeVersions() {
+      return includeVersions;
+    }
+  }
+
+  private final class Expansion {
+    private final StringBuilder source = new StringBuilder();
+    private final StringBuilder versions = new StringBuilder();
+    private final Set<String> included = new HashSet<>();
+    private final Set<Path> stack = new HashSet<>();
+
+    /**
+     * Append the lines of an included fragment; false if the line is left to PlantUML
+     */
+    boolean inline(Line line) {
+      Fragment fragment = fragment(line.target);
+      List<Line> block = fragment == null ? null : fragment.block(line.suffix);
+      if (block == null || stack.contains(line.target)) {
+        return false;
+      }
+      if (!line.many && !included.add(line.target + "!" + line.suffix)) {
+        return true;
+      }
+      stack.add(line.target);
+      versions.append(fragment.name).append('@').append(fragment.version).append('\n');
+      for (Line included : block) {
+        if (included.target == null || !inline(included)) {
+          source.append(included.text).append('\n');
+        }
+      }
+      stack.remove(line.target);
+      return true;
+    }
+  }
+
+  private static final class Line {
+    private final String text;
+    private final Path target;
+    private final String suffix;
+    private final boolean many;
+
+    private Line(String text, Path target, String suffix, boolean many) {
+      this.text = text;
+      this.target = target;
+      this.suffix = suffix;
+      this.many = many;
+    }
+
+    /**
+     * A line, with the file it includes if that is under the root
+     */
+    static Line parse(String text, Path dir, Path root) {
+      Matcher matcher = INCLUDE.matcher(text);
+      if (!matcher.matches()) {
+        return new Line(text, null, null, false);
+      }
+      String file = matcher.group(2);
+      String suffix = null;
+      int separator = file.lastIndexOf('!');
+      if (separator >= 0) {
+        suffix = file.substring(separator + 1);
+        file = file.substring(0, separator);
+      }
+      try {
+        Path target = dir.resolve(file).normalize();
+        return new Line(text, target.startsWith(root) ? target : null, suffix, matcher.group(1) != null);
+      } catch (InvalidPathException e) {
+        return new Line(text, null, null, false);
+      }
+    }
+  }
+
+  private static final class Fragment {
+    private final String name;
+    private final long modified;
+    private final long size;
+    private final String version;
+    private final List<Line> lines = new ArrayList<>();
+    private final List<List<Line>> blocks = new ArrayList<>();
+    private final List<String> starts = new ArrayList<>();
+
+    Fragment(String name, BasicFileAttributes attributes, byte[] content, Path dir, Path root) {
+      this.name = name;
+      this.modified = attributes.lastModifiedTime().toMillis();
+      this.size = attributes.size();
+      this.version = sha256Hex(content);
+      List<Line> block = null;
+      for (String text : new String(content, StandardCharsets.UTF_8).lines().toList()) {
+        String trimmed = text.strip();
+        if (trimmed.startsWith("@start")) {
+          block = new ArrayList<>();
+          blocks.add(block);
+          starts.add(trimmed);
+        } else if (trimmed.startsWith("@end")) {
+          block = null;
+        } else {
+          Line line = Line.parse(text, dir, root);
+          lines.add(line);
+          if (block != null) {
+            block.add(line);
+          }
+        }
+      }
+    }
+
+    boolean isCurrent(Path path) {
+      try {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        return attributes.lastModifiedTime().toMillis() == modified && attributes.size() == size;
+      } catch (IOException e) {
+        return false;
+      }
+    }
+
+    /**
+     * Lines included for a suffix: the whole file without @startuml blocks, otherwise the
+     * n-th block for a number and the first block whose @start line has "id=suffix" otherwise
+     */
+    List<Line> block(String suffix) {
+      if (blocks.isEmpty()) {
+        return lines;
+      }
+      int index = 0;
+      Pattern id = null;
+      if (suffix != null && suffix.matches("\\d+")) {
+        index = Integer.parseInt(suffix);
+      } else if (suffix != null) {
+        id = Pattern.compile(".*id=" + Pattern.quote(suffix) + "\\W.*");
+      }
+      for (int i = 0; i < blocks.size(); i++) {
+        if (id == null || id.matcher(starts.get(i)).matches()) {
+          if (index == 0) {
+            return blocks.get(i);
+          }
+          index--;
+        }
+      }
+      return null;
+    }
+
+    private static String sha256Hex(byte[] content) {
+      try {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content), 0, 8);
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException("SHA-256 not available", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,329 @@
+package mew.pumlserver.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import mew.pumlserver.exception.ServiceUnavailableException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive (AIMD) limit on concurrent chat completion calls, per upstream base URL
+ * and API key.
+ *
+ * A call that finishes without a congestion signal while the limit is in use
+ * raises the limit by 1/limit, about one per round of calls. A 429, a 5xx, a
+ * timeout, or a response slower than puml.llm.limit.latency-tolerance times the
+ * usual latency (EWMA) multiplies it by puml.llm.limit.backoff, at most once per
+ * round: signals from calls started before the last decrease are ignored. The
+ * limit stays between puml.llm.limit.min and puml.llm.limit.max.
+ *
+ * Calls above the limit wait in a bounded queue (puml.llm.limit.max-queue) for up
+ * to puml.llm.limit.max-wait-ms, and are rejected with 503 after that. The limit,
+ * calls in flight and queued calls are exported per upstream; the API key is only
+ * tagged by a short hash. Base URLs and keys come from requests, so only the first
+ * puml.llm.limit.max-upstreams upstreams are tagged on their own; later ones count
+ * their rejections as the "other" upstream and export no gauges.
+ */
+@Service
+public class LlmConcurrencyLimiter {
+
+  public static final String OTHER_UPSTREAM = "other";
+
+  private static final long IDLE_EVICTION_NANOS = TimeUnit.MINUTES.toNanos(10);
+  private static final double LATENCY_ALPHA = 0.1;
+
+  private final Map<String, Limiter> limiters = new ConcurrentHashMap<>();
+  // Keys of the limiters tagged with their own endpoint and key hash
+  private final Set<String> tagged = ConcurrentHashMap.newKeySet();
+  private final boolean enabled;
+  private final double initialLimit;
+  private final double minLimit;
+  private final double maxLimit;
+  private final double backoff;
+  private final double latencyTolerance;
+  private final int maxQueue;
+  private final long maxWaitNanos;
+  private final int maxUpstreams;
+  private final MeterRegistry meterRegistry;
+
+  public LlmConcurrencyLimiter(
+      @Value("${puml.llm.limit.enabled:true}") boolean enabled,
+      @Value("${puml.llm.limit.initial:10}") int initialLimit,
+      @Value("${puml.llm.limit.min:1}") int minLimit,
+      @Value("${puml.llm.limit.max:200}") int maxLimit,
+      @Value("${puml.llm.limit.backoff:0.9}") double backoff,
+      @Value("${puml.llm.limit.latency-tolerance:2.0}") double latencyTolerance,
+      @Value("${puml.llm.limit.max-queue:20}") int maxQueue,
+      @Value("${puml.llm.limit.max-wait-ms:5000}") long maxWaitMillis,
+      @Value("${puml.llm.limit.max-upstreams:20}") int maxUpstreams,
+      MeterRegistry meterRegistry) {
+    this.enabled = enabled;
+    this.minLimit = Math.max(1, minLimit);
+    this.maxLimit = Math.max(this.minLimit, maxLimit);
+    this.initialLimit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+    this.backoff = Math.min(0.99, Math.max(0.1, backoff));
+    this.latencyTolerance = latencyTolerance;
+    this.maxQueue = Math.max(0, maxQueue);
+    this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxWaitMillis));
+    this.maxUpstreams = Math.max(0, maxUpstreams);
+    this.meterRegistry = meterRegistry;
+  }
+
+  /**
+   * Wait for a slot to call an upstream. The caller must end the returned permit.
+   *
+   * @throws ServiceUnavailableException if the queue is full or the wait times out
+   * @throws CancellationException if the calling thread is interrupted while waiting
+   */
+  public Permit acquire(String baseUrl, String apiKey) {
+    if (!enabled) {
+      return Permit.UNLIMITED;
+    }
+    String keyHash = hash(apiKey == null ? "" : apiKey);
+    while (true) {
+      Limiter limiter = limiters.computeIfAbsent(baseUrl + " " + keyHash, key -> new Limiter(key, baseUrl, keyHash));
+      Permit permit = limiter.acquire();
+      if (permit != null) {
+        return permit;
+      }
+      // Evicted before we got its lock: the next lookup finds or creates its replacement
+    }
+  }
+
+  /**
+   * Current limit of an upstream, or 0 if it has no limiter (for monitoring and tests)
+   */
+  public double getLimit(String baseUrl, String apiKey) {
+    Limiter limiter = limiters.get(baseUrl + " " + hash(apiKey == null ? "" : apiKey));
+    return limiter == null ? 0 : limiter.limit;
+  }
+
+  /**
+   * Drop limiters (and their gauges) of upstreams that haven't been called for a while
+   */
+  @Scheduled(fixedRate = 300000) // 5 minutes
+  public void evictIdleLimiters() {
+    long now = System.nanoTime();
+    limiters.values().removeIf(limiter -> {
+      limiter.lock.lock();
+      try {
+        if (limiter.inFlight > 0 || limiter.waiting > 0 || now - limiter.lastUsedNanos < IDLE_EVICTION_NANOS) {
+          return false;
+        }
+        limiter.evicted = true;
+      } finally {
+        limiter.lock.unlock();
+      }
+      limiter.meters.forEach(meterRegistry::remove);
+      tagged.remove(limiter.key);
+      return true;
+    });
+  }
+
+  private static String hash(String apiKey) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(apiKey.getBytes(StandardCharsets.UTF_8));
+      return HexFormat.of().formatHex(digest, 0, 4);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 not available", e);
+    }
+  }
+
+  /**
+   * A slot for one upstream call. End it exactly once with the outcome of the call.
+   */
+  public interface Permit {
+
+    Permit UNLIMITED = new Permit() {
+      @Override
+      public void onSuccess() {
+      }
+
+      @Override
+      public void onDropped() {
+      }
+
+      @Override
+      public void onIgnore() {
+      }
+    };
+
+    /**
+     * The call succeeded; its latency is measured from the end of the wait
+     */
+    void onSuccess();
+
+    /**
+     * The upstream signalled overload: 429, 5xx or a timeout
+     */
+    void onDropped();
+
+    /**
+     * The call ended without telling anything about the upstream's capacity
+     * (cancelled, or a client error)
+     */
+    void onIgnore();
+  }
+
+  private final class Limiter {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final List<Meter> meters = new ArrayList<>();
+    private final String key;
+    private final Tags tags;
+    private double limit = initialLimit;
+    private double latencyMillis = Double.NaN;
+    private int inFlight;
+    private int waiting;
+    private long lastDecreaseNanos = System.nanoTime();
+    private long lastUsedNanos = System.nanoTime();
+    private boolean evicted;
+
+    Limiter(String key, String baseUrl, String keyHash) {
+      this.key = key;
+      if (tagged.size() >= maxUpstreams || !tagged.add(key)) {
+        this.tags = Tags.of("endpoint", OTHER_UPSTREAM, "key", OTHER_UPSTREAM);
+        return;
+      }
+      this.tags = Tags.of("endpoint", baseUrl, "key", keyHash);
+      meters.add(Gauge.builder("puml.llm.limit", this, l -> l.limit)
+          .tags(tags)
+          .description("Current concurrency limit of the upstream")
+          .register(meterRegistry));
+      meters.add(Gauge.builder("puml.llm.limit.in-flight", this, l -> l.inFlight)
+          .tags(tags)
+          .register(meterRegistry));
+      meters.add(Gauge.builder("puml.llm.limit.queued", this, l -> l.waiting)
+          .tags(tags)
+          .register(meterRegistry));
+    }
+
+    /**
+     * A permit, or null if this limiter was evicted and is no longer in the map
+     */
+    Permit acquire() {
+      lock.lock();
+      try {
+        if (evicted) {
+          return null;
+        }
+        lastUsedNanos = System.nanoTime();
+        if (inFlight >= (int) limit) {
+          if (waiting >= maxQueue) {
+            reject("queue-full");
+          }
+          waiting++;
+          try {
+            long remaining = maxWaitNanos;
+            while (inFlight >= (int) limit) {
+              if (remaining <= 0) {
+                reject("timeout");
+              }
+              remaining = released.awaitNanos(remaining);
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            CancellationException cancelled = new CancellationException("Interrupted while waiting for an LLM call slot");
+            cancelled.initCause(e);
+            throw cancelled;
+          } finally {
+            waiting--;
+          }
+        }
+        inFlight++;
+        return new LimiterPermit(this, System.nanoTime());
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private void reject(String reason) {
+      meterRegistry.counter("puml.llm.limit.rejected", tags.and("reason", reason)).increment();
+      throw new ServiceUnavailableException("Too many concurrent requests to the LLM upstream, try again later");
+    }
+
+    void release(long startedNanos, Outcome outcome) {
+      lock.lock();
+      try {
+        long now = System.nanoTime();
+        boolean congested = outcome == Outcome.DROPPED;
+        if (outcome == Outcome.SUCCESS) {
+          double millis = (now - startedNanos) / 1_000_000.0;
+          congested = latencyTolerance > 0 && !Double.isNaN(latencyMillis)
+              && millis > latencyTolerance * latencyMillis;
+          latencyMillis = Double.isNaN(latencyMillis)
+              ? millis
+              : LATENCY_ALPHA * millis + (1 - LATENCY_ALPHA) * latencyMillis;
+        }
+        if (congested) {
+          // Calls started before the last decrease reflect the old limit
+          if (startedNanos - lastDecreaseNanos > 0) {
+            limit = Math.max(minLimit, limit * backoff);
+            lastDecreaseNanos = now;
+          }
+        } else if (outcome == Outcome.SUCCESS && inFlight * 2 >= limit) {
+          // Only grow a limit that is actually being used
+          limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+        inFlight--;
+        released.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private enum Outcome {
+    SUCCESS, DROPPED, IGNORED
+  }
+
+  private static final class LimiterPermit implements Permit {
+    private final Limiter limiter;
+    private final long startedNanos;
+    private boolean ended;
+
+    LimiterPermit(Limiter limiter, long startedNanos) {
+      this.limiter = limiter;
+      this.startedNanos = startedNanos;
+    }
+
+    @Override
+    public void onSuccess() {
+      end(Outcome.SUCCESS);
+    }
+
+    @Override
+    public void onDropped() {
+      end(Outcome.DROPPED);
+    }
+
+    @Override
+    public void onIgnore() {
+      end(Outcome.IGNORED);
+    }
+
+    private synchronized void end(Outcome outcome) {
+      if (!ended) {
+        ended = true;
+        limiter.release(startedNanos, outcome);
+      }
+    }
+  }
+}
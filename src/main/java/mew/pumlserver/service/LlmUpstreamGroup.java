@@ -0,0 +1,293 @@
+package mew.pumlserver.service;
+
+import io.micrometer.context.ContextExecutorService;
+import io.micrometer.context.ContextSnapshotFactory;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import mew.pumlserver.exception.ServiceUnavailableException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Optional server-side group of OpenAI-compatible endpoints (puml.llm.upstreams),
+ * used by requests that don't name a base URL.
+ *
+ * Each endpoint keeps an EWMA of its response time. A call goes to the fastest
+ * healthy endpoint; if it hasn't answered after puml.llm.hedge-delay-ms, a hedged
+ * duplicate goes to the next one, and whichever answers first wins while the
+ * other is cancelled (its thread interrupted, which aborts the HTTP call). A
+ * cancelled attempt still counts its elapsed time, so a slow endpoint loses its
+ * rank. Connection errors, timeouts, 5xx, 408 and 429 fail over to the next
+ * endpoint and take the endpoint out of rotation for puml.llm.failure-cooldown-ms;
+ * other 4xx answers are the caller's error and are returned as they are. An
+ * endpoint whose concurrency limit (LlmConcurrencyLimiter) is full also fails
+ * over, but stays in rotation.
+ */
+@Service
+public class LlmUpstreamGroup {
+
+  private static final Logger log = LoggerFactory.getLogger(LlmUpstreamGroup.class);
+
+  private final List<Endpoint> endpoints;
+  private final String apiKey;
+  private final long hedgeDelayNanos;
+  private final double alpha;
+  private final long cooldownNanos;
+  private final MeterRegistry meterRegistry;
+  private final AtomicInteger threadCount = new AtomicInteger();
+  // Attempts run with the caller's context (current observation and trace)
+  private final ExecutorService executor = ContextExecutorService.wrap(Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "llm-upstream-" + threadCount.incrementAndGet());
+    thread.setDaemon(true);
+    return thread;
+  }), ContextSnapshotFactory.builder().build());
+
+  public LlmUpstreamGroup(
+      @Value("${puml.llm.upstreams:}") String upstreams,
+      @Value("${puml.llm.api-key:}") String apiKey,
+      @Value("${puml.llm.hedge-delay-ms:1500}") long hedgeDelayMillis,
+      @Value("${puml.llm.ewma-alpha:0.3}") double alpha,
+      @Value("${puml.llm.failure-cooldown-ms:30000}") long cooldownMillis,
+      MeterRegistry meterRegistry) {
+    this.endpoints = Arrays.stream(upstreams.split(","))
+        .map(String::strip)
+        .filter(url -> !url.isEmpty())
+        .map(url -> url.endsWith("/") ? url.substring(0, url.length() - 1) : url)
+        .distinct()
+        .map(Endpoint::new)
+        .toList();
+    this.apiKey = apiKey;
+    this.hedgeDelayNanos = hedgeDelayMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(hedgeDelayMillis) : -1;
+    this.alpha = Math.min(1.0, Math.max(0.01, alpha));
+    this.cooldownNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, cooldownMillis));
+    this.meterRegistry = meterRegistry;
+
+    for (Endpoint endpoint : endpoints) {
+      Gauge.builder("puml.llm.upstream.latency", endpoint, e -> Double.isNaN(e.ewmaMillis) ? 0 : e.ewmaMillis)
+          .tag("endpoint", endpoint.url)
+          .description("EWMA of the endpoint's response time")
+          .baseUnit("milliseconds")
+          .register(meterRegistry);
+      Gauge.builder("puml.llm.upstream.healthy", endpoint, e -> e.isHealthy(System.nanoTime()) ? 1 : 0)
+          .tag("endpoint", endpoint.url)
+          .register(meterRegistry);
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  public boolean isEnabled() {
+    return !endpoints.isEmpty();
+  }
+
+  /**
+   * Server-side API key for the group, used when the request has none
+   */
+  public String getApiKey() {
+    return apiKey;
+  }
+
+  /**
+   * Base URLs, fastest healthy endpoint first
+   */
+  public List<String> getRanking() {
+    return ranked().stream().map(endpoint -> endpoint.url).toList();
+  }
+
+  /**
+   * Run a call against the group. The function gets an endpoint's base URL and
+   * runs on a group thread; it must abort when that thread is interrupted.
+   * If the calling thread is interrupted, all attempts are cancelled and a
+   * CancellationException is thrown.
+   */
+  public <T> T call(Function<String, T> call) {
+    if (endpoints.isEmpty()) {
+      throw new IllegalStateException("No LLM upstreams configured");
+    }
+    List<Endpoint> order = ranked();
+    BlockingQueue<Attempt<T>> finished = new LinkedBlockingQueue<>();
+    List<Attempt<T>> running = new ArrayList<>();
+    int next = 0;
+    boolean hedged = false;
+    Throwable lastError = null;
+    try {
+      running.add(start(order.get(next++), call, finished));
+      while (true) {
+        Attempt<T> attempt;
+        boolean canHedge = !hedged && hedgeDelayNanos > 0 && running.size() == 1 && next < order.size();
+        if (canHedge) {
+          long wait = running.get(0).startedAt + hedgeDelayNanos - System.nanoTime();
+          attempt = finished.poll(Math.max(0, wait), TimeUnit.NANOSECONDS);
+          if (attempt == null) {
+            hedged = true;
+            meterRegistry.counter("puml.llm.upstream.hedges").increment();
+            running.add(start(order.get(next++), call, finished));
+            continue;
+          }
+        } else {
+          attempt = finished.take();
+        }
+        running.remove(attempt);
+
+        long elapsed = attempt.finishedAt - attempt.startedAt;
+        if (attempt.error == null) {
+          attempt.endpoint.recordLatency(elapsed, alpha);
+          record(attempt.endpoint, "ok");
+          return attempt.result;
+        }
+        if (!isRetryable(attempt.error)) {
+          attempt.endpoint.recordLatency(elapsed, alpha);
+          record(attempt.endpoint, "rejected");
+          throw rethrow(attempt.error);
+        }
+        if (attempt.error instanceof ServiceUnavailableException) {
+          // Our own concurrency limit for the endpoint is full: try the next one, but keep it in rotation
+          record(attempt.endpoint, "limited");
+        } else {
+          attempt.endpoint.downUntil = System.nanoTime() + cooldownNanos;
+          record(attempt.endpoint, "error");
+        }
+        log.warn("LLM upstream {} failed, {} attempts left: {}", attempt.endpoint.url,
+            order.size() - next + running.size(), attempt.error.getMessage());
+        lastError = attempt.error;
+        if (next < order.size()) {
+          running.add(start(order.get(next++), call, finished));
+        } else if (running.isEmpty()) {
+          throw new ServiceUnavailableException("All LLM upstreams failed: " + lastError.getMessage(), lastError);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      CancellationException cancelled = new CancellationException("OpenAI request aborted");
+      cancelled.initCause(e);
+      throw cancelled;
+    } finally {
+      long now = System.nanoTime();
+      for (Attempt<T> attempt : running) {
+        attempt.future.cancel(true);
+        // Only a lower bound of its response time, so it can only make the endpoint look slower
+        attempt.endpoint.recordCensoredLatency(now - attempt.startedAt, alpha);
+        record(attempt.endpoint, "cancelled");
+      }
+    }
+  }
+
+  private <T> Attempt<T> start(Endpoint endpoint, Function<String, T> call, BlockingQueue<Attempt<T>> finished) {
+    Attempt<T> attempt = new Attempt<>(endpoint);
+    attempt.future = executor.submit(() -> {
+      try {
+        attempt.result = call.apply(endpoint.url);
+      } catch (Throwable t) {
+        // Errors too, so the caller never mistakes a failed attempt for a null result
+        attempt.error = t;
+      } finally {
+        attempt.finishedAt = System.nanoTime();
+        finished.add(attempt);
+      }
+    });
+    return attempt;
+  }
+
+  /**
+   * Healthy endpoints by EWMA (unmeasured ones first), then those cooling down after a failure
+   */
+  private List<Endpoint> ranked() {
+    long now = System.nanoTime();
+    return endpoints.stream()
+        .sorted(Comparator.comparing((Endpoint endpoint) -> !endpoint.isHealthy(now))
+            .thenComparingDouble(endpoint -> Double.isNaN(endpoint.ewmaMillis) ? 0 : endpoint.ewmaMillis))
+        .toList();
+  }
+
+  /**
+   * An attempt's failure, to be thrown on the calling thread
+   */
+  private static RuntimeException rethrow(Throwable error) {
+    if (error instanceof Error) {
+      throw (Error) error;
+    }
+    if (error instanceof RuntimeException) {
+      return (RuntimeException) error;
+    }
+    return new IllegalStateException(error);
+  }
+
+  private static boolean isRetryable(Throwable error) {
+    if (error instanceof ResourceAccessException || error instanceof HttpServerErrorException
+        || error instanceof ServiceUnavailableException) {
+      return true;
+    }
+    if (error instanceof HttpClientErrorException) {
+      int status = ((HttpClientErrorException) error).getStatusCode().value();
+      return status == HttpStatus.TOO_MANY_REQUESTS.value() || status == HttpStatus.REQUEST_TIMEOUT.value();
+    }
+    return false;
+  }
+
+  private void record(Endpoint endpoint, String result) {
+    meterRegistry.counter("puml.llm.upstream.requests", "endpoint", endpoint.url, "result", result).increment();
+  }
+
+  private static final class Endpoint {
+    private final String url;
+    private volatile double ewmaMillis = Double.NaN;
+    private volatile long downUntil;
+
+    Endpoint(String url) {
+      this.url = url;
+      this.downUntil = System.nanoTime();
+    }
+
+    boolean isHealthy(long now) {
+      return now - downUntil >= 0;
+    }
+
+    synchronized void recordLatency(long nanos, double alpha) {
+      double millis = nanos / 1_000_000.0;
+      ewmaMillis = Double.isNaN(ewmaMillis) ? millis : alpha * millis + (1 - alpha) * ewmaMillis;
+    }
+
+    synchronized void recordCensoredLatency(long nanos, double alpha) {
+      if (Double.isNaN(ewmaMillis) || nanos / 1_000_000.0 > ewmaMillis) {
+        recordLatency(nanos, alpha);
+      }
+    }
+  }
+
+  private static final class Attempt<T> {
+    private final Endpoint endpoint;
+    private final long startedAt = System.nanoTime();
+    private volatile Future<?> future;
+    private volatile T result;
+    private volatile Throwable error;
+    private volatile long finishedAt;
+
+    Attempt(Endpoint endpoint) {
+      this.endpoint = endpoint;
+    }
+  }
+}
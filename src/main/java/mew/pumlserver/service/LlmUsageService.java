@@ -0,0 +1,102 @@
+package mew.pumlserver.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import mew.pumlserver.model.LlmUsage;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tokens and latency of LLM calls, per model and per conversation.
+ *
+ * Each completion's usage block (prompt and completion tokens), its time to first
+ * token and its total latency are added to the model's totals, exported as
+ * puml.llm.tokens (tag type: prompt or completion), puml.llm.time-to-response and
+ * puml.llm.latency, and for /generate to the conversation's {@link LlmUsage}. The
+ * two timers are also tagged with the prompt size, to relate prompt tokens to latency.
+ * Only the first puml.llm.max-models models are tracked on their own; later ones
+ * share the "other" model, since model names come from requests.
+ */
+@Service
+public class LlmUsageService {
+
+  public static final String OTHER_MODEL = "other";
+
+  private static final long[] PROMPT_SIZES = { 1000, 4000, 16000 };
+  private static final String[] PROMPT_SIZE_TAGS = { "0-1k", "1k-4k", "4k-16k", "16k+" };
+
+  private final Map<String, ModelUsage> models = new ConcurrentHashMap<>();
+  private final int maxModels;
+  private final MeterRegistry meterRegistry;
+
+  public LlmUsageService(@Value("${puml.llm.max-models:20}") int maxModels, MeterRegistry meterRegistry) {
+    this.maxModels = Math.max(1, maxModels);
+    this.meterRegistry = meterRegistry;
+  }
+
+  /**
+   * Record one completed call of a model; conversation is null outside of conversations
+   */
+  public void record(String model, LlmUsage conversation, long promptTokens, long completionTokens,
+      long timeToResponseNanos, long latencyNanos) {
+    ModelUsage usage = model(model == null || model.isBlank() ? OTHER_MODEL : model);
+    usage.promptTokens.increment(promptTokens);
+    usage.completionTokens.increment(completionTokens);
+    String promptSize = promptSize(promptTokens);
+    Timer.builder("puml.llm.time-to-response")
+        .tags("model", usage.name, "prompt", promptSize)
+        .description("Time from sending a completion request until its response status and headers arrive")
+        .register(meterRegistry)
+        .record(timeToResponseNanos, TimeUnit.NANOSECONDS);
+    Timer.builder("puml.llm.latency")
+        .tags("model", usage.name, "prompt", promptSize)
+        .description("Time from sending a completion request to its last token, failovers included")
+        .register(meterRegistry)
+        .record(latencyNanos, TimeUnit.NANOSECONDS);
+    if (conversation != null) {
+      conversation.record(promptTokens, completionTokens, timeToResponseNanos, latencyNanos);
+    }
+  }
+
+  private ModelUsage model(String model) {
+    ModelUsage usage = models.get(model);
+    if (usage != null) {
+      return usage;
+    }
+    if (models.size() >= maxModels) {
+      model = OTHER_MODEL;
+    }
+    return models.computeIfAbsent(model, ModelUsage::new);
+  }
+
+  private static String promptSize(long promptTokens) {
+    int bucket = 0;
+    while (bucket < PROMPT_SIZES.length && promptTokens >= PROMPT_SIZES[bucket]) {
+      bucket++;
+    }
+    return PROMPT_SIZE_TAGS[bucket];
+  }
+
+  private final class ModelUsage {
+    private final String name;
+    private final Counter promptTokens;
+    private final Counter completionTokens;
+
+    ModelUsage(String name) {
+      this.name = name;
+      this.promptTokens = Counter.builder("puml.llm.tokens")
+          .tags("model", name, "type", "prompt")
+          .description("Tokens reported in the usage of completions")
+          .register(meterRegistry);
+      this.completionTokens = Counter.builder("puml.llm.tokens")
+          .tags("model", name, "type", "completion")
+          .description("Tokens reported in the usage of completions")
+          .register(meterRegistry);
+    }
+  }
+}
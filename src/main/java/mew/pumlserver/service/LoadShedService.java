@@ -0,0 +1,269 @@
+package mew.pumlserver.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import mew.pumlserver.exception.ServiceUnavailableException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Sheds expensive work while the node is under memory or CPU pressure, so that
+ * cheap requests (cache hits, cached sources) stay fast and the load balancer
+ * moves traffic elsewhere.
+ *
+ * Every puml.shed.check-interval-ms it samples the old generation's occupancy after
+ * the last GC, the allocation rate, the CPU load and the render queue depth. After
+ * puml.shed.enter-checks consecutive samples with a signal over its limit, new
+ * renders and LLM calls are rejected with 503 and readiness switches to
+ * REFUSING_TRAFFIC; after puml.shed.exit-checks consecutive samples with every
+ * signal under its limit, both are restored. Renders already queued or in flight
+ * still complete, and requests joining them aren't rejected.
+ *
+ * Sampling starts once the application is ready, so warm-up renders don't count.
+ * The signals are exported as puml.shed.* gauges, rejections as puml.shed.rejected.
+ */
+@Service
+public class LoadShedService {
+
+  private static final Logger log = LoggerFactory.getLogger(LoadShedService.class);
+
+  public enum Work { RENDER, LLM }
+
+  private final boolean enabled;
+  private final double maxHeapAfterGc;
+  private final double maxAllocationBytesPerSecond;
+  private final double maxCpuLoad;
+  private final int maxQueueDepth;
+  private final int enterChecks;
+  private final int exitChecks;
+  private final RenderScheduler renderScheduler;
+  private final ApplicationEventPublisher eventPublisher;
+  private final MeterRegistry meterRegistry;
+
+  // Heap pools with a usage threshold are the old generation: eden and survivors have none
+  private final List<MemoryPoolMXBean> oldGenPools = new ArrayList<>();
+  private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+  private final OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+  private Map<Long, Long> allocatedBytes = Map.of();
+  private long lastSampleNanos;
+
+  private volatile boolean ready;
+  private volatile boolean shedding;
+  private volatile String reason = "";
+  private volatile double heapAfterGc;
+  private volatile double allocationRate;
+  private volatile double cpuLoad;
+  private volatile int queueDepth;
+  private int pressuredChecks;
+  private int clearChecks;
+
+  public LoadShedService(
+      @Value("${puml.shed.enabled:true}") boolean enabled,
+      @Value("${puml.shed.max-heap-after-gc:0.85}") double maxHeapAfterGc,
+      @Value("${puml.shed.max-allocation-mb-per-second:0}") double maxAllocationMbPerSecond,
+      @Value("${puml.shed.max-cpu-load:0}") double maxCpuLoad,
+      @Value("${puml.shed.max-queue-depth:500}") int maxQueueDepth,
+      @Value("${puml.shed.enter-checks:2}") int enterChecks,
+      @Value("${puml.shed.exit-checks:5}") int exitChecks,
+      RenderScheduler renderScheduler,
+      ApplicationEventPublisher eventPublisher,
+      MeterRegistry meterRegistry) {
+    this.enabled = enabled;
+    this.maxHeapAfterGc = maxHeapAfterGc;
+    this.maxAllocationBytesPerSecond = maxAllocationMbPerSecond * 1024 * 1024;
+    this.maxCpuLoad = maxCpuLoad;
+    this.maxQueueDepth = maxQueueDepth;
+    this.enterChecks = Math.max(1, enterChecks);
+    this.exitChecks = Math.max(1, exitChecks);
+    this.renderScheduler = renderScheduler;
+    this.eventPublisher = eventPublisher;
+    this.meterRegistry = meterRegistry;
+
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported()
+          && pool.isCollectionUsageThresholdSupported()) {
+        oldGenPools.add(pool);
+      }
+    }
+
+    Gauge.builder("puml.shed.active", this, s -> s.shedding ? 1 : 0)
+        .description("Whether new renders and LLM calls are being rejected")
+        .register(meterRegistry);
+    Gauge.builder("puml.shed.heap-after-gc", this, s -> s.heapAfterGc)
+        .description("Old generation occupancy after the last GC, as a fraction of its maximum")
+        .register(meterRegistry);
+    Gauge.builder("puml.shed.allocation-rate", this, s -> s.allocationRate)
+        .description("Bytes allocated per second by all threads")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+    Gauge.builder("puml.shed.cpu-load", this, s -> s.cpuLoad)
+        .register(meterRegistry);
+  }
+
+  @EventListener
+  public void onApplicationReady(ApplicationReadyEvent event) {
+    ready = true;
+  }
+
+  /**
+   * Reject new work of this kind while shedding
+   *
+   * @throws ServiceUnavailableException while shedding
+   */
+  public void admit(Work work) {
+    if (shedding) {
+      meterRegistry.counter("puml.shed.rejected", "work", work.name().toLowerCase(Locale.ROOT)).increment();
+      throw new ServiceUnavailableException("Server is overloaded (" + reason + "), try again later");
+    }
+  }
+
+  public boolean isShedding() {
+    return shedding;
+  }
+
+  /**
+   * Signal over its limit that started the current shedding, empty when not shedding
+   */
+  public String getReason() {
+    return reason;
+  }
+
+  /**
+   * Last sampled signals, by name
+   */
+  public Map<String, Object> getSignals() {
+    Map<String, Object> signals = new HashMap<>();
+    signals.put("heapAfterGc", heapAfterGc);
+    signals.put("allocationBytesPerSecond", (long) allocationRate);
+    signals.put("cpuLoad", cpuLoad);
+    signals.put("renderQueueDepth", queueDepth);
+    return signals;
+  }
+
+  @Scheduled(fixedDelayString = "${puml.shed.check-interval-ms:1000}")
+  public void check() {
+    if (!enabled || !ready) {
+      return;
+    }
+    update(sampleHeapAfterGc(), sampleAllocationRate(), sampleCpuLoad(), renderScheduler.getQueueDepth());
+  }
+
+  /**
+   * Record one sample of the signals and enter or leave shedding
+   */
+  synchronized void update(double heapAfterGc, double allocationRate, double cpuLoad, int queueDepth) {
+    this.heapAfterGc = heapAfterGc;
+    this.allocationRate = allocationRate;
+    this.cpuLoad = cpuLoad;
+    this.queueDepth = queueDepth;
+
+    String pressure = pressure();
+    if (pressure != null) {
+      clearChecks = 0;
+      if (++pressuredChecks >= enterChecks && !shedding) {
+        reason = pressure;
+        shedding = true;
+        log.warn("Shedding new renders and LLM calls, readiness refusing traffic: {}", pressure);
+        AvailabilityChangeEvent.publish(eventPublisher, this, ReadinessState.REFUSING_TRAFFIC);
+      }
+    } else {
+      pressuredChecks = 0;
+      if (++clearChecks >= exitChecks && shedding) {
+        shedding = false;
+        reason = "";
+        log.info("Pressure cleared, accepting all work again");
+        AvailabilityChangeEvent.publish(eventPublisher, this, ReadinessState.ACCEPTING_TRAFFIC);
+      }
+    }
+  }
+
+  /**
+   * The first signal over its limit (0 = no limit), or null
+   */
+  private String pressure() {
+    if (maxHeapAfterGc > 0 && heapAfterGc > maxHeapAfterGc) {
+      return String.format("heap after GC %.0f%%", heapAfterGc * 100);
+    }
+    if (maxAllocationBytesPerSecond > 0 && allocationRate > maxAllocationBytesPerSecond) {
+      return String.format("allocation rate %.0f MB/s", allocationRate / (1024 * 1024));
+    }
+    if (maxCpuLoad > 0 && cpuLoad > maxCpuLoad) {
+      return String.format("CPU load %.0f%%", cpuLoad * 100);
+    }
+    if (maxQueueDepth > 0 && queueDepth > maxQueueDepth) {
+      return "render queue depth " + queueDepth;
+    }
+    return null;
+  }
+
+  private double sampleHeapAfterGc() {
+    long used = 0;
+    long max = 0;
+    for (MemoryPoolMXBean pool : oldGenPools) {
+      MemoryUsage afterGc = pool.getCollectionUsage();
+      long poolMax = pool.getUsage().getMax();
+      if (afterGc != null && poolMax > 0) {
+        used += afterGc.getUsed();
+        max += poolMax;
+      }
+    }
+    return max == 0 ? 0 : (double) used / max;
+  }
+
+  /**
+   * Bytes allocated per second since the last sample, summed over live threads
+   */
+  private double sampleAllocationRate() {
+    if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+      return 0;
+    }
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) threadBean;
+    if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+      return 0;
+    }
+    long[] ids = threads.getAllThreadIds();
+    long[] bytes = threads.getThreadAllocatedBytes(ids);
+    long now = System.nanoTime();
+    Map<Long, Long> current = new HashMap<>(ids.length * 2);
+    long allocated = 0;
+    for (int i = 0; i < ids.length; i++) {
+      if (bytes[i] >= 0) {
+        current.put(ids[i], bytes[i]);
+        allocated += bytes[i] - allocatedBytes.getOrDefault(ids[i], 0L);
+      }
+    }
+    // The first sample has nothing to compare to
+    double rate = allocatedBytes.isEmpty() ? 0 : allocated / ((now - lastSampleNanos) / 1e9);
+    allocatedBytes = current;
+    lastSampleNanos = now;
+    return Math.max(0, rate);
+  }
+
+  private double sampleCpuLoad() {
+    if (!(osBean instanceof com.sun.management.OperatingSystemMXBean)) {
+      return 0;
+    }
+    // Of the whole machine or container; negative when not available yet
+    return Math.max(0, ((com.sun.management.OperatingSystemMXBean) osBean).getCpuLoad());
+  }
+}
@@ -0,0 +1,37 @@
+package mew.pumlserver.service;
+
+import mew.pumlserver.model.RenderContext;
+import mew.pumlserver.model.RenderedArtifact;
+
+import java.io.IOException;
+
+/**
+ * Calls to the owner node of a cache entry in cluster mode.
+ * The render context of the original request is passed on, so the owner
+ * schedules the work in the caller's lane and under the caller's client key.
+ */
+public interface PeerClient {
+
+  /**
+   * What the owner should do with a diagram source it receives
+   */
+  enum RenderMode {
+    /** Only store the source */
+    NONE,
+    /** Store it and queue a speculative pre-render */
+    ASYNC,
+    /** Store it and render all formats before answering */
+    SYNC
+  }
+
+  /**
+   * Hand a diagram source to its owner
+   */
+  void store(String peer, String id, String puml, RenderMode mode, RenderContext context) throws IOException;
+
+  /**
+   * Fetch one format ("svg", "png", "text" or "puml") of an entry from its owner,
+   * which renders it if needed. Returns null if the owner doesn't have the entry.
+   */
+  RenderedArtifact fetch(String peer, String id, String format, RenderContext context) throws IOException;
+}
@@ -0,0 +1,509 @@
+package mew.pumlserver.service;
+
+import mew.pumlserver.model.PngOptions;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.RenderedImage;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * PNG encoder with a configurable deflate level, indexed-palette output and
+ * parallel deflate.
+ *
+ * - Images with at most 256 distinct colors are written as indexed PNG
+ * (1, 2, 4 or 8 bits per pixel) when palette output is enabled, otherwise as
+ * 8-bit RGB, or RGBA when the image has translucent pixels.
+ * - Scanlines are not filtered (see {@link #convertRows}).
+ * - The pixels of INT_RGB/INT_ARGB images are read in place, the scanline
+ * buffer comes from the {@link RenderBufferPool} and the output is streamed,
+ * so encoding doesn't allocate image-sized arrays.
+ * - In parallel mode, large images are split into strips of scanlines that are
+ * deflated independently, each primed with the last 32 KB of the previous
+ * strip, and concatenated into one zlib stream (the pigz approach).
+ */
+public final class PngEncoder {
+
+  private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+  private static final int COLOR_TYPE_RGB = 2;
+  private static final int COLOR_TYPE_INDEXED = 3;
+  private static final int COLOR_TYPE_RGBA = 6;
+  private static final int MAX_PALETTE = 256;
+  private static final int DICTIONARY_SIZE = 32 * 1024;
+  private static final int MIN_STRIP_BYTES = 128 * 1024;
+  private static final int IDAT_CHUNK_SIZE = 64 * 1024;
+
+  private final Executor executor;
+  private final int parallelism;
+  private final long parallelMinPixels;
+  private final RenderBufferPool bufferPool;
+
+  /**
+   * @param executor executor for parallel deflate, or null to always encode on the calling thread
+   * @param parallelism maximum number of strips deflated at the same time
+   * @param parallelMinPixels images smaller than this are always encoded on the calling thread
+   * @param bufferPool pool for the scanline buffer, or null to allocate it per image
+   */
+  public PngEncoder(Executor executor, int parallelism, long parallelMinPixels, RenderBufferPool bufferPool) {
+    this.executor = executor;
+    this.parallelism = Math.max(1, parallelism);
+    this.parallelMinPixels = parallelMinPixels;
+    this.bufferPool = bufferPool;
+  }
+
+  /**
+   * Encode an image as PNG.
+   */
+  public void encode(RenderedImage image, PngOptions options, OutputStream out) throws IOException {
+    BufferedImage buffered = toBufferedImage(image);
+    int width = buffered.getWidth();
+    int height = buffered.getHeight();
+    int[] argb = pixels(buffered);
+
+    Layout layout = layout(argb, width * height, buffered.getColorModel().hasAlpha(), options.isPalette());
+    int stride = 1 + layout.rowBytes(width);
+
+    int strips = 1;
+    if (options.isParallel() && executor != null && (long) width * height >= parallelMinPixels) {
+      long total = (long) stride * height;
+      strips = (int) Math.max(1, Math.min(parallelism, total / MIN_STRIP_BYTES));
+    }
+    int rowsPerStrip = (height + strips - 1) / strips;
+    int stripCount = (height + rowsPerStrip - 1) / rowsPerStrip;
+    int level = Math.max(0, Math.min(9, options.getCompressionLevel()));
+    int scanlineBytes = Math.multiplyExact(stride, height);
+
+    out.write(SIGNATURE);
+    ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+    writeInt(header, width);
+    writeInt(header, height);
+    header.write(layout.bitDepth);
+    header.write(layout.colorType);
+    header.write(0); // deflate
+    header.write(0); // filter method 0
+    header.write(0); // no interlace
+    writeChunk(out, "IHDR", header.toByteArray(), 0, header.size());
+    if (layout.colorType == COLOR_TYPE_INDEXED) {
+      writePalette(out, layout.palette);
+    }
+
+    try (RenderBufferPool.Buffer scratch = bufferPool == null ? null : bufferPool.acquire()) {
+      byte[] scanlines;
+      if (scratch == null) {
+        scanlines = new byte[scanlineBytes];
+      } else {
+        scratch.ensureCapacity(scanlineBytes);
+        scanlines = scratch.array();
+      }
+
+      IdatOutputStream idat = new IdatOutputStream(out);
+      idat.write(0x78);
+      idat.write(zlibFlags(level));
+      if (stripCount == 1) {
+        convertRows(argb, width, layout, scanlines, 0, height);
+        try {
+          deflate(scanlines, 0, scanlineBytes, level, 0, true, idat);
+        } catch (UncheckedIOException e) {
+          throw e.getCause();
+        }
+      } else {
+        // Phase 1: convert strips in parallel; phase 2: deflate them, each primed with the previous strip's tail
+        List<CompletableFuture<Void>> converting = new ArrayList<>();
+        for (int s = 0; s < stripCount; s++) {
+          int firstRow = s * rowsPerStrip;
+          int lastRow = Math.min(height, firstRow + rowsPerStrip);
+          converting.add(CompletableFuture.runAsync(
+              () -> convertRows(argb, width, layout, scanlines, firstRow, lastRow), executor));
+        }
+        join(converting);
+
+        ByteArrayOutputStream[] compressed = new ByteArrayOutputStream[stripCount];
+        List<CompletableFuture<Void>> deflating = new ArrayList<>();
+        for (int s = 0; s < stripCount; s++) {
+          int strip = s;
+          int offset = s * rowsPerStrip * stride;
+          int length = Math.min(height - s * rowsPerStrip, rowsPerStrip) * stride;
+          compressed[strip] = new ByteArrayOutputStream(Math.max(64, length / 8));
+          deflating.add(CompletableFuture.runAsync(() -> deflate(scanlines, offset, length, level,
+              Math.min(DICTIONARY_SIZE, offset), strip == stripCount - 1, compressed[strip]), executor));
+        }
+        join(deflating);
+        for (ByteArrayOutputStream part : compressed) {
+          part.writeTo(idat);
+        }
+      }
+
+      Adler32 adler = new Adler32();
+      adler.update(scanlines, 0, scanlineBytes);
+      writeInt(idat, (int) adler.getValue());
+      idat.finish();
+    }
+    writeChunk(out, "IEND", new byte[0], 0, 0);
+  }
+
+  private static BufferedImage toBufferedImage(RenderedImage image) {
+    if (image instanceof BufferedImage) {
+      return (BufferedImage) image;
+    }
+    BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+    copy.setData(image.getData());
+    return copy;
+  }
+
+  /**
+   * ARGB pixels in row-major order. PlantUML draws on plain INT_RGB/INT_ARGB
+   * images, whose backing array already has that layout and is read in place
+   * instead of being copied by getRGB.
+   */
+  private static int[] pixels(BufferedImage image) {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    WritableRaster raster = image.getRaster();
+    boolean packed = (image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_INT_ARGB)
+        && raster.getParent() == null
+        && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0
+        && raster.getDataBuffer() instanceof DataBufferInt
+        && raster.getDataBuffer().getNumBanks() == 1 && raster.getDataBuffer().getOffset() == 0
+        && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+        && ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() == width;
+    if (packed) {
+      int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+      if (data.length >= width * height) {
+        return data;
+      }
+    }
+    return image.getRGB(0, 0, width, height, null, 0, width);
+  }
+
+  /**
+   * Pick the color type and bit depth, and build the palette when it fits.
+   */
+  private static Layout layout(int[] argb, int pixels, boolean mayHaveAlpha, boolean palette) {
+    boolean translucent = false;
+    if (mayHaveAlpha) {
+      for (int i = 0; i < pixels; i++) {
+        if ((argb[i] >>> 24) != 0xff) {
+          translucent = true;
+          break;
+        }
+      }
+    }
+    if (palette) {
+      ColorIndex index = ColorIndex.build(argb, pixels, translucent);
+      if (index != null) {
+        int size = index.colors.length;
+        int bitDepth = size <= 2 ? 1 : size <= 4 ? 2 : size <= 16 ? 4 : 8;
+        return new Layout(COLOR_TYPE_INDEXED, bitDepth, 1, index);
+      }
+    }
+    return translucent ? new Layout(COLOR_TYPE_RGBA, 8, 4, null) : new Layout(COLOR_TYPE_RGB, 8, 3, null);
+  }
+
+  /**
+   * Convert rows [firstRow, lastRow) into the output buffer, each prefixed with
+   * filter type 0 (None). Diagram rasters are mostly flat fills and thin lines,
+   * which deflate finds as long matches on the raw bytes; predicting filters
+   * break those runs up and made the output larger in the benchmarks.
+   */
+  private static void convertRows(int[] argb, int width, Layout layout, byte[] out, int firstRow, int lastRow) {
+    int rowBytes = layout.rowBytes(width);
+    int stride = rowBytes + 1;
+    byte[] row = new byte[rowBytes];
+    for (int y = firstRow; y < lastRow; y++) {
+      layout.convertRow(argb, width, y, row);
+      int offset = y * stride;
+      out[offset] = 0;
+      System.arraycopy(row, 0, out, offset + 1, rowBytes);
+    }
+  }
+
+  /**
+   * Raw deflate of one strip. Non-final strips end with a sync flush so the
+   * compressed strips can be concatenated.
+   */
+  private static void deflate(byte[] data, int offset, int length, int level, int dictionaryLength,
+      boolean last, OutputStream out) {
+    Deflater deflater = new Deflater(level, true);
+    try {
+      if (dictionaryLength > 0) {
+        deflater.setDictionary(data, offset - dictionaryLength, dictionaryLength);
+      }
+      deflater.setInput(data, offset, length);
+      byte[] buffer = new byte[64 * 1024];
+      if (last) {
+        deflater.finish();
+        while (!deflater.finished()) {
+          int n = deflater.deflate(buffer);
+          out.write(buffer, 0, n);
+        }
+      } else {
+        int n;
+        do {
+          n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+          out.write(buffer, 0, n);
+        } while (n == buffer.length);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static int zlibFlags(int level) {
+    int compressionLevel = level <= 1 ? 0 : level <= 5 ? 1 : level == 6 ? 2 : 3;
+    int flags = compressionLevel << 6;
+    return flags + (31 - ((0x78 << 8) + flags) % 31) % 31;
+  }
+
+  private static void join(List<CompletableFuture<Void>> futures) throws IOException {
+    try {
+      CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+    } catch (CompletionException e) {
+      throw new IOException("PNG encoding failed", e.getCause());
+    }
+  }
+
+  private static void writePalette(OutputStream out, ColorIndex index) throws IOException {
+    int[] colors = index.colors;
+    byte[] plte = new byte[colors.length * 3];
+    int translucent = 0;
+    for (int i = 0; i < colors.length; i++) {
+      plte[i * 3] = (byte) (colors[i] >>> 16);
+      plte[i * 3 + 1] = (byte) (colors[i] >>> 8);
+      plte[i * 3 + 2] = (byte) colors[i];
+      if ((colors[i] >>> 24) != 0xff) {
+        translucent = i + 1;
+      }
+    }
+    writeChunk(out, "PLTE", plte, 0, plte.length);
+    if (translucent > 0) {
+      // Translucent colors are sorted first, so tRNS only covers the head of the palette
+      byte[] trns = new byte[translucent];
+      for (int i = 0; i < translucent; i++) {
+        trns[i] = (byte) (colors[i] >>> 24);
+      }
+      writeChunk(out, "tRNS", trns, 0, trns.length);
+    }
+  }
+
+  private static void writeChunk(OutputStream out, String type, byte[] data, int offset, int length)
+      throws IOException {
+    byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+    CRC32 crc = new CRC32();
+    crc.update(typeBytes);
+    crc.update(data, offset, length);
+    writeInt(out, length);
+    out.write(typeBytes, 0, typeBytes.length);
+    out.write(data, offset, length);
+    writeInt(out, (int) crc.getValue());
+  }
+
+  private static void writeInt(OutputStream out, int value) throws IOException {
+    out.write(value >>> 24);
+    out.write(value >>> 16);
+    out.write(value >>> 8);
+    out.write(value);
+  }
+
+  /**
+   * Color type, bit depth and the pixel conversion for one image.
+   */
+  private static final class Layout {
+    private final int colorType;
+    private final int bitDepth;
+    private final int bytesPerPixel;
+    private final ColorIndex palette;
+
+    Layout(int colorType, int bitDepth, int bytesPerPixel, ColorIndex palette) {
+      this.colorType = colorType;
+      this.bitDepth = bitDepth;
+      this.bytesPerPixel = bytesPerPixel;
+      this.palette = palette;
+    }
+
+    int rowBytes(int width) {
+      if (colorType == COLOR_TYPE_INDEXED) {
+        return (width * bitDepth + 7) / 8;
+      }
+      return width * bytesPerPixel;
+    }
+
+    void convertRow(int[] argb, int width, int y, byte[] row) {
+      int base = y * width;
+      if (colorType == COLOR_TYPE_RGB) {
+        for (int x = 0, i = 0; x < width; x++) {
+          int pixel = argb[base + x];
+          row[i++] = (byte) (pixel >>> 16);
+          row[i++] = (byte) (pixel >>> 8);
+          row[i++] = (byte) pixel;
+        }
+      } else if (colorType == COLOR_TYPE_RGBA) {
+        for (int x = 0, i = 0; x < width; x++) {
+          int pixel = argb[base + x];
+          row[i++] = (byte) (pixel >>> 16);
+          row[i++] = (byte) (pixel >>> 8);
+          row[i++] = (byte) pixel;
+          row[i++] = (byte) (pixel >>> 24);
+        }
+      } else if (bitDepth == 8) {
+        for (int x = 0; x < width; x++) {
+          row[x] = (byte) palette.indexOf(argb[base + x]);
+        }
+      } else {
+        Arrays.fill(row, (byte) 0);
+        int pixelsPerByte = 8 / bitDepth;
+        for (int x = 0; x < width; x++) {
+          int shift = 8 - bitDepth * (x % pixelsPerByte + 1);
+          row[x / pixelsPerByte] |= (byte) (palette.indexOf(argb[base + x]) << shift);
+        }
+      }
+    }
+  }
+
+  /**
+   * Open-addressing map from ARGB color to palette index (at most 256 colors).
+   */
+  private static final class ColorIndex {
+    private static final int TABLE_SIZE = 1024; // power of two, load factor <= 0.25
+    private static final int EMPTY = -1;
+
+    private final int[] keys = new int[TABLE_SIZE];
+    private final int[] values = new int[TABLE_SIZE];
+    private final boolean translucent;
+    private int[] colors;
+
+    private ColorIndex(boolean translucent) {
+      this.translucent = translucent;
+      Arrays.fill(values, EMPTY);
+    }
+
+    /**
+     * Collect the distinct colors of the image, or return null if there are more than 256.
+     */
+    static ColorIndex build(int[] argb, int pixels, boolean translucent) {
+      ColorIndex index = new ColorIndex(translucent);
+      int[] found = new int[MAX_PALETTE];
+      int count = 0;
+      int lastColor = 0;
+      boolean hasLast = false;
+      for (int i = 0; i < pixels; i++) {
+        int color = index.normalize(argb[i]);
+        if (hasLast && color == lastColor) {
+          continue;
+        }
+        lastColor = color;
+        hasLast = true;
+        int slot = index.slot(color);
+        if (index.values[slot] == EMPTY) {
+          if (count == MAX_PALETTE) {
+            return null;
+          }
+          index.keys[slot] = color;
+          index.values[slot] = count;
+          found[count++] = color;
+        }
+      }
+
+      // Translucent colors first, so that tRNS stays short
+      int[] colors = new int[count];
+      int next = 0;
+      for (int i = 0; i < count; i++) {
+        if ((found[i] >>> 24) != 0xff) {
+          colors[next++] = found[i];
+        }
+      }
+      for (int i = 0; i < count; i++) {
+        if ((found[i] >>> 24) == 0xff) {
+          colors[next++] = found[i];
+        }
+      }
+      for (int i = 0; i < count; i++) {
+        index.values[index.slot(colors[i])] = i;
+      }
+      index.colors = colors;
+      return index;
+    }
+
+    int indexOf(int pixel) {
+      return values[slot(normalize(pixel))];
+    }
+
+    private int normalize(int pixel) {
+      if (!translucent) {
+        return pixel | 0xff000000;
+      }
+      // All fully transparent pixels share one palette entry
+      return (pixel >>> 24) == 0 ? 0 : pixel;
+    }
+
+    private int slot(int color) {
+      int slot = (color * 0x9E3779B1) >>> 22;
+      while (values[slot] != EMPTY && keys[slot] != color) {
+        slot = (slot + 1) & (TABLE_SIZE - 1);
+      }
+      return slot;
+    }
+  }
+
+  /**
+   * Splits the zlib stream into IDAT chunks as it is written
+   */
+  private static final class IdatOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final byte[] chunk = new byte[IDAT_CHUNK_SIZE];
+    private int count;
+
+    IdatOutputStream(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (count == chunk.length) {
+        flushChunk();
+      }
+      chunk[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (count == chunk.length) {
+          flushChunk();
+        }
+        int n = Math.min(len, chunk.length - count);
+        System.arraycopy(b, off, chunk, count, n);
+        count += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    void finish() throws IOException {
+      if (count > 0) {
+        flushChunk();
+      }
+    }
+
+    private void flushChunk() throws IOException {
+      writeChunk(out, "IDAT", chunk, 0, count);
+      count = 0;
+    }
+  }
+}
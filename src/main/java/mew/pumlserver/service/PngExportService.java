@@ -0,0 +1,315 @@
+package mew.pumlserver.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import mew.pumlserver.exception.BadRequestException;
+import mew.pumlserver.model.PngOptions;
+import mew.pumlserver.model.RenderedArtifact;
+import net.sourceforge.plantuml.FileFormat;
+import net.sourceforge.plantuml.FileFormatOption;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PNG export stage of the render pipeline.
+ *
+ * PlantUML writes PNG through ImageIO. While {@link #export} runs, a PNG
+ * ImageWriter registered by this service takes precedence over the JDK writer
+ * and hands the diagram raster to {@link PngEncoder}, so the image is encoded
+ * once with the configured compression level, palette reduction and parallel
+ * deflate. Outside of {@link #export} the JDK writer is used as before.
+ *
+ * Deployment defaults come from puml.png.*; GET /api/v1/render/png/{id}/raw
+ * can override the compression level and palette per request, in which case
+ * the cached PNG is re-encoded ({@link RenderCacheService#getPngVariant}).
+ *
+ * With puml.png.embed-source=true PlantUML's own writer is used instead, which
+ * embeds the diagram source as PNG metadata (and ignores these settings).
+ */
+@Service
+public class PngExportService {
+
+  private static final ThreadLocal<Export> ACTIVE = new ThreadLocal<>();
+  private static final ExportImageWriterSpi WRITER_SPI = new ExportImageWriterSpi();
+
+  private final PngOptions defaults;
+  private final boolean embedSource;
+  private final boolean imageIoCache;
+  private final ExecutorService executor;
+  private final PngEncoder encoder;
+  private final RenderBufferPool bufferPool;
+  private final MeterRegistry meterRegistry;
+  private final DistributionSummary outputBytes;
+  private final ObservationRegistry observationRegistry;
+
+  public PngExportService(
+      @Value("${puml.png.compression-level:6}") int compressionLevel,
+      @Value("${puml.png.palette:true}") boolean palette,
+      @Value("${puml.png.parallel:true}") boolean parallel,
+      @Value("${puml.png.parallel-min-pixels:1000000}") long parallelMinPixels,
+      @Value("${puml.png.embed-source:false}") boolean embedSource,
+      @Value("${puml.png.imageio-cache:false}") boolean imageIoCache,
+      RenderBufferPool bufferPool,
+      MeterRegistry meterRegistry,
+      ObservationRegistry observationRegistry) {
+    this.defaults = new PngOptions(checkLevel(compressionLevel), palette, parallel);
+    this.embedSource = embedSource;
+    this.imageIoCache = imageIoCache;
+    int threads = Runtime.getRuntime().availableProcessors();
+    AtomicInteger threadCount = new AtomicInteger();
+    this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable, "png-deflate-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.encoder = new PngEncoder(executor, threads, parallelMinPixels, bufferPool);
+    this.bufferPool = bufferPool;
+    this.meterRegistry = meterRegistry;
+    this.observationRegistry = observationRegistry;
+    this.outputBytes = DistributionSummary.builder("puml.png.size")
+        .description("Encoded PNG size")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Put the export writer ahead of the other PNG writers, and apply puml.png.imageio-cache
+   */
+  @PostConstruct
+  public void registerWriter() {
+    IIORegistry registry = IIORegistry.getDefaultInstance();
+    registry.registerServiceProvider(WRITER_SPI, ImageWriterSpi.class);
+    Iterator<ImageWriterSpi> providers = registry.getServiceProviders(ImageWriterSpi.class, false);
+    while (providers.hasNext()) {
+      ImageWriterSpi provider = providers.next();
+      if (provider != WRITER_SPI && Arrays.asList(provider.getFormatNames()).contains("png")) {
+        registry.setOrdering(ImageWriterSpi.class, WRITER_SPI, provider);
+      }
+    }
+    // JVM-wide: PlantUML writes to in-memory streams, which ImageIO would otherwise buffer through a temp file
+    ImageIO.setUseCache(imageIoCache);
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    IIORegistry.getDefaultInstance().deregisterServiceProvider(WRITER_SPI, ImageWriterSpi.class);
+    executor.shutdownNow();
+  }
+
+  /**
+   * Deployment-wide PNG options
+   */
+  public PngOptions getDefaults() {
+    return defaults;
+  }
+
+  /**
+   * Deployment defaults with optional per-request overrides
+   *
+   * @throws BadRequestException if the compression level is out of range
+   */
+  public PngOptions resolve(Integer compressionLevel, Boolean palette) {
+    return new PngOptions(
+        compressionLevel == null ? defaults.getCompressionLevel() : checkLevel(compressionLevel),
+        palette == null ? defaults.isPalette() : palette,
+        defaults.isParallel());
+  }
+
+  /**
+   * PlantUML file format option for PNG output
+   */
+  public FileFormatOption fileFormatOption() {
+    // Metadata output forces PlantUML onto the JDK writer
+    return new FileFormatOption(FileFormat.PNG, embedSource);
+  }
+
+  /**
+   * Run a PlantUML PNG export so that it is encoded by this stage with the default options.
+   */
+  public <T> T export(GraphvizLayoutService.LayoutTask<T> task) throws IOException {
+    if (embedSource) {
+      return task.run();
+    }
+    Export previous = ACTIVE.get();
+    ACTIVE.set(new Export(this, defaults));
+    try {
+      return task.run();
+    } finally {
+      if (previous == null) {
+        ACTIVE.remove();
+      } else {
+        ACTIVE.set(previous);
+      }
+    }
+  }
+
+  /**
+   * Encode an image with the given options, streaming the PNG to the output
+   */
+  public void encode(RenderedImage image, PngOptions options, OutputStream out) throws IOException {
+    Timer.Sample sample = Timer.start(meterRegistry);
+    CountingOutputStream counting = new CountingOutputStream(out);
+    Observation.createNotStarted("puml.render.png-encode", observationRegistry)
+        .observeChecked(() -> encoder.encode(image, options, counting));
+    sample.stop(meterRegistry.timer("puml.png.encode",
+        "level", String.valueOf(options.getCompressionLevel()),
+        "palette", String.valueOf(options.isPalette())));
+    outputBytes.record(counting.count);
+  }
+
+  /**
+   * Re-encode a cached PNG with different options
+   */
+  public RenderedArtifact reencode(RenderedArtifact png, PngOptions options) throws IOException {
+    if (options.equals(defaults)) {
+      return png;
+    }
+    BufferedImage image = ImageIO.read(png.asInputStream());
+    if (image == null) {
+      throw new IOException("Cached PNG could not be decoded");
+    }
+    try (RenderBufferPool.Buffer buffer = bufferPool.acquire()) {
+      encode(image, options, buffer);
+      return buffer.toArtifact();
+    }
+  }
+
+  private static int checkLevel(int compressionLevel) {
+    if (compressionLevel < 0 || compressionLevel > 9) {
+      throw new BadRequestException("PNG compression level must be between 0 and 9, got " + compressionLevel);
+    }
+    return compressionLevel;
+  }
+
+  private static final class Export {
+    private final PngExportService service;
+    private final PngOptions options;
+
+    Export(PngExportService service, PngOptions options) {
+      this.service = service;
+      this.options = options;
+    }
+  }
+
+  /**
+   * ImageIO provider for the export writer. It only claims images while an
+   * export is active on the current thread, so other ImageIO users keep the JDK writer.
+   */
+  private static final class ExportImageWriterSpi extends ImageWriterSpi {
+
+    ExportImageWriterSpi() {
+      super("puml-server", "1.0", new String[] { "png", "PNG" }, new String[] { "png" },
+          new String[] { "image/png" }, ExportImageWriter.class.getName(), new Class<?>[] { ImageOutputStream.class },
+          null, false, null, null, null, null, false, null, null, null, null);
+    }
+
+    @Override
+    public boolean canEncodeImage(ImageTypeSpecifier type) {
+      return ACTIVE.get() != null;
+    }
+
+    @Override
+    public ImageWriter createWriterInstance(Object extension) {
+      return new ExportImageWriter(this);
+    }
+
+    @Override
+    public String getDescription(Locale locale) {
+      return "PUML server PNG export writer";
+    }
+  }
+
+  private static final class ExportImageWriter extends ImageWriter {
+
+    ExportImageWriter(ImageWriterSpi provider) {
+      super(provider);
+    }
+
+    @Override
+    public void write(IIOMetadata streamMetadata, IIOImage image, ImageWriteParam param) throws IOException {
+      Export export = ACTIVE.get();
+      if (export == null) {
+        throw new IllegalStateException("PNG export writer used outside of an export");
+      }
+      ImageOutputStream output = (ImageOutputStream) getOutput();
+      export.service.encode(image.getRenderedImage(), export.options, new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          output.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          output.write(b, off, len);
+        }
+      });
+    }
+
+    @Override
+    public IIOMetadata getDefaultStreamMetadata(ImageWriteParam param) {
+      return null;
+    }
+
+    @Override
+    public IIOMetadata getDefaultImageMetadata(ImageTypeSpecifier imageType, ImageWriteParam param) {
+      return null;
+    }
+
+    @Override
+    public IIOMetadata convertStreamMetadata(IIOMetadata inData, ImageWriteParam param) {
+      return null;
+    }
+
+    @Override
+    public IIOMetadata convertImageMetadata(IIOMetadata inData, ImageTypeSpecifier imageType,
+        ImageWriteParam param) {
+      return null;
+    }
+  }
+
+  private static final class CountingOutputStream extends OutputStream {
+    private final OutputStream out;
+    private long count;
+
+    CountingOutputStream(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+}
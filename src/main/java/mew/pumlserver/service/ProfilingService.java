@@ -0,0 +1,264 @@
+package mew.pumlserver.service;
+
+import jakarta.annotation.PreDestroy;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+import mew.pumlserver.dto.ProfileResponse;
+import mew.pumlserver.exception.BadRequestException;
+import mew.pumlserver.exception.ConflictException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * On-demand Java Flight Recorder sessions.
+ *
+ * A session records for a fixed number of seconds (at most puml.profile.max-seconds)
+ * with its own settings: execution samples every 10 ms, allocation samples, and
+ * monitor enters and lock parks longer than 10 ms, all with stack traces. Only one
+ * session runs at a time.
+ *
+ * The recording is summarized by attributing each event to the topmost frame in
+ * puml.profile.packages, so time spent in the JDK or a library shows up at the
+ * server or PlantUML method that called it. The last puml.profile.keep recordings
+ * are kept in a temporary directory for download.
+ */
+@Service
+public class ProfilingService {
+
+  private static final Logger log = LoggerFactory.getLogger(ProfilingService.class);
+
+  private static final Map<String, String> SETTINGS = Map.ofEntries(
+      Map.entry("jdk.ExecutionSample#enabled", "true"),
+      Map.entry("jdk.ExecutionSample#period", "10 ms"),
+      Map.entry("jdk.ObjectAllocationSample#enabled", "true"),
+      Map.entry("jdk.ObjectAllocationSample#throttle", "300/s"),
+      Map.entry("jdk.ObjectAllocationSample#stackTrace", "true"),
+      Map.entry("jdk.JavaMonitorEnter#enabled", "true"),
+      Map.entry("jdk.JavaMonitorEnter#threshold", "10 ms"),
+      Map.entry("jdk.JavaMonitorEnter#stackTrace", "true"),
+      Map.entry("jdk.ThreadPark#enabled", "true"),
+      Map.entry("jdk.ThreadPark#threshold", "10 ms"),
+      Map.entry("jdk.ThreadPark#stackTrace", "true"),
+      Map.entry("jdk.GarbageCollection#enabled", "true"),
+      Map.entry("jdk.CPULoad#enabled", "true"),
+      Map.entry("jdk.CPULoad#period", "1 s"));
+
+  private final AtomicBoolean running = new AtomicBoolean();
+  private final Map<String, Path> recordings = new LinkedHashMap<>();
+  private final int maxSeconds;
+  private final List<String> packages;
+  private final int top;
+  private final int keep;
+  private Path directory;
+
+  public ProfilingService(
+      @Value("${puml.profile.max-seconds:120}") int maxSeconds,
+      @Value("${puml.profile.packages:mew.pumlserver,net.sourceforge.plantuml}") String packages,
+      @Value("${puml.profile.top:20}") int top,
+      @Value("${puml.profile.keep:3}") int keep) {
+    this.maxSeconds = Math.max(1, maxSeconds);
+    this.packages = Arrays.stream(packages.split(","))
+        .map(String::trim)
+        .filter(name -> !name.isEmpty())
+        .map(name -> name + ".")
+        .toList();
+    this.top = Math.max(1, top);
+    this.keep = Math.max(1, keep);
+  }
+
+  /**
+   * Record for the given number of seconds, blocking the caller, and summarize the recording
+   *
+   * @throws ConflictException if another session is running
+   */
+  public ProfileResponse record(int seconds) throws IOException, InterruptedException {
+    if (seconds < 1 || seconds > maxSeconds) {
+      throw new BadRequestException("Profiling duration must be between 1 and " + maxSeconds + " seconds");
+    }
+    if (!running.compareAndSet(false, true)) {
+      throw new ConflictException("A profiling session is already running");
+    }
+    try {
+      String id = UUID.randomUUID().toString();
+      Path file = directory().resolve(id + ".jfr");
+      Instant startedAt = Instant.now();
+      log.info("Profiling for {} s, recording {}", seconds, id);
+      try (Recording recording = new Recording()) {
+        recording.setName("puml-profile-" + id);
+        recording.setSettings(SETTINGS);
+        recording.setToDisk(true);
+        recording.start();
+        try {
+          TimeUnit.SECONDS.sleep(seconds);
+        } finally {
+          recording.stop();
+          recording.dump(file);
+        }
+      }
+      ProfileResponse response;
+      try {
+        response = summarize(file);
+        response.setRecordingBytes(Files.size(file));
+      } catch (IOException | RuntimeException e) {
+        delete(file);
+        throw e;
+      }
+      response.setId(id);
+      response.setStartedAt(startedAt.toString());
+      response.setSeconds(seconds);
+      keep(id, file);
+      return response;
+    } finally {
+      running.set(false);
+    }
+  }
+
+  /**
+   * A kept recording, or null if the ID is unknown or was dropped
+   */
+  public synchronized Path getRecording(String id) {
+    Path file = recordings.get(id);
+    return file != null && Files.exists(file) ? file : null;
+  }
+
+  /**
+   * Summarize a recording: hot methods from execution samples, allocation sites from
+   * allocation samples (weighted by bytes), and lock contention from monitor enters and
+   * lock parks (weighted by blocked milliseconds)
+   */
+  public ProfileResponse summarize(Path file) throws IOException {
+    Map<String, long[]> samples = new HashMap<>();
+    Map<String, long[]> allocations = new HashMap<>();
+    Map<String, long[]> locks = new HashMap<>();
+    long sampleCount = 0;
+    long allocatedBytes = 0;
+    long blockedMillis = 0;
+    try (RecordingFile recording = new RecordingFile(file)) {
+      while (recording.hasMoreEvents()) {
+        RecordedEvent event = recording.readEvent();
+        switch (event.getEventType().getName()) {
+          case "jdk.ExecutionSample" -> {
+            sampleCount++;
+            add(samples, event, 1);
+          }
+          case "jdk.ObjectAllocationSample" -> {
+            long bytes = event.getLong("weight");
+            allocatedBytes += bytes;
+            add(allocations, event, bytes);
+          }
+          case "jdk.JavaMonitorEnter" -> {
+            long millis = event.getDuration().toMillis();
+            blockedMillis += millis;
+            add(locks, event, millis);
+          }
+          case "jdk.ThreadPark" -> {
+            // Parks on a lock; waits on a condition, a future or an idle pool's queue aren't contention
+            RecordedClass parkedClass = event.getValue("parkedClass");
+            if (parkedClass != null && parkedClass.getName().endsWith("Sync")) {
+              long millis = event.getDuration().toMillis();
+              blockedMillis += millis;
+              add(locks, event, millis);
+            }
+          }
+          default -> {
+          }
+        }
+      }
+    }
+    ProfileResponse response = new ProfileResponse();
+    response.setExecutionSamples(sampleCount);
+    response.setAllocatedBytes(allocatedBytes);
+    response.setHotMethods(top(samples, sampleCount));
+    response.setAllocationSites(top(allocations, allocatedBytes));
+    response.setLockContention(top(locks, blockedMillis));
+    return response;
+  }
+
+  private void add(Map<String, long[]> sites, RecordedEvent event, long weight) {
+    String method = attribute(event.getStackTrace());
+    if (method != null) {
+      long[] site = sites.computeIfAbsent(method, key -> new long[2]);
+      site[0]++;
+      site[1] += weight;
+    }
+  }
+
+  private String attribute(RecordedStackTrace stackTrace) {
+    if (stackTrace == null) {
+      return null;
+    }
+    for (RecordedFrame frame : stackTrace.getFrames()) {
+      if (!frame.isJavaFrame()) {
+        continue;
+      }
+      String type = frame.getMethod().getType().getName();
+      for (String prefix : packages) {
+        if (type.startsWith(prefix)) {
+          return type + "." + frame.getMethod().getName() + ":" + frame.getLineNumber();
+        }
+      }
+    }
+    return null;
+  }
+
+  private List<ProfileResponse.Site> top(Map<String, long[]> sites, long total) {
+    List<ProfileResponse.Site> result = new ArrayList<>();
+    sites.forEach((method, site) -> result.add(new ProfileResponse.Site(method, site[0], site[1],
+        total == 0 ? 0 : Math.round(site[1] * 1000.0 / total) / 10.0)));
+    result.sort(Comparator.comparingLong(ProfileResponse.Site::getTotal).reversed());
+    return result.size() > top ? new ArrayList<>(result.subList(0, top)) : result;
+  }
+
+  private synchronized Path directory() throws IOException {
+    if (directory == null) {
+      directory = Files.createTempDirectory("puml-profile");
+    }
+    return directory;
+  }
+
+  private synchronized void keep(String id, Path file) {
+    recordings.put(id, file);
+    while (recordings.size() > keep) {
+      String oldest = recordings.keySet().iterator().next();
+      delete(recordings.remove(oldest));
+    }
+  }
+
+  @PreDestroy
+  public synchronized void deleteRecordings() {
+    recordings.values().forEach(ProfilingService::delete);
+    recordings.clear();
+    if (directory != null) {
+      delete(directory);
+    }
+  }
+
+  private static void delete(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      log.warn("Failed to delete {}: {}", path, e.toString());
+    }
+  }
+}
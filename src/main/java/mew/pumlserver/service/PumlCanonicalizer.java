@@ -0,0 +1,184 @@
+package mew.pumlserver.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Canonical form of a PlantUML source, used as the render cache key.
+ *
+ * Only differences PlantUML ignores are removed, so a source and its canonical
+ * form render the same diagram:
+ * - CRLF and CR line endings become LF
+ * - anything before the first @startuml line and after its @end line
+ * - trailing whitespace, blank lines, ' comment lines and /' ... '/ comment
+ * blocks, except inside multi-line text (notes, legends, titles, headers,
+ * footers, refs, multi-line activity labels, [ ] descriptions and class bodies),
+ * where they are part of the rendered text and kept as they are
+ *
+ * Anything the canonicalizer doesn't recognize with certainty is kept verbatim:
+ * other diagram types (@startditaa, @startsalt, ...), a start line with a prefix,
+ * salt and sprite blocks, multi-line preprocessor definitions, lines continued
+ * with a trailing backslash and unbalanced quotes.
+ */
+public final class PumlCanonicalizer {
+
+  private static final Pattern NOTE = Pattern.compile("^(?:/\\s*)?(?:floating\\s+)?[hr]?note\\b.*");
+  private static final Pattern NOTE_END = Pattern.compile("^end\\s*[hr]?note$");
+  private static final Pattern LEGEND = Pattern.compile("^legend\\b.*");
+  private static final Pattern LEGEND_END = Pattern.compile("^end\\s*legend$");
+  private static final Pattern TITLE = Pattern.compile("^title$");
+  private static final Pattern TITLE_END = Pattern.compile("^end\\s*title$");
+  private static final Pattern HEADER = Pattern.compile("^(?:(?:left|right|center)\\s+)?(header|footer)$");
+  private static final Pattern HEADER_END = Pattern.compile("^end\\s*(?:header|footer)$");
+  private static final Pattern REF = Pattern.compile("^ref\\s+over\\b[^:]*$");
+  private static final Pattern REF_END = Pattern.compile("^end\\s*ref$");
+  private static final Pattern ACTIVITY_LABEL = Pattern.compile("^(?:#\\S+\\s*)?:.*");
+  private static final Pattern ACTIVITY_LABEL_END = Pattern.compile(".*[;|<>/\\]}]$");
+  private static final Pattern DESCRIPTION_END = Pattern.compile("^[\\])].*");
+  private static final Pattern SPRITE = Pattern.compile("^sprite\\b.*");
+  private static final Pattern CLASS_BODY = Pattern.compile(
+      "^(?:abstract|class|interface|enum|annotation|entity|object|map|struct|protocol|exception)\\b.*\\{$");
+  private static final Pattern BODY_END = Pattern.compile("^}.*");
+  private static final Pattern DEFINE_LONG = Pattern.compile("^!definelong\\b.*");
+  private static final Pattern DEFINE_LONG_END = Pattern.compile("^!enddefinelong\\b.*");
+  private static final Pattern SALT = Pattern.compile("^salt\\b.*");
+
+  private PumlCanonicalizer() {
+  }
+
+  /**
+   * The canonical form of a source. Idempotent.
+   */
+  public static String canonicalize(String puml) {
+    String source = puml.indexOf('\r') < 0 ? puml : puml.replace("\r\n", "\n").replace('\r', '\n');
+    String[] lines = source.split("\n", -1);
+
+    int start = -1;
+    for (int i = 0; i < lines.length && start < 0; i++) {
+      String trimmed = lines[i].strip().toLowerCase(Locale.ROOT);
+      if (trimmed.contains("@start") || trimmed.contains("\\start")) {
+        start = i;
+      }
+    }
+    // No diagram, or a start line with a prefix that PlantUML strips from the following lines
+    if (start < 0 || !lines[start].startsWith("@start")) {
+      return source;
+    }
+    // Without an end line the diagram runs to the end of the source
+    int end = lines.length;
+    for (int i = start + 1; i < lines.length; i++) {
+      String trimmed = lines[i].strip();
+      if (trimmed.startsWith("@end") || trimmed.startsWith("\\end")) {
+        end = i;
+        break;
+      }
+    }
+
+    if (!lines[start].toLowerCase(Locale.ROOT).startsWith("@startuml")) {
+      return String.join("\n", List.of(lines).subList(start, Math.min(end + 1, lines.length)));
+    }
+
+    List<String> out = new ArrayList<>(end - start + 1);
+    out.add(lines[start].stripTrailing());
+    Pattern textEnd = null;
+    boolean comment = false;
+    boolean verbatim = false;
+    boolean continued = false;
+    for (int i = start + 1; i < end; i++) {
+      String line = lines[i];
+      if (verbatim || continued) {
+        out.add(line);
+        continued = line.endsWith("\\");
+        continue;
+      }
+      String trimmed = line.strip();
+      if (comment) {
+        comment = !trimmed.endsWith("'/");
+        continue;
+      }
+      if (textEnd != null) {
+        out.add(line);
+        if (textEnd.matcher(trimmed.toLowerCase(Locale.ROOT)).matches()) {
+          textEnd = null;
+        }
+        continue;
+      }
+      if (trimmed.isEmpty() || trimmed.startsWith("'")) {
+        continue;
+      }
+      if (trimmed.startsWith("/'")) {
+        int close = trimmed.indexOf("'/", 2);
+        if (close < 0) {
+          comment = true;
+          continue;
+        }
+        if (close == trimmed.length() - 2) {
+          continue;
+        }
+      }
+
+      String lower = trimmed.toLowerCase(Locale.ROOT);
+      if (SALT.matcher(lower).matches() || countQuotes(trimmed) % 2 != 0) {
+        verbatim = true;
+      } else {
+        textEnd = textBlockEnd(lower);
+      }
+      // The line opening multi-line text may hold text itself (an activity label)
+      String kept = textEnd != null ? line : line.stripTrailing();
+      out.add(kept);
+      continued = kept.endsWith("\\");
+    }
+    if (end < lines.length) {
+      out.add(lines[end].stripTrailing());
+    }
+    return String.join("\n", out);
+  }
+
+  /**
+   * If the line opens multi-line text, the pattern of the line that closes it
+   */
+  private static Pattern textBlockEnd(String line) {
+    if (NOTE.matcher(line).matches()) {
+      boolean singleLine = line.contains(":") || line.matches("^(?:/\\s*)?(?:floating\\s+)?[hr]?note\\s+\".*");
+      return singleLine ? null : NOTE_END;
+    }
+    if (LEGEND.matcher(line).matches()) {
+      return LEGEND_END;
+    }
+    if (TITLE.matcher(line).matches()) {
+      return TITLE_END;
+    }
+    if (HEADER.matcher(line).matches()) {
+      return HEADER_END;
+    }
+    if (REF.matcher(line).matches()) {
+      return REF_END;
+    }
+    if (ACTIVITY_LABEL.matcher(line).matches()) {
+      return ACTIVITY_LABEL_END.matcher(line).matches() ? null : ACTIVITY_LABEL_END;
+    }
+    // Separators like == in a class body depend on the blank lines around them
+    if (SPRITE.matcher(line).matches() || CLASS_BODY.matcher(line).matches()) {
+      return BODY_END;
+    }
+    if (DEFINE_LONG.matcher(line).matches()) {
+      return DEFINE_LONG_END;
+    }
+    if (line.endsWith("[") || line.endsWith("(")) {
+      return DESCRIPTION_END;
+    }
+    return null;
+  }
+
+  private static int countQuotes(String line) {
+    int count = 0;
+    for (int i = 0; i < line.length(); i++) {
+      if (line.charAt(i) == '"') {
+        count++;
+      }
+    }
+    return count;
+  }
+}
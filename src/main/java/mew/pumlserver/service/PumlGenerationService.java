@@ -2,21 +2,34 @@ package mew.pumlserver.service;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import mew.pumlserver.exception.BadRequestException;
 import mew.pumlserver.model.Conversation;
+import mew.pumlserver.model.LlmUsage;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.JdkClientHttpRequestFactory;
 import org.springframework.stereotype.Service;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.io.IOException;
+import java.net.http.HttpClient;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 
 @Service
 public class PumlGenerationService {
@@ -53,20 +66,38 @@ public class PumlGenerationService {
 
   private final RestTemplate restTemplate;
   private final ObjectMapper objectMapper;
-
-  public PumlGenerationService() {
-    this.restTemplate = new RestTemplate();
+  private final MeterRegistry meterRegistry;
+  private final LlmUpstreamGroup upstreamGroup;
+  private final LlmConcurrencyLimiter concurrencyLimiter;
+  private final LlmUsageService usageService;
+  private final LoadShedService loadShedService;
+  private final ObservationRegistry observationRegistry;
+
+  public PumlGenerationService(MeterRegistry meterRegistry, LlmUpstreamGroup upstreamGroup,
+      LlmConcurrencyLimiter concurrencyLimiter, LlmUsageService usageService,
+      LoadShedService loadShedService, ObservationRegistry observationRegistry) {
+    // The JDK client aborts the in-flight request when the calling thread is interrupted,
+    // so a cancelled stream stops the upstream call instead of waiting for the full response
+    HttpClient httpClient = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1)
+        .connectTimeout(Duration.ofSeconds(10))
+        .build();
+    this.restTemplate = new RestTemplate(new JdkClientHttpRequestFactory(httpClient));
     this.objectMapper = new ObjectMapper();
+    this.meterRegistry = meterRegistry;
+    this.upstreamGroup = upstreamGroup;
+    this.concurrencyLimiter = concurrencyLimiter;
+    this.usageService = usageService;
+    this.loadShedService = loadShedService;
+    this.observationRegistry = observationRegistry;
   }
 
+  /**
+   * Generate PlantUML code from the prompt and the conversation's history; the call's
+   * tokens and latency are added to the conversation's usage (null: not in a conversation)
+   */
   public String generatePumlCode(String baseUrl, String apiKey, String model, String prompt,
-      Conversation conversation) {
-    String url = baseUrl + "/chat/completions";
-
-    HttpHeaders headers = new HttpHeaders();
-    headers.setContentType(MediaType.APPLICATION_JSON);
-    headers.setBearerAuth(apiKey);
-
+      List<Conversation.Message> history, LlmUsage conversationUsage) {
     Map<String, Object> requestBody = new HashMap<>();
     requestBody.put("model", model);
     requestBody.put("temperature", 0.7);
@@ -76,8 +107,8 @@ public class PumlGenerationService {
     List<Map<String, String>> messages = new ArrayList<>();
     messages.add(Map.of("role", "system", "content", SYSTEM_MESSAGE));
 
-    if (conversation != null && conversation.getMessages() != null) {
-      for (Conversation.Message msg : conversation.getMessages()) {
+    if (history != null) {
+      for (Conversation.Message msg : history) {
         messages.add(Map.of("role", msg.getRole(), "content", msg.getContent()));
       }
     }
@@ -85,13 +116,7 @@ public class PumlGenerationService {
     messages.add(Map.of("role", "user", "content", prompt));
     requestBody.put("messages", messages);
 
-    HttpEntity<Map<String, Object>> request = new HttpEntity<>(requestBody, headers);
-
-    ResponseEntity<String> response = restTemplate.exchange(
-        url,
-        HttpMethod.POST,
-        request,
-        String.class);
+    ResponseEntity<String> response = exchange(baseUrl, apiKey, requestBody, conversationUsage);
 
     try {
       JsonNode jsonNode = objectMapper.readTree(response.getBody());
@@ -108,13 +133,7 @@ public class PumlGenerationService {
   }
 
   public void streamPumlCode(String baseUrl, String apiKey, String model, String prompt,
-      Conversation conversation, SseEmitter emitter) {
-    String url = baseUrl + "/chat/completions";
-
-    HttpHeaders headers = new HttpHeaders();
-    headers.setContentType(MediaType.APPLICATION_JSON);
-    headers.setBearerAuth(apiKey);
-
+      List<Conversation.Message> history, SseEmitter emitter) {
     Map<String, Object> requestBody = new HashMap<>();
     requestBody.put("model", model);
     requestBody.put("temperature", 0.7);
@@ -124,8 +143,8 @@ public class PumlGenerationService {
     List<Map<String, String>> messages = new ArrayList<>();
     messages.add(Map.of("role", "system", "content", SYSTEM_MESSAGE));
 
-    if (conversation != null && conversation.getMessages() != null) {
-      for (Conversation.Message msg : conversation.getMessages()) {
+    if (history != null) {
+      for (Conversation.Message msg : history) {
         messages.add(Map.of("role", msg.getRole(), "content", msg.getContent()));
       }
     }
@@ -133,14 +152,8 @@ public class PumlGenerationService {
     messages.add(Map.of("role", "user", "content", prompt));
     requestBody.put("messages", messages);
 
-    HttpEntity<Map<String, Object>> request = new HttpEntity<>(requestBody, headers);
-
     try {
-      ResponseEntity<String> response = restTemplate.exchange(
-          url,
-          HttpMethod.POST,
-          request,
-          String.class);
+      ResponseEntity<String> response = exchange(baseUrl, apiKey, requestBody, null);
 
       String responseBody = response.getBody();
       if (responseBody != null) {
@@ -181,12 +194,6 @@ public class PumlGenerationService {
   }
 
   public String optimizePumlCode(String baseUrl, String apiKey, String model, String puml) {
-    String url = baseUrl + "/chat/completions";
-
-    HttpHeaders headers = new HttpHeaders();
-    headers.setContentType(MediaType.APPLICATION_JSON);
-    headers.setBearerAuth(apiKey);
-
     Map<String, Object> requestBody = new HashMap<>();
     requestBody.put("model", model);
     requestBody.put("temperature", 0.7);
@@ -200,13 +207,7 @@ public class PumlGenerationService {
     messages.add(Map.of("role", "user", "content", userMessage));
     requestBody.put("messages", messages);
 
-    HttpEntity<Map<String, Object>> request = new HttpEntity<>(requestBody, headers);
-
-    ResponseEntity<String> response = restTemplate.exchange(
-        url,
-        HttpMethod.POST,
-        request,
-        String.class);
+    ResponseEntity<String> response = exchange(baseUrl, apiKey, requestBody, null);
 
     try {
       JsonNode jsonNode = objectMapper.readTree(response.getBody());
@@ -223,12 +224,6 @@ public class PumlGenerationService {
   }
 
   public String explainPumlCode(String baseUrl, String apiKey, String model, String puml, String language) {
-    String url = baseUrl + "/chat/completions";
-
-    HttpHeaders headers = new HttpHeaders();
-    headers.setContentType(MediaType.APPLICATION_JSON);
-    headers.setBearerAuth(apiKey);
-
     Map<String, Object> requestBody = new HashMap<>();
     requestBody.put("model", model);
     requestBody.put("temperature", 0.7);
@@ -242,13 +237,7 @@ public class PumlGenerationService {
     messages.add(Map.of("role", "user", "content", userMessage));
     requestBody.put("messages", messages);
 
-    HttpEntity<Map<String, Object>> request = new HttpEntity<>(requestBody, headers);
-
-    ResponseEntity<String> response = restTemplate.exchange(
-        url,
-        HttpMethod.POST,
-        request,
-        String.class);
+    ResponseEntity<String> response = exchange(baseUrl, apiKey, requestBody, null);
 
     try {
       JsonNode jsonNode = objectMapper.readTree(response.getBody());
@@ -264,6 +253,140 @@ public class PumlGenerationService {
     }
   }
 
+  /**
+   * Check that a request names an upstream: a base URL and API key, or neither
+   * when the server has an upstream group; and that LLM calls aren't being shed.
+   * Called once per request, before its first LLM call.
+   */
+  public void checkUpstream(String baseUrl, String apiKey) {
+    loadShedService.admit(LoadShedService.Work.LLM);
+    if (baseUrl == null || baseUrl.isBlank()) {
+      if (!upstreamGroup.isEnabled()) {
+        throw new BadRequestException("Base URL cannot be blank");
+      }
+    } else if (apiKey == null || apiKey.isBlank()) {
+      throw new BadRequestException("API key cannot be blank");
+    }
+  }
+
+  /**
+   * POST a chat completion request to the request's base URL, or to the upstream group
+   * when the request has none. If the calling thread is interrupted (the client went away),
+   * the HTTP call is aborted and a CancellationException is thrown.
+   * Observed as puml.llm.call, failovers and hedges included. The tokens and latency
+   * of a successful call are recorded per model and, if given, in the conversation's usage.
+   */
+  private ResponseEntity<String> exchange(String baseUrl, String apiKey, Map<String, Object> requestBody,
+      LlmUsage conversationUsage) {
+    boolean group = baseUrl == null || baseUrl.isBlank();
+    long start = System.nanoTime();
+    Completion completion = Observation.createNotStarted("puml.llm.call", observationRegistry)
+        .lowCardinalityKeyValue("upstream", group ? "group" : "request")
+        .observe(() -> group ? exchangeWithGroup(apiKey, requestBody) : exchangeDirect(baseUrl, apiKey, requestBody));
+    long latency = System.nanoTime() - start;
+
+    JsonNode usage = usage(completion.response.getBody());
+    usageService.record((String) requestBody.get("model"), conversationUsage,
+        usage.path("prompt_tokens").asLong(), usage.path("completion_tokens").asLong(),
+        completion.responseAt - start, latency);
+    return completion.response;
+  }
+
+  /**
+   * The usage block of a completion, or a missing node if it has none
+   */
+  private JsonNode usage(String body) {
+    try {
+      return body == null ? objectMapper.missingNode() : objectMapper.readTree(body).path("usage");
+    } catch (IOException e) {
+      // Streamed (SSE) responses aren't JSON, and report no usage
+      return objectMapper.missingNode();
+    }
+  }
+
+  private Completion exchangeWithGroup(String apiKey, Map<String, Object> requestBody) {
+    String key = apiKey == null || apiKey.isBlank() ? upstreamGroup.getApiKey() : apiKey;
+    try {
+      return upstreamGroup.call(url -> post(url, key, requestBody));
+    } catch (CancellationException e) {
+      meterRegistry.counter("puml.llm.aborted").increment();
+      throw e;
+    }
+  }
+
+  private Completion exchangeDirect(String baseUrl, String apiKey, Map<String, Object> requestBody) {
+    try {
+      return post(baseUrl, apiKey, requestBody);
+    } catch (ResourceAccessException e) {
+      if (Thread.currentThread().isInterrupted()) {
+        meterRegistry.counter("puml.llm.aborted").increment();
+        CancellationException cancelled = new CancellationException("OpenAI request aborted");
+        cancelled.initCause(e);
+        throw cancelled;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * One call to one upstream, within that upstream's adaptive concurrency limit.
+   * The wait for a slot is observed as puml.llm.limit.wait and the call as puml.llm.attempt.
+   * Completions are requested without streaming, so the arrival of the response status and
+   * headers is recorded as the time to response; it is not a time to first token, the
+   * upstream may have generated the whole completion by then.
+   */
+  private Completion post(String baseUrl, String apiKey, Map<String, Object> requestBody) {
+    HttpHeaders headers = new HttpHeaders();
+    headers.setContentType(MediaType.APPLICATION_JSON);
+    headers.setBearerAuth(apiKey);
+    HttpEntity<Map<String, Object>> request = new HttpEntity<>(requestBody, headers);
+    LlmConcurrencyLimiter.Permit permit = Observation.createNotStarted("puml.llm.limit.wait", observationRegistry)
+        .observe(() -> concurrencyLimiter.acquire(baseUrl, apiKey));
+    ResponseExtractor<ResponseEntity<String>> extractor = restTemplate.responseEntityExtractor(String.class);
+    try {
+      Completion completion = Observation.createNotStarted("puml.llm.attempt", observationRegistry)
+          .highCardinalityKeyValue("endpoint", baseUrl)
+          .observe(() -> restTemplate.execute(baseUrl + "/chat/completions", HttpMethod.POST,
+              restTemplate.httpEntityCallback(request, String.class),
+              response -> {
+                long responseAt = System.nanoTime();
+                return new Completion(extractor.extractData(response), responseAt);
+              }));
+      permit.onSuccess();
+      return completion;
+    } catch (HttpStatusCodeException e) {
+      int status = e.getStatusCode().value();
+      if (status == HttpStatus.TOO_MANY_REQUESTS.value() || e.getStatusCode().is5xxServerError()) {
+        permit.onDropped();
+      } else {
+        permit.onIgnore();
+      }
+      throw e;
+    } catch (ResourceAccessException e) {
+      // An aborted call says nothing about the upstream; a timeout or refused connection does
+      if (Thread.currentThread().isInterrupted()) {
+        permit.onIgnore();
+      } else {
+        permit.onDropped();
+      }
+      throw e;
+    } finally {
+      // No effect once an outcome was recorded; releases the slot on any other failure
+      permit.onIgnore();
+    }
+  }
+
+  private static final class Completion {
+    private final ResponseEntity<String> response;
+    // When the response status and headers arrived
+    private final long responseAt;
+
+    Completion(ResponseEntity<String> response, long responseAt) {
+      this.response = response;
+      this.responseAt = responseAt;
+    }
+  }
+
   private String cleanPumlCode(String content) {
     content = content.trim();
     if (content.startsWith("```")) {
@@ -0,0 +1,154 @@
+package mew.pumlserver.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import mew.pumlserver.model.RenderedArtifact;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reusable output buffers for the render path.
+ *
+ * A render writes into a pooled buffer that has already grown to the size of
+ * earlier renders, instead of a fresh ByteArrayOutputStream that grows by
+ * repeated copying and is copied once more by toByteArray(). The result is
+ * copied once, into an exactly sized {@link RenderedArtifact}, and the buffer
+ * goes back to the pool.
+ *
+ * At most puml.buffers.max-pooled buffers are kept, and a buffer that grew
+ * beyond puml.buffers.max-retained-bytes is dropped on release, so an
+ * occasional huge diagram doesn't pin a huge array.
+ */
+@Service
+public class RenderBufferPool {
+
+  private final BlockingQueue<Buffer> pool;
+  private final int initialBytes;
+  private final int maxRetainedBytes;
+  private final Counter reused;
+  private final Counter allocated;
+
+  public RenderBufferPool(
+      @Value("${puml.buffers.max-pooled:16}") int maxPooled,
+      @Value("${puml.buffers.initial-bytes:65536}") int initialBytes,
+      @Value("${puml.buffers.max-retained-bytes:8388608}") int maxRetainedBytes,
+      MeterRegistry meterRegistry) {
+    this.pool = new ArrayBlockingQueue<>(Math.max(1, maxPooled));
+    this.initialBytes = Math.max(1024, initialBytes);
+    this.maxRetainedBytes = maxRetainedBytes;
+    this.reused = Counter.builder("puml.buffers.acquire").tag("result", "reused")
+        .description("Render buffers taken from the pool or newly allocated")
+        .register(meterRegistry);
+    this.allocated = Counter.builder("puml.buffers.acquire").tag("result", "allocated")
+        .description("Render buffers taken from the pool or newly allocated")
+        .register(meterRegistry);
+    Gauge.builder("puml.buffers.pooled.bytes", pool, RenderBufferPool::pooledBytes)
+        .description("Capacity of the idle render buffers")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Take an empty buffer from the pool. Close it to give it back.
+   */
+  public Buffer acquire() {
+    Buffer buffer = pool.poll();
+    if (buffer == null) {
+      allocated.increment();
+      return new Buffer(new byte[initialBytes]);
+    }
+    reused.increment();
+    buffer.released = false;
+    return buffer;
+  }
+
+  private void release(Buffer buffer) {
+    buffer.count = 0;
+    if (buffer.bytes.length <= maxRetainedBytes) {
+      pool.offer(buffer);
+    }
+  }
+
+  private static double pooledBytes(BlockingQueue<Buffer> pool) {
+    long total = 0;
+    for (Buffer buffer : pool) {
+      total += buffer.bytes.length;
+    }
+    return total;
+  }
+
+  /**
+   * Growable in-memory output stream. Not thread-safe; one render (or encode) at a time.
+   */
+  public final class Buffer extends OutputStream {
+
+    private byte[] bytes;
+    private int count;
+    private boolean released;
+
+    private Buffer(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    @Override
+    public void write(int b) {
+      ensureCapacity(count + 1);
+      bytes[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      ensureCapacity(count + len);
+      System.arraycopy(b, off, bytes, count, len);
+      count += len;
+    }
+
+    public int size() {
+      return count;
+    }
+
+    /**
+     * Grow the backing array to at least the given number of bytes
+     */
+    public void ensureCapacity(int capacity) {
+      if (capacity < 0) {
+        throw new OutOfMemoryError("Render buffer too large");
+      }
+      if (capacity > bytes.length) {
+        bytes = Arrays.copyOf(bytes, (int) Math.min(Integer.MAX_VALUE - 8,
+            Math.max(capacity, (long) bytes.length * 2)));
+      }
+    }
+
+    /**
+     * The backing array, for use as scratch space. Valid until the buffer grows or is closed.
+     */
+    public byte[] array() {
+      return bytes;
+    }
+
+    /**
+     * Copy the written bytes into an artifact of exactly that size
+     */
+    public RenderedArtifact toArtifact() {
+      return RenderedArtifact.copyOf(bytes, 0, count);
+    }
+
+    /**
+     * Give the buffer back to the pool
+     */
+    @Override
+    public void close() {
+      if (!released) {
+        released = true;
+        release(this);
+      }
+    }
+  }
+}
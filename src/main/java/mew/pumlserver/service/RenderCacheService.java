@@ -1,98 +1,324 @@
 package mew.pumlserver.service;
 
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import jakarta.annotation.PreDestroy;
+import mew.pumlserver.dto.CacheEntrySummary;
+import mew.pumlserver.dto.CacheStatsResponse;
+import mew.pumlserver.exception.ServiceUnavailableException;
 import mew.pumlserver.model.CacheEntry;
+import mew.pumlserver.model.CompressedRender;
+import mew.pumlserver.model.PngOptions;
+import mew.pumlserver.model.RenderContext;
+import mew.pumlserver.model.RenderCostEstimate;
+import mew.pumlserver.model.RenderedArtifact;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.UUID;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Cache of diagram sources and their rendered formats, keyed by content ID,
+ * so the same diagram gets the same ID on every node.
+ *
+ * A content ID is the hash of the source's canonical form ({@link PumlCanonicalizer}),
+ * the render key, followed by a hash of the exact source. Sources that differ only
+ * in ways PlantUML ignores keep their own IDs and text, but share one render. Sources
+ * including files of the include library ({@link IncludeResolver}) hash the versions
+ * of those files into the render key, so editing an included file renders anew.
+ *
+ * In cluster mode each ID has an owner node ({@link ClusterService}). Other
+ * nodes hand sources to the owner and fetch rendered formats from it, keeping
+ * recently used remote entries in a small local hot set. When the owner can't
+ * be reached, the node stores and renders the entry itself.
+ *
+ * Rendered entries that haven't been read for puml.cache.cold.idle-ms are
+ * demoted in the background to a compressed cold tier ({@link RenderCompressor})
+ * and inflated again on their next read.
+ *
+ * Each entry's source and render bytes are charged to the tenant that cached it
+ * ({@link TenantUsageService}). A tenant over its quota loses its own least recently
+ * read entries, and when the cache holds more than puml.cache.max-bytes, entries of the
+ * tenant over quota, or else using the most bytes, are evicted first. Render CPU time is
+ * accounted to the tenant whose request started the render.
+ *
+ * Requests per ID are counted in a bounded heavy-hitters sketch ({@link SpaceSavingSketch})
+ * of puml.cache.hot-keys entries, and reads per entry as hits and misses, for the admin API.
+ *
+ * Computing the content ID (the dedup key) is observed as puml.cache.key, and
+ * waiting for a render, queueing included, as puml.cache.render. The render runs
+ * on the render scheduler, which carries the caller's trace context.
+ */
 @Service
 public class RenderCacheService {
 
+    private static final Logger log = LoggerFactory.getLogger(RenderCacheService.class);
+
     private final Map<String, CacheEntry> cache = new ConcurrentHashMap<>();
+    private final Map<String, InFlightRender> inFlightRenders = new ConcurrentHashMap<>();
+    private final Map<String, CacheEntry> renderedByKey = new ConcurrentHashMap<>();
     private static final long CACHE_TTL_MINUTES = 30;
+    private static final int RENDER_KEY_LENGTH = 32;
+    // Age histogram of the admin API: bucket names and their upper bounds in seconds (entries expire at 30 minutes)
+    private static final String[] AGE_BUCKETS = {"0-1m", "1-5m", "5-15m", "15-30m"};
+    private static final long[] AGE_BUCKET_LIMITS = {60, 300, 900};
+    // Scheduler cost of re-encoding a PNG: a decode and an encode, well below a render
+    private static final double REENCODE_COST_MILLIS = 20;
     private final RenderService renderService;
+    private final SvgOptimizer svgOptimizer;
+    private final RenderCostEstimator costEstimator;
+    private final RenderScheduler renderScheduler;
+    private final ClientContextResolver clientContextResolver;
+    private final ClusterService clusterService;
+    private final PeerClient peerClient;
+    private final Map<String, CacheEntry> hotSet;
+    private final RenderCompressor renderCompressor;
+    private final long coldIdleMillis;
+    private final AtomicLong coldEntries = new AtomicLong();
+    private final AtomicLong coldSavedBytes = new AtomicLong();
+    private final SpaceSavingSketch hotKeys;
+    private final TenantUsageService tenantUsage;
+    private final long maxBytes;
+    private final IncludeResolver includeResolver;
+    private final LoadShedService loadShedService;
+    private final PngExportService pngExportService;
+    private final Object evictionLock = new Object();
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private final MeterRegistry meterRegistry;
+    private final ObservationRegistry observationRegistry;
 
-    public RenderCacheService(RenderService renderService) {
+    public RenderCacheService(RenderService renderService, SvgOptimizer svgOptimizer,
+            RenderCostEstimator costEstimator, RenderScheduler renderScheduler,
+            ClientContextResolver clientContextResolver, ClusterService clusterService,
+            PeerClient peerClient,
+            @Value("${puml.cluster.hot-set-size:1000}") int hotSetSize,
+            RenderCompressor renderCompressor,
+            @Value("${puml.cache.cold.idle-ms:120000}") long coldIdleMillis,
+            @Value("${puml.cache.hot-keys:1000}") int hotKeys,
+            TenantUsageService tenantUsage,
+            @Value("${puml.cache.max-bytes:0}") long maxBytes,
+            IncludeResolver includeResolver,
+            LoadShedService loadShedService,
+            PngExportService pngExportService,
+            MeterRegistry meterRegistry,
+            ObservationRegistry observationRegistry) {
         this.renderService = renderService;
+        this.svgOptimizer = svgOptimizer;
+        this.costEstimator = costEstimator;
+        this.renderScheduler = renderScheduler;
+        this.clientContextResolver = clientContextResolver;
+        this.clusterService = clusterService;
+        this.peerClient = peerClient;
+        this.hotSet = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > hotSetSize;
+            }
+        };
+        this.renderCompressor = renderCompressor;
+        this.coldIdleMillis = coldIdleMillis;
+        this.hotKeys = new SpaceSavingSketch(hotKeys);
+        this.tenantUsage = tenantUsage;
+        this.maxBytes = maxBytes;
+        this.includeResolver = includeResolver;
+        this.loadShedService = loadShedService;
+        this.pngExportService = pngExportService;
+        this.meterRegistry = meterRegistry;
+        this.observationRegistry = observationRegistry;
+
+        Gauge.builder("puml.cache.cold.entries", coldEntries, AtomicLong::get)
+                .description("Cache entries demoted to the cold tier, as of the last scan")
+                .register(meterRegistry);
+        Gauge.builder("puml.cache.cold.saved", coldSavedBytes, AtomicLong::get)
+                .description("Memory saved by the cold tier, as of the last scan")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Cache ID of a diagram source: the first 128 bits of the SHA-256 of its canonical
+     * form (the render key), then the first 64 bits of the SHA-256 of the source, in hex
+     */
+    public static String contentId(String puml) {
+        return contentId(puml, "");
+    }
+
+    /**
+     * Cache ID of a diagram source whose included files have the given versions
+     * ({@link IncludeResolver.Resolution#getIncludeVersions()}), which go into the render key
+     */
+    public static String contentId(String puml, String includeVersions) {
+        String canonical = PumlCanonicalizer.canonicalize(puml);
+        if (!includeVersions.isEmpty()) {
+            canonical += "\n" + includeVersions;
+        }
+        return sha256Hex(canonical, 16) + sha256Hex(puml, 8);
+    }
+
+    /**
+     * Render key of a cache ID, shared by all sources with the same canonical form
+     */
+    public static String renderKey(String id) {
+        return id.length() > RENDER_KEY_LENGTH ? id.substring(0, RENDER_KEY_LENGTH) : id;
     }
 
     /**
-     * Cache all rendered formats (SVG, PNG, Text) for a PUML diagram and return unique ID.
-     * If an entry with the same PUML already exists:
-     * - If it has rendered content, return its ID
-     * - If it doesn't have rendered content, render and update the entry, then return its ID
-     * Otherwise, create a new cache entry with all formats.
+     * Cache ID of a diagram source, with the current versions of its included files
+     */
+    public String contentIdOf(String puml) {
+        return Observation.createNotStarted("puml.cache.key", observationRegistry)
+                .observe(() -> contentId(puml, includeResolver.resolve(puml).getIncludeVersions()));
+    }
+
+    private static String sha256Hex(String value, int bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Cache all rendered formats (SVG, PNG, Text) for a PUML diagram and return its ID.
+     * If an entry with the same PUML already exists and has rendered content, nothing is rendered.
+     * In cluster mode the owner of the ID renders and keeps the entry.
      */
     public String cacheAllFormats(String puml) throws IOException {
-        for (Map.Entry<String, CacheEntry> entry : cache.entrySet()) {
-            CacheEntry cachedEntry = entry.getValue();
-            if (cachedEntry.getPuml().equals(puml) && !isExpired(cachedEntry)) {
-                if (cachedEntry.getSvgContent() != null && cachedEntry.getPngContent() != null 
-                    && cachedEntry.getTextContent() != null) {
-                    return entry.getKey();
-                }
-                byte[] svg = renderService.renderSvg(puml);
-                byte[] png = renderService.renderPng(puml);
-                String text = renderService.renderText(puml);
-                cachedEntry.setSvgContent(svg);
-                cachedEntry.setPngContent(png);
-                cachedEntry.setTextContent(text);
-                return entry.getKey();
+        String id = contentIdOf(puml);
+        hotKeys.add(id);
+        String owner = clusterService.remoteOwner(renderKey(id));
+        if (owner != null) {
+            try {
+                peerClient.store(owner, id, puml, PeerClient.RenderMode.SYNC, clientContextResolver.current());
+                meterRegistry.counter("puml.cluster.forward", "result", "ok").increment();
+                putHot(new CacheEntry(id, puml, LocalDateTime.now(), null, null, null));
+                return id;
+            } catch (IOException e) {
+                meterRegistry.counter("puml.cluster.forward", "result", "fallback").increment();
+                log.warn("Owner {} of {} unavailable, rendering locally: {}", owner, id, e.getMessage());
             }
         }
 
-        byte[] svg = renderService.renderSvg(puml);
-        byte[] png = renderService.renderPng(puml);
-        String text = renderService.renderText(puml);
-
-        String id = UUID.randomUUID().toString();
-        CacheEntry entry = new CacheEntry(id, puml, LocalDateTime.now(), svg, png, text);
-        cache.put(id, entry);
+        CacheEntry entry = localEntry(id, puml);
+        if (hasRender(entry) || shareRender(entry)) {
+            entry.getHits().incrementAndGet();
+        } else {
+            entry.getMisses().incrementAndGet();
+            renderAllFormats(entry);
+        }
         return id;
     }
 
     /**
-     * Cache PUML code only (without rendering) and return unique ID.
-     * If an entry with the same PUML already exists, return its ID instead of creating a new one.
+     * Render context of the current request. Work handed to another thread (e.g. a
+     * streamed response) must take it along, the request isn't visible there.
+     */
+    public RenderContext currentContext() {
+        return clientContextResolver.current();
+    }
+
+    /**
+     * Cache PUML code only (without rendering) and return its ID.
+     * If an entry with the same PUML already exists, its ID is returned and the entry is kept.
      */
     public String cachePumlCode(String puml) {
-        for (Map.Entry<String, CacheEntry> entry : cache.entrySet()) {
-            if (entry.getValue().getPuml().equals(puml) && !isExpired(entry.getValue())) {
-                return entry.getKey();
+        return cachePumlCode(puml, clientContextResolver.current());
+    }
+
+    /**
+     * Cache PUML code only, charged to the tenant of the given context
+     */
+    public String cachePumlCode(String puml, RenderContext context) {
+        String id = contentIdOf(puml);
+        String owner = clusterService.remoteOwner(renderKey(id));
+        if (owner != null) {
+            try {
+                peerClient.store(owner, id, puml, PeerClient.RenderMode.NONE, context);
+                meterRegistry.counter("puml.cluster.forward", "result", "ok").increment();
+                putHot(new CacheEntry(id, puml, LocalDateTime.now(), null, null, null));
+                return id;
+            } catch (IOException e) {
+                meterRegistry.counter("puml.cluster.forward", "result", "fallback").increment();
+                log.warn("Owner {} of {} unavailable, caching locally: {}", owner, id, e.getMessage());
             }
         }
 
-        String id = UUID.randomUUID().toString();
-        CacheEntry entry = new CacheEntry(id, puml, LocalDateTime.now(), null, null, null);
-        cache.put(id, entry);
+        localEntry(id, puml, context);
         return id;
     }
 
     /**
-     * Get cached entry by ID
+     * Get cached entry by ID. In cluster mode an entry owned by another node
+     * is served from the hot set, or fetched from its owner.
      */
     public CacheEntry getCachedEntry(String id) {
-        CacheEntry entry = cache.get(id);
-        if (entry == null) {
+        CacheEntry entry = getLocalEntry(id);
+        if (entry != null) {
+            hotKeys.add(id);
+            return entry;
+        }
+
+        String owner = clusterService.remoteOwner(renderKey(id));
+        if (owner == null) {
             return null;
         }
-        
-        if (isExpired(entry)) {
-            cache.remove(id);
+        entry = getHot(id);
+        if (entry != null) {
+            meterRegistry.counter("puml.cluster.hot-set", "result", "hit").increment();
+            hotKeys.add(id);
+            return entry;
+        }
+        meterRegistry.counter("puml.cluster.hot-set", "result", "miss").increment();
+        try {
+            RenderedArtifact puml = peerClient.fetch(owner, id, "puml", clientContextResolver.current());
+            if (puml == null) {
+                return null;
+            }
+            hotKeys.add(id);
+            return putHot(new CacheEntry(id, puml.toString(StandardCharsets.UTF_8), LocalDateTime.now(),
+                    null, null, null));
+        } catch (IOException e) {
+            log.warn("Owner {} of {} unavailable: {}", owner, id, e.getMessage());
             return null;
         }
-        
-        return entry;
     }
 
     /**
      * Ensure rendered content exists for a cache entry. If the entry doesn't have rendered content,
-     * render all formats and update the entry.
+     * render all formats and update the entry. If a render of the entry is already in flight
+     * (e.g. a speculative pre-render), wait for it instead of rendering again.
      * 
      * @param entry The cache entry to ensure rendered content for
      * @throws IOException if rendering fails
@@ -102,17 +328,585 @@ public class RenderCacheService {
             return;
         }
         
-        if (entry.getSvgContent() != null && entry.getPngContent() != null 
-            && entry.getTextContent() != null) {
+        if (warm(entry) || shareRender(entry)) {
+            meterRegistry.counter("puml.cache.raw", "result", "hit").increment();
+            entry.getHits().incrementAndGet();
             return;
         }
         
-        byte[] svg = renderService.renderSvg(entry.getPuml());
-        byte[] png = renderService.renderPng(entry.getPuml());
-        String text = renderService.renderText(entry.getPuml());
+        meterRegistry.counter("puml.cache.raw", "result",
+                inFlightRenders.containsKey(renderKey(entry.getId())) ? "in-flight" : "miss").increment();
+        entry.getMisses().incrementAndGet();
+        String owner = remoteOwnerOf(entry);
+        if (owner != null && fetchFromOwner(owner, entry)) {
+            return;
+        }
+        renderAllFormats(entry);
+    }
+
+    /**
+     * The entry's PNG with the given options, re-encoded from its rendered PNG unless they are
+     * the deployment defaults. Each variant is encoded once and kept with the entry until it is
+     * demoted or evicted. The encode is treated like a render: shed under load, run on the render
+     * scheduler in the caller's lane, its CPU time accounted to the caller's tenant and its bytes
+     * charged to the entry's.
+     *
+     * @param entry an entry with rendered content ({@link #ensureRenderedContent})
+     */
+    public RenderedArtifact getPngVariant(CacheEntry entry, PngOptions options) throws IOException {
+        RenderedArtifact png = entry.getPngContent();
+        if (options.equals(pngExportService.getDefaults())) {
+            return png;
+        }
+        RenderedArtifact variant = entry.getPngVariants().get(options);
+        if (variant != null) {
+            meterRegistry.counter("puml.png.reencode", "result", "hit").increment();
+            return variant;
+        }
+        meterRegistry.counter("puml.png.reencode", "result", "miss").increment();
+        loadShedService.admit(LoadShedService.Work.RENDER);
+        RenderContext context = clientContextResolver.current();
+        RenderedArtifact encoded = renderScheduler.execute(context.getLane(), context.getClientKey(),
+                REENCODE_COST_MILLIS, () -> {
+                    long cpuStart = threadCpuNanos();
+                    try {
+                        return pngExportService.reencode(png, options);
+                    } finally {
+                        tenantUsage.usage(context.getTenant()).recordRender(Math.max(0, threadCpuNanos() - cpuStart));
+                    }
+                });
+        variant = entry.getPngVariants().putIfAbsent(options, encoded);
+        if (variant != null) {
+            // Encoded concurrently by another request
+            return variant;
+        }
+        charge(entry, encoded.size());
+        return encoded;
+    }
+
+    /**
+     * Speculatively render all formats of a cached entry in the background (bulk lane),
+     * so that the follow-up GET of the raw content is a cache hit.
+     * Diagrams that don't pass admission control, or can't be queued, are skipped.
+     */
+    public void prerenderAsync(String id) {
+        prerenderAsync(id, clientContextResolver.current());
+    }
+
+    /**
+     * Pre-render for the client and tenant of the given context
+     */
+    public void prerenderAsync(String id, RenderContext context) {
+        CacheEntry entry = getCachedEntry(id);
+        if (entry == null || hasRender(entry) || shareRender(entry)) {
+            return;
+        }
+        String owner = remoteOwnerOf(entry);
+        if (owner != null) {
+            try {
+                peerClient.store(owner, id, entry.getPuml(), PeerClient.RenderMode.ASYNC, context);
+                meterRegistry.counter("puml.prerender", "result", "forwarded").increment();
+            } catch (IOException e) {
+                meterRegistry.counter("puml.prerender", "result", "skipped").increment();
+                log.debug("Skipping pre-render of {}: {}", id, e.getMessage());
+            }
+            return;
+        }
+        prerenderLocal(entry, context);
+    }
+
+    private void prerenderLocal(CacheEntry entry, RenderContext context) {
+        String id = entry.getId();
+        try {
+            startRender(entry, RenderScheduler.Lane.BULK, context, true);
+            meterRegistry.counter("puml.prerender", "result", "submitted").increment();
+        } catch (RuntimeException e) {
+            meterRegistry.counter("puml.prerender", "result", "skipped").increment();
+            log.debug("Skipping pre-render of {}: {}", id, e.getMessage());
+        }
+    }
+
+    /**
+     * Store a source handed over by another node, which found this node to be its owner.
+     * Never forwarded again, even if this node's view of the peers differs.
+     */
+    public void storeFromPeer(String id, String puml, PeerClient.RenderMode mode) throws IOException {
+        CacheEntry entry = localEntry(id, puml);
+        if (hasRender(entry) || shareRender(entry)) {
+            return;
+        }
+        if (mode == PeerClient.RenderMode.SYNC) {
+            renderAllFormats(entry);
+        } else if (mode == PeerClient.RenderMode.ASYNC) {
+            prerenderLocal(entry, clientContextResolver.current());
+        }
+    }
+
+    /**
+     * One format ("svg", "png", "text" or "puml") of a local entry, for another node.
+     * The entry is rendered first if needed. Returns null if this node doesn't have it.
+     */
+    public RenderedArtifact getForPeer(String id, String format) throws IOException {
+        CacheEntry entry = getLocalEntry(id);
+        if (entry == null) {
+            return null;
+        }
+        if ("puml".equals(format)) {
+            return RenderedArtifact.wrap(entry.getPuml().getBytes(StandardCharsets.UTF_8));
+        }
+        ensureLocallyRendered(entry);
+        switch (format) {
+            case "svg":
+                return entry.getSvgContent();
+            case "png":
+                return entry.getPngContent();
+            case "text":
+                return entry.getTextContent();
+            default:
+                throw new IllegalArgumentException("Unknown format: " + format);
+        }
+    }
+
+    /**
+     * Cancel a speculative pre-render that hasn't started yet (e.g. the client went away).
+     * A render another caller waits for, or another pre-render of the same diagram still
+     * holds, is left running.
+     */
+    public void cancelPrerender(String id) {
+        String key = renderKey(id);
+        InFlightRender render = inFlightRenders.get(key);
+        if (render == null) {
+            return;
+        }
+        synchronized (render) {
+            if (render.prerenders == 0 || --render.prerenders > 0 || render.awaited
+                    || !render.started.compareAndSet(false, true)) {
+                return;
+            }
+            inFlightRenders.remove(key, render);
+            render.done.cancel(false);
+        }
+        if (render.task != null) {
+            render.task.cancel(false);
+        }
+        meterRegistry.counter("puml.prerender", "result", "cancelled").increment();
+    }
+
+    /**
+     * Fail the renders that haven't started yet, so requests waiting for them don't outlive
+     * the render scheduler, which drops its queued tasks on shutdown
+     */
+    @PreDestroy
+    public void shutdown() {
+        for (Map.Entry<String, InFlightRender> entry : inFlightRenders.entrySet()) {
+            InFlightRender render = entry.getValue();
+            if (render.started.compareAndSet(false, true)) {
+                inFlightRenders.remove(entry.getKey(), render);
+                render.done.completeExceptionally(new ServiceUnavailableException("Server is shutting down"));
+            }
+        }
+    }
+
+    /**
+     * Render SVG, PNG and Text into the entry after admission control.
+     * The render runs on the render scheduler in the caller's lane; heavy
+     * diagrams always go to the bulk lane.
+     */
+    private void renderAllFormats(CacheEntry entry) throws IOException {
+        RenderContext context = clientContextResolver.current();
+        Observation.createNotStarted("puml.cache.render", observationRegistry)
+                .lowCardinalityKeyValue("lane", context.getLane().name().toLowerCase(Locale.ROOT))
+                .observeChecked(() -> awaitRender(entry, context));
+    }
+
+    private void awaitRender(CacheEntry entry, RenderContext context) throws IOException {
+        InFlightRender render = startRender(entry, context.getLane(), context, false);
+        try {
+            CacheEntry rendered = render.done.get();
+            if (rendered != entry) {
+                // Joined the render of another source with the same canonical form
+                copyRender(rendered, entry);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for render", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } catch (CancellationException e) {
+            throw new IOException("Render was cancelled", e);
+        }
+    }
+
+    /**
+     * Join the in-flight render of the entry, or schedule a new one.
+     * An interactive caller takes over a bulk render that hasn't started yet,
+     * so a speculative pre-render stuck in the bulk queue doesn't delay it.
+     * A new render is rejected while the node sheds load ({@link LoadShedService}).
+     *
+     * @param speculative whether the caller is a pre-render, which may be cancelled
+     *                    ({@link #cancelPrerender}), rather than a caller waiting for the result
+     */
+    private InFlightRender startRender(CacheEntry entry, RenderScheduler.Lane requestedLane, RenderContext context,
+                                       boolean speculative) {
+        String key = renderKey(entry.getId());
+        while (true) {
+            InFlightRender existing = inFlightRenders.get(key);
+            boolean promote = existing != null && existing.lane == RenderScheduler.Lane.BULK
+                    && requestedLane == RenderScheduler.Lane.INTERACTIVE
+                    && existing.started.compareAndSet(false, true);
+            if (existing != null && !promote) {
+                if (existing.join(speculative)) {
+                    return existing;
+                }
+                // Cancelled meanwhile, and no longer in the map
+                continue;
+            }
+
+            RenderCostEstimate estimate;
+            try {
+                // Joining or promoting a render adds no work, only a new one is shed
+                if (!promote) {
+                    loadShedService.admit(LoadShedService.Work.RENDER);
+                }
+                estimate = costEstimator.admit(entry.getPuml(), key,
+                        () -> includeResolver.resolve(entry.getPuml()).getSource());
+            } catch (RuntimeException e) {
+                if (promote) {
+                    inFlightRenders.remove(key, existing);
+                    existing.done.completeExceptionally(e);
+                }
+                throw e;
+            }
+            RenderScheduler.Lane lane = estimate.isHeavy() ? RenderScheduler.Lane.BULK : requestedLane;
+            InFlightRender render = new InFlightRender(lane);
+            render.join(speculative);
+            if (promote) {
+                if (!inFlightRenders.replace(key, existing, render)) {
+                    continue;
+                }
+                if (existing.task != null) {
+                    existing.task.cancel(false);
+                }
+                render.done.whenComplete((result, error) -> {
+                    if (error != null) {
+                        existing.done.completeExceptionally(error);
+                    } else {
+                        existing.done.complete(result);
+                    }
+                });
+            } else if (inFlightRenders.putIfAbsent(key, render) != null) {
+                continue;
+            }
+
+            try {
+                render.task = renderScheduler.submit(lane, context.getClientKey(), estimate.getEstimatedMillis(), () -> {
+                    if (!render.started.compareAndSet(false, true)) {
+                        return null;
+                    }
+                    try {
+                        if (!warm(entry) && !shareRender(entry)) {
+                            renderFormats(entry, estimate, context.getTenant());
+                        }
+                        render.done.complete(entry);
+                    } catch (Throwable t) {
+                        render.done.completeExceptionally(t);
+                    } finally {
+                        inFlightRenders.remove(key, render);
+                    }
+                    return null;
+                });
+            } catch (RuntimeException e) {
+                inFlightRenders.remove(key, render);
+                render.done.completeExceptionally(e);
+                throw e;
+            }
+            return render;
+        }
+    }
+
+    private void renderFormats(CacheEntry entry, RenderCostEstimate estimate, String tenant) throws IOException {
+        long start = System.nanoTime();
+        long cpuStart = threadCpuNanos();
+        RenderedArtifact svg;
+        RenderedArtifact png;
+        RenderedArtifact text;
+        try {
+            svg = svgOptimizer.optimize(renderService.renderSvg(entry.getPuml()));
+            png = renderService.renderPng(entry.getPuml());
+            text = renderService.renderText(entry.getPuml());
+        } finally {
+            // Only this thread's time: parallel PNG deflate on other threads isn't included
+            tenantUsage.usage(tenant).recordRender(Math.max(0, threadCpuNanos() - cpuStart));
+        }
+        costEstimator.record(estimate, System.nanoTime() - start);
         entry.setSvgContent(svg);
         entry.setPngContent(png);
         entry.setTextContent(text);
+        renderedByKey.put(renderKey(entry.getId()), entry);
+        charge(entry, (long) svg.size() + png.size() + text.size());
+    }
+
+    private long threadCpuNanos() {
+        return threadBean.isCurrentThreadCpuTimeSupported() ? threadBean.getCurrentThreadCpuTime() : 0;
+    }
+
+    /**
+     * Fill the entry with the render of another source with the same canonical form, if there is one
+     */
+    private boolean shareRender(CacheEntry entry) {
+        CacheEntry rendered = renderedByKey.get(renderKey(entry.getId()));
+        if (rendered == null || rendered == entry || isExpired(rendered) || !warm(rendered)) {
+            return false;
+        }
+        copyRender(rendered, entry);
+        meterRegistry.counter("puml.cache.shared").increment();
+        return true;
+    }
+
+    private static void copyRender(CacheEntry from, CacheEntry to) {
+        // Artifacts are read-only, so entries can share them
+        to.setSvgContent(from.getSvgContent());
+        to.setPngContent(from.getPngContent());
+        to.setTextContent(from.getTextContent());
+    }
+
+    private void ensureLocallyRendered(CacheEntry entry) throws IOException {
+        if (warm(entry) || shareRender(entry)) {
+            meterRegistry.counter("puml.cache.raw", "result", "hit").increment();
+            entry.getHits().incrementAndGet();
+            return;
+        }
+        meterRegistry.counter("puml.cache.raw", "result",
+                inFlightRenders.containsKey(renderKey(entry.getId())) ? "in-flight" : "miss").increment();
+        entry.getMisses().incrementAndGet();
+        renderAllFormats(entry);
+    }
+
+    /**
+     * Fill a remote entry with the formats rendered by its owner. If the owner
+     * lost the entry (restart, expiry) it gets the source again. Returns false
+     * if the owner can't be reached, so the caller renders locally.
+     */
+    private boolean fetchFromOwner(String owner, CacheEntry entry) {
+        RenderContext context = clientContextResolver.current();
+        try {
+            RenderedArtifact svg = peerClient.fetch(owner, entry.getId(), "svg", context);
+            if (svg == null) {
+                peerClient.store(owner, entry.getId(), entry.getPuml(), PeerClient.RenderMode.SYNC, context);
+                svg = peerClient.fetch(owner, entry.getId(), "svg", context);
+            }
+            RenderedArtifact png = svg == null ? null : peerClient.fetch(owner, entry.getId(), "png", context);
+            RenderedArtifact text = png == null ? null : peerClient.fetch(owner, entry.getId(), "text", context);
+            if (text == null) {
+                throw new IOException("Owner lost the entry while it was being fetched");
+            }
+            entry.setSvgContent(svg);
+            entry.setPngContent(png);
+            entry.setTextContent(text);
+            meterRegistry.counter("puml.cluster.forward", "result", "ok").increment();
+            return true;
+        } catch (IOException e) {
+            meterRegistry.counter("puml.cluster.forward", "result", "fallback").increment();
+            log.warn("Owner {} of {} unavailable, rendering locally: {}", owner, entry.getId(), e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Owner of an entry if it is another node and the entry isn't stored here
+     * (because it was cached locally while the owner was unavailable)
+     */
+    private String remoteOwnerOf(CacheEntry entry) {
+        String owner = clusterService.remoteOwner(renderKey(entry.getId()));
+        return owner == null || cache.get(entry.getId()) == entry ? null : owner;
+    }
+
+    /**
+     * The live local entry for an ID, created (or replaced, if expired) with the given source
+     */
+    private CacheEntry localEntry(String id, String puml) {
+        return localEntry(id, puml, clientContextResolver.current());
+    }
+
+    private CacheEntry localEntry(String id, String puml, RenderContext context) {
+        CacheEntry[] replaced = new CacheEntry[1];
+        CacheEntry created = new CacheEntry(id, puml, LocalDateTime.now(), null, null, null);
+        CacheEntry entry = cache.compute(id, (key, existing) -> {
+            if (existing != null && !isExpired(existing)) {
+                return existing;
+            }
+            replaced[0] = existing;
+            return created;
+        });
+        if (replaced[0] != null) {
+            release(replaced[0]);
+        }
+        if (entry == created) {
+            TenantUsageService.Usage usage = tenantUsage.usage(context.getTenant());
+            entry.setTenant(usage.getName());
+            entry.getChargedBytes().set(0);
+            usage.addEntries(1);
+            charge(entry, puml.getBytes(StandardCharsets.UTF_8).length);
+            if (cache.get(id) != entry) {
+                // Purged while being set up
+                release(entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Add bytes to the entry and its tenant's usage, then evict if the tenant is over its
+     * quota or the cache over puml.cache.max-bytes. Entries no longer in the cache aren't charged.
+     */
+    private void charge(CacheEntry entry, long bytes) {
+        AtomicLong charged = entry.getChargedBytes();
+        long current;
+        do {
+            current = charged.get();
+            if (current < 0) {
+                return;
+            }
+        } while (!charged.compareAndSet(current, current + bytes));
+        TenantUsageService.Usage usage = tenantUsage.usage(entry.getTenant());
+        usage.addBytes(bytes);
+        if (usage.isOverQuota() || (maxBytes > 0 && tenantUsage.getTotalBytes() > maxBytes)) {
+            enforceLimits(usage);
+        }
+    }
+
+    /**
+     * Give back the bytes of an entry removed from the cache; only the first call counts
+     */
+    private void release(CacheEntry entry) {
+        long bytes = entry.getChargedBytes().getAndSet(-1);
+        if (bytes >= 0) {
+            TenantUsageService.Usage usage = tenantUsage.usage(entry.getTenant());
+            usage.addBytes(-bytes);
+            usage.addEntries(-1);
+        }
+    }
+
+    /**
+     * Evict the tenant's least recently read entries down to 90% of its quota, then, while the
+     * cache is over puml.cache.max-bytes, those of the tenant over quota or using the most bytes
+     */
+    private void enforceLimits(TenantUsageService.Usage usage) {
+        synchronized (evictionLock) {
+            if (usage.isOverQuota()) {
+                evict(usage, usage.getQuota() / 10 * 9, true);
+            }
+            while (maxBytes > 0 && tenantUsage.getTotalBytes() > maxBytes) {
+                TenantUsageService.Usage heaviest = tenantUsage.heaviest();
+                long excess = tenantUsage.getTotalBytes() - maxBytes / 10 * 9;
+                if (heaviest == null || evict(heaviest, heaviest.getBytes() - excess, heaviest.isOverQuota()) == 0) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private int evict(TenantUsageService.Usage usage, long targetBytes, boolean overQuota) {
+        List<CacheEntry> candidates = new ArrayList<>();
+        for (CacheEntry entry : cache.values()) {
+            if (usage.getName().equals(entry.getTenant())) {
+                candidates.add(entry);
+            }
+        }
+        candidates.sort(Comparator.comparingLong(CacheEntry::getLastAccessMillis));
+        int evicted = 0;
+        for (CacheEntry entry : candidates) {
+            if (usage.getBytes() <= targetBytes) {
+                break;
+            }
+            if (cache.remove(entry.getId(), entry)) {
+                release(entry);
+                renderedByKey.remove(renderKey(entry.getId()), entry);
+                hotKeys.remove(entry.getId());
+                usage.recordEviction(overQuota);
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    private CacheEntry getLocalEntry(String id) {
+        CacheEntry entry = cache.get(id);
+        if (entry == null) {
+            return null;
+        }
+        
+        if (isExpired(entry)) {
+            if (cache.remove(id, entry)) {
+                release(entry);
+            }
+            return null;
+        }
+        
+        return entry;
+    }
+
+    private CacheEntry getHot(String id) {
+        synchronized (hotSet) {
+            CacheEntry entry = hotSet.get(id);
+            if (entry != null && isExpired(entry)) {
+                hotSet.remove(id);
+                return null;
+            }
+            return entry;
+        }
+    }
+
+    private CacheEntry putHot(CacheEntry entry) {
+        synchronized (hotSet) {
+            CacheEntry existing = hotSet.get(entry.getId());
+            if (existing != null && !isExpired(existing)) {
+                return existing;
+            }
+            hotSet.put(entry.getId(), entry);
+            return entry;
+        }
+    }
+
+    private boolean isRendered(CacheEntry entry) {
+        return entry.getSvgContent() != null && entry.getPngContent() != null
+                && entry.getTextContent() != null;
+    }
+
+    /**
+     * Whether the entry is rendered, in either tier
+     */
+    private boolean hasRender(CacheEntry entry) {
+        synchronized (entry) {
+            return isRendered(entry) || entry.getColdRender() != null;
+        }
+    }
+
+    /**
+     * Record a read of the entry's rendered formats, restoring them from the cold
+     * tier first if the entry was demoted. Returns whether the entry is rendered.
+     */
+    private boolean warm(CacheEntry entry) {
+        synchronized (entry) {
+            entry.setLastAccessMillis(System.currentTimeMillis());
+            CompressedRender cold = entry.getColdRender();
+            if (cold != null) {
+                renderCompressor.restore(cold, entry);
+                entry.setColdRender(null);
+                meterRegistry.counter("puml.cache.cold", "result", "restored").increment();
+            }
+            return isRendered(entry);
+        }
     }
 
     /**
@@ -127,7 +921,269 @@ public class RenderCacheService {
      */
     @Scheduled(fixedRate = 300000) // 5 minutes
     public void cleanupExpiredEntries() {
-        cache.entrySet().removeIf(entry -> isExpired(entry.getValue()));
+        for (CacheEntry entry : cache.values()) {
+            if (isExpired(entry) && cache.remove(entry.getId(), entry)) {
+                release(entry);
+            }
+        }
+        renderedByKey.values().removeIf(this::isExpired);
+        synchronized (hotSet) {
+            hotSet.values().removeIf(this::isExpired);
+        }
+    }
+
+    /**
+     * Demote rendered entries that haven't been read for puml.cache.cold.idle-ms to the
+     * cold tier. Entries sharing a render are demoted together, once all of them are idle,
+     * so the uncompressed formats are actually freed and compressed only once.
+     */
+    @Scheduled(fixedDelayString = "${puml.cache.cold.scan-ms:30000}")
+    public void demoteIdleEntries() {
+        if (coldIdleMillis <= 0) {
+            return;
+        }
+        long idleBefore = System.currentTimeMillis() - coldIdleMillis;
+        List<CacheEntry> entries = new ArrayList<>(cache.values());
+        synchronized (hotSet) {
+            entries.addAll(hotSet.values());
+        }
+
+        Map<RenderedArtifact, List<CacheEntry>> byRender = new IdentityHashMap<>();
+        Set<CompressedRender> coldRenders = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (CacheEntry entry : entries) {
+            CompressedRender cold = entry.getColdRender();
+            RenderedArtifact svg = entry.getSvgContent();
+            if (cold != null) {
+                coldRenders.add(cold);
+            } else if (svg != null && isRendered(entry) && !isExpired(entry)) {
+                byRender.computeIfAbsent(svg, key -> new ArrayList<>()).add(entry);
+            }
+        }
+
+        long demoted = 0;
+        for (Map.Entry<RenderedArtifact, List<CacheEntry>> render : byRender.entrySet()) {
+            List<CacheEntry> group = render.getValue();
+            if (group.stream().anyMatch(entry -> entry.getLastAccessMillis() > idleBefore)) {
+                continue;
+            }
+            CacheEntry first = group.get(0);
+            RenderedArtifact png = first.getPngContent();
+            RenderedArtifact text = first.getTextContent();
+            if (png == null || text == null) {
+                continue;
+            }
+            CompressedRender cold = renderCompressor.compress(render.getKey(), png, text);
+            boolean used = false;
+            for (CacheEntry entry : group) {
+                if (demote(entry, render.getKey(), cold, idleBefore)) {
+                    used = true;
+                    demoted++;
+                }
+            }
+            if (used) {
+                coldRenders.add(cold);
+            }
+        }
+        if (demoted > 0) {
+            meterRegistry.counter("puml.cache.cold", "result", "demoted").increment(demoted);
+        }
+        coldEntries.set(entries.stream().filter(entry -> entry.getColdRender() != null).count());
+        coldSavedBytes.set(coldRenders.stream()
+                .mapToLong(cold -> cold.rawSize() - cold.compressedSize())
+                .sum());
+    }
+
+    /**
+     * Swap the entry's formats for their compressed form, unless it was read or changed since the scan
+     */
+    private boolean demote(CacheEntry entry, RenderedArtifact svg, CompressedRender cold, long idleBefore) {
+        long variantBytes = 0;
+        synchronized (entry) {
+            if (entry.getLastAccessMillis() > idleBefore || entry.getSvgContent() != svg
+                    || entry.getColdRender() != null) {
+                return false;
+            }
+            entry.setColdRender(cold);
+            entry.setSvgContent(null);
+            entry.setPngContent(null);
+            entry.setTextContent(null);
+            // Re-encoded PNGs are dropped rather than compressed, the next read encodes them again
+            for (RenderedArtifact variant : entry.getPngVariants().values()) {
+                variantBytes += variant.size();
+            }
+            entry.getPngVariants().clear();
+        }
+        if (variantBytes > 0) {
+            charge(entry, -variantBytes);
+        }
+        return true;
+    }
+
+    /**
+     * Snapshot of the local cache for the admin API: entry counts, bytes per format,
+     * ages, hits and misses, and the top hottest (by the hot key sketch) and largest entries
+     */
+    public CacheStatsResponse getStats(int top) {
+        long now = System.currentTimeMillis();
+        List<CacheEntry> entries = new ArrayList<>();
+        cache.values().stream().filter(entry -> !isExpired(entry)).forEach(entries::add);
+        Map<String, CacheEntry> byId = new HashMap<>();
+        entries.forEach(entry -> byId.put(entry.getId(), entry));
+        int hotSetEntries;
+        synchronized (hotSet) {
+            hotSetEntries = hotSet.size();
+            hotSet.values().forEach(entry -> byId.putIfAbsent(entry.getId(), entry));
+        }
+
+        Set<Object> counted = Collections.newSetFromMap(new IdentityHashMap<>());
+        long sourceBytes = 0;
+        long svgBytes = 0;
+        long pngBytes = 0;
+        long textBytes = 0;
+        long hits = 0;
+        long misses = 0;
+        int rendered = 0;
+        int cold = 0;
+        Map<String, Long> ages = new LinkedHashMap<>();
+        for (String bucket : AGE_BUCKETS) {
+            ages.put(bucket, 0L);
+        }
+        List<CacheEntrySummary> summaries = new ArrayList<>();
+        for (CacheEntry entry : entries) {
+            CacheEntrySummary summary = summarize(entry, now);
+            summaries.add(summary);
+            sourceBytes += summary.getSourceBytes();
+            hits += summary.getHits();
+            misses += summary.getMisses();
+            ages.merge(ageBucket(summary.getAgeSeconds()), 1L, Long::sum);
+
+            CompressedRender coldRender;
+            RenderedArtifact svg;
+            RenderedArtifact png;
+            RenderedArtifact text;
+            synchronized (entry) {
+                coldRender = entry.getColdRender();
+                svg = entry.getSvgContent();
+                png = entry.getPngContent();
+                text = entry.getTextContent();
+            }
+            if (coldRender != null) {
+                cold++;
+                rendered++;
+                if (counted.add(coldRender)) {
+                    svgBytes += coldRender.getSvg().length;
+                    pngBytes += coldRender.getPng().size();
+                    textBytes += coldRender.getText().length;
+                }
+            } else if (svg != null && png != null && text != null) {
+                rendered++;
+                svgBytes += counted.add(svg) ? svg.size() : 0;
+                pngBytes += counted.add(png) ? png.size() : 0;
+                textBytes += counted.add(text) ? text.size() : 0;
+            }
+        }
+
+        Map<String, Long> bytes = new LinkedHashMap<>();
+        bytes.put("source", sourceBytes);
+        bytes.put("svg", svgBytes);
+        bytes.put("png", pngBytes);
+        bytes.put("text", textBytes);
+
+        List<CacheEntrySummary> hottest = new ArrayList<>();
+        for (SpaceSavingSketch.Estimate estimate : hotKeys.top(top)) {
+            CacheEntry entry = byId.get(estimate.getKey());
+            CacheEntrySummary summary = entry != null
+                    ? summarize(entry, now)
+                    : new CacheEntrySummary(estimate.getKey(), renderKey(estimate.getKey()),
+                            null, null, null, null, null, null, null, null);
+            summary.setRequests(estimate.getCount());
+            summary.setRequestsError(estimate.getError());
+            hottest.add(summary);
+        }
+        summaries.sort(Comparator.comparingLong(
+                (CacheEntrySummary summary) -> summary.getSourceBytes() + summary.getRenderedBytes()).reversed());
+        List<CacheEntrySummary> largest = new ArrayList<>(summaries.subList(0, Math.min(top, summaries.size())));
+
+        return new CacheStatsResponse(entries.size(), rendered, cold, hotSetEntries, inFlightRenders.size(),
+                bytes, ages, hits, misses, hotKeys.getTotal(), hottest, largest);
+    }
+
+    private CacheEntrySummary summarize(CacheEntry entry, long now) {
+        long renderedBytes = 0;
+        boolean cold;
+        synchronized (entry) {
+            CompressedRender coldRender = entry.getColdRender();
+            cold = coldRender != null;
+            if (cold) {
+                renderedBytes = coldRender.compressedSize();
+            } else {
+                renderedBytes = size(entry.getSvgContent()) + size(entry.getPngContent())
+                        + size(entry.getTextContent());
+            }
+        }
+        long ageMillis = now - entry.getCreatedAt().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        return new CacheEntrySummary(entry.getId(), renderKey(entry.getId()), null, null,
+                entry.getHits().get(), entry.getMisses().get(),
+                (long) entry.getPuml().getBytes(StandardCharsets.UTF_8).length, renderedBytes, cold,
+                Math.max(0, ageMillis / 1000));
+    }
+
+    private static long size(RenderedArtifact artifact) {
+        return artifact == null ? 0 : artifact.size();
+    }
+
+    private static String ageBucket(long ageSeconds) {
+        for (int i = 0; i < AGE_BUCKET_LIMITS.length; i++) {
+            if (ageSeconds < AGE_BUCKET_LIMITS[i]) {
+                return AGE_BUCKETS[i];
+            }
+        }
+        return AGE_BUCKETS[AGE_BUCKETS.length - 1];
+    }
+
+    /**
+     * Remove an entry from this node: the cache, the hot set and the hot key sketch.
+     * Other entries sharing its render keep it. Returns whether there was an entry.
+     */
+    public boolean purge(String id) {
+        CacheEntry entry = cache.remove(id);
+        if (entry != null) {
+            release(entry);
+        }
+        CacheEntry hot;
+        synchronized (hotSet) {
+            hot = hotSet.remove(id);
+        }
+        if (entry != null) {
+            // Don't hand the purged render to new entries
+            renderedByKey.remove(renderKey(id), entry);
+        }
+        hotKeys.remove(id);
+        boolean purged = entry != null || hot != null;
+        if (purged) {
+            meterRegistry.counter("puml.cache.purged").increment();
+        }
+        return purged;
+    }
+
+    /**
+     * Remove all entries with the given render key (the hash of the canonical source),
+     * so the next request renders them again. Returns the number of entries removed.
+     */
+    public int purgeRenderKey(String key) {
+        Set<String> ids = new HashSet<>();
+        cache.keySet().stream().filter(id -> renderKey(id).equals(key)).forEach(ids::add);
+        synchronized (hotSet) {
+            hotSet.keySet().stream().filter(id -> renderKey(id).equals(key)).forEach(ids::add);
+        }
+        int purged = 0;
+        for (String id : ids) {
+            if (purge(id)) {
+                purged++;
+            }
+        }
+        renderedByKey.remove(key);
+        return purged;
     }
 
     /**
@@ -136,5 +1192,38 @@ public class RenderCacheService {
     public int getCacheSize() {
         return cache.size();
     }
-}
 
+    /**
+     * A render of one cache entry that callers can join while it is queued or running.
+     * Counts the pre-renders holding it and notes whether anyone waits for it, so a
+     * pre-render is only cancelled when nobody else needs it.
+     */
+    private static final class InFlightRender {
+        private final RenderScheduler.Lane lane;
+        private final CompletableFuture<CacheEntry> done = new CompletableFuture<>();
+        private final AtomicBoolean started = new AtomicBoolean();
+        private volatile Future<?> task;
+        // Guarded by this
+        private int prerenders;
+        private boolean awaited;
+
+        InFlightRender(RenderScheduler.Lane lane) {
+            this.lane = lane;
+        }
+
+        /**
+         * Add a caller, unless the render was cancelled
+         */
+        synchronized boolean join(boolean speculative) {
+            if (done.isCancelled()) {
+                return false;
+            }
+            if (speculative) {
+                prerenders++;
+            } else {
+                awaited = true;
+            }
+            return true;
+        }
+    }
+}
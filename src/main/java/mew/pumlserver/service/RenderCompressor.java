@@ -0,0 +1,120 @@
+package mew.pumlserver.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import mew.pumlserver.model.CacheEntry;
+import mew.pumlserver.model.CompressedRender;
+import mew.pumlserver.model.RenderedArtifact;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the rendered formats of idle cache entries for the cold tier,
+ * and inflates them again on their next access.
+ *
+ * SVG and text are deflated at puml.cache.cold.level; PNG is already
+ * deflate-compressed and is kept as it is. Sizes before and after, and the
+ * time spent in each direction, are recorded as metrics, so the memory saved
+ * can be weighed against the cost of re-inflating.
+ */
+@Service
+public class RenderCompressor {
+
+  private final int level;
+  private final Timer deflateTimer;
+  private final Timer inflateTimer;
+  private final DistributionSummary rawBytes;
+  private final DistributionSummary compressedBytes;
+
+  public RenderCompressor(
+      @Value("${puml.cache.cold.level:6}") int level,
+      MeterRegistry meterRegistry) {
+    this.level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level));
+    this.deflateTimer = Timer.builder("puml.cache.cold.deflate")
+        .description("Time to demote an entry's rendered formats to the cold tier")
+        .register(meterRegistry);
+    this.inflateTimer = Timer.builder("puml.cache.cold.inflate")
+        .description("Time to restore an entry's rendered formats from the cold tier")
+        .register(meterRegistry);
+    this.rawBytes = DistributionSummary.builder("puml.cache.cold.size")
+        .description("Rendered formats of demoted entries, before and after compression")
+        .baseUnit("bytes")
+        .tag("stage", "raw")
+        .register(meterRegistry);
+    this.compressedBytes = DistributionSummary.builder("puml.cache.cold.size")
+        .description("Rendered formats of demoted entries, before and after compression")
+        .baseUnit("bytes")
+        .tag("stage", "compressed")
+        .register(meterRegistry);
+  }
+
+  public CompressedRender compress(RenderedArtifact svg, RenderedArtifact png, RenderedArtifact text) {
+    long start = System.nanoTime();
+    CompressedRender cold = new CompressedRender(deflate(svg), svg.size(), deflate(text), text.size(), png);
+    deflateTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    rawBytes.record(cold.rawSize());
+    compressedBytes.record(cold.compressedSize());
+    return cold;
+  }
+
+  /**
+   * Put the formats of a cold render back into an entry
+   */
+  public void restore(CompressedRender cold, CacheEntry entry) {
+    long start = System.nanoTime();
+    entry.setSvgContent(inflate(cold.getSvg(), cold.getSvgSize()));
+    entry.setPngContent(cold.getPng());
+    entry.setTextContent(inflate(cold.getText(), cold.getTextSize()));
+    inflateTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+  }
+
+  private byte[] deflate(RenderedArtifact artifact) {
+    Deflater deflater = new Deflater(level);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, artifact.size() / 4));
+      try (DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, 8192)) {
+        artifact.writeTo(deflated);
+      }
+      return out.toByteArray();
+    } catch (IOException e) {
+      // In-memory streams don't fail
+      throw new UncheckedIOException(e);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static RenderedArtifact inflate(byte[] compressed, int size) {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      byte[] bytes = new byte[size];
+      int length = 0;
+      while (length < size) {
+        int n = inflater.inflate(bytes, length, size - length);
+        if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+          break;
+        }
+        length += n;
+      }
+      if (length != size) {
+        throw new IllegalStateException("Cold tier entry truncated: " + length + " of " + size + " bytes");
+      }
+      return RenderedArtifact.wrap(bytes);
+    } catch (DataFormatException e) {
+      throw new IllegalStateException("Cold tier entry corrupted", e);
+    } finally {
+      inflater.end();
+    }
+  }
+}
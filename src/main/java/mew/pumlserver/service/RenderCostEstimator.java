@@ -0,0 +1,266 @@
+package mew.pumlserver.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import mew.pumlserver.exception.PayloadTooLargeException;
+import mew.pumlserver.exception.UnprocessableEntityException;
+import mew.pumlserver.model.RenderCostEstimate;
+import net.sourceforge.plantuml.SourceStringReader;
+import net.sourceforge.plantuml.core.Diagram;
+import net.sourceforge.plantuml.cucadiagram.CucaDiagram;
+import net.sourceforge.plantuml.sequencediagram.SequenceDiagram;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Cheap pre-analysis of a diagram before it is rendered.
+ *
+ * Parses the source (no layout, no image export), counts nodes and edges and
+ * estimates render time for all formats and the PNG raster area. Estimates are
+ * calibrated at runtime: every measured render updates a per-family correction
+ * factor (EWMA of measured / estimated time).
+ *
+ * The render cache passes the source with its includes inlined, and the analysis
+ * is kept by render key for the last puml.admission.estimate-cache-size diagrams,
+ * so a diagram rendered again (after eviction, or on another format) isn't parsed
+ * for its estimate again. Hits and misses are counted in puml.render.cost.analysis.
+ *
+ * Admission rules:
+ * - source larger than puml.admission.max-source-bytes: 413
+ * - estimated render time above puml.admission.max-millis: 422
+ * - estimated raster area above puml.admission.max-estimated-pixels: 422 (a diagram this
+ *   large would be downscaled past legibility, so its layout isn't worth running)
+ * - estimated render time above puml.admission.heavy-millis: heavy (bulk render lane)
+ *
+ * PNG output is always capped at puml.admission.max-raster-pixels by RenderService.
+ */
+@Service
+public class RenderCostEstimator {
+
+  private static final String FAMILY_GRAPHVIZ = "graphviz";
+  private static final String FAMILY_OTHER = "other";
+  private static final double CALIBRATION_ALPHA = 0.1;
+
+  // Base coefficients (milliseconds for SVG + PNG + text), corrected by calibration
+  private static final double GRAPHVIZ_BASE_MS = 30;
+  private static final double GRAPHVIZ_NODE_MS = 3;
+  private static final double GRAPHVIZ_EDGE_MS = 2;
+  private static final double GRAPHVIZ_QUADRATIC_MS = 0.002;
+  private static final double OTHER_BASE_MS = 10;
+  private static final double OTHER_ELEMENT_MS = 0.8;
+
+  // Rough raster footprint per element
+  private static final long GRAPHVIZ_PIXELS_PER_NODE = 160L * 100L * 3L;
+  private static final long SEQUENCE_PIXELS_PER_PARTICIPANT_COLUMN = 140L;
+  private static final long SEQUENCE_PIXELS_PER_EVENT_ROW = 35L;
+  private static final long OTHER_PIXELS_PER_LINE = 400L * 40L;
+
+  private final long maxSourceBytes;
+  private final double maxMillis;
+  private final double heavyMillis;
+  private final long maxEstimatedPixels;
+  private final Map<String, Analysis> analyses;
+  private final MeterRegistry meterRegistry;
+
+  private volatile double graphvizCalibration = 1.0;
+  private volatile double otherCalibration = 1.0;
+
+  public RenderCostEstimator(
+      @Value("${puml.admission.max-source-bytes:262144}") long maxSourceBytes,
+      @Value("${puml.admission.max-millis:60000}") double maxMillis,
+      @Value("${puml.admission.heavy-millis:2000}") double heavyMillis,
+      @Value("${puml.admission.max-estimated-pixels:400000000}") long maxEstimatedPixels,
+      @Value("${puml.admission.estimate-cache-size:10000}") int estimateCacheSize,
+      MeterRegistry meterRegistry) {
+    this.maxSourceBytes = maxSourceBytes;
+    this.maxMillis = maxMillis;
+    this.heavyMillis = heavyMillis;
+    this.maxEstimatedPixels = maxEstimatedPixels;
+    this.meterRegistry = meterRegistry;
+    int maxAnalyses = Math.max(0, estimateCacheSize);
+    this.analyses = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Analysis> eldest) {
+        return size() > maxAnalyses;
+      }
+    });
+
+    Gauge.builder("puml.render.cost.calibration", this, s -> s.graphvizCalibration)
+        .tag("family", FAMILY_GRAPHVIZ)
+        .description("Measured / estimated render time correction factor")
+        .register(meterRegistry);
+    Gauge.builder("puml.render.cost.calibration", this, s -> s.otherCalibration)
+        .tag("family", FAMILY_OTHER)
+        .description("Measured / estimated render time correction factor")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Estimate the cost of rendering a diagram in all formats.
+   */
+  public RenderCostEstimate estimate(String puml) {
+    return estimate(analyze(puml));
+  }
+
+  private RenderCostEstimate estimate(Analysis analysis) {
+    double estimatedMillis = analysis.rawMillis * (analysis.usesGraphviz ? graphvizCalibration : otherCalibration);
+    return new RenderCostEstimate(analysis.type, analysis.nodes, analysis.edges, analysis.usesGraphviz,
+        estimatedMillis, analysis.pixels, estimatedMillis > heavyMillis);
+  }
+
+  /**
+   * Parse a diagram and estimate its uncalibrated cost
+   */
+  private static Analysis analyze(String puml) {
+    SourceStringReader reader = new SourceStringReader(puml);
+    Diagram diagram = reader.getBlocks().isEmpty() ? null : reader.getBlocks().get(0).getDiagram();
+
+    int nodes;
+    int edges;
+    boolean usesGraphviz = false;
+    double rawMillis;
+    long pixels;
+
+    if (diagram instanceof CucaDiagram) {
+      CucaDiagram cuca = (CucaDiagram) diagram;
+      usesGraphviz = true;
+      nodes = cuca.getLeafssize() + cuca.getGroups(false).size();
+      edges = cuca.getLinks().size();
+      double size = nodes + edges;
+      rawMillis = GRAPHVIZ_BASE_MS + GRAPHVIZ_NODE_MS * nodes + GRAPHVIZ_EDGE_MS * edges
+          + GRAPHVIZ_QUADRATIC_MS * size * size;
+      pixels = GRAPHVIZ_PIXELS_PER_NODE * Math.max(1, nodes);
+    } else if (diagram instanceof SequenceDiagram) {
+      SequenceDiagram sequence = (SequenceDiagram) diagram;
+      nodes = sequence.participants().size();
+      edges = sequence.events().size();
+      rawMillis = OTHER_BASE_MS + OTHER_ELEMENT_MS * (nodes + edges);
+      pixels = (SEQUENCE_PIXELS_PER_PARTICIPANT_COLUMN * Math.max(1, nodes))
+          * (SEQUENCE_PIXELS_PER_EVENT_ROW * Math.max(1, edges) + 100);
+    } else {
+      nodes = (int) puml.lines().filter(line -> !line.isBlank()).count();
+      edges = 0;
+      rawMillis = OTHER_BASE_MS + OTHER_ELEMENT_MS * nodes;
+      pixels = OTHER_PIXELS_PER_LINE * Math.max(1, nodes);
+    }
+
+    String type = diagram == null ? "none" : diagram.getClass().getSimpleName();
+    return new Analysis(type, nodes, edges, usesGraphviz, rawMillis, pixels);
+  }
+
+  /**
+   * Estimate and apply the admission rules.
+   *
+   * @throws PayloadTooLargeException if the source is larger than allowed
+   * @throws UnprocessableEntityException if the estimated render cost is over budget
+   */
+  public RenderCostEstimate admit(String puml) {
+    return admit(puml, null, () -> puml);
+  }
+
+  /**
+   * Estimate a cache entry and apply the admission rules. The size limit applies to the
+   * source as sent; the estimate is of the resolved source (includes inlined), kept by
+   * render key.
+   *
+   * @param renderKey render key of the entry, or null not to keep the analysis
+   * @param resolvedSource the source to analyze, only read on a miss
+   * @throws PayloadTooLargeException if the source is larger than allowed
+   * @throws UnprocessableEntityException if the estimated render cost is over budget
+   */
+  public RenderCostEstimate admit(String puml, String renderKey, Supplier<String> resolvedSource) {
+    long sourceBytes = puml.getBytes(StandardCharsets.UTF_8).length;
+    if (sourceBytes > maxSourceBytes) {
+      meterRegistry.counter("puml.render.admission.rejected", "reason", "source-size").increment();
+      throw new PayloadTooLargeException("PUML source is " + sourceBytes + " bytes, the limit is "
+          + maxSourceBytes + " bytes");
+    }
+
+    RenderCostEstimate estimate = estimate(analysis(renderKey, resolvedSource));
+    if (estimate.getEstimatedMillis() > maxMillis) {
+      meterRegistry.counter("puml.render.admission.rejected", "reason", "cost").increment();
+      throw new UnprocessableEntityException(String.format(
+          "Diagram is too complex to render: %d nodes, %d edges, estimated %.0f ms (limit %.0f ms)",
+          estimate.getNodes(), estimate.getEdges(), estimate.getEstimatedMillis(), maxMillis));
+    }
+    if (estimate.getEstimatedPixels() > maxEstimatedPixels) {
+      meterRegistry.counter("puml.render.admission.rejected", "reason", "pixels").increment();
+      throw new UnprocessableEntityException(String.format(
+          "Diagram is too large to render: %d nodes, %d edges, estimated %d pixels (limit %d pixels)",
+          estimate.getNodes(), estimate.getEdges(), estimate.getEstimatedPixels(), maxEstimatedPixels));
+    }
+    if (estimate.isHeavy()) {
+      meterRegistry.counter("puml.render.admission.heavy").increment();
+    }
+    return estimate;
+  }
+
+  private Analysis analysis(String renderKey, Supplier<String> source) {
+    if (renderKey == null) {
+      return analyze(source.get());
+    }
+    Analysis analysis = analyses.get(renderKey);
+    meterRegistry.counter("puml.render.cost.analysis", "result", analysis == null ? "miss" : "hit").increment();
+    if (analysis == null) {
+      analysis = analyze(source.get());
+      analyses.put(renderKey, analysis);
+    }
+    return analysis;
+  }
+
+  /**
+   * Record a measured render time and update the calibration factor for the
+   * estimate's diagram family.
+   */
+  public void record(RenderCostEstimate estimate, long measuredNanos) {
+    double measuredMillis = TimeUnit.NANOSECONDS.toMicros(measuredNanos) / 1000.0;
+    double ratio = measuredMillis / Math.max(1.0, estimate.getEstimatedMillis());
+    String family = estimate.isUsesGraphviz() ? FAMILY_GRAPHVIZ : FAMILY_OTHER;
+
+    DistributionSummary.builder("puml.render.cost.error")
+        .description("Measured / estimated render time")
+        .tag("family", family)
+        .register(meterRegistry)
+        .record(ratio);
+
+    // ratio is relative to the already-calibrated estimate, so fold it into the current factor
+    if (estimate.isUsesGraphviz()) {
+      graphvizCalibration = clamp(graphvizCalibration * (1 - CALIBRATION_ALPHA + CALIBRATION_ALPHA * ratio));
+    } else {
+      otherCalibration = clamp(otherCalibration * (1 - CALIBRATION_ALPHA + CALIBRATION_ALPHA * ratio));
+    }
+  }
+
+  private static double clamp(double factor) {
+    return Math.max(0.05, Math.min(100.0, factor));
+  }
+
+  /**
+   * What a parse tells about a diagram, before calibration
+   */
+  private static final class Analysis {
+    private final String type;
+    private final int nodes;
+    private final int edges;
+    private final boolean usesGraphviz;
+    private final double rawMillis;
+    private final long pixels;
+
+    Analysis(String type, int nodes, int edges, boolean usesGraphviz, double rawMillis, long pixels) {
+      this.type = type;
+      this.nodes = nodes;
+      this.edges = edges;
+      this.usesGraphviz = usesGraphviz;
+      this.rawMillis = rawMillis;
+      this.pixels = pixels;
+    }
+  }
+}
@@ -0,0 +1,376 @@
+package mew.pumlserver.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.context.ContextSnapshotFactory;
+import jakarta.annotation.PreDestroy;
+import mew.pumlserver.exception.ServiceUnavailableException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Schedules render work on a fixed pool of render threads through priority lanes.
+ *
+ * - Lanes (INTERACTIVE, BULK) share the render threads by stride scheduling:
+ * each lane gets dispatches in proportion to its weight, so bulk traffic keeps
+ * making progress without delaying interactive renders for long. BULK is also
+ * capped at a maximum number of concurrently running renders.
+ * - Inside a lane, clients are served by deficit round robin using the estimated
+ * render cost, so one client submitting many (or expensive) diagrams can't
+ * starve the others.
+ *
+ * Queue depth, running renders, queue wait and execution time are exported per lane.
+ * Tasks run with the submitter's context (current observation and trace).
+ */
+@Service
+public class RenderScheduler {
+
+  private static final ContextSnapshotFactory CONTEXT = ContextSnapshotFactory.builder().build();
+
+  public enum Lane {
+    INTERACTIVE, BULK
+  }
+
+  private static final long STRIDE = 1_000_000L;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition workAvailable = lock.newCondition();
+  private final Map<Lane, LaneQueue> lanes = new EnumMap<>(Lane.class);
+  private final List<Thread> workers = new ArrayList<>();
+  private final double quantum;
+  private final MeterRegistry meterRegistry;
+  private volatile boolean running = true;
+
+  public RenderScheduler(
+      @Value("${puml.scheduler.threads:0}") int threads,
+      @Value("${puml.scheduler.interactive-weight:4}") int interactiveWeight,
+      @Value("${puml.scheduler.bulk-weight:1}") int bulkWeight,
+      @Value("${puml.scheduler.bulk-max-concurrent:0}") int bulkMaxConcurrent,
+      @Value("${puml.scheduler.max-queue:1000}") int maxQueue,
+      @Value("${puml.scheduler.quantum-ms:50}") double quantum,
+      MeterRegistry meterRegistry) {
+    int threadCount = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    this.quantum = Math.max(1.0, quantum);
+    this.meterRegistry = meterRegistry;
+
+    lanes.put(Lane.INTERACTIVE, new LaneQueue(Lane.INTERACTIVE, interactiveWeight, threadCount, maxQueue));
+    lanes.put(Lane.BULK, new LaneQueue(Lane.BULK, bulkWeight,
+        bulkMaxConcurrent > 0 ? bulkMaxConcurrent : Math.max(1, threadCount / 2), maxQueue));
+
+    for (LaneQueue laneQueue : lanes.values()) {
+      String tag = laneQueue.lane.name().toLowerCase(Locale.ROOT);
+      Gauge.builder("puml.scheduler.queue.depth", laneQueue, q -> q.size)
+          .tag("lane", tag)
+          .description("Render tasks waiting in the lane")
+          .register(meterRegistry);
+      Gauge.builder("puml.scheduler.running", laneQueue, q -> q.running)
+          .tag("lane", tag)
+          .description("Render tasks currently running from the lane")
+          .register(meterRegistry);
+    }
+
+    for (int i = 0; i < threadCount; i++) {
+      Thread worker = new Thread(this::workerLoop, "render-" + (i + 1));
+      worker.setDaemon(true);
+      workers.add(worker);
+      worker.start();
+    }
+  }
+
+  /**
+   * Stop the render threads. Tasks still queued are dropped and their futures cancelled, so
+   * callers waiting for them get a CancellationException instead of waiting forever; tasks
+   * already running are interrupted.
+   */
+  @PreDestroy
+  public void shutdown() {
+    List<Task<?>> pending = new ArrayList<>();
+    lock.lock();
+    try {
+      running = false;
+      for (LaneQueue laneQueue : lanes.values()) {
+        laneQueue.drain(pending);
+      }
+    } finally {
+      lock.unlock();
+    }
+    workers.forEach(Thread::interrupt);
+    for (Task<?> task : pending) {
+      task.cancel(false);
+    }
+  }
+
+  /**
+   * Submit render work and wait for its result. If the calling thread is
+   * interrupted the task is cancelled (and dropped if it hasn't started yet).
+   *
+   * @param lane the priority lane
+   * @param clientKey the client the work is accounted to
+   * @param cost estimated cost in milliseconds, used for fair queueing
+   * @param task the render
+   * @return the task result
+   * @throws IOException if the render fails or the wait is interrupted
+   */
+  public <T> T execute(Lane lane, String clientKey, double cost, Callable<T> task) throws IOException {
+    Future<T> future = submit(lane, clientKey, cost, task);
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for render", e);
+    } catch (CancellationException e) {
+      throw new IOException("Render was cancelled", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Submit render work without waiting.
+   *
+   * @throws ServiceUnavailableException if the lane queue is full or the scheduler is shut down
+   */
+  public <T> Future<T> submit(Lane lane, String clientKey, double cost, Callable<T> task) {
+    Task<T> queued = new Task<>(CONTEXT.captureAll().wrap(task), lane, clientKey, Math.max(0.0, cost),
+        System.nanoTime());
+    lock.lock();
+    try {
+      if (!running) {
+        throw new ServiceUnavailableException("Server is shutting down");
+      }
+      lanes.get(lane).enqueue(clientKey, queued);
+      workAvailable.signal();
+    } finally {
+      lock.unlock();
+    }
+    return queued;
+  }
+
+  /**
+   * Get the number of tasks waiting across all lanes (for monitoring)
+   */
+  public int getQueueDepth() {
+    lock.lock();
+    try {
+      return lanes.values().stream().mapToInt(q -> q.size).sum();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void workerLoop() {
+    while (running) {
+      Task<?> task;
+      try {
+        task = take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      String tag = task.lane.name().toLowerCase(Locale.ROOT);
+      meterRegistry.timer("puml.scheduler.queue.wait", "lane", tag)
+          .record(System.nanoTime() - task.enqueuedNanos, TimeUnit.NANOSECONDS);
+      Timer.Sample sample = Timer.start(meterRegistry);
+      try {
+        task.run();
+      } finally {
+        sample.stop(meterRegistry.timer("puml.scheduler.execution", "lane", tag));
+        lock.lock();
+        try {
+          lanes.get(task.lane).running--;
+          workAvailable.signal();
+        } finally {
+          lock.unlock();
+        }
+        // Clear any interrupt left by a cancelled task before taking the next one
+        Thread.interrupted();
+      }
+    }
+  }
+
+  /**
+   * Wait for the next task: pick the eligible lane with the lowest pass value,
+   * then the next client in that lane by deficit round robin.
+   */
+  private Task<?> take() throws InterruptedException {
+    lock.lock();
+    try {
+      while (true) {
+        LaneQueue next = null;
+        for (LaneQueue laneQueue : lanes.values()) {
+          if (laneQueue.size > 0 && laneQueue.running < laneQueue.maxConcurrent
+              && (next == null || laneQueue.pass < next.pass)) {
+            next = laneQueue;
+          }
+        }
+        if (next != null) {
+          Task<?> task = next.dequeue();
+          if (task.isCancelled()) {
+            continue;
+          }
+          next.pass += STRIDE / next.weight;
+          next.running++;
+          return task;
+        }
+        workAvailable.await();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private long minActivePass() {
+    long min = Long.MAX_VALUE;
+    for (LaneQueue laneQueue : lanes.values()) {
+      if (laneQueue.size > 0 || laneQueue.running > 0) {
+        min = Math.min(min, laneQueue.pass);
+      }
+    }
+    return min == Long.MAX_VALUE ? 0 : min;
+  }
+
+  private final class LaneQueue {
+    private final Lane lane;
+    private final long weight;
+    private final int maxConcurrent;
+    private final int maxQueue;
+    private final Map<String, ClientQueue> clients = new HashMap<>();
+    private final ArrayDeque<ClientQueue> rotation = new ArrayDeque<>();
+    private long pass;
+    private int size;
+    private int running;
+
+    LaneQueue(Lane lane, int weight, int maxConcurrent, int maxQueue) {
+      this.lane = lane;
+      this.weight = Math.max(1, weight);
+      this.maxConcurrent = Math.max(1, maxConcurrent);
+      this.maxQueue = Math.max(1, maxQueue);
+    }
+
+    void enqueue(String clientKey, Task<?> task) {
+      if (size >= maxQueue) {
+        meterRegistry.counter("puml.scheduler.rejected", "lane", lane.name().toLowerCase(Locale.ROOT)).increment();
+        throw new ServiceUnavailableException("Render queue is full, try again later");
+      }
+      if (size == 0 && running == 0) {
+        // An idle lane doesn't bank credit while it was empty
+        pass = Math.max(pass, minActivePass());
+      }
+      ClientQueue client = clients.computeIfAbsent(clientKey, ClientQueue::new);
+      if (client.tasks.isEmpty()) {
+        rotation.addLast(client);
+      }
+      client.tasks.addLast(task);
+      size++;
+    }
+
+    Task<?> dequeue() {
+      while (true) {
+        ClientQueue client = rotation.peekFirst();
+        Task<?> head = client.tasks.peekFirst();
+        if (client.deficit < head.cost) {
+          client.deficit += quantum;
+          rotation.addLast(rotation.pollFirst());
+          continue;
+        }
+        client.deficit -= head.cost;
+        client.tasks.pollFirst();
+        size--;
+        if (client.tasks.isEmpty()) {
+          rotation.pollFirst();
+          clients.remove(client.key);
+        }
+        return head;
+      }
+    }
+
+    void remove(Task<?> task) {
+      ClientQueue client = clients.get(task.clientKey);
+      if (client != null && client.tasks.remove(task)) {
+        size--;
+        if (client.tasks.isEmpty()) {
+          rotation.remove(client);
+          clients.remove(client.key);
+        }
+      }
+    }
+
+    void drain(List<Task<?>> pending) {
+      for (ClientQueue client : rotation) {
+        pending.addAll(client.tasks);
+      }
+      rotation.clear();
+      clients.clear();
+      size = 0;
+    }
+  }
+
+  private static final class ClientQueue {
+    private final String key;
+    private final ArrayDeque<Task<?>> tasks = new ArrayDeque<>();
+    private double deficit;
+
+    ClientQueue(String key) {
+      this.key = key;
+    }
+  }
+
+  /**
+   * A queued render. Cancelling it before it starts takes it out of its queue right away,
+   * so it no longer counts against the queue limit or the queue depth.
+   */
+  private final class Task<T> extends FutureTask<T> {
+    private final Lane lane;
+    private final String clientKey;
+    private final double cost;
+    private final long enqueuedNanos;
+
+    Task(Callable<T> callable, Lane lane, String clientKey, double cost, long enqueuedNanos) {
+      super(callable);
+      this.lane = lane;
+      this.clientKey = clientKey;
+      this.cost = cost;
+      this.enqueuedNanos = enqueuedNanos;
+    }
+
+    @Override
+    protected void done() {
+      if (isCancelled()) {
+        lock.lock();
+        try {
+          lanes.get(lane).remove(this);
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+  }
+}
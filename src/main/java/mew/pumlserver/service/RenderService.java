@@ -1,12 +1,20 @@
 package mew.pumlserver.service;
 
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import mew.pumlserver.model.RenderedArtifact;
 import net.sourceforge.plantuml.FileFormat;
 import net.sourceforge.plantuml.FileFormatOption;
+import net.sourceforge.plantuml.Scale;
 import net.sourceforge.plantuml.SourceStringReader;
+import net.sourceforge.plantuml.UmlDiagram;
+import net.sourceforge.plantuml.core.Diagram;
+import net.sourceforge.plantuml.cucadiagram.CucaDiagram;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Locale;
 
 /**
  * Service for rendering PlantUML diagrams.
@@ -21,51 +29,146 @@ import java.io.IOException;
  * - etc.
  * 
  * Or use skinparam directives for custom styling.
+ *
+ * Diagrams laid out by Graphviz go through {@link GraphvizLayoutService},
+ * which picks the layout engine and bounds concurrent dot processes.
+ *
+ * PNG output is capped at puml.admission.max-raster-pixels: larger diagrams
+ * are downscaled so the raster never exceeds the budget. PNG encoding goes
+ * through {@link PngExportService}.
+ *
+ * Includes from the local include library are inlined by {@link IncludeResolver}
+ * before parsing, so PlantUML doesn't read and preprocess them for every format.
+ *
+ * Output is written into a pooled buffer from {@link RenderBufferPool} and
+ * copied once into an exactly sized {@link RenderedArtifact}.
+ *
+ * Each render is observed as puml.render, with puml.render.parse (PlantUML
+ * parsing) and puml.render.layout (layout and drawing, Graphviz included) as
+ * children; PNG encoding shows up under the layout as puml.render.png-encode.
  */
 @Service
 public class RenderService {
 
+  private final GraphvizLayoutService layoutService;
+  private final IncludeResolver includeResolver;
+  private final PngExportService pngExportService;
+  private final RenderBufferPool bufferPool;
+  private final long maxRasterPixels;
+  private final ObservationRegistry observationRegistry;
+
+  public RenderService(GraphvizLayoutService layoutService, IncludeResolver includeResolver,
+      PngExportService pngExportService, RenderBufferPool bufferPool,
+      @Value("${puml.admission.max-raster-pixels:16000000}") long maxRasterPixels,
+      ObservationRegistry observationRegistry) {
+    this.layoutService = layoutService;
+    this.includeResolver = includeResolver;
+    this.pngExportService = pngExportService;
+    this.bufferPool = bufferPool;
+    this.maxRasterPixels = maxRasterPixels;
+    this.observationRegistry = observationRegistry;
+  }
+
   /**
    * Renders PlantUML diagram to SVG format.
    * Uses default theme matching PlantUML.com style.
    * 
    * @param puml PlantUML source code
-   * @return SVG image as byte array
+   * @return SVG document
    * @throws IOException if rendering fails
    */
-  public byte[] renderSvg(String puml) throws IOException {
-    SourceStringReader reader = new SourceStringReader(puml);
-    ByteArrayOutputStream os = new ByteArrayOutputStream();
-    reader.generateImage(os, new FileFormatOption(FileFormat.SVG));
-    return os.toByteArray();
+  public RenderedArtifact renderSvg(String puml) throws IOException {
+    return render(puml, FileFormat.SVG);
   }
 
   /**
    * Renders PlantUML diagram to PNG format.
    * Uses default theme matching PlantUML.com style.
+   * Downscaled when the raster would exceed the configured pixel budget.
    * 
    * @param puml PlantUML source code
-   * @return PNG image as byte array
+   * @return PNG image
    * @throws IOException if rendering fails
    */
-  public byte[] renderPng(String puml) throws IOException {
-    SourceStringReader reader = new SourceStringReader(puml);
-    ByteArrayOutputStream os = new ByteArrayOutputStream();
-    reader.generateImage(os, new FileFormatOption(FileFormat.PNG));
-    return os.toByteArray();
+  public RenderedArtifact renderPng(String puml) throws IOException {
+    return render(puml, FileFormat.PNG);
   }
 
   /**
    * Renders PlantUML diagram to plain text format.
    * 
    * @param puml PlantUML source code
-   * @return Text representation of the diagram
+   * @return Text representation of the diagram, UTF-8 encoded
    * @throws IOException if rendering fails
    */
-  public String renderText(String puml) throws IOException {
-    SourceStringReader reader = new SourceStringReader(puml);
-    ByteArrayOutputStream os = new ByteArrayOutputStream();
-    reader.generateImage(os, new FileFormatOption(FileFormat.UTXT));
-    return os.toString();
+  public RenderedArtifact renderText(String puml) throws IOException {
+    return render(puml, FileFormat.UTXT);
+  }
+
+  private RenderedArtifact render(String puml, FileFormat format) throws IOException {
+    return Observation.createNotStarted("puml.render", observationRegistry)
+        .lowCardinalityKeyValue("format", format.name().toLowerCase(Locale.ROOT))
+        .observeChecked(() -> renderObserved(puml, format));
+  }
+
+  private RenderedArtifact renderObserved(String puml, FileFormat format) throws IOException {
+    SourceStringReader reader = Observation.createNotStarted("puml.render.parse", observationRegistry)
+        .observe(() -> parse(puml));
+    Diagram diagram = reader.getBlocks().isEmpty() ? null : reader.getBlocks().get(0).getDiagram();
+    boolean usesGraphviz = diagram instanceof CucaDiagram;
+    if (format == FileFormat.PNG && diagram instanceof UmlDiagram) {
+      UmlDiagram umlDiagram = (UmlDiagram) diagram;
+      umlDiagram.setScale(new PixelBudgetScale(umlDiagram.getScale(), maxRasterPixels));
+    }
+    Observation layout = Observation.createNotStarted("puml.render.layout", observationRegistry)
+        .lowCardinalityKeyValue("graphviz", String.valueOf(usesGraphviz));
+    try (RenderBufferPool.Buffer os = bufferPool.acquire()) {
+      if (format == FileFormat.PNG) {
+        FileFormatOption option = pngExportService.fileFormatOption();
+        layout.observeChecked(() -> layoutService.runLayout(usesGraphviz,
+            () -> pngExportService.export(() -> reader.generateImage(os, option))));
+      } else {
+        layout.observeChecked(() -> layoutService.runLayout(usesGraphviz,
+            () -> reader.generateImage(os, new FileFormatOption(format))));
+      }
+      return os.toArtifact();
+    }
+  }
+
+  /**
+   * Preprocess and parse the source; the diagram is kept by its block for the render
+   */
+  private SourceStringReader parse(String puml) {
+    String source = includeResolver.resolve(puml).getSource();
+    SourceStringReader reader = new SourceStringReader(layoutService.prepareSource(source));
+    if (!reader.getBlocks().isEmpty()) {
+      reader.getBlocks().get(0).getDiagram();
+    }
+    return reader;
+  }
+
+  /**
+   * Applies the diagram's own scale, then shrinks further if the resulting
+   * raster would exceed the pixel budget.
+   */
+  private static final class PixelBudgetScale implements Scale {
+
+    private final Scale delegate;
+    private final long maxPixels;
+
+    PixelBudgetScale(Scale delegate, long maxPixels) {
+      this.delegate = delegate;
+      this.maxPixels = maxPixels;
+    }
+
+    @Override
+    public double getScale(double width, double height) {
+      double scale = delegate == null ? 1.0 : delegate.getScale(width, height);
+      double pixels = width * scale * height * scale;
+      if (maxPixels > 0 && pixels > maxPixels) {
+        scale *= Math.sqrt(maxPixels / pixels);
+      }
+      return scale;
+    }
   }
 }
@@ -0,0 +1,172 @@
+package mew.pumlserver.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Heavy hitters of a stream of keys in bounded memory (Space-Saving, Metwally et al.).
+ *
+ * At most capacity keys are counted. A key that isn't counted takes the place of
+ * the key with the lowest count, and inherits that count as its error. Each count
+ * is an upper bound of the key's real count and count - error a lower bound, so
+ * any key seen more than (stream length / capacity) times is guaranteed to be
+ * counted. Counters are kept in a min-heap, so an update is O(log capacity).
+ */
+public class SpaceSavingSketch {
+
+  private final int capacity;
+  private final Map<String, Counter> counters = new HashMap<>();
+  private final Counter[] heap;
+  private int size;
+  private long total;
+
+  public SpaceSavingSketch(int capacity) {
+    this.capacity = Math.max(1, capacity);
+    this.heap = new Counter[this.capacity];
+  }
+
+  public synchronized void add(String key) {
+    total++;
+    Counter counter = counters.get(key);
+    if (counter == null && size < capacity) {
+      counter = new Counter(key, 1, size);
+      heap[size++] = counter;
+      counters.put(key, counter);
+      siftUp(counter.index);
+      return;
+    }
+    if (counter == null) {
+      // Replace the minimum; its count becomes the newcomer's error
+      counter = heap[0];
+      counters.remove(counter.key);
+      counter.key = key;
+      counter.error = counter.count;
+      counters.put(key, counter);
+    }
+    counter.count++;
+    siftDown(counter.index);
+  }
+
+  /**
+   * Stop counting a key, e.g. after it was purged
+   */
+  public synchronized void remove(String key) {
+    Counter counter = counters.remove(key);
+    if (counter == null) {
+      return;
+    }
+    Counter last = heap[--size];
+    heap[size] = null;
+    if (last != counter) {
+      last.index = counter.index;
+      heap[counter.index] = last;
+      siftDown(last.index);
+      siftUp(last.index);
+    }
+  }
+
+  /**
+   * The n keys with the highest counts, highest first
+   */
+  public synchronized List<Estimate> top(int n) {
+    Counter[] sorted = Arrays.copyOf(heap, size);
+    Arrays.sort(sorted, Comparator.comparingLong((Counter counter) -> counter.count).reversed());
+    List<Estimate> result = new ArrayList<>();
+    for (int i = 0; i < Math.min(n, sorted.length); i++) {
+      result.add(new Estimate(sorted[i].key, sorted[i].count, sorted[i].error));
+    }
+    return result;
+  }
+
+  /**
+   * Number of keys added since the sketch was created
+   */
+  public synchronized long getTotal() {
+    return total;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  private void siftUp(int index) {
+    Counter counter = heap[index];
+    while (index > 0) {
+      int parent = (index - 1) / 2;
+      if (heap[parent].count <= counter.count) {
+        break;
+      }
+      place(heap[parent], index);
+      index = parent;
+    }
+    place(counter, index);
+  }
+
+  private void siftDown(int index) {
+    Counter counter = heap[index];
+    while (true) {
+      int child = 2 * index + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+        child++;
+      }
+      if (counter.count <= heap[child].count) {
+        break;
+      }
+      place(heap[child], index);
+      index = child;
+    }
+    place(counter, index);
+  }
+
+  private void place(Counter counter, int index) {
+    heap[index] = counter;
+    counter.index = index;
+  }
+
+  /**
+   * A key's estimated count: the real count is between count - error and count
+   */
+  public static final class Estimate {
+    private final String key;
+    private final long count;
+    private final long error;
+
+    Estimate(String key, long count, long error) {
+      this.key = key;
+      this.count = count;
+      this.error = error;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getError() {
+      return error;
+    }
+  }
+
+  private static final class Counter {
+    private String key;
+    private long count;
+    private long error;
+    private int index;
+
+    Counter(String key, long count, int index) {
+      this.key = key;
+      this.count = count;
+      this.index = index;
+    }
+  }
+}
@@ -0,0 +1,237 @@
+package mew.pumlserver.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Batches streamed tokens into SSE frames.
+ *
+ * Instead of one event (and one flush) per token, tokens are buffered and sent
+ * as a single data frame when the time window (puml.sse.window-ms) has passed
+ * since the buffered frame was started or the frame reaches puml.sse.max-frame-bytes.
+ * The first token of a response is sent right away, and the rest is flushed on completion.
+ * A frame is also sent by the stream's heartbeat tick once its window has passed, so the
+ * last tokens before a pause in the upstream response aren't held back until the next token.
+ *
+ * Frames per response and bytes per frame are recorded as metrics.
+ */
+@Service
+public class SseFrameCoalescer {
+
+  private final long windowNanos;
+  private final int maxFrameBytes;
+  private final LongSupplier nanoClock;
+  private final DistributionSummary framesPerResponse;
+  private final DistributionSummary bytesPerFrame;
+
+  @Autowired
+  public SseFrameCoalescer(
+      @Value("${puml.sse.window-ms:50}") long windowMillis,
+      @Value("${puml.sse.max-frame-bytes:4096}") int maxFrameBytes,
+      MeterRegistry meterRegistry) {
+    this(windowMillis, maxFrameBytes, meterRegistry, System::nanoTime);
+  }
+
+  SseFrameCoalescer(long windowMillis, int maxFrameBytes, MeterRegistry meterRegistry, LongSupplier nanoClock) {
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMillis));
+    this.maxFrameBytes = Math.max(1, maxFrameBytes);
+    this.nanoClock = nanoClock;
+    this.framesPerResponse = DistributionSummary.builder("puml.sse.frames")
+        .description("SSE data frames sent per streamed response")
+        .register(meterRegistry);
+    this.bytesPerFrame = DistributionSummary.builder("puml.sse.frame.bytes")
+        .description("Payload bytes per SSE data frame")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Time window of a frame in milliseconds
+   */
+  public long getWindowMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(windowNanos);
+  }
+
+  /**
+   * Open a frame writer for one streamed response
+   */
+  public FrameWriter open(SseEmitter emitter) {
+    return new FrameWriter(emitter);
+  }
+
+  /**
+   * Buffers tokens of one response. append, flush, event and complete are called by the
+   * streaming thread, {@link #heartbeat} by the heartbeat thread; the buffer and every send
+   * are guarded by the writer's lock. The heartbeat only tries the lock, so a stream blocked
+   * writing to a slow client doesn't hold up the heartbeats of the others.
+   */
+  public final class FrameWriter {
+
+    private final SseEmitter emitter;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final StringBuilder buffer = new StringBuilder();
+    private int bufferedBytes;
+    private long frameStartNanos;
+    private int frames;
+    private volatile boolean closed;
+    private volatile boolean disconnected;
+    private volatile long lastSendNanos = nanoClock.getAsLong();
+
+    private FrameWriter(SseEmitter emitter) {
+      this.emitter = emitter;
+    }
+
+    /**
+     * Buffer a token, sending the frame when it is the first token of the response,
+     * the window has elapsed or the byte limit is reached.
+     */
+    public void append(String token) throws IOException {
+      if (token.isEmpty()) {
+        return;
+      }
+      lock.lock();
+      try {
+        if (buffer.length() == 0) {
+          frameStartNanos = nanoClock.getAsLong();
+        }
+        buffer.append(token);
+        bufferedBytes += utf8Length(token);
+
+        if (frames == 0 || bufferedBytes >= maxFrameBytes || windowElapsed()) {
+          flush();
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Send the buffered tokens as one data frame
+     */
+    public void flush() throws IOException {
+      lock.lock();
+      try {
+        if (buffer.length() == 0) {
+          return;
+        }
+        String data = buffer.toString();
+        int bytes = bufferedBytes;
+        buffer.setLength(0);
+        bufferedBytes = 0;
+        send(SseEmitter.event().data(data));
+        lastSendNanos = nanoClock.getAsLong();
+        frames++;
+        bytesPerFrame.record(bytes);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Send a named event (e.g. the cache id), flushing buffered tokens first
+     */
+    public void event(String name, Object data) throws IOException {
+      lock.lock();
+      try {
+        flush();
+        send(SseEmitter.event().name(name).data(data));
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Flush the remaining tokens, complete the emitter and record the frame count
+     */
+    public void complete() throws IOException {
+      lock.lock();
+      try {
+        flush();
+        close();
+      } finally {
+        lock.unlock();
+      }
+      emitter.complete();
+    }
+
+    /**
+     * Record the frame count without completing the emitter (e.g. on error)
+     */
+    public void close() {
+      if (!closed) {
+        closed = true;
+        framesPerResponse.record(frames);
+      }
+    }
+
+    /**
+     * Send the buffered frame if its window has passed, otherwise an SSE comment if nothing
+     * was sent for the given time. Writing is the only way to notice that the client has gone
+     * away while the response is idle. Does nothing while the streaming thread is writing.
+     *
+     * @throws IOException if the client has disconnected
+     */
+    public void heartbeat(long idleNanos) throws IOException {
+      if (closed || !lock.tryLock()) {
+        return;
+      }
+      try {
+        if (buffer.length() > 0 && windowElapsed()) {
+          flush();
+        } else if (nanoClock.getAsLong() - lastSendNanos >= idleNanos) {
+          send(SseEmitter.event().comment("keep-alive"));
+          lastSendNanos = nanoClock.getAsLong();
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Whether the response is finished (completed or failed)
+     */
+    public boolean isClosed() {
+      return closed;
+    }
+
+    /**
+     * Whether a write failed because the client has gone away
+     */
+    public boolean isDisconnected() {
+      return disconnected;
+    }
+
+    private boolean windowElapsed() {
+      return nanoClock.getAsLong() - frameStartNanos >= windowNanos;
+    }
+
+    private void send(SseEmitter.SseEventBuilder event) throws IOException {
+      try {
+        emitter.send(event);
+      } catch (IOException e) {
+        disconnected = true;
+        throw e;
+      }
+    }
+
+    private int utf8Length(String token) {
+      int length = token.length();
+      for (int i = 0; i < token.length(); i++) {
+        if (token.charAt(i) >= 0x80) {
+          return token.getBytes(StandardCharsets.UTF_8).length;
+        }
+      }
+      return length;
+    }
+  }
+}
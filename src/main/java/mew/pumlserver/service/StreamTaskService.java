@@ -0,0 +1,142 @@
+package mew.pumlserver.service;
+
+import io.micrometer.context.ContextExecutorService;
+import io.micrometer.context.ContextSnapshotFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the work behind streamed (SSE) responses.
+ *
+ * The task is bound to its emitter: when the emitter times out, fails (usually
+ * because the client disconnected) or is completed before the task finished,
+ * the task is cancelled and its thread interrupted. That aborts the upstream
+ * OpenAI call and the character loop. Cancelled streams are counted in
+ * puml.stream.cancelled.
+ *
+ * A disconnect is only noticed when something is written, so idle streams (e.g.
+ * waiting for OpenAI) get an SSE comment every puml.sse.heartbeat-ms. The same tick,
+ * run every puml.sse.window-ms when that is shorter, sends buffered tokens whose
+ * frame window has passed.
+ */
+@Service
+public class StreamTaskService {
+
+  private static final Logger log = LoggerFactory.getLogger(StreamTaskService.class);
+
+  private final SseFrameCoalescer frameCoalescer;
+  private final MeterRegistry meterRegistry;
+  private final long heartbeatMillis;
+  private final long tickMillis;
+  private final AtomicInteger threadCount = new AtomicInteger();
+  // Stream tasks run with the request's context (current observation and trace)
+  private final ExecutorService executor = ContextExecutorService.wrap(Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "stream-" + threadCount.incrementAndGet());
+    thread.setDaemon(true);
+    return thread;
+  }), ContextSnapshotFactory.builder().build());
+  private final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "stream-heartbeat");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  public StreamTaskService(SseFrameCoalescer frameCoalescer, MeterRegistry meterRegistry,
+      @Value("${puml.sse.heartbeat-ms:2000}") long heartbeatMillis) {
+    this.frameCoalescer = frameCoalescer;
+    this.meterRegistry = meterRegistry;
+    this.heartbeatMillis = Math.max(100, heartbeatMillis);
+    long windowMillis = frameCoalescer.getWindowMillis();
+    this.tickMillis = windowMillis > 0 ? Math.min(this.heartbeatMillis, Math.max(10, windowMillis)) : this.heartbeatMillis;
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    heartbeats.shutdownNow();
+    executor.shutdownNow();
+  }
+
+  /**
+   * Run a streaming task for an emitter.
+   *
+   * @param emitter the response emitter
+   * @param endpoint endpoint name, used as metric tag
+   * @param task the streaming work; it must complete the frames when done
+   */
+  public void run(SseEmitter emitter, String endpoint, StreamTask task) {
+    SseFrameCoalescer.FrameWriter frames = frameCoalescer.open(emitter);
+    AtomicBoolean cancelled = new AtomicBoolean();
+
+    Future<?> future = executor.submit(() -> {
+      try {
+        task.run(frames);
+      } catch (InterruptedException | CancellationException e) {
+        // Cancelled because the emitter is gone, nothing left to send
+        Thread.currentThread().interrupt();
+      } catch (Exception e) {
+        if (frames.isDisconnected() && !frames.isClosed()) {
+          recordCancelled(cancelled, endpoint, "disconnect");
+        }
+        frames.close();
+        emitter.completeWithError(e);
+      } finally {
+        frames.close();
+      }
+    });
+
+    long idleNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatMillis);
+    ScheduledFuture<?> heartbeat = heartbeats.scheduleWithFixedDelay(() -> {
+      try {
+        frames.heartbeat(idleNanos);
+      } catch (IOException | IllegalStateException e) {
+        cancel(future, frames, cancelled, endpoint, "disconnect");
+      }
+    }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+
+    // Frames are closed before the task completes the emitter itself, so these only cancel streams cut short
+    emitter.onTimeout(() -> cancel(future, frames, cancelled, endpoint, "timeout"));
+    emitter.onError(error -> {
+      heartbeat.cancel(false);
+      cancel(future, frames, cancelled, endpoint, "error");
+    });
+    emitter.onCompletion(() -> {
+      heartbeat.cancel(false);
+      cancel(future, frames, cancelled, endpoint, "disconnect");
+    });
+  }
+
+  private void cancel(Future<?> future, SseFrameCoalescer.FrameWriter frames, AtomicBoolean cancelled,
+      String endpoint, String reason) {
+    if (!frames.isClosed() && future.cancel(true)) {
+      recordCancelled(cancelled, endpoint, reason);
+    }
+  }
+
+  private void recordCancelled(AtomicBoolean cancelled, String endpoint, String reason) {
+    if (cancelled.compareAndSet(false, true)) {
+      meterRegistry.counter("puml.stream.cancelled", "endpoint", endpoint, "reason", reason).increment();
+      log.debug("Cancelled {} stream: {}", endpoint, reason);
+    }
+  }
+
+  @FunctionalInterface
+  public interface StreamTask {
+    void run(SseFrameCoalescer.FrameWriter frames) throws Exception;
+  }
+}
@@ -0,0 +1,244 @@
+package mew.pumlserver.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Delta between two versions of an SVG document, as sent to clients that already
+ * have the older one.
+ *
+ * Both documents are split into tokens, each tag and each text between tags, and
+ * diffed token by token (Myers), so an edit replaces whole elements instead of
+ * fragments of them. The delta is a list of operations on the characters of the
+ * old document, applied with a cursor starting at 0:
+ * - a positive number n copies the next n characters of the old document
+ * - a negative number -n skips the next n characters of the old document
+ * - a string is inserted as it is
+ */
+public final class SvgDiff {
+
+  private SvgDiff() {
+  }
+
+  /**
+   * Operations turning base into target, or null if that takes more than maxEdits
+   * token insertions and deletions
+   */
+  public static List<Object> diff(String base, String target, int maxEdits) {
+    List<String> oldTokens = tokenize(base);
+    List<String> newTokens = tokenize(target);
+    Map<String, Integer> ids = new HashMap<>();
+    int[] a = ids(oldTokens, ids);
+    int[] b = ids(newTokens, ids);
+
+    int prefix = 0;
+    while (prefix < a.length && prefix < b.length && a[prefix] == b[prefix]) {
+      prefix++;
+    }
+    int suffix = 0;
+    while (suffix < a.length - prefix && suffix < b.length - prefix
+        && a[a.length - 1 - suffix] == b[b.length - 1 - suffix]) {
+      suffix++;
+    }
+    List<Edit> edits = myers(a, b, prefix, a.length - prefix - suffix, b.length - prefix - suffix, maxEdits);
+    if (edits == null) {
+      return null;
+    }
+
+    Ops ops = new Ops();
+    for (int i = 0; i < prefix; i++) {
+      ops.copy(oldTokens.get(i).length());
+    }
+    for (Edit edit : edits) {
+      switch (edit.kind) {
+        case EQUAL -> ops.copy(oldTokens.get(prefix + edit.index).length());
+        case DELETE -> ops.skip(oldTokens.get(prefix + edit.index).length());
+        case INSERT -> ops.insert(newTokens.get(prefix + edit.index));
+      }
+    }
+    for (int i = a.length - suffix; i < a.length; i++) {
+      ops.copy(oldTokens.get(i).length());
+    }
+    return ops.flush();
+  }
+
+  /**
+   * Apply operations of {@link #diff} to the base document
+   */
+  public static String apply(String base, List<?> ops) {
+    StringBuilder result = new StringBuilder(base.length());
+    int cursor = 0;
+    for (Object op : ops) {
+      if (op instanceof String) {
+        result.append((String) op);
+      } else {
+        int count = ((Number) op).intValue();
+        if (count > 0) {
+          result.append(base, cursor, cursor + count);
+          cursor += count;
+        } else {
+          cursor -= count;
+        }
+      }
+    }
+    return result.toString();
+  }
+
+  /**
+   * Tags and the text between them; concatenated, the tokens are the document
+   */
+  static List<String> tokenize(String svg) {
+    List<String> tokens = new ArrayList<>();
+    int start = 0;
+    for (int i = 0; i < svg.length(); i++) {
+      char c = svg.charAt(i);
+      if (c == '<' && i > start) {
+        tokens.add(svg.substring(start, i));
+        start = i;
+      } else if (c == '>') {
+        tokens.add(svg.substring(start, i + 1));
+        start = i + 1;
+      }
+    }
+    if (start < svg.length()) {
+      tokens.add(svg.substring(start));
+    }
+    return tokens;
+  }
+
+  private static int[] ids(List<String> tokens, Map<String, Integer> ids) {
+    int[] result = new int[tokens.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = ids.computeIfAbsent(tokens.get(i), token -> ids.size());
+    }
+    return result;
+  }
+
+  /**
+   * Shortest edit script between a[offset, offset + n) and b[offset, offset + m), with
+   * indexes relative to offset; the furthest reaching x of each diagonal is kept per
+   * edit count, for the way back
+   */
+  private static List<Edit> myers(int[] a, int[] b, int offset, int n, int m, int maxEdits) {
+    int limit = Math.min(n + m, maxEdits);
+    int[] v = new int[2 * limit + 3];
+    int center = limit + 1;
+    List<int[]> trace = new ArrayList<>();
+    for (int d = 0; d <= limit; d++) {
+      for (int k = -d; k <= d; k += 2) {
+        int x = k == -d || (k != d && v[center + k - 1] < v[center + k + 1])
+            ? v[center + k + 1]
+            : v[center + k - 1] + 1;
+        int y = x - k;
+        while (x < n && y < m && a[offset + x] == b[offset + y]) {
+          x++;
+          y++;
+        }
+        v[center + k] = x;
+        if (x >= n && y >= m) {
+          trace.add(slice(v, center, d));
+          return backtrack(trace, n, m);
+        }
+      }
+      trace.add(slice(v, center, d));
+    }
+    return null;
+  }
+
+  private static int[] slice(int[] v, int center, int d) {
+    int[] slice = new int[2 * d + 1];
+    System.arraycopy(v, center - d, slice, 0, slice.length);
+    return slice;
+  }
+
+  private static List<Edit> backtrack(List<int[]> trace, int n, int m) {
+    List<Edit> edits = new ArrayList<>();
+    int x = n;
+    int y = m;
+    for (int d = trace.size() - 1; d > 0; d--) {
+      int[] previous = trace.get(d - 1);
+      int k = x - y;
+      boolean down = k == -d || (k != d && previous[k - 1 + d - 1] < previous[k + 1 + d - 1]);
+      int previousK = down ? k + 1 : k - 1;
+      int previousX = previous[previousK + d - 1];
+      int previousY = previousX - previousK;
+      int snakeStart = down ? previousX : previousX + 1;
+      while (x > snakeStart) {
+        x--;
+        y--;
+        edits.add(new Edit(Kind.EQUAL, x));
+      }
+      edits.add(down ? new Edit(Kind.INSERT, previousY) : new Edit(Kind.DELETE, previousX));
+      x = previousX;
+      y = previousY;
+    }
+    while (x > 0) {
+      x--;
+      edits.add(new Edit(Kind.EQUAL, x));
+    }
+    Collections.reverse(edits);
+    return edits;
+  }
+
+  private enum Kind { EQUAL, DELETE, INSERT }
+
+  private static final class Edit {
+    private final Kind kind;
+    // Token index in the old document, or in the new one for insertions
+    private final int index;
+
+    Edit(Kind kind, int index) {
+      this.kind = kind;
+      this.index = index;
+    }
+  }
+
+  /**
+   * Operations with adjacent copies, skips and insertions merged
+   */
+  private static final class Ops {
+    private final List<Object> ops = new ArrayList<>();
+    private int count;
+    private final StringBuilder inserted = new StringBuilder();
+
+    void copy(int length) {
+      if (count < 0 || inserted.length() > 0) {
+        flushPending();
+      }
+      count += length;
+    }
+
+    void skip(int length) {
+      if (count > 0) {
+        flushPending();
+      }
+      count -= length;
+    }
+
+    void insert(String text) {
+      if (count > 0) {
+        flushPending();
+      }
+      inserted.append(text);
+    }
+
+    private void flushPending() {
+      if (count != 0) {
+        ops.add(count);
+        count = 0;
+      }
+      if (inserted.length() > 0) {
+        ops.add(inserted.toString());
+        inserted.setLength(0);
+      }
+    }
+
+    List<Object> flush() {
+      flushPending();
+      return ops;
+    }
+  }
+}
@@ -0,0 +1,534 @@
+package mew.pumlserver.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import mew.pumlserver.model.RenderedArtifact;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Minifies rendered SVG before it is cached.
+ *
+ * Two streaming (StAX) passes over the document: the first counts inline
+ * styles, the second writes the document with
+ * - comments, processing instructions, the XML declaration and metadata
+ * elements removed, along with root attributes that only restate SVG defaults;
+ * - decimals in geometry attributes and styles rounded to
+ * puml.svg.optimize.precision fraction digits (a sub-pixel change);
+ * - inline styles normalized, and styles used at least
+ * puml.svg.optimize.min-style-uses times moved into classes of a single style element;
+ * - the random IDs PlantUML gives filters and gradients renamed, with their url(#id)
+ * references, so the same diagram always renders to the same bytes and two versions of
+ * a diagram only differ where the drawing does.
+ *
+ * Class names and renamed IDs are derived from a hash of the style or definition they
+ * name. CSS in an inline SVG applies to the whole page and IDs are looked up page-wide,
+ * so two diagrams inlined into one page may share a name only where they share what it
+ * stands for.
+ *
+ * Text, structure and all other attributes are copied as they are. A
+ * document that can't be parsed is stored unchanged. Input size, output size
+ * and time are recorded as metrics.
+ */
+@Service
+public class SvgOptimizer {
+
+  private static final Logger log = LoggerFactory.getLogger(SvgOptimizer.class);
+
+  private static final String SVG_NS = "http://www.w3.org/2000/svg";
+  private static final Set<String> NUMERIC_ATTRIBUTES = Set.of(
+      "x", "y", "x1", "y1", "x2", "y2", "cx", "cy", "r", "rx", "ry", "dx", "dy", "width", "height",
+      "points", "d", "stdDeviation", "stroke-width");
+  private static final Map<String, String> DEFAULT_ROOT_ATTRIBUTES = Map.of(
+      "contentScriptType", "application/ecmascript",
+      "contentStyleType", "text/css",
+      "zoomAndPan", "magnify");
+  private static final Pattern DECIMAL = Pattern.compile("-?\\d*\\.\\d+(?![\\d.eE])");
+  private static final Set<String> GENERATED_ID_ELEMENTS = Set.of("filter", "linearGradient", "radialGradient");
+  private static final Pattern URL_REFERENCE = Pattern.compile("url\\(#([^)]+)\\)");
+  // 30 bits of SHA-256, at most 6 base-36 digits after the prefix letter
+  private static final int NAME_HASH_BITS = 30;
+
+  private final RenderBufferPool bufferPool;
+  private final boolean enabled;
+  private final int precision;
+  private final int minStyleUses;
+  private final XMLInputFactory inputFactory;
+  private final XMLOutputFactory outputFactory = XMLOutputFactory.newFactory();
+  private final Timer optimizeTimer;
+  private final DistributionSummary inputBytes;
+  private final DistributionSummary outputBytes;
+  private final Counter failures;
+
+  public SvgOptimizer(
+      @Value("${puml.svg.optimize.enabled:true}") boolean enabled,
+      @Value("${puml.svg.optimize.precision:2}") int precision,
+      @Value("${puml.svg.optimize.min-style-uses:2}") int minStyleUses,
+      RenderBufferPool bufferPool,
+      MeterRegistry meterRegistry) {
+    this.bufferPool = bufferPool;
+    this.enabled = enabled;
+    this.precision = Math.max(0, precision);
+    this.minStyleUses = Math.max(2, minStyleUses);
+    this.inputFactory = XMLInputFactory.newFactory();
+    inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    this.optimizeTimer = Timer.builder("puml.svg.optimize")
+        .description("SVG minification time")
+        .register(meterRegistry);
+    this.inputBytes = DistributionSummary.builder("puml.svg.size")
+        .description("SVG size before and after minification")
+        .baseUnit("bytes")
+        .tag("stage", "rendered")
+        .register(meterRegistry);
+    this.outputBytes = DistributionSummary.builder("puml.svg.size")
+        .description("SVG size before and after minification")
+        .baseUnit("bytes")
+        .tag("stage", "optimized")
+        .register(meterRegistry);
+    this.failures = Counter.builder("puml.svg.optimize.failures")
+        .description("SVG documents stored unminified because they could not be parsed")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Minify an SVG document. Returns the input unchanged when disabled or when it can't be parsed.
+   */
+  public RenderedArtifact optimize(RenderedArtifact svg) {
+    if (!enabled || svg == null) {
+      return svg;
+    }
+    long start = System.nanoTime();
+    RenderedArtifact optimized;
+    try (RenderBufferPool.Buffer out = bufferPool.acquire()) {
+      write(svg, scan(svg), out);
+      optimized = out.size() < svg.size() ? out.toArtifact() : svg;
+    } catch (XMLStreamException | RuntimeException e) {
+      failures.increment();
+      log.debug("Storing SVG unminified: {}", e.getMessage());
+      return svg;
+    }
+    optimizeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    inputBytes.record(svg.size());
+    outputBytes.record(optimized.size());
+    return optimized;
+  }
+
+  /**
+   * First pass: assign a class to every normalized inline style used often enough,
+   * and a stable ID to every generated one. No classes are assigned if the document
+   * has its own style sheet, whose rules the classes could interact with.
+   */
+  private Rewrites scan(RenderedArtifact svg) throws XMLStreamException {
+    Map<String, Integer> uses = new HashMap<>();
+    Set<String> ids = new HashSet<>();
+    Map<String, String> definitions = new LinkedHashMap<>();
+    boolean styleSheet = false;
+    // The generated element being read, and its depth below it
+    String definitionId = null;
+    StringBuilder definition = new StringBuilder();
+    int definitionDepth = 0;
+    XMLStreamReader reader = inputFactory.createXMLStreamReader(svg.asInputStream());
+    try {
+      while (reader.hasNext()) {
+        int event = reader.next();
+        if (event == XMLStreamConstants.END_ELEMENT && definitionId != null && --definitionDepth == 0) {
+          definitions.put(definitionId, definition.toString());
+          definitionId = null;
+        }
+        if (event != XMLStreamConstants.START_ELEMENT) {
+          continue;
+        }
+        if ("style".equals(reader.getLocalName())) {
+          styleSheet = true;
+        }
+        String id = reader.getAttributeValue(null, "id");
+        boolean newId = id != null && ids.add(id);
+        if (definitionId != null) {
+          definitionDepth++;
+          appendDefinition(reader, definition);
+        } else if (newId && GENERATED_ID_ELEMENTS.contains(reader.getLocalName())) {
+          definitionId = id;
+          definitionDepth = 1;
+          definition.setLength(0);
+          appendDefinition(reader, definition);
+        }
+        String style = reader.getAttributeValue(null, "style");
+        if (style != null && !style.contains("!important")) {
+          uses.merge(normalizeStyle(style), 1, Integer::sum);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+
+    Map<String, String> renamedIds = new HashMap<>();
+    Set<String> taken = new HashSet<>(ids);
+    for (Map.Entry<String, String> generated : definitions.entrySet()) {
+      taken.remove(generated.getKey());
+      String name = uniqueName(contentName('f', generated.getValue()), taken);
+      taken.add(name);
+      renamedIds.put(generated.getKey(), name);
+    }
+    if (styleSheet) {
+      return new Rewrites(Map.of(), renamedIds);
+    }
+
+    List<Map.Entry<String, Integer>> frequent = new ArrayList<>();
+    for (Map.Entry<String, Integer> use : uses.entrySet()) {
+      if (use.getValue() >= minStyleUses && !use.getKey().isEmpty()) {
+        frequent.add(use);
+      }
+    }
+    // Most used styles first in the style sheet
+    frequent.sort(Map.Entry.<String, Integer>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+    Rewrites references = new Rewrites(Map.of(), renamedIds);
+    Map<String, String> classes = new LinkedHashMap<>();
+    Set<String> classNames = new HashSet<>();
+    for (Map.Entry<String, Integer> use : frequent) {
+      String name = uniqueName(contentName('s', references.renameReferences(use.getKey())), classNames);
+      classNames.add(name);
+      classes.put(use.getKey(), name);
+    }
+    return new Rewrites(classes, renamedIds);
+  }
+
+  /**
+   * Add an element of a generated definition: its name and attributes, without its own ID
+   * and without references to other generated IDs, which aren't stable yet
+   */
+  private static void appendDefinition(XMLStreamReader reader, StringBuilder definition) {
+    definition.append('<').append(reader.getLocalName());
+    for (int i = 0; i < reader.getAttributeCount(); i++) {
+      String name = reader.getAttributeLocalName(i);
+      if ("id".equals(name) || "href".equals(name)) {
+        continue;
+      }
+      String value = URL_REFERENCE.matcher(reader.getAttributeValue(i)).replaceAll("url(#)");
+      definition.append(' ').append(name).append('=').append(value);
+    }
+    definition.append('>');
+  }
+
+  /**
+   * A short name derived from what it names, e.g. "s1x0k3" for a style
+   */
+  private static String contentName(char prefix, String content) {
+    byte[] digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 not available", e);
+    }
+    int hash = ((digest[0] & 0xff) << 24 | (digest[1] & 0xff) << 16 | (digest[2] & 0xff) << 8 | (digest[3] & 0xff))
+        >>> (32 - NAME_HASH_BITS);
+    return prefix + Integer.toString(hash, 36);
+  }
+
+  /**
+   * The name, or if it is taken in this document (a hash collision, or an identical
+   * definition), the name with the first free suffix
+   */
+  private static String uniqueName(String name, Set<String> taken) {
+    if (!taken.contains(name)) {
+      return name;
+    }
+    int suffix = 1;
+    while (taken.contains(name + "-" + suffix)) {
+      suffix++;
+    }
+    return name + "-" + suffix;
+  }
+
+  /**
+   * Second pass: copy the document, applying the rewrites. Elements without
+   * content are written as empty-element tags.
+   */
+  private void write(RenderedArtifact svg, Rewrites rewrites, OutputStream out)
+      throws XMLStreamException {
+    XMLStreamReader reader = inputFactory.createXMLStreamReader(svg.asInputStream());
+    XMLStreamWriter writer = outputFactory.createXMLStreamWriter(out, StandardCharsets.UTF_8.name());
+    try {
+      int depth = 0;
+      int skipDepth = -1;
+      int event = reader.hasNext() ? reader.next() : XMLStreamConstants.END_DOCUMENT;
+      while (event != XMLStreamConstants.END_DOCUMENT) {
+        if (skipDepth >= 0) {
+          if (event == XMLStreamConstants.START_ELEMENT) {
+            depth++;
+          } else if (event == XMLStreamConstants.END_ELEMENT && --depth == skipDepth) {
+            skipDepth = -1;
+          }
+          event = reader.next();
+          continue;
+        }
+        switch (event) {
+          case XMLStreamConstants.START_ELEMENT:
+            if ("metadata".equals(reader.getLocalName()) && SVG_NS.equals(reader.getNamespaceURI())) {
+              skipDepth = depth++;
+              break;
+            }
+            StartElement element = readStartElement(reader, depth == 0, rewrites);
+            event = reader.next();
+            boolean stylesheet = depth == 0 && !rewrites.classes.isEmpty();
+            if (event == XMLStreamConstants.END_ELEMENT && !stylesheet) {
+              element.write(writer, true);
+              break;
+            }
+            element.write(writer, false);
+            if (stylesheet) {
+              writeStyleSheet(writer, rewrites);
+            }
+            depth++;
+            // The event after the start tag hasn't been handled yet
+            continue;
+          case XMLStreamConstants.END_ELEMENT:
+            writer.writeEndElement();
+            depth--;
+            break;
+          case XMLStreamConstants.CHARACTERS:
+          case XMLStreamConstants.SPACE:
+            writer.writeCharacters(reader.getText());
+            break;
+          case XMLStreamConstants.CDATA:
+            writer.writeCData(reader.getText());
+            break;
+          case XMLStreamConstants.ENTITY_REFERENCE:
+            writer.writeEntityRef(reader.getLocalName());
+            break;
+          case XMLStreamConstants.DTD:
+            writer.writeDTD(reader.getText());
+            break;
+          default:
+            // Comments and processing instructions are dropped
+            break;
+        }
+        event = reader.hasNext() ? reader.next() : XMLStreamConstants.END_DOCUMENT;
+      }
+      writer.writeEndDocument();
+      writer.flush();
+    } finally {
+      writer.close();
+      reader.close();
+    }
+  }
+
+  /**
+   * Read the current start tag with its attributes rewritten
+   */
+  private StartElement readStartElement(XMLStreamReader reader, boolean root, Rewrites rewrites) {
+    StartElement element = new StartElement(nullToEmpty(reader.getPrefix()), reader.getLocalName(),
+        nullToEmpty(reader.getNamespaceURI()));
+    for (int i = 0; i < reader.getNamespaceCount(); i++) {
+      element.namespaces.add(new String[] { nullToEmpty(reader.getNamespacePrefix(i)), reader.getNamespaceURI(i) });
+    }
+
+    String styleClass = null;
+    String existingClass = null;
+    String style = reader.getAttributeValue(null, "style");
+    if (style != null && !style.contains("!important")) {
+      style = normalizeStyle(style);
+      styleClass = rewrites.classes.get(style);
+    }
+    for (int i = 0; i < reader.getAttributeCount(); i++) {
+      String namespace = nullToEmpty(reader.getAttributeNamespace(i));
+      String name = reader.getAttributeLocalName(i);
+      String value = reader.getAttributeValue(i);
+      if (!namespace.isEmpty()) {
+        element.attribute(nullToEmpty(reader.getAttributePrefix(i)), namespace, name, value);
+      } else if (root && value.equals(DEFAULT_ROOT_ATTRIBUTES.get(name))) {
+        continue;
+      } else if ("class".equals(name)) {
+        existingClass = value;
+      } else if ("style".equals(name)) {
+        if (styleClass == null && !style.isEmpty()) {
+          element.attribute(name, rewrites.renameReferences(style));
+        }
+      } else if (NUMERIC_ATTRIBUTES.contains(name)) {
+        element.attribute(name, roundDecimals(value).strip());
+      } else if ("id".equals(name)) {
+        element.attribute(name, rewrites.ids.getOrDefault(value, value));
+      } else {
+        element.attribute(name, rewrites.renameReferences(value));
+      }
+    }
+    if (styleClass != null || existingClass != null) {
+      element.attribute("class", existingClass == null ? styleClass
+          : styleClass == null ? existingClass : existingClass + " " + styleClass);
+    }
+    return element;
+  }
+
+  private static void writeStyleSheet(XMLStreamWriter writer, Rewrites rewrites)
+      throws XMLStreamException {
+    StringBuilder css = new StringBuilder();
+    for (Map.Entry<String, String> entry : rewrites.classes.entrySet()) {
+      css.append('.').append(entry.getValue()).append('{')
+          .append(rewrites.renameReferences(entry.getKey())).append('}');
+    }
+    writer.writeStartElement(XMLConstants.DEFAULT_NS_PREFIX, "style", SVG_NS);
+    writer.writeAttribute("type", "text/css");
+    writer.writeCharacters(css.toString());
+    writer.writeEndElement();
+  }
+
+  /**
+   * "stroke: #A80036; stroke-width: 1.0;" becomes "stroke:#A80036;stroke-width:1"
+   */
+  private String normalizeStyle(String style) {
+    StringBuilder normalized = new StringBuilder(style.length());
+    for (String declaration : style.split(";")) {
+      int colon = declaration.indexOf(':');
+      if (colon < 0) {
+        if (!declaration.isBlank()) {
+          return style.trim();
+        }
+        continue;
+      }
+      if (normalized.length() > 0) {
+        normalized.append(';');
+      }
+      normalized.append(declaration.substring(0, colon).trim()).append(':');
+      normalized.append(roundDecimals(declaration.substring(colon + 1).trim()));
+    }
+    return normalized.toString();
+  }
+
+  /**
+   * Round every decimal in the value to the configured precision, dropping
+   * trailing zeros and the leading zero ("12.50" becomes "12.5", "0.4" becomes ".4").
+   */
+  private String roundDecimals(String value) {
+    if (value.indexOf('.') < 0) {
+      return value;
+    }
+    Matcher matcher = DECIMAL.matcher(value);
+    StringBuilder rounded = new StringBuilder(value.length());
+    int last = 0;
+    while (matcher.find()) {
+      rounded.append(value, last, matcher.start());
+      rounded.append(formatDecimal(matcher.group()));
+      last = matcher.end();
+    }
+    return rounded.append(value, last, value.length()).toString();
+  }
+
+  private String formatDecimal(String decimal) {
+    String text = new BigDecimal(decimal).setScale(precision, RoundingMode.HALF_UP)
+        .stripTrailingZeros().toPlainString();
+    if (text.startsWith("0.")) {
+      return text.substring(1);
+    }
+    if (text.startsWith("-0.")) {
+      return "-" + text.substring(2);
+    }
+    return "-0".equals(text) ? "0" : text;
+  }
+
+  private static String nullToEmpty(String value) {
+    return value == null ? "" : value;
+  }
+
+  /**
+   * A start tag, held until it is known whether the element has content
+   */
+  private static final class StartElement {
+    private final String prefix;
+    private final String localName;
+    private final String namespace;
+    private final List<String[]> namespaces = new ArrayList<>();
+    private final List<String[]> attributes = new ArrayList<>();
+
+    StartElement(String prefix, String localName, String namespace) {
+      this.prefix = prefix;
+      this.localName = localName;
+      this.namespace = namespace;
+    }
+
+    void attribute(String name, String value) {
+      attributes.add(new String[] { "", "", name, value });
+    }
+
+    void attribute(String prefix, String namespace, String name, String value) {
+      attributes.add(new String[] { prefix, namespace, name, value });
+    }
+
+    void write(XMLStreamWriter writer, boolean empty) throws XMLStreamException {
+      if (empty) {
+        writer.writeEmptyElement(prefix, localName, namespace);
+      } else {
+        writer.writeStartElement(prefix, localName, namespace);
+      }
+      for (String[] declaration : namespaces) {
+        if (declaration[0].isEmpty()) {
+          writer.writeDefaultNamespace(declaration[1]);
+        } else {
+          writer.writeNamespace(declaration[0], declaration[1]);
+        }
+      }
+      for (String[] attribute : attributes) {
+        if (attribute[1].isEmpty()) {
+          writer.writeAttribute(attribute[2], attribute[3]);
+        } else {
+          writer.writeAttribute(attribute[0], attribute[1], attribute[2], attribute[3]);
+        }
+      }
+    }
+  }
+
+  /**
+   * What the second pass rewrites: styles moved into classes, and generated IDs
+   */
+  private static final class Rewrites {
+    private final Map<String, String> classes;
+    private final Map<String, String> ids;
+
+    Rewrites(Map<String, String> classes, Map<String, String> ids) {
+      this.classes = classes;
+      this.ids = ids;
+    }
+
+    String renameReferences(String value) {
+      if (ids.isEmpty() || !value.contains("url(#")) {
+        return value;
+      }
+      Matcher matcher = URL_REFERENCE.matcher(value);
+      StringBuilder renamed = new StringBuilder(value.length());
+      while (matcher.find()) {
+        String id = ids.getOrDefault(matcher.group(1), matcher.group(1));
+        matcher.appendReplacement(renamed, Matcher.quoteReplacement("url(#" + id + ")"));
+      }
+      matcher.appendTail(renamed);
+      return renamed.toString();
+    }
+  }
+}
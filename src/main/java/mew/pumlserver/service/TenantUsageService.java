@@ -0,0 +1,190 @@
+package mew.pumlserver.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Render cache memory and render CPU time per tenant (see {@link ClientContextResolver}).
+ *
+ * Each tenant has a cache byte quota: puml.tenant.quotas (tenant=bytes, comma-separated)
+ * or else puml.tenant.quota-bytes (0 = no quota). Usage is exported per tenant as
+ * puml.tenant.cache.bytes, puml.tenant.cache.entries, puml.tenant.render.cpu and
+ * puml.tenant.renders. Only the first puml.tenant.max-tenants tenants are tracked on
+ * their own; later ones share the "other" tenant, so untrusted tenant IDs can't grow
+ * the metrics without bound.
+ */
+@Service
+public class TenantUsageService {
+
+  public static final String OTHER_TENANT = "other";
+
+  private final Map<String, Usage> tenants = new ConcurrentHashMap<>();
+  private final AtomicLong totalBytes = new AtomicLong();
+  private final long defaultQuota;
+  private final Map<String, Long> quotas;
+  private final int maxTenants;
+  private final MeterRegistry meterRegistry;
+
+  public TenantUsageService(
+      @Value("${puml.tenant.quota-bytes:0}") long defaultQuota,
+      @Value("${puml.tenant.quotas:}") String quotas,
+      @Value("${puml.tenant.max-tenants:100}") int maxTenants,
+      MeterRegistry meterRegistry) {
+    this.defaultQuota = Math.max(0, defaultQuota);
+    this.quotas = parseQuotas(quotas);
+    this.maxTenants = Math.max(1, maxTenants);
+    this.meterRegistry = meterRegistry;
+    Gauge.builder("puml.cache.bytes", totalBytes, AtomicLong::get)
+        .description("Bytes of cached sources and renders, as charged to tenants")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+  }
+
+  private static Map<String, Long> parseQuotas(String quotas) {
+    Map<String, Long> result = new HashMap<>();
+    for (String quota : quotas.split(",")) {
+      int separator = quota.lastIndexOf('=');
+      if (separator > 0) {
+        result.put(quota.substring(0, separator).trim(), Long.parseLong(quota.substring(separator + 1).trim()));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Usage of a tenant, or of the shared "other" tenant once puml.tenant.max-tenants are tracked
+   */
+  public Usage usage(String tenant) {
+    Usage usage = tenants.get(tenant);
+    if (usage != null) {
+      return usage;
+    }
+    if (tenants.size() >= maxTenants && !quotas.containsKey(tenant)) {
+      tenant = OTHER_TENANT;
+    }
+    return tenants.computeIfAbsent(tenant, Usage::new);
+  }
+
+  public Collection<Usage> all() {
+    return new ArrayList<>(tenants.values());
+  }
+
+  /**
+   * Bytes charged to all tenants
+   */
+  public long getTotalBytes() {
+    return totalBytes.get();
+  }
+
+  /**
+   * The tenant to evict from first when the cache is full: tenants over their quota,
+   * then the one using the most bytes
+   */
+  public Usage heaviest() {
+    return tenants.values().stream()
+        .filter(usage -> usage.getBytes() > 0)
+        .max(Comparator.comparing(Usage::isOverQuota).thenComparingLong(Usage::getBytes))
+        .orElse(null);
+  }
+
+  public final class Usage {
+    private final String name;
+    private final long quota;
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong entries = new AtomicLong();
+    private final Counter cpu;
+    private final Counter renders;
+    private final List<Counter> evicted = new ArrayList<>();
+
+    Usage(String name) {
+      this.name = name;
+      this.quota = quotas.getOrDefault(name, defaultQuota);
+      Tags tags = Tags.of("tenant", name);
+      Gauge.builder("puml.tenant.cache.bytes", bytes, AtomicLong::get)
+          .tags(tags)
+          .description("Bytes of the tenant's cache entries")
+          .baseUnit("bytes")
+          .register(meterRegistry);
+      Gauge.builder("puml.tenant.cache.entries", entries, AtomicLong::get)
+          .tags(tags)
+          .register(meterRegistry);
+      if (quota > 0) {
+        Gauge.builder("puml.tenant.cache.quota", this, usage -> usage.quota)
+            .tags(tags)
+            .baseUnit("bytes")
+            .register(meterRegistry);
+      }
+      this.cpu = Counter.builder("puml.tenant.render.cpu")
+          .tags(tags)
+          .description("CPU time of the tenant's renders")
+          .baseUnit("seconds")
+          .register(meterRegistry);
+      this.renders = Counter.builder("puml.tenant.renders")
+          .tags(tags)
+          .register(meterRegistry);
+      for (String reason : List.of("quota", "capacity")) {
+        evicted.add(Counter.builder("puml.tenant.cache.evicted")
+            .tags(tags.and("reason", reason))
+            .register(meterRegistry));
+      }
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Cache byte quota, 0 if unlimited
+     */
+    public long getQuota() {
+      return quota;
+    }
+
+    public long getBytes() {
+      return bytes.get();
+    }
+
+    public long getEntries() {
+      return entries.get();
+    }
+
+    public boolean isOverQuota() {
+      return quota > 0 && bytes.get() > quota;
+    }
+
+    void addBytes(long delta) {
+      bytes.addAndGet(delta);
+      totalBytes.addAndGet(delta);
+    }
+
+    void addEntries(long delta) {
+      entries.addAndGet(delta);
+    }
+
+    /**
+     * Record a render and the CPU time it took
+     */
+    public void recordRender(long cpuNanos) {
+      renders.increment();
+      cpu.increment(cpuNanos / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    void recordEviction(boolean overQuota) {
+      evicted.get(overQuota ? 0 : 1).increment();
+    }
+  }
+}
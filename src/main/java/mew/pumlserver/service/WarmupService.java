@@ -0,0 +1,155 @@
+package mew.pumlserver.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders a built-in corpus of diagrams before the application reports ready.
+ *
+ * Runs as an {@link ApplicationRunner}, so Spring Boot keeps the readiness state
+ * at REFUSING_TRAFFIC until the corpus has been rendered and the render path
+ * (PlantUML, Batik, Graphviz layout, PNG encoding) has been loaded and JIT-compiled.
+ *
+ * Reports startup time, warm-up duration and time-to-first-fast-render (JVM uptime
+ * when a warm-up round first averages below the fast render threshold) as gauges.
+ *
+ * With puml.warmup.exit-after=true the application exits after warm-up; this is
+ * used by scripts/build-cds.sh as the AppCDS training run.
+ */
+@Service
+public class WarmupService implements ApplicationRunner {
+
+  private static final Logger log = LoggerFactory.getLogger(WarmupService.class);
+  private static final String CORPUS_LOCATION = "classpath*:warmup/*.puml";
+
+  private final RenderService renderService;
+  private final ApplicationContext applicationContext;
+  private final boolean enabled;
+  private final int rounds;
+  private final long maxDurationMillis;
+  private final long fastRenderMillis;
+  private final boolean exitAfter;
+
+  private volatile long startupMillis = -1;
+  private volatile long warmupMillis = -1;
+  private volatile long firstFastRenderMillis = -1;
+
+  public WarmupService(RenderService renderService, ApplicationContext applicationContext,
+      MeterRegistry meterRegistry,
+      @Value("${puml.warmup.enabled:true}") boolean enabled,
+      @Value("${puml.warmup.rounds:3}") int rounds,
+      @Value("${puml.warmup.max-duration-ms:20000}") long maxDurationMillis,
+      @Value("${puml.warmup.fast-render-ms:100}") long fastRenderMillis,
+      @Value("${puml.warmup.exit-after:false}") boolean exitAfter) {
+    this.renderService = renderService;
+    this.applicationContext = applicationContext;
+    this.enabled = enabled;
+    this.rounds = Math.max(1, rounds);
+    this.maxDurationMillis = maxDurationMillis;
+    this.fastRenderMillis = fastRenderMillis;
+    this.exitAfter = exitAfter;
+
+    TimeGauge.builder("puml.startup.time", this, TimeUnit.MILLISECONDS, s -> s.startupMillis)
+        .description("Time taken for the application context to start")
+        .register(meterRegistry);
+    TimeGauge.builder("puml.warmup.duration", this, TimeUnit.MILLISECONDS, s -> s.warmupMillis)
+        .description("Time spent rendering the warm-up corpus")
+        .register(meterRegistry);
+    TimeGauge.builder("puml.startup.first-fast-render", this, TimeUnit.MILLISECONDS, s -> s.firstFastRenderMillis)
+        .description("JVM uptime when renders first became fast")
+        .register(meterRegistry);
+  }
+
+  @EventListener
+  public void onApplicationStarted(ApplicationStartedEvent event) {
+    if (event.getTimeTaken() != null) {
+      startupMillis = event.getTimeTaken().toMillis();
+    }
+  }
+
+  @Override
+  public void run(ApplicationArguments args) throws Exception {
+    if (!enabled) {
+      return;
+    }
+
+    Map<String, String> corpus = loadCorpus();
+    long start = System.nanoTime();
+    int completedRounds = 0;
+    long lastRoundAverage = -1;
+
+    for (int round = 1; round <= rounds; round++) {
+      long roundTotal = 0;
+      for (Map.Entry<String, String> diagram : corpus.entrySet()) {
+        long t0 = System.nanoTime();
+        try {
+          renderService.renderSvg(diagram.getValue());
+          try {
+            renderService.renderPng(diagram.getValue());
+          } catch (IllegalAccessError e) {
+            // PlantUML's PNG export reaches into com.sun.imageio.plugins.png, which fails without
+            // --add-opens java.desktop/com.sun.imageio.plugins.png=ALL-UNNAMED (see GlobalExceptionHandler)
+            log.warn("Warm-up PNG render of {} failed, is java.desktop opened to PlantUML? {}",
+                diagram.getKey(), e.getMessage());
+          }
+          renderService.renderText(diagram.getValue());
+        } catch (IOException | RuntimeException e) {
+          log.warn("Warm-up render of {} failed: {}", diagram.getKey(), e.getMessage());
+        }
+        roundTotal += System.nanoTime() - t0;
+      }
+      completedRounds = round;
+      lastRoundAverage = TimeUnit.NANOSECONDS.toMillis(roundTotal / Math.max(1, corpus.size()));
+      if (firstFastRenderMillis < 0 && lastRoundAverage <= fastRenderMillis) {
+        firstFastRenderMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+      }
+      if (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) > maxDurationMillis) {
+        break;
+      }
+    }
+
+    warmupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    log.info("Warm-up finished: diagrams={}, rounds={}, duration={}ms, last round avg={}ms, "
+        + "startup={}ms, first fast render at uptime={}ms",
+        corpus.size(), completedRounds, warmupMillis, lastRoundAverage, startupMillis, firstFastRenderMillis);
+
+    if (exitAfter) {
+      System.exit(SpringApplication.exit(applicationContext, () -> 0));
+    }
+  }
+
+  /**
+   * Load the warm-up corpus from classpath:warmup/*.puml
+   */
+  private Map<String, String> loadCorpus() throws IOException {
+    Map<String, String> corpus = new LinkedHashMap<>();
+    Resource[] resources = new PathMatchingResourcePatternResolver().getResources(CORPUS_LOCATION);
+    List<Resource> sorted = new ArrayList<>(List.of(resources));
+    sorted.sort((a, b) -> String.valueOf(a.getFilename()).compareTo(String.valueOf(b.getFilename())));
+    for (Resource resource : sorted) {
+      corpus.put(resource.getFilename(), resource.getContentAsString(StandardCharsets.UTF_8));
+    }
+    return corpus;
+  }
+}
@@ -0,0 +1,88 @@
+package mew.pumlserver;
+
+import io.opentelemetry.sdk.testing.exporter.InMemorySpanExporter;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.actuate.observability.AutoConfigureObservability;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Spans of a render request, exported to an in-memory exporter
+ */
+@SpringBootTest(properties = "management.tracing.sampling.probability=1.0")
+@AutoConfigureMockMvc
+@AutoConfigureObservability(metrics = false)
+class TracingTest {
+
+  @TestConfiguration
+  static class InMemoryExporterConfiguration {
+
+    @Bean
+    InMemorySpanExporter inMemorySpanExporter() {
+      return InMemorySpanExporter.create();
+    }
+  }
+
+  @Autowired
+  private MockMvc mockMvc;
+
+  @Autowired
+  private InMemorySpanExporter exporter;
+
+  @Autowired
+  private SdkTracerProvider tracerProvider;
+
+  @Test
+  void renderStagesShareTheRequestTrace() throws Exception {
+    exporter.reset();
+    mockMvc.perform(post("/api/v1/render/svg")
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("{\"puml\":\"@startuml\\nTracer -> Exporter : span\\n@enduml\"}"))
+        .andExpect(status().isOk());
+    tracerProvider.forceFlush().join(10, TimeUnit.SECONDS);
+
+    SpanData request = exporter.getFinishedSpanItems().stream()
+        .filter(span -> span.getName().equals("http post /api/v1/render/svg"))
+        .findFirst()
+        .orElseThrow();
+    List<SpanData> spans = exporter.getFinishedSpanItems().stream()
+        .filter(span -> span.getTraceId().equals(request.getTraceId()))
+        .toList();
+    Map<String, SpanData> byName = spans.stream()
+        .collect(Collectors.toMap(SpanData::getName, Function.identity(), (first, second) -> first));
+    for (String stage : List.of("puml.http.bind", "puml.cache.key", "puml.cache.render", "puml.render",
+        "puml.render.parse", "puml.render.layout", "puml.render.png-encode")) {
+      assertTrue(byName.containsKey(stage), stage + " missing from " + byName.keySet());
+    }
+    assertEquals(request.getSpanId(), byName.get("puml.http.bind").getParentSpanId());
+
+    // The render ran on a scheduler thread, under the span of the request waiting for it
+    SpanData parse = byName.get("puml.render.parse");
+    SpanData render = spans.stream()
+        .filter(span -> span.getSpanId().equals(parse.getParentSpanId()))
+        .findFirst()
+        .orElseThrow();
+    assertEquals("puml.render", render.getName());
+    assertEquals(byName.get("puml.cache.render").getSpanId(), render.getParentSpanId());
+    assertNotEquals(request.getSpanId(), parse.getParentSpanId());
+  }
+}
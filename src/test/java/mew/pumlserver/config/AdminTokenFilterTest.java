@@ -0,0 +1,121 @@
+package mew.pumlserver.config;
+
+import mew.pumlserver.service.RenderCacheService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.web.servlet.MockMvc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * The admin token in front of the admin API and the admin actuator endpoints
+ */
+@SpringBootTest(properties = "puml.admin.token=" + AdminTokenFilterTest.TOKEN)
+@AutoConfigureMockMvc
+class AdminTokenFilterTest {
+
+  static final String TOKEN = "s3cret";
+
+  @Autowired
+  private MockMvc mockMvc;
+
+  @Autowired
+  private RenderCacheService cacheService;
+
+  @Test
+  void adminEndpointsAreNotFoundWithoutAConfiguredToken() throws Exception {
+    AdminTokenFilter filter = new AdminTokenFilter("", "/actuator", Jackson2ObjectMapperBuilder.json().build());
+    for (String path : new String[] { "/api/v1/admin/cache", "/actuator/profile", "/actuator/metrics" }) {
+      MockHttpServletRequest request = new MockHttpServletRequest("GET", path);
+      request.addHeader(HttpHeaders.AUTHORIZATION, "Bearer ");
+      MockHttpServletResponse response = new MockHttpServletResponse();
+      MockFilterChain chain = new MockFilterChain();
+
+      filter.doFilter(request, response, chain);
+
+      assertEquals(404, response.getStatus(), path);
+      assertNull(chain.getRequest(), path);
+    }
+  }
+
+  @Test
+  void adminApiRequiresTheToken() throws Exception {
+    mockMvc.perform(get("/api/v1/admin/cache"))
+        .andExpect(status().isForbidden());
+    mockMvc.perform(get("/api/v1/admin/cache").header(HttpHeaders.AUTHORIZATION, "Bearer wrong"))
+        .andExpect(status().isForbidden())
+        .andExpect(jsonPath("$.message").value("Invalid admin token"));
+    mockMvc.perform(get("/api/v1/admin/cache").header(HttpHeaders.AUTHORIZATION, "Bearer " + TOKEN))
+        .andExpect(status().isOk());
+  }
+
+  @Test
+  void profileEndpointRequiresTheToken() throws Exception {
+    mockMvc.perform(post("/actuator/profile")
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("{\"seconds\": 0}"))
+        .andExpect(status().isForbidden());
+    // Past the filter, the endpoint itself rejects the duration
+    mockMvc.perform(post("/actuator/profile")
+        .header(HttpHeaders.AUTHORIZATION, "Bearer " + TOKEN)
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("{\"seconds\": 0}"))
+        .andExpect(status().isBadRequest());
+  }
+
+  @Test
+  void metricsRequireTheAdminToken() throws Exception {
+    mockMvc.perform(get("/actuator/metrics"))
+        .andExpect(status().isForbidden());
+    mockMvc.perform(get("/actuator/metrics").header(HttpHeaders.AUTHORIZATION, "Bearer " + TOKEN))
+        .andExpect(status().isOk());
+    // Probes stay open
+    mockMvc.perform(get("/actuator/health/liveness"))
+        .andExpect(status().isOk());
+  }
+
+  @Test
+  void purgesAnEntryById() throws Exception {
+    String id = cacheService.cachePumlCode("@startuml\nAdmin -> Cache : purge by id\n@enduml");
+
+    mockMvc.perform(delete("/api/v1/admin/cache/" + id))
+        .andExpect(status().isForbidden());
+    mockMvc.perform(delete("/api/v1/admin/cache/" + id).header(HttpHeaders.AUTHORIZATION, "Bearer " + TOKEN))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.purged").value(1));
+
+    assertNull(cacheService.getCachedEntry(id));
+    mockMvc.perform(delete("/api/v1/admin/cache/" + id).header(HttpHeaders.AUTHORIZATION, "Bearer " + TOKEN))
+        .andExpect(status().isNotFound());
+  }
+
+  @Test
+  void purgesEntriesByRenderKey() throws Exception {
+    String id = cacheService.cachePumlCode("@startuml\nAdmin -> Cache : purge by render key\n@enduml");
+    String renderKey = RenderCacheService.renderKey(id);
+
+    mockMvc.perform(delete("/api/v1/admin/cache").param("renderKey", renderKey)
+        .header(HttpHeaders.AUTHORIZATION, "Bearer " + TOKEN))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.purged").value(1));
+
+    assertNull(cacheService.getCachedEntry(id));
+    mockMvc.perform(delete("/api/v1/admin/cache").param("renderKey", "not-a-key")
+        .header(HttpHeaders.AUTHORIZATION, "Bearer " + TOKEN))
+        .andExpect(status().isBadRequest());
+  }
+}
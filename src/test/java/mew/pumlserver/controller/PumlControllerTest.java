@@ -0,0 +1,70 @@
+package mew.pumlserver.controller;
+
+import mew.pumlserver.model.Conversation;
+import mew.pumlserver.service.ConversationService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Conversation stats, from usage recorded directly into a conversation
+ */
+@SpringBootTest
+@AutoConfigureMockMvc
+class PumlControllerTest {
+
+  private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Autowired
+  private MockMvc mockMvc;
+
+  @Autowired
+  private ConversationService conversationService;
+
+  @Test
+  void conversationStatsAverageTheCalls() throws Exception {
+    String id = conversationService.createConversation();
+    Conversation conversation = conversationService.getConversation(id);
+    conversation.beginTurn("Draw a sequence diagram").complete("@startuml\nA -> B\n@enduml");
+    conversation.getUsage().record(1000, 400, 300 * MILLIS, 2000 * MILLIS);
+    conversation.getUsage().record(250, 210, 500 * MILLIS, 3000 * MILLIS);
+
+    mockMvc.perform(get("/api/v1/puml/conversation/" + id + "/stats"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.conversationId").value(id))
+        .andExpect(jsonPath("$.turns").value(1))
+        .andExpect(jsonPath("$.calls").value(2))
+        .andExpect(jsonPath("$.promptTokens").value(1250))
+        .andExpect(jsonPath("$.completionTokens").value(610))
+        .andExpect(jsonPath("$.averageTimeToResponseMillis").value(400))
+        .andExpect(jsonPath("$.averageLatencyMillis").value(2500))
+        .andExpect(jsonPath("$.totalLatencyMillis").value(5000));
+  }
+
+  @Test
+  void conversationWithoutCallsHasZeroAverages() throws Exception {
+    String id = conversationService.createConversation();
+
+    mockMvc.perform(get("/api/v1/puml/conversation/" + id + "/stats"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.turns").value(0))
+        .andExpect(jsonPath("$.calls").value(0))
+        .andExpect(jsonPath("$.averageTimeToResponseMillis").value(0))
+        .andExpect(jsonPath("$.averageLatencyMillis").value(0));
+  }
+
+  @Test
+  void statsOfAnUnknownConversationAreNotFound() throws Exception {
+    mockMvc.perform(get("/api/v1/puml/conversation/unknown/stats"))
+        .andExpect(status().isNotFound())
+        .andExpect(jsonPath("$.message").value("Conversation not found or expired. ID: unknown"));
+  }
+}
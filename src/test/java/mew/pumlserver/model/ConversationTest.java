@@ -0,0 +1,115 @@
+package mew.pumlserver.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConversationTest {
+
+  @Test
+  void turnAddsPromptAndAnswerWhenItCompletes() {
+    Conversation conversation = new Conversation("c");
+    Conversation.Turn turn = conversation.beginTurn("draw it");
+
+    assertTrue(turn.getHistory().isEmpty());
+    assertTrue(conversation.getMessages().isEmpty());
+    assertTrue(turn.complete("@startuml\n@enduml"));
+
+    assertEquals(List.of(new Conversation.Message("user", "draw it"),
+        new Conversation.Message("assistant", "@startuml\n@enduml")), conversation.getMessages());
+    assertEquals(conversation.getMessages(), conversation.beginTurn("again").getHistory());
+  }
+
+  @Test
+  void secondTurnIsRejectedWhileOneIsInFlight() {
+    Conversation conversation = new Conversation("c");
+    Conversation.Turn turn = conversation.beginTurn("first");
+
+    assertNull(conversation.beginTurn("second"));
+    turn.complete("answer");
+    assertNotNull(conversation.beginTurn("third"));
+  }
+
+  @Test
+  void abortedTurnLeavesHistoryUnchanged() {
+    Conversation conversation = new Conversation("c");
+    conversation.beginTurn("first").complete("answer");
+    List<Conversation.Message> before = conversation.getMessages();
+
+    Conversation.Turn turn = conversation.beginTurn("failed");
+    turn.abort();
+    assertFalse(turn.complete("late answer"));
+
+    assertEquals(before, conversation.getMessages());
+    assertNotNull(conversation.beginTurn("next"));
+  }
+
+  @Test
+  void snapshotsAreImmutable() {
+    Conversation conversation = new Conversation("c");
+    conversation.beginTurn("first").complete("answer");
+    List<Conversation.Message> snapshot = conversation.getMessages();
+
+    conversation.beginTurn("second").complete("answer");
+
+    assertEquals(2, snapshot.size());
+    assertEquals(4, conversation.getMessages().size());
+    assertThrows(UnsupportedOperationException.class,
+        () -> snapshot.add(new Conversation.Message("user", "x")));
+  }
+
+  @Test
+  void concurrentTurnsKeepMessagesAlternating() throws Exception {
+    Conversation conversation = new Conversation("c");
+    AtomicInteger completed = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<?>> workers = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      workers.add(executor.submit(() -> {
+        start.await();
+        for (int i = 0; i < 2000; i++) {
+          Conversation.Turn turn = conversation.beginTurn("prompt");
+          if (turn != null) {
+            // Readers iterate while other threads append
+            int size = turn.getHistory().size();
+            for (Conversation.Message message : conversation.getMessages()) {
+              assertNotNull(message.getRole());
+            }
+            if (turn.complete("answer " + size)) {
+              completed.incrementAndGet();
+            }
+          }
+        }
+        return null;
+      }));
+    }
+    start.countDown();
+    for (Future<?> worker : workers) {
+      worker.get(30, TimeUnit.SECONDS);
+    }
+    executor.shutdown();
+
+    List<Conversation.Message> messages = conversation.getMessages();
+    assertEquals(completed.get() * 2, messages.size());
+    for (int i = 0; i < messages.size(); i += 2) {
+      assertEquals("user", messages.get(i).getRole());
+      assertEquals("assistant", messages.get(i + 1).getRole());
+      assertEquals("answer " + i, messages.get(i + 1).getContent());
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package mew.pumlserver.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClusterServiceTest {
+
+  @Test
+  void peerRequestsNeedTheConfiguredToken() {
+    ClusterService cluster = new ClusterService(true, "http://a:8080", "http://b:8080", "", 128, "s3cret");
+
+    assertTrue(cluster.isTrusted("s3cret"));
+    assertFalse(cluster.isTrusted("s3cre"));
+    assertFalse(cluster.isTrusted(""));
+    assertFalse(cluster.isTrusted(null));
+  }
+
+  @Test
+  void withoutATokenNoPeerRequestIsTrusted() {
+    ClusterService cluster = new ClusterService(true, "http://a:8080", "http://b:8080", "", 128, "");
+
+    assertFalse(cluster.hasToken());
+    assertFalse(cluster.isTrusted(""));
+    assertFalse(cluster.isTrusted(null));
+  }
+}
@@ -0,0 +1,97 @@
+package mew.pumlserver.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import mew.pumlserver.dto.SvgDeltaResponse;
+import mew.pumlserver.exception.BadRequestException;
+import mew.pumlserver.model.DiagramDocument;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DocumentServiceTest {
+
+  private static final String PUML = "@startuml\nBob -> Alice : hello\nAlice --> Bob : hi\n@enduml";
+
+  private final RenderCacheFixture fixture = new RenderCacheFixture();
+  private final SimpleMeterRegistry registry = fixture.registry;
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private final TenantUsageService tenantUsage = new TenantUsageService(0, "", 100, registry);
+  private final DocumentService documents = new DocumentService(fixture.cache().tenantUsage(tenantUsage).build(),
+      tenantUsage, objectMapper, 2, 100, 1000, 0, registry);
+
+  @AfterEach
+  void tearDown() {
+    fixture.close();
+  }
+
+  @Test
+  void sendsADeltaFromAVersionTheClientHas() throws Exception {
+    DiagramDocument document = documents.create(PUML);
+    String first = latestSvg(document);
+    // Same layout, so the delta is only the changed text (the optimizer renames
+    // PlantUML's random filter IDs, which would otherwise differ in every element)
+    documents.update(document.getId(), PUML.replace("hi", "ok"));
+    String second = latestSvg(document);
+
+    DocumentService.SvgUpdate update = documents.svg(document, 1);
+    assertEquals(DocumentService.SvgUpdate.Kind.DELTA, update.getKind());
+    assertEquals(2, update.getVersion());
+    SvgDeltaResponse delta = objectMapper.readValue(update.getBody().toByteArray(), SvgDeltaResponse.class);
+    assertEquals(1, delta.getBaseVersion());
+    assertEquals(second, SvgDiff.apply(first, delta.getOps()));
+    assertTrue(update.getBody().size() < second.length() / 4, "delta of " + update.getBody().size() + " bytes");
+
+    assertEquals(DocumentService.SvgUpdate.Kind.NOT_MODIFIED, documents.svg(document, 2).getKind());
+    assertNull(documents.svg(document, 2).getBody());
+    assertEquals(DocumentService.SvgUpdate.Kind.FULL, documents.svg(document, null).getKind());
+    assertThrows(BadRequestException.class, () -> documents.svg(document, 3));
+    assertEquals(2, registry.get("puml.document.svg").tag("result", "not-modified").counter().count());
+  }
+
+  @Test
+  void keepsABoundedHistory() throws Exception {
+    DiagramDocument document = documents.create(PUML);
+    documents.update(document.getId(), PUML);
+    assertEquals(1, document.getLatest().getNumber());
+
+    documents.update(document.getId(), PUML.replace("hi", "bye"));
+    documents.update(document.getId(), PUML.replace("hi", "ciao"));
+    assertEquals(List.of(2, 3), document.getVersionNumbers());
+    // Version 1 fell out of the history: the client gets the whole SVG
+    DocumentService.SvgUpdate update = documents.svg(document, 1);
+    assertEquals(DocumentService.SvgUpdate.Kind.FULL, update.getKind());
+    assertEquals(latestSvg(document), update.getBody().toString(StandardCharsets.UTF_8));
+
+    assertTrue(documents.delete(document.getId()));
+    assertNull(documents.get(document.getId()));
+    assertNull(documents.update(document.getId(), PUML));
+  }
+
+  @Test
+  void deltasAreChargedToTheTenantUntilTheDocumentIsDeleted() throws Exception {
+    DiagramDocument document = documents.create(PUML);
+    documents.update(document.getId(), PUML.replace("hi", "ok"));
+    TenantUsageService.Usage usage = tenantUsage.usage(document.getTenant());
+    long cached = usage.getBytes();
+
+    DocumentService.SvgUpdate update = documents.svg(document, 1);
+    assertEquals(DocumentService.SvgUpdate.Kind.DELTA, update.getKind());
+    assertEquals(cached + update.getBody().size(), usage.getBytes());
+    assertEquals(update.getBody().size(), document.getDeltaBytes());
+
+    assertTrue(documents.delete(document.getId()));
+    assertEquals(cached, usage.getBytes());
+  }
+
+  private String latestSvg(DiagramDocument document) throws Exception {
+    return documents.svg(document, null).getBody().toString(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,59 @@
+package mew.pumlserver.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Health check of the dot executable, against shell scripts standing in for dot
+ */
+class GraphvizLayoutServiceTest {
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void dotAnsweringWithSvgIsHealthy() throws IOException {
+    assertTrue(layoutService(fakeDot("cat > /dev/null; echo '<svg></svg>'"), 5000).isDotHealthy());
+  }
+
+  @Test
+  void hangingDotFailsWithinTheTimeout() throws IOException {
+    long start = System.nanoTime();
+
+    GraphvizLayoutService layoutService = layoutService(fakeDot("echo '<svg'; exec sleep 30"), 300);
+
+    assertFalse(layoutService.isDotHealthy());
+    assertTrue(System.nanoTime() - start < 10_000_000_000L);
+  }
+
+  @Test
+  void dotFloodingItsOutputDoesNotBlockTheCheck() throws IOException {
+    // Far more than a pipe buffer, written before dot would read its input
+    GraphvizLayoutService layoutService = layoutService(
+        fakeDot("head -c 4000000 /dev/zero; cat > /dev/null; echo '<svg></svg>'"), 10000);
+
+    assertTrue(layoutService.isDotHealthy());
+  }
+
+  private String fakeDot(String script) throws IOException {
+    assumeTrue(new File("/bin/sh").canExecute());
+    Path dot = directory.resolve("dot");
+    Files.writeString(dot, "#!/bin/sh\n" + script + "\n");
+    assumeTrue(dot.toFile().setExecutable(true));
+    return dot.toString();
+  }
+
+  private static GraphvizLayoutService layoutService(String dotPath, long timeoutMillis) {
+    return new GraphvizLayoutService("auto", dotPath, 0, timeoutMillis, 1, new SimpleMeterRegistry());
+  }
+}
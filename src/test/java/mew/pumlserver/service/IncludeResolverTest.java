@@ -0,0 +1,86 @@
+package mew.pumlserver.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IncludeResolverTest {
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+  @TempDir
+  Path root;
+
+  @Test
+  void inlinesIncludesUnderTheRootLikePlantUml() throws Exception {
+    Files.createDirectories(root.resolve("lib"));
+    Files.writeString(root.resolve("lib/style.iuml"), "skinparam monochrome true\n!include common.iuml\n");
+    Files.writeString(root.resolve("lib/common.iuml"), "skinparam shadowing false\n");
+    Files.writeString(root.resolve("blocks.puml"),
+        "@startuml\nclass First\n@enduml\n@startuml(id=second)\nclass Second\n@enduml\n");
+    IncludeResolver resolver = new IncludeResolver(root.toString(), false, 1048576, registry);
+
+    String puml = "@startuml\n!include lib/style.iuml\n!include lib/common.iuml\n!include_many lib/common.iuml\n"
+        + "!include blocks.puml!1\n!include blocks.puml!second\n!include ../outside.iuml\n@enduml";
+    IncludeResolver.Resolution resolution = resolver.resolve(puml);
+
+    // common.iuml is included once by style.iuml, then again only by !include_many
+    assertEquals("@startuml\nskinparam monochrome true\nskinparam shadowing false\nskinparam shadowing false\n"
+        + "class Second\nclass Second\n!include ../outside.iuml\n@enduml", resolution.getSource());
+    assertTrue(resolution.getIncludeVersions().startsWith("lib/style.iuml@"));
+    assertEquals(5, resolution.getIncludeVersions().split("\n").length);
+
+    // Files are read once, then served from the fragment cache
+    resolver.resolve(puml);
+    assertEquals(3, registry.get("puml.include.cache").tag("result", "miss").counter().count());
+    assertEquals(3, registry.get("puml.include.cache.entries").gauge().value());
+
+    String plain = "@startuml\nclass Foo\n@enduml";
+    assertSame(plain, resolver.resolve(plain).getSource());
+    assertEquals("", resolver.resolve(plain).getIncludeVersions());
+  }
+
+  @Test
+  void changedIncludesChangeTheSourceAndCacheId() throws Exception {
+    Path style = root.resolve("style.iuml");
+    Files.writeString(style, "skinparam monochrome true\n");
+    String puml = "@startuml\n!include style.iuml\nBob -> Alice\n@enduml";
+
+    IncludeResolver polling = new IncludeResolver(root.toString(), false, 1048576, registry);
+    IncludeResolver watching = new IncludeResolver(root.toString(), true, 1048576, new SimpleMeterRegistry());
+    try {
+      String before = idOf(polling, puml);
+      assertEquals(before, idOf(watching, puml));
+      assertNotEquals(RenderCacheService.contentId(puml), before);
+
+      Files.writeString(style, "skinparam monochrome reverse\n");
+      Files.setLastModifiedTime(style, FileTime.fromMillis(System.currentTimeMillis() + 2000));
+      String after = idOf(polling, puml);
+      assertNotEquals(before, after);
+      assertTrue(polling.resolve(puml).getSource().contains("monochrome reverse"));
+      // Only the render key changes, the hash of the exact source doesn't
+      assertEquals(before.substring(32), after.substring(32));
+
+      long deadline = System.currentTimeMillis() + 10_000;
+      while (!idOf(watching, puml).equals(after) && System.currentTimeMillis() < deadline) {
+        Thread.sleep(20);
+      }
+      assertEquals(after, idOf(watching, puml));
+    } finally {
+      watching.shutdown();
+    }
+  }
+
+  private static String idOf(IncludeResolver resolver, String puml) {
+    return RenderCacheService.contentId(puml, resolver.resolve(puml).getIncludeVersions());
+  }
+}
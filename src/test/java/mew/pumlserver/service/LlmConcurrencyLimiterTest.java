@@ -0,0 +1,163 @@
+package mew.pumlserver.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import mew.pumlserver.exception.ServiceUnavailableException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LlmConcurrencyLimiterTest {
+
+  private static final String URL = "http://upstream/v1";
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+  @Test
+  void callsAboveTheLimitQueueAndAreRejectedWhenTheQueueIsFull() throws Exception {
+    LlmConcurrencyLimiter limiter = limiter(2, 0, 1, 200);
+    limiter.acquire(URL, "key");
+    LlmConcurrencyLimiter.Permit second = limiter.acquire(URL, "key");
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<LlmConcurrencyLimiter.Permit> queued = executor.submit(() -> limiter.acquire(URL, "key"));
+      waitUntil(() -> registry.get("puml.llm.limit.queued").gauge().value() == 1);
+      assertThrows(ServiceUnavailableException.class, () -> limiter.acquire(URL, "key"));
+
+      second.onIgnore();
+      queued.get(5, TimeUnit.SECONDS);
+      assertEquals(2, registry.get("puml.llm.limit.in-flight").gauge().value());
+      assertThrows(ServiceUnavailableException.class, () -> limiter.acquire(URL, "key"));
+      assertEquals(1, (int) registry.get("puml.llm.limit.rejected").tag("reason", "timeout").counter().count());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void decreasesOncePerRoundOfOverloadedCalls() {
+    LlmConcurrencyLimiter limiter = limiter(10, 0, 20, 1000);
+    List<LlmConcurrencyLimiter.Permit> permits = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      permits.add(limiter.acquire(URL, "key"));
+    }
+    permits.forEach(LlmConcurrencyLimiter.Permit::onDropped);
+    assertEquals(9, limiter.getLimit(URL, "key"), 1e-9);
+
+    limiter.acquire(URL, "key").onDropped();
+    assertEquals(8.1, limiter.getLimit(URL, "key"), 1e-9);
+    assertEquals(8.1, registry.get("puml.llm.limit").gauge().value(), 1e-9);
+  }
+
+  @Test
+  void slowResponseCountsAsOverload() throws InterruptedException {
+    LlmConcurrencyLimiter limiter = limiter(10, 2.0, 20, 1000);
+    LlmConcurrencyLimiter.Permit permit = limiter.acquire(URL, "key");
+    Thread.sleep(5);
+    permit.onSuccess();
+    assertEquals(10, limiter.getLimit(URL, "key"), 1e-9);
+
+    permit = limiter.acquire(URL, "key");
+    Thread.sleep(300);
+    permit.onSuccess();
+    assertEquals(9, limiter.getLimit(URL, "key"), 1e-9);
+  }
+
+  @Test
+  void limitsAreKeptPerUpstreamAndApiKey() {
+    LlmConcurrencyLimiter limiter = limiter(10, 0, 20, 1000);
+    limiter.acquire(URL, "a").onDropped();
+    limiter.acquire(URL, "b");
+
+    assertEquals(9, limiter.getLimit(URL, "a"), 1e-9);
+    assertEquals(10, limiter.getLimit(URL, "b"), 1e-9);
+    assertEquals(2, registry.get("puml.llm.limit").gauges().size());
+    registry.get("puml.llm.limit").gauges()
+        .forEach(gauge -> assertTrue(!gauge.getId().getTag("key").contains("a")
+            || gauge.getId().getTag("key").length() == 8));
+  }
+
+  @Test
+  void upstreamsAboveTheCapShareTheOtherTag() {
+    LlmConcurrencyLimiter limiter = new LlmConcurrencyLimiter(true, 1, 1, 200, 0.9, 0, 0, 0, 2, registry);
+    for (String url : List.of("http://a/v1", "http://b/v1", "http://c/v1", "http://d/v1")) {
+      limiter.acquire(url, "key");
+      assertThrows(ServiceUnavailableException.class, () -> limiter.acquire(url, "key"));
+    }
+
+    assertEquals(1, limiter.getLimit("http://d/v1", "key"), 1e-9);
+    assertEquals(Set.of("http://a/v1", "http://b/v1"), registry.get("puml.llm.limit").gauges().stream()
+        .map(gauge -> gauge.getId().getTag("endpoint"))
+        .collect(Collectors.toSet()));
+    assertEquals(2, registry.get("puml.llm.limit.rejected").tag("endpoint", LlmConcurrencyLimiter.OTHER_UPSTREAM)
+        .counter().count());
+  }
+
+  @Test
+  void settlesNearWhatTheUpstreamSustains() throws Exception {
+    int capacity = 8;
+    LlmConcurrencyLimiter limiter = limiter(2, 0, 64, 10000);
+    AtomicInteger concurrent = new AtomicInteger();
+    AtomicInteger throttled = new AtomicInteger();
+    AtomicInteger calls = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(32);
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+    List<Future<?>> workers = new ArrayList<>();
+    for (int t = 0; t < 32; t++) {
+      workers.add(executor.submit(() -> {
+        while (System.nanoTime() < deadline) {
+          LlmConcurrencyLimiter.Permit permit = limiter.acquire(URL, "key");
+          // Simulated upstream: answers 429 above its capacity
+          boolean overloaded = concurrent.incrementAndGet() > capacity;
+          try {
+            Thread.sleep(overloaded ? 1 : 10);
+          } finally {
+            concurrent.decrementAndGet();
+          }
+          calls.incrementAndGet();
+          if (overloaded) {
+            throttled.incrementAndGet();
+            permit.onDropped();
+          } else {
+            permit.onSuccess();
+          }
+        }
+        return null;
+      }));
+    }
+    for (Future<?> worker : workers) {
+      worker.get(30, TimeUnit.SECONDS);
+    }
+    executor.shutdown();
+
+    double limit = limiter.getLimit(URL, "key");
+    assertTrue(limit >= capacity * 0.6 && limit <= capacity * 1.5, "limit " + limit);
+    // The upstream answers at most capacity calls per 10 ms
+    int succeeded = calls.get() - throttled.get();
+    assertTrue(succeeded > capacity * 300 * 0.75, succeeded + " calls succeeded, " + throttled + " throttled");
+  }
+
+  private LlmConcurrencyLimiter limiter(int initial, double latencyTolerance, int maxQueue, long maxWaitMillis) {
+    return new LlmConcurrencyLimiter(true, initial, 1, 200, 0.9, latencyTolerance, maxQueue, maxWaitMillis,
+        20, registry);
+  }
+
+  private static void waitUntil(java.util.function.BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+      Thread.sleep(5);
+    }
+  }
+}
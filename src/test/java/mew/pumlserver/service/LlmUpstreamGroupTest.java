@@ -0,0 +1,167 @@
+package mew.pumlserver.service;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
+import mew.pumlserver.exception.ServiceUnavailableException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.client.HttpClientErrorException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The upstream group against local OpenAI-compatible stub servers
+ */
+class LlmUpstreamGroupTest {
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  private final List<HttpServer> servers = new ArrayList<>();
+  private final List<LlmUpstreamGroup> groups = new ArrayList<>();
+
+  @AfterEach
+  void tearDown() {
+    groups.forEach(LlmUpstreamGroup::shutdown);
+    servers.forEach(server -> server.stop(0));
+  }
+
+  @Test
+  void failsOverFromServerError() {
+    Stub failing = stub(500, 0, "A");
+    Stub healthy = stub(200, 0, "B");
+    PumlGenerationService service = service(group(0, failing, healthy));
+
+    assertEquals("@startuml\nB\n@enduml", generate(service));
+    assertEquals(1, failing.requests.get());
+    // The failed endpoint cools down, so the next call goes straight to the healthy one
+    assertEquals("@startuml\nB\n@enduml", generate(service));
+    assertEquals(1, failing.requests.get());
+  }
+
+  @Test
+  void hedgeWinsOverSlowEndpointAndCancelsIt() {
+    Stub slow = stub(200, 3000, "slow");
+    Stub fast = stub(200, 0, "fast");
+    LlmUpstreamGroup group = group(100, slow, fast);
+    PumlGenerationService service = service(group);
+
+    long start = System.nanoTime();
+    assertEquals("@startuml\nfast\n@enduml", generate(service));
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+    assertEquals(1, (int) registry.get("puml.llm.upstream.hedges").counter().count());
+    assertEquals(1, (int) registry.get("puml.llm.upstream.requests")
+        .tags("endpoint", slow.url, "result", "cancelled").counter().count());
+
+    assertEquals(List.of(fast.url, slow.url), group.getRanking());
+    assertEquals("@startuml\nfast\n@enduml", generate(service));
+    assertEquals(1, slow.requests.get());
+  }
+
+  @Test
+  void clientErrorsAreNotRetried() {
+    Stub rejecting = stub(400, 0, "A");
+    Stub healthy = stub(200, 0, "B");
+    PumlGenerationService service = service(group(0, rejecting, healthy));
+
+    assertThrows(HttpClientErrorException.class, () -> generate(service));
+    assertEquals(0, healthy.requests.get());
+  }
+
+  @Test
+  void errorsAreThrownOnTheCallingThread() {
+    Stub healthy = stub(200, 0, "B");
+    LlmUpstreamGroup group = group(0, healthy);
+
+    StackOverflowError error = assertThrows(StackOverflowError.class, () -> group.call(url -> {
+      throw new StackOverflowError("deep");
+    }));
+    assertEquals("deep", error.getMessage());
+    assertEquals(1, (int) registry.get("puml.llm.upstream.requests")
+        .tags("endpoint", healthy.url, "result", "rejected").counter().count());
+    assertNull(registry.find("puml.llm.upstream.requests").tags("result", "ok").counter());
+  }
+
+  @Test
+  void failsWhenAllEndpointsFail() {
+    PumlGenerationService service = service(group(50, stub(503, 0, "A"), stub(502, 0, "B")));
+
+    assertThrows(ServiceUnavailableException.class, () -> generate(service));
+  }
+
+  private String generate(PumlGenerationService service) {
+    return service.generatePumlCode(null, null, "model", "prompt", List.of(), null);
+  }
+
+  private PumlGenerationService service(LlmUpstreamGroup group) {
+    return new PumlGenerationService(registry, group,
+        new LlmConcurrencyLimiter(true, 10, 1, 200, 0.9, 0, 20, 5000, 20, registry),
+        new LlmUsageService(20, registry), new LoadShedService(false, 0, 0, 0, 0, 1, 1, null, event -> { }, registry),
+        ObservationRegistry.NOOP);
+  }
+
+  private LlmUpstreamGroup group(long hedgeDelayMillis, Stub... stubs) {
+    List<String> urls = new ArrayList<>();
+    for (Stub stub : stubs) {
+      urls.add(stub.url);
+    }
+    LlmUpstreamGroup group = new LlmUpstreamGroup(String.join(",", urls), "key", hedgeDelayMillis, 0.3,
+        60000, registry);
+    groups.add(group);
+    return group;
+  }
+
+  /**
+   * Chat completion stub answering with a fixed status after a delay
+   */
+  private Stub stub(int status, long delayMillis, String content) {
+    try {
+      HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      server.setExecutor(Executors.newCachedThreadPool());
+      Stub stub = new Stub("http://127.0.0.1:" + server.getAddress().getPort() + "/v1");
+      server.createContext("/v1/chat/completions", exchange -> {
+        stub.requests.incrementAndGet();
+        exchange.getRequestBody().readAllBytes();
+        byte[] body = ("{\"choices\":[{\"message\":{\"content\":\"@startuml\\n" + content + "\\n@enduml\"}}],"
+            + "\"usage\":{\"prompt_tokens\":12,\"completion_tokens\":5}}")
+            .getBytes(StandardCharsets.UTF_8);
+        try {
+          Thread.sleep(delayMillis);
+          exchange.getResponseHeaders().set("Content-Type", "application/json");
+          exchange.sendResponseHeaders(status, body.length);
+          try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+      server.start();
+      servers.add(server);
+      return stub;
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static final class Stub {
+    private final String url;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    Stub(String url) {
+      this.url = url;
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package mew.pumlserver.service;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import mew.pumlserver.model.LlmUsage;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Usage of LLM calls, per conversation and per model, with a cap of two models
+ */
+class LlmUsageServiceTest {
+
+  private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  private final LlmUsageService usageService = new LlmUsageService(2, registry);
+
+  @Test
+  void recordsTokensAndLatencyPerConversationAndModel() {
+    LlmUsage conversation = new LlmUsage();
+
+    usageService.record("model", conversation, 12, 5, 100 * MILLIS, 300 * MILLIS);
+    usageService.record("model", conversation, 12, 5, 200 * MILLIS, 500 * MILLIS);
+    usageService.record("model", null, 12, 5, 100 * MILLIS, 100 * MILLIS);
+
+    assertEquals(2, conversation.getCalls());
+    assertEquals(24, conversation.getPromptTokens());
+    assertEquals(10, conversation.getCompletionTokens());
+    assertEquals(300, conversation.getTimeToResponseMillis());
+    assertEquals(800, conversation.getLatencyMillis());
+    assertEquals(36, registry.get("puml.llm.tokens").tags("model", "model", "type", "prompt").counter().count());
+    assertEquals(15, registry.get("puml.llm.tokens").tags("model", "model", "type", "completion").counter().count());
+    Timer timeToResponse = registry.get("puml.llm.time-to-response").tags("model", "model", "prompt", "0-1k").timer();
+    assertEquals(3, timeToResponse.count());
+    assertEquals(400, timeToResponse.totalTime(TimeUnit.MILLISECONDS));
+    Timer latency = registry.get("puml.llm.latency").tags("model", "model", "prompt", "0-1k").timer();
+    assertEquals(3, latency.count());
+    assertEquals(900, latency.totalTime(TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  void timersAreTaggedWithThePromptSize() {
+    usageService.record("model", null, 999, 1, MILLIS, MILLIS);
+    usageService.record("model", null, 1000, 1, MILLIS, MILLIS);
+    usageService.record("model", null, 4000, 1, MILLIS, MILLIS);
+    usageService.record("model", null, 16000, 1, MILLIS, MILLIS);
+    usageService.record("model", null, 50000, 1, MILLIS, MILLIS);
+
+    assertEquals(1, registry.get("puml.llm.latency").tags("prompt", "0-1k").timer().count());
+    assertEquals(1, registry.get("puml.llm.latency").tags("prompt", "1k-4k").timer().count());
+    assertEquals(1, registry.get("puml.llm.latency").tags("prompt", "4k-16k").timer().count());
+    assertEquals(2, registry.get("puml.llm.latency").tags("prompt", "16k+").timer().count());
+  }
+
+  @Test
+  void modelsAboveTheCapShareTheOtherModel() {
+    usageService.record("a", null, 1, 1, MILLIS, MILLIS);
+    usageService.record("b", null, 2, 1, MILLIS, MILLIS);
+    usageService.record("c", null, 3, 1, MILLIS, MILLIS);
+    usageService.record("d", null, 4, 1, MILLIS, MILLIS);
+    // Tracked models keep their own tag
+    usageService.record("a", null, 5, 1, MILLIS, MILLIS);
+
+    assertEquals(6, registry.get("puml.llm.tokens").tags("model", "a", "type", "prompt").counter().count());
+    assertEquals(2, registry.get("puml.llm.tokens").tags("model", "b", "type", "prompt").counter().count());
+    assertEquals(7, registry.get("puml.llm.tokens")
+        .tags("model", LlmUsageService.OTHER_MODEL, "type", "prompt").counter().count());
+    assertNull(registry.find("puml.llm.tokens").tags("model", "c").counter());
+    assertEquals(2, registry.get("puml.llm.latency").tags("model", LlmUsageService.OTHER_MODEL).timer().count());
+  }
+
+  @Test
+  void callsWithoutAModelAreRecordedAsOther() {
+    usageService.record(null, null, 1, 1, MILLIS, MILLIS);
+    usageService.record(" ", null, 1, 1, MILLIS, MILLIS);
+
+    assertEquals(2, registry.get("puml.llm.time-to-response")
+        .tags("model", LlmUsageService.OTHER_MODEL).timer().count());
+  }
+}
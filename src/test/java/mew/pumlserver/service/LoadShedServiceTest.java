@@ -0,0 +1,89 @@
+package mew.pumlserver.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import mew.pumlserver.config.LoadShedHealthIndicator;
+import mew.pumlserver.exception.ServiceUnavailableException;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.actuate.availability.ReadinessStateHealthIndicator;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.boot.availability.ApplicationAvailabilityBean;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.ApplicationEventPublisher;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LoadShedServiceTest {
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  private final List<Object> readiness = new ArrayList<>();
+
+  @Test
+  void shedsNewWorkUnderSustainedPressureAndRecovers() {
+    LoadShedService service = new LoadShedService(true, 0.85, 0, 0.95, 500, 2, 3, null,
+        event -> readiness.add(((AvailabilityChangeEvent<?>) event).getState()), registry);
+
+    // A single spike isn't enough
+    service.update(0.9, 0, 0.5, 0);
+    service.admit(LoadShedService.Work.RENDER);
+    service.update(0.5, 0, 0.5, 0);
+    service.update(0.5, 0, 0.5, 600);
+    assertFalse(service.isShedding());
+
+    service.update(0.5, 0, 0.99, 600);
+    assertTrue(service.isShedding());
+    assertEquals("CPU load 99%", service.getReason());
+    ServiceUnavailableException rejected = assertThrows(ServiceUnavailableException.class,
+        () -> service.admit(LoadShedService.Work.LLM));
+    assertTrue(rejected.getMessage().contains("CPU load 99%"));
+    assertEquals(1, registry.get("puml.shed.rejected").tag("work", "llm").counter().count());
+    assertEquals(List.of(ReadinessState.REFUSING_TRAFFIC), readiness);
+
+    // Leaving takes exit-checks clear samples in a row
+    service.update(0.5, 0, 0.5, 0);
+    service.update(0.5, 0, 0.5, 0);
+    service.update(0.9, 0, 0.5, 0);
+    service.update(0.5, 0, 0.5, 0);
+    service.update(0.5, 0, 0.5, 0);
+    assertTrue(service.isShedding());
+    service.update(0.5, 0, 0.5, 0);
+    assertFalse(service.isShedding());
+    service.admit(LoadShedService.Work.RENDER);
+    assertEquals(List.of(ReadinessState.REFUSING_TRAFFIC, ReadinessState.ACCEPTING_TRAFFIC), readiness);
+  }
+
+  @Test
+  void healthIsDegradedAndReadinessOutOfServiceWhileShedding() {
+    ApplicationAvailabilityBean availability = new ApplicationAvailabilityBean();
+    ApplicationEventPublisher publisher = event -> availability.onApplicationEvent((AvailabilityChangeEvent<?>) event);
+    AvailabilityChangeEvent.publish(publisher, this, ReadinessState.ACCEPTING_TRAFFIC);
+    LoadShedService service = new LoadShedService(true, 0.85, 0, 0, 500, 1, 1, null, publisher, registry);
+    HealthIndicator health = new LoadShedHealthIndicator(service);
+    HealthIndicator readinessHealth = new ReadinessStateHealthIndicator(availability);
+
+    // CPU load isn't checked with its limit at 0, the default
+    service.update(0.5, 0, 1.0, 0);
+    assertEquals(Status.UP, health.health().getStatus());
+    assertEquals(Status.UP, readinessHealth.health().getStatus());
+
+    service.update(0.9, 0, 0.5, 0);
+    Health shedding = health.health();
+    assertEquals(LoadShedHealthIndicator.DEGRADED, shedding.getStatus());
+    assertEquals("heap after GC 90%", shedding.getDetails().get("reason"));
+    assertEquals(0.9, shedding.getDetails().get("heapAfterGc"));
+    assertEquals(Status.OUT_OF_SERVICE, readinessHealth.health().getStatus());
+
+    service.update(0.5, 0, 0.5, 0);
+    assertEquals(Status.UP, health.health().getStatus());
+    assertFalse(health.health().getDetails().containsKey("reason"));
+    assertEquals(Status.UP, readinessHealth.health().getStatus());
+  }
+}
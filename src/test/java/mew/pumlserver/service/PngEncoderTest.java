@@ -0,0 +1,143 @@
+package mew.pumlserver.service;
+
+import mew.pumlserver.model.PngOptions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Encoder output decoded with the JDK PNG reader, pixel for pixel
+ */
+class PngEncoderTest {
+
+  private static final int[] LEVELS = { 0, 1, 6, 9 };
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(4);
+  // Any image with at least one pixel is split into strips
+  private final PngEncoder encoder = new PngEncoder(executor, 4, 0, null);
+
+  @AfterEach
+  void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  void rgbImagesRoundTrip() throws IOException {
+    BufferedImage noise = randomImage(BufferedImage.TYPE_INT_RGB, 123, 45, 1 << 24);
+    for (int level : LEVELS) {
+      assertRoundTrip(noise, new PngOptions(level, false, false), false);
+      // More than 256 colors: RGB even with palette output enabled
+      assertRoundTrip(noise, new PngOptions(level, true, false), false);
+    }
+  }
+
+  @Test
+  void translucentImagesKeepTheirAlpha() throws IOException {
+    BufferedImage image = randomImage(BufferedImage.TYPE_INT_ARGB, 67, 31, 1 << 24);
+    image.setRGB(3, 4, 0x80123456);
+    image.setRGB(5, 6, 0x00000000);
+    for (int level : LEVELS) {
+      assertRoundTrip(image, new PngOptions(level, false, false), false);
+      assertRoundTrip(image, new PngOptions(level, true, false), false);
+    }
+  }
+
+  @Test
+  void paletteOutputUpToExactly256Colors() throws IOException {
+    for (int colors : new int[] { 2, 3, 5, 17, 256 }) {
+      // Odd width, so the last byte of each row is only partly used below 8 bits per pixel
+      BufferedImage image = paletteImage(101, 37, colors);
+      for (int level : LEVELS) {
+        BufferedImage decoded = assertRoundTrip(image, new PngOptions(level, true, false), false);
+        assertTrue(decoded.getColorModel() instanceof IndexColorModel, colors + " colors");
+      }
+    }
+
+    BufferedImage translucent = paletteImage(40, 40, 200);
+    translucent.setRGB(0, 0, 0x40ff0000);
+    BufferedImage decoded = assertRoundTrip(translucent, new PngOptions(9, true, false), false);
+    assertTrue(decoded.getColorModel() instanceof IndexColorModel);
+  }
+
+  @Test
+  void with257ColorsPaletteOutputFallsBackToRgb() throws IOException {
+    BufferedImage image = paletteImage(101, 37, 257);
+    for (int level : LEVELS) {
+      BufferedImage decoded = assertRoundTrip(image, new PngOptions(level, true, false), false);
+      assertFalse(decoded.getColorModel() instanceof IndexColorModel);
+    }
+  }
+
+  @Test
+  void parallelStripsJoinIntoOneStream() throws IOException {
+    // About 1.2 MB of scanlines: 4 strips of 128 KB or more, each primed with the previous one's tail
+    BufferedImage noise = randomImage(BufferedImage.TYPE_INT_RGB, 700, 600, 1 << 24);
+    // Mostly flat, so matches reach back across strip boundaries
+    BufferedImage flat = paletteImage(1500, 800, 256);
+    for (int level : LEVELS) {
+      assertRoundTrip(noise, new PngOptions(level, false, true), true);
+      assertRoundTrip(flat, new PngOptions(level, true, true), true);
+      assertRoundTrip(flat, new PngOptions(level, false, true), true);
+    }
+  }
+
+  private BufferedImage assertRoundTrip(BufferedImage image, PngOptions options, boolean parallel)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    encoder.encode(image, options, out);
+    BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+    assertNotNull(decoded, options.toString());
+    assertEquals(image.getWidth(), decoded.getWidth());
+    assertEquals(image.getHeight(), decoded.getHeight());
+    int width = image.getWidth();
+    int[] expected = image.getRGB(0, 0, width, image.getHeight(), null, 0, width);
+    int[] actual = decoded.getRGB(0, 0, width, image.getHeight(), null, 0, width);
+    for (int i = 0; i < expected.length; i++) {
+      if (expected[i] != actual[i]) {
+        throw new AssertionError(String.format("%s parallel=%s: pixel (%d, %d) is %08x, expected %08x",
+            options, parallel, i % width, i / width, actual[i], expected[i]));
+      }
+    }
+    return decoded;
+  }
+
+  private static BufferedImage randomImage(int type, int width, int height, int colors) {
+    BufferedImage image = new BufferedImage(width, height, type);
+    Random random = new Random(width * 31L + height);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        image.setRGB(x, y, 0xff000000 | random.nextInt(colors));
+      }
+    }
+    return image;
+  }
+
+  /**
+   * Horizontal bands using exactly the given number of colors
+   */
+  private static BufferedImage paletteImage(int width, int height, int colors) {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    int pixel = 0;
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int color = (pixel++ / 7) % colors;
+        image.setRGB(x, y, 0xff000000 | (color & 0xff) * 0x000101 | (color >> 8) * 0xff0000);
+      }
+    }
+    return image;
+  }
+}
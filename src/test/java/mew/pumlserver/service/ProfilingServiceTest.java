@@ -0,0 +1,81 @@
+package mew.pumlserver.service;
+
+import mew.pumlserver.dto.ProfileResponse;
+import mew.pumlserver.exception.BadRequestException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProfilingServiceTest {
+
+  private final ProfilingService profilingService = new ProfilingService(5, "mew.pumlserver.service", 10, 1);
+  private volatile boolean spinning = true;
+
+  @AfterEach
+  void tearDown() {
+    spinning = false;
+    profilingService.deleteRecordings();
+  }
+
+  @Test
+  void attributesSamplesAndAllocationsToTheProfiledPackages() throws Exception {
+    Thread worker = new Thread(this::spin, "profiled-worker");
+    worker.setDaemon(true);
+    worker.start();
+
+    ProfileResponse response = profilingService.record(2);
+    spinning = false;
+    worker.join();
+
+    assertTrue(response.getExecutionSamples() > 0);
+    assertTrue(response.getHotMethods().stream()
+            .anyMatch(site -> site.getMethod().startsWith(ProfilingServiceTest.class.getName() + ".spin:")),
+        response.getHotMethods()::toString);
+    assertTrue(response.getAllocationSites().stream()
+            .anyMatch(site -> site.getMethod().startsWith(ProfilingServiceTest.class.getName() + ".spin:")),
+        response.getAllocationSites()::toString);
+    // Nothing outside the profiled packages is listed
+    assertTrue(response.getHotMethods().stream()
+        .allMatch(site -> site.getMethod().startsWith("mew.pumlserver.service.")));
+    assertTrue(response.getHotMethods().size() <= 10);
+
+    Path recording = profilingService.getRecording(response.getId());
+    assertNotNull(recording);
+    assertEquals(Files.size(recording), response.getRecordingBytes());
+  }
+
+  @Test
+  void keepsOnlyTheLatestRecordings() throws Exception {
+    ProfileResponse first = profilingService.record(1);
+    ProfileResponse second = profilingService.record(1);
+
+    assertNull(profilingService.getRecording(first.getId()));
+    assertNotNull(profilingService.getRecording(second.getId()));
+    assertThrows(BadRequestException.class, () -> profilingService.record(6));
+  }
+
+  private void spin() {
+    List<int[]> retained = new ArrayList<>();
+    long sum = 0;
+    while (spinning) {
+      int[] block = new int[1024];
+      for (int i = 0; i < block.length; i++) {
+        block[i] = (int) (sum += i * 31L);
+      }
+      retained.add(block);
+      if (retained.size() > 1000) {
+        retained.clear();
+      }
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package mew.pumlserver.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class PumlCanonicalizerTest {
+
+  private static final String DIAGRAM = "@startuml\nA -> B : hello\nB --> A : hi\n@enduml";
+
+  @Test
+  void ignoredDifferencesShareCanonicalForm() {
+    String[] variants = {
+        DIAGRAM.replace("\n", "\r\n"),
+        DIAGRAM + "\n",
+        "Some text before\n\n" + DIAGRAM + "\n\nand after\n",
+        "@startuml  \nA -> B : hello   \n\n\nB --> A : hi\t\n@enduml",
+        "@startuml\n' a comment\nA -> B : hello\n  ' indented comment\nB --> A : hi\n@enduml",
+        "@startuml\n/' a block\n   comment '/\nA -> B : hello\n/' one line '/\nB --> A : hi\n@enduml",
+    };
+    for (String variant : variants) {
+      assertEquals(DIAGRAM, PumlCanonicalizer.canonicalize(variant), variant);
+    }
+  }
+
+  @Test
+  void multiLineTextIsKept() {
+    String note = "@startuml\nA -> B\nnote right of A\n  first  \n\n  ' not a comment\nend note\n@enduml";
+    assertEquals(note, PumlCanonicalizer.canonicalize(note));
+
+    String legend = "@startuml\nA -> B\nlegend\nfoo \n\nbar\nendlegend\n@enduml";
+    assertEquals(legend, PumlCanonicalizer.canonicalize(legend));
+
+    String activity = "@startuml\nstart\n:multi  \n\nline;\nstop\n@enduml";
+    assertEquals(activity, PumlCanonicalizer.canonicalize(activity));
+
+    String description = "@startuml\ncomponent C [\n first\n\n second\n]\n@enduml";
+    assertEquals(description, PumlCanonicalizer.canonicalize(description));
+
+    String classBody = "@startuml\nclass Circle { \n  ==\n\n  +draw()\n}\n@enduml";
+    assertEquals(classBody, PumlCanonicalizer.canonicalize(classBody));
+  }
+
+  @Test
+  void statementsAfterMultiLineTextAreCanonicalized() {
+    String source = "@startuml\nnote as N\n  text \nend note\n\n' comment\nA -> B  \n@enduml";
+    assertEquals("@startuml\nnote as N\n  text \nend note\nA -> B\n@enduml", PumlCanonicalizer.canonicalize(source));
+  }
+
+  @Test
+  void singleLineNotesDoNotOpenText() {
+    String source = "@startuml\nnote right of A : short\n\nA -> B\n@enduml";
+    assertEquals("@startuml\nnote right of A : short\nA -> B\n@enduml", PumlCanonicalizer.canonicalize(source));
+  }
+
+  @Test
+  void uncertainSourcesAreKept() {
+    String prefixed = "' @startuml\n' A -> B\n\n' @enduml";
+    assertEquals(prefixed, PumlCanonicalizer.canonicalize(prefixed));
+
+    String ditaa = "@startditaa\n+---+  \n|   |\n\n+---+\n@endditaa";
+    assertEquals(ditaa, PumlCanonicalizer.canonicalize(ditaa));
+
+    String quoted = "@startuml\nA -> B : \"open\n\n' text\n@enduml";
+    assertEquals(quoted, PumlCanonicalizer.canonicalize(quoted));
+  }
+
+  @Test
+  void meaningfulChangesKeepDistinctForms() {
+    assertNotEquals(PumlCanonicalizer.canonicalize(DIAGRAM),
+        PumlCanonicalizer.canonicalize(DIAGRAM.replace("hello", "hello there")));
+    assertNotEquals(PumlCanonicalizer.canonicalize(DIAGRAM),
+        PumlCanonicalizer.canonicalize(DIAGRAM.replace("A -> B", "  A -> B")));
+  }
+
+  @Test
+  void canonicalFormIsStable() {
+    String source = "x\r\n@startuml\r\nnote over A\r\n  a  \r\n\r\nend note\r\n' c\r\nA -> B \r\n@enduml\r\ny";
+    String canonical = PumlCanonicalizer.canonicalize(source);
+    assertEquals(canonical, PumlCanonicalizer.canonicalize(canonical));
+  }
+}
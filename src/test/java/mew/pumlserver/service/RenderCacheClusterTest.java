@@ -0,0 +1,146 @@
+package mew.pumlserver.service;
+
+import mew.pumlserver.model.CacheEntry;
+import mew.pumlserver.model.RenderContext;
+import mew.pumlserver.model.RenderedArtifact;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Three in-process nodes sharing one renderer, connected by an in-memory peer client.
+ */
+class RenderCacheClusterTest {
+
+  private static final List<String> NODES = List.of("http://node-a", "http://node-b", "http://node-c");
+  private static final String PUML = "@startuml\nBob -> Alice : hello\n@enduml";
+
+  private final RenderCacheFixture fixture = new RenderCacheFixture();
+  private final Map<String, RenderCacheService> nodes = new HashMap<>();
+  private final Set<String> down = new HashSet<>();
+  private final AtomicInteger renders = fixture.renders;
+
+  @BeforeEach
+  void setUp() {
+    PeerClient peerClient = new InMemoryPeerClient();
+    for (String node : NODES) {
+      ClusterService clusterService = new ClusterService(true, node, String.join(",", NODES), "", 128, "");
+      nodes.put(node, fixture.cache().cluster(clusterService, peerClient).build());
+    }
+  }
+
+  @AfterEach
+  void tearDown() {
+    fixture.close();
+  }
+
+  @Test
+  void idFromOneNodeResolvesOnAnother() throws IOException {
+    String id = node(0).cachePumlCode(PUML);
+
+    for (String node : NODES) {
+      CacheEntry entry = nodes.get(node).getCachedEntry(id);
+      assertNotNull(entry, node);
+      assertEquals(PUML, entry.getPuml());
+      nodes.get(node).ensureRenderedContent(entry);
+      assertTrue(entry.getSvgContent().size() > 0);
+      assertTrue(entry.getPngContent().size() > 0);
+    }
+    assertEquals(1, renders.get());
+  }
+
+  @Test
+  void sameDiagramOnAllNodesRendersOnce() throws IOException {
+    String id = null;
+    for (String node : NODES) {
+      String nodeId = nodes.get(node).cacheAllFormats(PUML);
+      if (id != null) {
+        assertEquals(id, nodeId);
+      }
+      id = nodeId;
+    }
+
+    assertEquals(1, renders.get());
+  }
+
+  @Test
+  void whitespaceVariantsShareOneRender() throws IOException {
+    String crlf = PUML.replace("\n", "\r\n");
+    String commented = PUML.replace("@startuml\n", "@startuml\n' draft\n\n");
+
+    String first = node(0).cacheAllFormats(PUML);
+    String second = node(1).cacheAllFormats(crlf);
+    String third = node(2).cacheAllFormats(commented);
+
+    assertNotEquals(first, second);
+    assertEquals(RenderCacheService.renderKey(first), RenderCacheService.renderKey(second));
+    assertEquals(RenderCacheService.renderKey(first), RenderCacheService.renderKey(third));
+    assertEquals(crlf, node(0).getCachedEntry(second).getPuml());
+    assertEquals(1, renders.get());
+  }
+
+  @Test
+  void nonOwnerRendersItselfWhenOwnerIsDown() throws IOException {
+    String id = RenderCacheService.contentId(PUML);
+    String owner = ownerOf(id);
+    String other = NODES.stream().filter(node -> !node.equals(owner)).findFirst().orElseThrow();
+    down.add(owner);
+
+    assertEquals(id, nodes.get(other).cacheAllFormats(PUML));
+
+    CacheEntry entry = nodes.get(other).getCachedEntry(id);
+    assertNotNull(entry);
+    nodes.get(other).ensureRenderedContent(entry);
+    assertTrue(entry.getTextContent().size() > 0);
+    assertEquals(1, renders.get());
+  }
+
+  private RenderCacheService node(int index) {
+    return nodes.get(NODES.get(index));
+  }
+
+  private String ownerOf(String id) {
+    return new ConsistentHashRing(NODES, 128).nodeFor(RenderCacheService.renderKey(id));
+  }
+
+  /**
+   * Calls the owner's peer-facing methods directly, as the cluster controller would
+   */
+  private final class InMemoryPeerClient implements PeerClient {
+
+    @Override
+    public void store(String peer, String id, String puml, RenderMode mode, RenderContext context)
+        throws IOException {
+      target(peer).storeFromPeer(id, puml, mode);
+    }
+
+    @Override
+    public RenderedArtifact fetch(String peer, String id, String format, RenderContext context)
+        throws IOException {
+      RenderedArtifact artifact = target(peer).getForPeer(id, format);
+      // Copy, as the HTTP client would
+      return artifact == null ? null : RenderedArtifact.wrap(artifact.toByteArray());
+    }
+
+    private RenderCacheService target(String peer) throws IOException {
+      if (down.contains(peer)) {
+        throw new ConnectException("Connection refused: " + peer);
+      }
+      return nodes.get(peer);
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package mew.pumlserver.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import mew.pumlserver.model.CacheEntry;
+import mew.pumlserver.model.PngOptions;
+import mew.pumlserver.model.RenderedArtifact;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RenderCacheColdTierTest {
+
+  private static final String PUML = "@startuml\nBob -> Alice : hello\nAlice --> Bob : hi\n@enduml";
+
+  private final RenderCacheFixture fixture = new RenderCacheFixture();
+  private final SimpleMeterRegistry registry = fixture.registry;
+  private final AtomicInteger renders = fixture.renders;
+  private final PngExportService pngExportService = fixture.pngExportService;
+
+  @AfterEach
+  void tearDown() {
+    fixture.close();
+  }
+
+  @Test
+  void idleEntryIsCompressedAndRestoredOnRead() throws Exception {
+    RenderCacheService cache = cache(1);
+    CacheEntry entry = cache.getCachedEntry(cache.cacheAllFormats(PUML));
+    byte[] svg = entry.getSvgContent().toByteArray();
+    byte[] png = entry.getPngContent().toByteArray();
+    byte[] text = entry.getTextContent().toByteArray();
+
+    Thread.sleep(20);
+    cache.demoteIdleEntries();
+
+    assertNotNull(entry.getColdRender());
+    assertNull(entry.getSvgContent());
+    assertEquals(1, registry.get("puml.cache.cold.entries").gauge().value());
+    assertTrue(registry.get("puml.cache.cold.saved").gauge().value() > 0);
+
+    cache.ensureRenderedContent(cache.getCachedEntry(entry.getId()));
+
+    assertNull(entry.getColdRender());
+    assertArrayEquals(svg, entry.getSvgContent().toByteArray());
+    assertArrayEquals(png, entry.getPngContent().toByteArray());
+    assertArrayEquals(text, entry.getTextContent().toByteArray());
+    assertEquals(1, renders.get());
+  }
+
+  @Test
+  void recentlyReadEntryStaysUncompressed() throws Exception {
+    RenderCacheService cache = cache(60_000);
+    CacheEntry entry = cache.getCachedEntry(cache.cacheAllFormats(PUML));
+
+    cache.demoteIdleEntries();
+
+    assertNull(entry.getColdRender());
+    assertNotNull(entry.getSvgContent());
+  }
+
+  @Test
+  void entriesSharingARenderShareItsCompressedForm() throws Exception {
+    RenderCacheService cache = cache(1);
+    CacheEntry first = cache.getCachedEntry(cache.cacheAllFormats(PUML));
+    CacheEntry second = cache.getCachedEntry(cache.cacheAllFormats(PUML.replace("\n", "\r\n")));
+
+    Thread.sleep(20);
+    cache.demoteIdleEntries();
+
+    assertNotNull(first.getColdRender());
+    assertSame(first.getColdRender(), second.getColdRender());
+    assertEquals(1, renders.get());
+  }
+
+  @Test
+  void pngVariantIsEncodedOnceAndDroppedOnDemotion() throws Exception {
+    RenderCacheService cache = cache(1);
+    CacheEntry entry = cache.getCachedEntry(cache.cacheAllFormats(PUML));
+    long charged = entry.getChargedBytes().get();
+    PngOptions options = pngExportService.resolve(0, false);
+
+    RenderedArtifact variant = cache.getPngVariant(entry, options);
+
+    assertSame(variant, cache.getPngVariant(entry, options));
+    assertSame(entry.getPngContent(), cache.getPngVariant(entry, pngExportService.getDefaults()));
+    assertEquals(1, registry.get("puml.png.reencode").tag("result", "miss").counter().count());
+    assertEquals(charged + variant.size(), entry.getChargedBytes().get());
+
+    Thread.sleep(20);
+    cache.demoteIdleEntries();
+
+    assertTrue(entry.getPngVariants().isEmpty());
+    assertEquals(charged, entry.getChargedBytes().get());
+  }
+
+  private RenderCacheService cache(long coldIdleMillis) {
+    return fixture.cache().coldIdleMillis(coldIdleMillis).build();
+  }
+}
@@ -0,0 +1,123 @@
+package mew.pumlserver.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
+import mew.pumlserver.model.RenderedArtifact;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A render stack for cache tests: one renderer (counting its SVG renders) and PNG exporter,
+ * and caches built with test defaults that each test overrides where it needs to.
+ * Close it after the test to stop the schedulers and the PNG encoder.
+ */
+class RenderCacheFixture implements AutoCloseable {
+
+  final SimpleMeterRegistry registry;
+  final AtomicInteger renders = new AtomicInteger();
+  final PngExportService pngExportService;
+  final RenderService renderService;
+  final SvgOptimizer svgOptimizer;
+  private final List<RenderScheduler> schedulers = new ArrayList<>();
+
+  RenderCacheFixture() {
+    this(new SimpleMeterRegistry());
+  }
+
+  RenderCacheFixture(SimpleMeterRegistry registry) {
+    this.registry = registry;
+    RenderBufferPool bufferPool = new RenderBufferPool(4, 65536, 8388608, registry);
+    GraphvizLayoutService layoutService = new GraphvizLayoutService("auto", "", 0, 5000, 3, registry);
+    pngExportService = new PngExportService(6, true, false, Long.MAX_VALUE, false, false, bufferPool, registry,
+        ObservationRegistry.NOOP);
+    pngExportService.registerWriter();
+    svgOptimizer = new SvgOptimizer(true, 2, 2, bufferPool, registry);
+    renderService = new RenderService(layoutService, new IncludeResolver("", false, 1048576, registry),
+        pngExportService, bufferPool, 16_000_000L, ObservationRegistry.NOOP) {
+      @Override
+      public RenderedArtifact renderSvg(String puml) throws IOException {
+        renders.incrementAndGet();
+        return super.renderSvg(puml);
+      }
+    };
+  }
+
+  /**
+   * A single-threaded scheduler, shut down on close
+   */
+  RenderScheduler scheduler(int bulkMaxConcurrent) {
+    RenderScheduler scheduler = new RenderScheduler(1, 4, 1, bulkMaxConcurrent, 1000, 50, registry);
+    schedulers.add(scheduler);
+    return scheduler;
+  }
+
+  /**
+   * A cache on its own scheduler, not clustered, without a cold tier or size limit
+   */
+  CacheBuilder cache() {
+    return new CacheBuilder();
+  }
+
+  @Override
+  public void close() {
+    schedulers.forEach(RenderScheduler::shutdown);
+    pngExportService.shutdown();
+  }
+
+  final class CacheBuilder {
+
+    private RenderScheduler scheduler;
+    private boolean trustTenantHeader;
+    private ClusterService clusterService = new ClusterService(false, "", "", "", 128, "");
+    private PeerClient peerClient = new HttpPeerClient(2000, 60000, "");
+    private long coldIdleMillis;
+    private TenantUsageService tenantUsage;
+    private long maxBytes;
+
+    CacheBuilder scheduler(RenderScheduler scheduler) {
+      this.scheduler = scheduler;
+      return this;
+    }
+
+    CacheBuilder trustTenantHeader() {
+      this.trustTenantHeader = true;
+      return this;
+    }
+
+    CacheBuilder cluster(ClusterService clusterService, PeerClient peerClient) {
+      this.clusterService = clusterService;
+      this.peerClient = peerClient;
+      return this;
+    }
+
+    CacheBuilder coldIdleMillis(long coldIdleMillis) {
+      this.coldIdleMillis = coldIdleMillis;
+      return this;
+    }
+
+    CacheBuilder tenantUsage(TenantUsageService tenantUsage) {
+      this.tenantUsage = tenantUsage;
+      return this;
+    }
+
+    CacheBuilder maxBytes(long maxBytes) {
+      this.maxBytes = maxBytes;
+      return this;
+    }
+
+    RenderCacheService build() {
+      return new RenderCacheService(renderService, svgOptimizer,
+          new RenderCostEstimator(262144, 60000, 2000, 400_000_000L, 100, registry),
+          scheduler != null ? scheduler : RenderCacheFixture.this.scheduler(0),
+          new ClientContextResolver("", trustTenantHeader),
+          clusterService, peerClient, 100, new RenderCompressor(6, registry), coldIdleMillis, 100,
+          tenantUsage != null ? tenantUsage : new TenantUsageService(0, "", 100, registry), maxBytes,
+          new IncludeResolver("", false, 1048576, registry),
+          new LoadShedService(false, 0, 0, 0, 0, 1, 1, null, event -> { }, registry), pngExportService, registry,
+          ObservationRegistry.NOOP);
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package mew.pumlserver.service;
+
+import mew.pumlserver.dto.CacheEntrySummary;
+import mew.pumlserver.dto.CacheStatsResponse;
+import mew.pumlserver.model.CacheEntry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RenderCacheStatsTest {
+
+  private static final String PUML = "@startuml\nBob -> Alice : hello\nAlice --> Bob : hi\n@enduml";
+  private static final String OTHER = "@startuml\nclass Foo\nclass Bar\nFoo --> Bar\n@enduml";
+
+  private final RenderCacheFixture fixture = new RenderCacheFixture();
+  private final RenderCacheService cache = fixture.cache().build();
+
+  @AfterEach
+  void tearDown() {
+    fixture.close();
+  }
+
+  @Test
+  void reportsHitsBytesAndHottestEntries() throws Exception {
+    String id = cache.cacheAllFormats(PUML);
+    String shared = cache.cacheAllFormats(PUML.replace("\n", "\r\n"));
+    String other = cache.cachePumlCode(OTHER);
+    for (int i = 0; i < 3; i++) {
+      cache.ensureRenderedContent(cache.getCachedEntry(id));
+    }
+
+    CacheStatsResponse stats = cache.getStats(10);
+
+    assertEquals(3, stats.getEntries());
+    assertEquals(2, stats.getRenderedEntries());
+    assertEquals(3L, stats.getAgeHistogram().get("0-1m"));
+    // The two sources sharing a render hold its bytes once
+    CacheEntry entry = cache.getCachedEntry(id);
+    assertEquals(entry.getSvgContent().size(), stats.getBytes().get("svg"));
+    assertEquals(entry.getPngContent().size(), stats.getBytes().get("png"));
+    assertEquals(2 + 3, stats.getHits() + stats.getMisses());
+
+    CacheEntrySummary hottest = stats.getHottest().get(0);
+    assertEquals(id, hottest.getId());
+    assertEquals(4L, hottest.getRequests());
+    assertEquals(3L, hottest.getHits());
+    assertEquals(1L, hottest.getMisses());
+    assertEquals(other, stats.getLargest().get(stats.getLargest().size() - 1).getId());
+    assertTrue(stats.getHottest().stream().anyMatch(summary -> summary.getId().equals(shared)));
+  }
+
+  @Test
+  void purgesByIdAndByRenderKey() throws Exception {
+    String id = cache.cacheAllFormats(PUML);
+    String shared = cache.cacheAllFormats(PUML.replace("\n", "\r\n"));
+    String other = cache.cacheAllFormats(OTHER);
+
+    assertTrue(cache.purge(other));
+    assertFalse(cache.purge(other));
+    assertNull(cache.getCachedEntry(other));
+
+    assertEquals(2, cache.purgeRenderKey(RenderCacheService.renderKey(id)));
+    assertNull(cache.getCachedEntry(id));
+    assertNull(cache.getCachedEntry(shared));
+    CacheStatsResponse stats = cache.getStats(10);
+    assertEquals(0, stats.getEntries());
+    assertTrue(stats.getHottest().isEmpty());
+  }
+}
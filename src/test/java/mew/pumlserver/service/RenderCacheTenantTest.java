@@ -0,0 +1,90 @@
+package mew.pumlserver.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RenderCacheTenantTest {
+
+  private static final String FILLER = "x".repeat(1000);
+
+  private final RenderCacheFixture fixture = new RenderCacheFixture();
+  private final SimpleMeterRegistry registry = fixture.registry;
+  private TenantUsageService tenantUsage;
+
+  @AfterEach
+  void tearDown() {
+    RequestContextHolder.resetRequestAttributes();
+    fixture.close();
+  }
+
+  @Test
+  void tenantOverQuotaLosesItsOwnEntries() {
+    RenderCacheService cache = cache("bulk=5000", 0);
+    String kept = cachePuml(cache, "team-a", 0);
+    for (int i = 1; i <= 20; i++) {
+      cachePuml(cache, "bulk", i);
+    }
+
+    assertNotNull(cache.getCachedEntry(kept));
+    assertTrue(tenantUsage.usage("bulk").getBytes() <= 5000);
+    assertEquals(1, tenantUsage.usage("team-a").getEntries());
+    assertTrue(registry.get("puml.tenant.cache.evicted").tags("tenant", "bulk", "reason", "quota")
+        .counter().count() >= 15);
+  }
+
+  @Test
+  void fullCacheEvictsTheHeaviestTenantFirst() {
+    RenderCacheService cache = cache("", 8000);
+    String kept = cachePuml(cache, "team-a", 0);
+    for (int i = 1; i <= 20; i++) {
+      cachePuml(cache, "bulk", i);
+    }
+
+    assertNotNull(cache.getCachedEntry(kept));
+    assertTrue(tenantUsage.getTotalBytes() <= 8000);
+    assertEquals(tenantUsage.usage("team-a").getBytes() + tenantUsage.usage("bulk").getBytes(),
+        tenantUsage.getTotalBytes());
+    assertTrue(registry.get("puml.tenant.cache.evicted").tags("tenant", "bulk", "reason", "capacity")
+        .counter().count() > 0);
+  }
+
+  @Test
+  void accountsRenderCpuAndBytesToTheTenant() throws Exception {
+    RenderCacheService cache = cache("", 0);
+    as("team-a");
+    String id = cache.cacheAllFormats("@startuml\nBob -> Alice : hello\n@enduml");
+
+    assertEquals(1, registry.get("puml.tenant.renders").tag("tenant", "team-a").counter().count());
+    assertTrue(registry.get("puml.tenant.render.cpu").tag("tenant", "team-a").counter().count() > 0);
+    long bytes = tenantUsage.usage("team-a").getBytes();
+    assertTrue(bytes > 1000, "source and rendered formats are charged: " + bytes);
+
+    cache.purge(id);
+    assertEquals(0, tenantUsage.usage("team-a").getBytes());
+    assertEquals(0, tenantUsage.usage("team-a").getEntries());
+  }
+
+  private String cachePuml(RenderCacheService cache, String tenant, int n) {
+    as(tenant);
+    return cache.cachePumlCode("@startuml\nnote as N" + n + "\n" + FILLER + "\nend note\n@enduml");
+  }
+
+  private void as(String tenant) {
+    MockHttpServletRequest request = new MockHttpServletRequest();
+    request.addHeader(ClientContextResolver.TENANT_HEADER, tenant);
+    RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+  }
+
+  private RenderCacheService cache(String quotas, long maxBytes) {
+    tenantUsage = new TenantUsageService(0, quotas, 100, registry);
+    return fixture.cache().trustTenantHeader().tenantUsage(tenantUsage).maxBytes(maxBytes).build();
+  }
+}
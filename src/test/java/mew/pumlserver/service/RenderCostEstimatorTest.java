@@ -0,0 +1,131 @@
+package mew.pumlserver.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import mew.pumlserver.exception.PayloadTooLargeException;
+import mew.pumlserver.exception.UnprocessableEntityException;
+import mew.pumlserver.model.RenderCostEstimate;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Admission rules and calibration, on diagrams that are parsed but never laid out
+ */
+class RenderCostEstimatorTest {
+
+  private static final String SEQUENCE = "@startuml\nBob -> Alice : hello\nAlice --> Bob : ok\n@enduml";
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+  @Test
+  void smallDiagramIsAdmitted() {
+    RenderCostEstimate estimate = estimator(60000, 400_000_000L).admit(SEQUENCE);
+
+    assertEquals(2, estimate.getNodes());
+    assertEquals(2, estimate.getEdges());
+    assertFalse(estimate.isUsesGraphviz());
+    assertFalse(estimate.isHeavy());
+    assertTrue(estimate.getEstimatedPixels() > 0);
+  }
+
+  @Test
+  void largeSourceIsRejected() {
+    RenderCostEstimator estimator = new RenderCostEstimator(16, 60000, 2000, 400_000_000L, 100, registry);
+
+    assertThrows(PayloadTooLargeException.class, () -> estimator.admit(SEQUENCE));
+    assertRejected("source-size");
+  }
+
+  @Test
+  void costOverBudgetIsRejected() {
+    // The fixed base cost alone is 10 ms
+    assertThrows(UnprocessableEntityException.class, () -> estimator(5, 400_000_000L).admit(SEQUENCE));
+    assertRejected("cost");
+  }
+
+  @Test
+  void resolvedSourceIsAnalyzedOncePerRenderKey() {
+    RenderCostEstimator estimator = estimator(60000, 400_000_000L);
+    AtomicInteger resolved = new AtomicInteger();
+    // The included file adds a third message
+    String include = "@startuml\n!include messages.iuml\n@enduml";
+    Supplier<String> resolve = () -> {
+      resolved.incrementAndGet();
+      return SEQUENCE.replace("@enduml", "Bob -> Carol : hi\n@enduml");
+    };
+
+    RenderCostEstimate first = estimator.admit(include, "key", resolve);
+    RenderCostEstimate second = estimator.admit(include, "key", resolve);
+
+    assertEquals(3, first.getNodes());
+    assertEquals(3, first.getEdges());
+    assertEquals(first, second);
+    assertEquals(1, resolved.get());
+    assertEquals(1, registry.get("puml.render.cost.analysis").tag("result", "hit").counter().count());
+  }
+
+  @Test
+  void rasterOverBudgetIsRejectedBeforeLayout() {
+    RenderCostEstimator estimator = estimator(60000, 1000);
+    long pixels = estimator.estimate(SEQUENCE).getEstimatedPixels();
+
+    UnprocessableEntityException e = assertThrows(UnprocessableEntityException.class,
+        () -> estimator.admit(SEQUENCE));
+
+    assertTrue(e.getMessage().contains(pixels + " pixels"), e.getMessage());
+    assertRejected("pixels");
+  }
+
+  @Test
+  void calibrationConvergesTowardMeasuredTimes() {
+    RenderCostEstimator estimator = estimator(60000, 400_000_000L);
+    double raw = estimator.estimate(SEQUENCE).getEstimatedMillis();
+
+    // Renders take 4 times the uncalibrated estimate
+    for (int i = 0; i < 100; i++) {
+      estimator.record(estimator.estimate(SEQUENCE), nanos(raw * 4));
+    }
+
+    assertEquals(4, calibration("other"), 0.01);
+    assertEquals(raw * 4, estimator.estimate(SEQUENCE).getEstimatedMillis(), raw * 0.01);
+    // The other family is left alone
+    assertEquals(1, calibration("graphviz"));
+  }
+
+  @Test
+  void calibrationIsClamped() {
+    RenderCostEstimator estimator = estimator(60000, 400_000_000L);
+    for (int i = 0; i < 200; i++) {
+      estimator.record(estimator.estimate(SEQUENCE), TimeUnit.SECONDS.toNanos(3600));
+    }
+    assertEquals(100, calibration("other"));
+
+    for (int i = 0; i < 200; i++) {
+      estimator.record(estimator.estimate(SEQUENCE), 0);
+    }
+    assertEquals(0.05, calibration("other"));
+  }
+
+  private RenderCostEstimator estimator(double maxMillis, long maxEstimatedPixels) {
+    return new RenderCostEstimator(262144, maxMillis, 2000, maxEstimatedPixels, 100, registry);
+  }
+
+  private double calibration(String family) {
+    return registry.get("puml.render.cost.calibration").tag("family", family).gauge().value();
+  }
+
+  private void assertRejected(String reason) {
+    assertEquals(1, registry.get("puml.render.admission.rejected").tag("reason", reason).counter().count());
+  }
+
+  private static long nanos(double millis) {
+    return (long) (millis * 1_000_000);
+  }
+}
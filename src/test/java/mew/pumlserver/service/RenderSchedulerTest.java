@@ -0,0 +1,154 @@
+package mew.pumlserver.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import mew.pumlserver.exception.ServiceUnavailableException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Dispatch order on a single render thread, which a blocking task holds while the queues fill up
+ */
+class RenderSchedulerTest {
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  private final List<String> order = Collections.synchronizedList(new ArrayList<>());
+  private final CountDownLatch started = new CountDownLatch(1);
+  private final CountDownLatch release = new CountDownLatch(1);
+  private RenderScheduler scheduler;
+
+  @AfterEach
+  void tearDown() {
+    release.countDown();
+    scheduler.shutdown();
+  }
+
+  @Test
+  void clientsWithUnequalLoadAreInterleaved() throws Exception {
+    // A quantum of one task's cost: each client gets one task per round
+    scheduler = new RenderScheduler(1, 4, 1, 0, 100, 10, registry);
+    block(RenderScheduler.Lane.INTERACTIVE);
+
+    List<Future<?>> futures = new ArrayList<>();
+    for (int i = 1; i <= 6; i++) {
+      futures.add(submit(RenderScheduler.Lane.INTERACTIVE, "heavy", 10, "heavy-" + i));
+    }
+    futures.add(submit(RenderScheduler.Lane.INTERACTIVE, "light", 10, "light-1"));
+    futures.add(submit(RenderScheduler.Lane.INTERACTIVE, "light", 10, "light-2"));
+    release.countDown();
+    await(futures);
+
+    assertEquals(List.of("heavy-1", "light-1", "heavy-2", "light-2", "heavy-3", "heavy-4", "heavy-5", "heavy-6"),
+        order);
+  }
+
+  @Test
+  void interactiveLaneIsServedAtItsWeight() throws Exception {
+    scheduler = new RenderScheduler(1, 3, 1, 1, 100, 50, registry);
+    block(RenderScheduler.Lane.INTERACTIVE);
+
+    // Bulk work queued first doesn't hold up interactive work queued after it
+    List<Future<?>> futures = new ArrayList<>();
+    for (int i = 1; i <= 4; i++) {
+      futures.add(submit(RenderScheduler.Lane.BULK, "client", 0, "B"));
+    }
+    for (int i = 1; i <= 8; i++) {
+      futures.add(submit(RenderScheduler.Lane.INTERACTIVE, "client", 0, "I"));
+    }
+    release.countDown();
+    await(futures);
+
+    // Three interactive tasks for every bulk one
+    assertEquals("IBIIIBIIIBIB", String.join("", order));
+  }
+
+  @Test
+  void fullLaneRejectsNewWork() throws Exception {
+    scheduler = new RenderScheduler(1, 4, 1, 0, 2, 50, registry);
+    block(RenderScheduler.Lane.INTERACTIVE);
+
+    submit(RenderScheduler.Lane.INTERACTIVE, "a", 10, "1");
+    submit(RenderScheduler.Lane.INTERACTIVE, "b", 10, "2");
+
+    assertThrows(ServiceUnavailableException.class,
+        () -> submit(RenderScheduler.Lane.INTERACTIVE, "c", 10, "3"));
+    assertEquals(1, registry.get("puml.scheduler.rejected").tag("lane", "interactive").counter().count());
+    // Lanes are limited separately
+    submit(RenderScheduler.Lane.BULK, "c", 10, "3");
+    assertEquals(3, scheduler.getQueueDepth());
+  }
+
+  @Test
+  void taskCancelledBeforeStartIsDropped() throws Exception {
+    scheduler = new RenderScheduler(1, 4, 1, 0, 100, 50, registry);
+    block(RenderScheduler.Lane.INTERACTIVE);
+    AtomicBoolean ran = new AtomicBoolean();
+
+    Future<?> cancelled = scheduler.submit(RenderScheduler.Lane.INTERACTIVE, "a", 10, () -> {
+      ran.set(true);
+      return null;
+    });
+    Future<?> next = submit(RenderScheduler.Lane.INTERACTIVE, "a", 10, "next");
+    cancelled.cancel(false);
+    // Taken out of the queue right away, not when the render thread gets to it
+    assertEquals(1, scheduler.getQueueDepth());
+    release.countDown();
+    next.get(5, TimeUnit.SECONDS);
+
+    assertFalse(ran.get());
+    assertEquals(List.of("next"), order);
+    assertEquals(0, scheduler.getQueueDepth());
+  }
+
+  @Test
+  void shutdownCancelsQueuedTasks() throws Exception {
+    scheduler = new RenderScheduler(1, 4, 1, 0, 100, 50, registry);
+    block(RenderScheduler.Lane.INTERACTIVE);
+    Future<?> interactive = submit(RenderScheduler.Lane.INTERACTIVE, "a", 10, "interactive");
+    Future<?> bulk = submit(RenderScheduler.Lane.BULK, "b", 10, "bulk");
+
+    scheduler.shutdown();
+
+    assertThrows(CancellationException.class, () -> interactive.get(5, TimeUnit.SECONDS));
+    assertThrows(CancellationException.class, () -> bulk.get(5, TimeUnit.SECONDS));
+    assertEquals(0, scheduler.getQueueDepth());
+    assertThrows(ServiceUnavailableException.class,
+        () -> submit(RenderScheduler.Lane.INTERACTIVE, "a", 10, "late"));
+    assertTrue(order.isEmpty());
+  }
+
+  /**
+   * Occupy the render thread until {@link #release} is counted down
+   */
+  private void block(RenderScheduler.Lane lane) throws InterruptedException {
+    scheduler.submit(lane, "blocker", 0, () -> {
+      started.countDown();
+      release.await();
+      return null;
+    });
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+  }
+
+  private Future<?> submit(RenderScheduler.Lane lane, String client, double cost, String name) {
+    return scheduler.submit(lane, client, cost, () -> order.add(name));
+  }
+
+  private static void await(List<Future<?>> futures) throws Exception {
+    for (Future<?> future : futures) {
+      future.get(5, TimeUnit.SECONDS);
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package mew.pumlserver.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SpaceSavingSketchTest {
+
+  @Test
+  void findsHeavyHittersInALongTail() {
+    SpaceSavingSketch sketch = new SpaceSavingSketch(50);
+    Random random = new Random(42);
+    int[] real = new int[3];
+    for (int i = 0; i < 100_000; i++) {
+      int roll = random.nextInt(100);
+      if (roll < 15) {
+        // 5% of requests hit each of three hot keys, above the guaranteed 1/capacity share;
+        // the rest are spread over 100000 keys
+        real[roll / 5]++;
+        sketch.add("hot-" + roll / 5);
+      } else {
+        sketch.add("cold-" + random.nextInt(100_000));
+      }
+    }
+
+    List<SpaceSavingSketch.Estimate> top = sketch.top(3);
+    assertEquals(3, top.size());
+    for (SpaceSavingSketch.Estimate estimate : top) {
+      assertTrue(estimate.getKey().startsWith("hot-"), estimate.getKey());
+      int count = real[Integer.parseInt(estimate.getKey().substring(4))];
+      // The real count lies between count - error and count
+      assertTrue(estimate.getCount() >= count);
+      assertTrue(estimate.getCount() - estimate.getError() <= count);
+    }
+    assertEquals(100_000, sketch.getTotal());
+  }
+
+  @Test
+  void countsExactlyWithinCapacityAndForgetsRemovedKeys() {
+    SpaceSavingSketch sketch = new SpaceSavingSketch(4);
+    for (int i = 0; i < 5; i++) {
+      sketch.add("a");
+    }
+    sketch.add("b");
+    sketch.add("b");
+    sketch.add("c");
+
+    sketch.remove("b");
+    sketch.add("d");
+
+    List<SpaceSavingSketch.Estimate> top = sketch.top(10);
+    assertEquals(List.of("a", "c", "d"), top.stream().map(SpaceSavingSketch.Estimate::getKey).sorted().toList());
+    assertEquals("a", top.get(0).getKey());
+    assertEquals(5, top.get(0).getCount());
+    assertEquals(0, top.get(0).getError());
+  }
+}
@@ -0,0 +1,123 @@
+package mew.pumlserver.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Frames of a 50 ms window and 8 bytes, on a clock the tests move by hand
+ */
+class SseFrameCoalescerTest {
+
+  private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  private final StubSseEmitter emitter = new StubSseEmitter();
+  private long now;
+  private final SseFrameCoalescer.FrameWriter frames =
+      new SseFrameCoalescer(50, 8, registry, () -> now).open(emitter);
+
+  @Test
+  void firstTokenIsSentImmediately() throws IOException {
+    frames.append("@startuml");
+
+    assertEquals(List.of("@startuml"), emitter.data());
+  }
+
+  @Test
+  void frameIsSentAtTheByteLimit() throws IOException {
+    frames.append("@");
+    frames.append("abcd");
+    frames.append("efg");
+    assertEquals(List.of("@"), emitter.data());
+
+    // "é" is two bytes in UTF-8: 9 bytes buffered
+    frames.append("é");
+
+    assertEquals(List.of("@", "abcdefgé"), emitter.data());
+  }
+
+  @Test
+  void frameIsSentWhenTheWindowElapses() throws IOException {
+    frames.append("@");
+    frames.append("a");
+    advance(49);
+    frames.append("b");
+    assertEquals(List.of("@"), emitter.data());
+
+    advance(1);
+    frames.append("c");
+
+    assertEquals(List.of("@", "abc"), emitter.data());
+  }
+
+  @Test
+  void heartbeatSendsTheFrameWhenTheWindowElapses() throws IOException {
+    frames.append("@");
+    frames.append("a");
+    advance(49);
+    frames.heartbeat(IDLE_NANOS);
+    assertEquals(List.of("@"), emitter.data());
+
+    // No further token: the tick sends what is buffered
+    advance(1);
+    frames.heartbeat(IDLE_NANOS);
+
+    assertEquals(List.of("@", "a"), emitter.data());
+    assertEquals(2, emitter.sent.size());
+  }
+
+  @Test
+  void heartbeatSendsACommentWhileIdle() throws IOException {
+    frames.append("@");
+    advance(1999);
+    frames.heartbeat(IDLE_NANOS);
+    assertEquals(1, emitter.sent.size());
+
+    advance(1);
+    frames.heartbeat(IDLE_NANOS);
+
+    assertEquals(2, emitter.sent.size());
+    assertTrue(emitter.sent.get(1).startsWith(":keep-alive"), emitter.sent.get(1));
+    assertEquals(List.of("@"), emitter.data());
+  }
+
+  @Test
+  void remainderIsFlushedOnComplete() throws IOException {
+    frames.append("@");
+    frames.append("end");
+    frames.event("id", "abc");
+    frames.append("uml");
+
+    frames.complete();
+
+    assertEquals(List.of("@", "end", "uml"), emitter.data());
+    assertTrue(frames.isClosed());
+  }
+
+  @Test
+  void frameCountsAreRecorded() throws IOException {
+    frames.append("@");
+    frames.append("abcdefgh");
+    frames.append("ij");
+    frames.complete();
+
+    DistributionSummary framesPerResponse = registry.get("puml.sse.frames").summary();
+    assertEquals(1, framesPerResponse.count());
+    assertEquals(3, framesPerResponse.totalAmount());
+    DistributionSummary bytesPerFrame = registry.get("puml.sse.frame.bytes").summary();
+    assertEquals(3, bytesPerFrame.count());
+    assertEquals(11, bytesPerFrame.totalAmount());
+  }
+
+  private void advance(long millis) {
+    now += TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+}
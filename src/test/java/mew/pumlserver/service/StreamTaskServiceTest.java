@@ -0,0 +1,242 @@
+package mew.pumlserver.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import mew.pumlserver.model.RenderContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Streams bound to a stub emitter whose callbacks the tests fire
+ */
+class StreamTaskServiceTest {
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  private final CountDownLatch started = new CountDownLatch(1);
+  private final CountDownLatch interrupted = new CountDownLatch(1);
+  private final StubSseEmitter emitter = new StubSseEmitter();
+  private StreamTaskService streams;
+
+  @BeforeEach
+  void setUp() {
+    streams = new StreamTaskService(new SseFrameCoalescer(50, 4096, registry), registry, 100);
+  }
+
+  @AfterEach
+  void tearDown() {
+    streams.shutdown();
+  }
+
+  @Test
+  void timeoutCancelsTheTask() throws Exception {
+    assertCancelledBy(StubSseEmitter::fireTimeout, "timeout");
+  }
+
+  @Test
+  void errorCancelsTheTask() throws Exception {
+    assertCancelledBy(emitter -> emitter.fireError(new IOException("Connection reset")), "error");
+  }
+
+  @Test
+  void completionBeforeTheTaskFinishedCancelsIt() throws Exception {
+    assertCancelledBy(StubSseEmitter::fireCompletion, "disconnect");
+  }
+
+  @Test
+  void heartbeatNoticesADisconnectWhileIdle() throws Exception {
+    streams.run(emitter, "generate", this::waitForever);
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+
+    emitter.disconnected = true;
+
+    // The next heartbeat, 100 ms after the last write, fails and cancels the stream
+    assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+    assertCancelled("disconnect");
+  }
+
+  @Test
+  void failedSendEndsTheStreamWithAnError() throws Exception {
+    emitter.disconnected = true;
+    CountDownLatch failed = new CountDownLatch(1);
+
+    streams.run(emitter, "generate", frames -> {
+      try {
+        frames.append("@startuml");
+      } finally {
+        failed.countDown();
+      }
+    });
+
+    assertTrue(failed.await(5, TimeUnit.SECONDS));
+    waitFor(() -> emitter.completedWithError != null);
+    assertTrue(emitter.completedWithError instanceof IOException);
+    assertCancelled("disconnect");
+    waitFor(() -> registry.find("puml.sse.frames").summary().count() == 1);
+  }
+
+  @Test
+  void queuedPrerenderIsRemovedWhenTheClientLeaves() throws Exception {
+    RenderCacheFixture fixture = new RenderCacheFixture();
+    RenderScheduler scheduler = fixture.scheduler(1);
+    RenderCacheService cache = fixture.cache().scheduler(scheduler).build();
+    CountDownLatch release = new CountDownLatch(1);
+    try {
+      // Hold the only bulk slot, so the pre-render stays queued
+      scheduler.submit(RenderScheduler.Lane.BULK, "other", 0, () -> {
+        release.await();
+        return null;
+      });
+      String id = cache.cachePumlCode("@startuml\nBob -> Alice : hello\n@enduml");
+
+      // What /generate does: pre-render while streaming, cancel it if the client goes away
+      streams.run(emitter, "generate", frames -> {
+        cache.prerenderAsync(id);
+        try {
+          waitForever(frames);
+        } catch (InterruptedException | IOException e) {
+          cache.cancelPrerender(id);
+          throw e;
+        }
+      });
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+      assertEquals(1, scheduler.getQueueDepth());
+
+      emitter.fireCompletion();
+
+      assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+      waitFor(() -> scheduler.getQueueDepth() == 0);
+      assertEquals(1, fixture.registry.get("puml.prerender").tag("result", "cancelled").counter().count());
+    } finally {
+      release.countDown();
+      fixture.close();
+    }
+  }
+
+  @Test
+  void prerenderAnotherCallerJoinedIsNotCancelled() throws Exception {
+    RenderCacheFixture fixture = new RenderCacheFixture();
+    RenderScheduler scheduler = fixture.scheduler(1);
+    RenderCacheService cache = fixture.cache().scheduler(scheduler).build();
+    CountDownLatch release = new CountDownLatch(1);
+    try {
+      scheduler.submit(RenderScheduler.Lane.BULK, "other", 0, () -> {
+        release.await();
+        return null;
+      });
+      String id = cache.cachePumlCode("@startuml\nBob -> Alice : hello\n@enduml");
+      cache.prerenderAsync(id);
+      assertEquals(1, scheduler.getQueueDepth());
+
+      // A bulk-lane caller (no request, so the system client) joins the queued pre-render
+      CompletableFuture<Void> joined = CompletableFuture.runAsync(() -> {
+        try {
+          cache.ensureRenderedContent(cache.getCachedEntry(id));
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+      waitFor(() -> fixture.registry.find("puml.cache.raw").tag("result", "in-flight").counter() != null);
+      Thread.sleep(100);
+
+      // The stream's client goes away
+      cache.cancelPrerender(id);
+      release.countDown();
+
+      joined.get(5, TimeUnit.SECONDS);
+      assertNotNull(cache.getCachedEntry(id).getSvgContent());
+      assertEquals(1, fixture.renders.get());
+      assertNull(fixture.registry.find("puml.prerender").tag("result", "cancelled").counter());
+    } finally {
+      release.countDown();
+      fixture.close();
+    }
+  }
+
+  @Test
+  void streamedCodeIsChargedToTheCallersTenant() throws Exception {
+    RenderCacheFixture fixture = new RenderCacheFixture();
+    TenantUsageService tenantUsage = new TenantUsageService(0, "", 100, fixture.registry);
+    RenderCacheService cache = fixture.cache().trustTenantHeader().tenantUsage(tenantUsage).build();
+    MockHttpServletRequest request = new MockHttpServletRequest();
+    request.addHeader(ClientContextResolver.TENANT_HEADER, "team-x");
+    RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+    try {
+      // What /generate does: resolve the context on the request thread, use it on the stream's
+      RenderContext context = cache.currentContext();
+      streams.run(emitter, "generate", frames -> {
+        String id = cache.cachePumlCode("@startuml\nBob -> Alice : hello\n@enduml", context);
+        cache.prerenderAsync(id, context);
+        frames.event("id", id);
+        frames.complete();
+      });
+
+      // The tenant's counter is registered before the code is charged; wait for the pre-render itself
+      waitFor(() -> {
+        Counter renders = fixture.registry.find("puml.tenant.renders").tag("tenant", "team-x").counter();
+        return renders != null && renders.count() > 0;
+      });
+      assertEquals(1, tenantUsage.usage("team-x").getEntries());
+      assertTrue(tenantUsage.usage("team-x").getBytes() > 0);
+      assertNull(fixture.registry.find("puml.tenant.renders").tag("tenant", ClientContextResolver.SYSTEM_CLIENT)
+          .counter());
+      assertEquals(0, tenantUsage.usage(ClientContextResolver.SYSTEM_CLIENT).getEntries());
+    } finally {
+      RequestContextHolder.resetRequestAttributes();
+      fixture.close();
+    }
+  }
+
+  private void assertCancelledBy(Consumer<StubSseEmitter> callback, String reason) throws Exception {
+    streams.run(emitter, "generate", this::waitForever);
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+
+    callback.accept(emitter);
+
+    assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+    assertCancelled(reason);
+  }
+
+  private void assertCancelled(String reason) throws InterruptedException {
+    waitFor(() -> registry.find("puml.stream.cancelled").tag("reason", reason).counter() != null);
+    assertEquals(1, registry.get("puml.stream.cancelled").counter().count());
+  }
+
+  /**
+   * Stream one token, then wait like a stalled upstream call until interrupted
+   */
+  private void waitForever(SseFrameCoalescer.FrameWriter frames) throws IOException, InterruptedException {
+    frames.append("@startuml");
+    started.countDown();
+    try {
+      Thread.sleep(60_000);
+    } catch (InterruptedException e) {
+      interrupted.countDown();
+      throw e;
+    }
+  }
+
+  private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!condition.getAsBoolean()) {
+      assertTrue(System.nanoTime() < deadline, "Timed out");
+      Thread.sleep(10);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package mew.pumlserver.service;
+
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * An emitter that isn't attached to a response: it records what is sent, can be made to
+ * fail like a disconnected client, and fires its callbacks when the test says so
+ */
+class StubSseEmitter extends SseEmitter {
+
+  final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+  volatile boolean disconnected;
+  volatile Throwable completedWithError;
+  private volatile Runnable timeoutCallback = () -> { };
+  private volatile Consumer<Throwable> errorCallback = error -> { };
+  private volatile Runnable completionCallback = () -> { };
+
+  @Override
+  public void send(SseEventBuilder builder) throws IOException {
+    if (disconnected) {
+      throw new IOException("Broken pipe");
+    }
+    StringBuilder event = new StringBuilder();
+    for (ResponseBodyEmitter.DataWithMediaType part : builder.build()) {
+      event.append(part.getData());
+    }
+    sent.add(event.toString());
+  }
+
+  @Override
+  public void completeWithError(Throwable error) {
+    completedWithError = error;
+  }
+
+  @Override
+  public void onTimeout(Runnable callback) {
+    timeoutCallback = callback;
+  }
+
+  @Override
+  public void onError(Consumer<Throwable> callback) {
+    errorCallback = callback;
+  }
+
+  @Override
+  public void onCompletion(Runnable callback) {
+    completionCallback = callback;
+  }
+
+  void fireTimeout() {
+    timeoutCallback.run();
+  }
+
+  void fireError(Throwable error) {
+    errorCallback.accept(error);
+  }
+
+  void fireCompletion() {
+    completionCallback.run();
+  }
+
+  /**
+   * Data frames sent, without the SSE framing
+   */
+  List<String> data() {
+    List<String> data = new ArrayList<>();
+    synchronized (sent) {
+      for (String event : sent) {
+        if (event.startsWith("data:")) {
+          data.add(event.substring("data:".length()).strip());
+        }
+      }
+    }
+    return data;
+  }
+}
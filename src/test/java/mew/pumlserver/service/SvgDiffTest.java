@@ -0,0 +1,55 @@
+package mew.pumlserver.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SvgDiffTest {
+
+  @Test
+  void replacesOnlyTheChangedElements() {
+    String base = "<svg><g><rect x=\"1\"/><text x=\"5\">hello</text><path d=\"M0 0\"/></g></svg>";
+    String target = "<svg><g><rect x=\"1\"/><text x=\"7\">hello world</text><path d=\"M0 0\"/></g></svg>";
+
+    List<Object> ops = SvgDiff.diff(base, target, 100);
+
+    assertEquals(target, SvgDiff.apply(base, ops));
+    assertEquals(List.of(21, -17, "<text x=\"7\">hello world", 33), ops);
+    assertEquals(List.of(base.length()), SvgDiff.diff(base, base, 100));
+    assertNull(SvgDiff.diff(base, "<svg/>", 2));
+  }
+
+  @Test
+  void appliedDeltasRebuildRandomEdits() {
+    Random random = new Random(7);
+    for (int round = 0; round < 200; round++) {
+      List<String> elements = new ArrayList<>();
+      for (int i = 0; i < 40; i++) {
+        elements.add("<text x=\"" + random.nextInt(20) + "\">" + random.nextInt(20) + "</text>");
+      }
+      String base = "<svg>" + String.join("", elements) + "</svg>";
+      for (int edit = random.nextInt(8); edit >= 0; edit--) {
+        int index = random.nextInt(elements.size());
+        switch (random.nextInt(3)) {
+          case 0 -> elements.remove(index);
+          case 1 -> elements.add(index, "<rect width=\"" + random.nextInt(5) + "\"/>");
+          default -> elements.set(index, "<line x1=\"" + random.nextInt(5) + "\"/>");
+        }
+      }
+      String target = "<svg>" + String.join("", elements) + "</svg>";
+
+      List<Object> ops = SvgDiff.diff(base, target, 1000);
+      assertEquals(target, SvgDiff.apply(base, ops));
+      for (int i = 1; i < ops.size(); i++) {
+        // Adjacent operations of the same kind are merged
+        assertTrue(!(ops.get(i) instanceof String && ops.get(i - 1) instanceof String));
+      }
+    }
+  }
+}
@@ -0,0 +1,318 @@
+package mew.pumlserver.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
+import mew.pumlserver.model.RenderedArtifact;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Minified PlantUML output parsed again and compared with the original: same elements,
+ * same text, geometry within the rounding of puml.svg.optimize.precision
+ */
+class SvgOptimizerTest {
+
+  private static final String SVG_NS = "http://www.w3.org/2000/svg";
+  private static final Set<String> GEOMETRY = Set.of(
+      "x", "y", "x1", "y1", "x2", "y2", "cx", "cy", "r", "rx", "ry", "dx", "dy", "width", "height",
+      "points", "d", "stroke-width");
+  private static final Pattern NUMBER = Pattern.compile("-?\\d*\\.?\\d+");
+  private static final Pattern RULE = Pattern.compile("\\.([\\w-]+)\\{([^}]*)}");
+  // Half a unit in the last of 2 fraction digits, and some slack for binary doubles
+  private static final double ROUNDING = 0.005 + 1e-9;
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  private PngExportService pngExportService;
+  private RenderService renderService;
+  private SvgOptimizer optimizer;
+
+  @BeforeEach
+  void setUp() {
+    RenderBufferPool bufferPool = new RenderBufferPool(4, 65536, 8388608, registry);
+    GraphvizLayoutService layoutService = new GraphvizLayoutService("auto", "", 0, 5000, 3, registry);
+    pngExportService = new PngExportService(6, true, false, Long.MAX_VALUE, false, false, bufferPool, registry,
+        ObservationRegistry.NOOP);
+    renderService = new RenderService(layoutService, new IncludeResolver("", false, 1048576, registry),
+        pngExportService, bufferPool, 16_000_000L, ObservationRegistry.NOOP);
+    optimizer = new SvgOptimizer(true, 2, 2, bufferPool, registry);
+  }
+
+  @AfterEach
+  void tearDown() {
+    pngExportService.shutdown();
+  }
+
+  @Test
+  void sequenceDiagramKeepsTextAndGeometry() throws Exception {
+    assertEquivalent("@startuml\n"
+        + "actor User\n"
+        + "participant \"Web <Server>\" as Web #LightBlue\n"
+        + "User -> Web : GET /?a=1&b=\"two\"\n"
+        + "activate Web\n"
+        + "Web --> User : 200 OK, café → ©\n"
+        + "deactivate Web\n"
+        + "note over User, Web : x < y && y > z\n"
+        + "@enduml");
+  }
+
+  @Test
+  void classDiagramKeepsTextAndGeometry() throws Exception {
+    assertEquivalent("@startuml\n"
+        + "class Repository<T> {\n"
+        + "  - items : Map<String, T>\n"
+        + "  + find(id : String) : T\n"
+        + "  + save(item : T)\n"
+        + "}\n"
+        + "interface Entity\n"
+        + "abstract class Base\n"
+        + "note right of Base : A & B < C\n"
+        + "Repository o-- \"0..*\" Entity : holds >\n"
+        + "Entity <|.. Base\n"
+        + "@enduml");
+  }
+
+  @Test
+  void whitespaceSensitiveTextIsCopiedAsIs() throws Exception {
+    String svg = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+        + "<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\">"
+        + "<!-- generated -->"
+        + "<text xml:space=\"preserve\" x=\"10.004\" y=\"20.5\">  two  spaces\t&amp; a tab </text>\n"
+        + "<text x=\"1\" y=\"2\">&lt;&lt;interface&gt;&gt; &#169;</text>\n"
+        + "<text x=\"1\" y=\"2\"><![CDATA[a <b> & c]]></text>"
+        + "<a xlink:href=\"#top\"><text x=\"3\" y=\"4\"> </text></a>"
+        + "</svg>";
+
+    String optimized = optimize(svg);
+
+    assertTrue(optimized.contains("xml:space=\"preserve\""), optimized);
+    Document document = parse(optimized);
+    List<String> texts = texts(document.getDocumentElement(), new ArrayList<>());
+    assertEquals(List.of("  two  spaces\t& a tab ", "<<interface>> ©", "a <b> & c", " "), texts);
+    assertEquals("#top", ((Element) document.getElementsByTagNameNS(SVG_NS, "a").item(0))
+        .getAttributeNS("http://www.w3.org/1999/xlink", "href"));
+    assertEquivalent(svg, optimized);
+  }
+
+  @Test
+  void decimalsAreRoundedToTheConfiguredPrecision() throws Exception {
+    String svg = "<svg xmlns=\"http://www.w3.org/2000/svg\">"
+        + "<rect x=\"12.345\" y=\"0.40\" width=\"-0.001\" height=\"7.999\" style=\"stroke-width: 1.0; fill: #FEFECE;\"/>"
+        + "<path d=\"M10.126,20.5 L30.004,40.0 \" fill=\"none\"/>"
+        + "<polygon points=\"1.115,2.225 3.335,4.445\" id=\"v1.2.3\"/>"
+        + "</svg>";
+
+    Element root = parse(optimize(svg)).getDocumentElement();
+
+    Element rect = (Element) root.getElementsByTagNameNS(SVG_NS, "rect").item(0);
+    assertEquals("12.35", rect.getAttribute("x"));
+    assertEquals(".4", rect.getAttribute("y"));
+    assertEquals("0", rect.getAttribute("width"));
+    assertEquals("8", rect.getAttribute("height"));
+    assertEquals("stroke-width:1;fill:#FEFECE", rect.getAttribute("style"));
+    Element path = (Element) root.getElementsByTagNameNS(SVG_NS, "path").item(0);
+    assertEquals("M10.13,20.5 L30,40", path.getAttribute("d"));
+    Element polygon = (Element) root.getElementsByTagNameNS(SVG_NS, "polygon").item(0);
+    assertEquals("1.12,2.23 3.34,4.45", polygon.getAttribute("points"));
+    // Not geometry: left alone
+    assertEquals("v1.2.3", polygon.getAttribute("id"));
+  }
+
+  @Test
+  void inlinedDiagramsOnlyShareNamesWithTheSameMeaning() throws Exception {
+    String sequencePuml = "@startuml\nBob -> Alice : hello\nAlice --> Bob : hi\nnote left of Bob : a note\n@enduml";
+    String sequence = render(sequencePuml);
+    String classes = render("@startuml\nclass Foo #LightBlue\nclass Bar\nFoo --> Bar\nnote right of Bar : x\n@enduml");
+
+    Map<String, String> sequenceRules = rules(sequence);
+    Map<String, String> classRules = rules(classes);
+    assertFalse(sequenceRules.isEmpty());
+    assertFalse(classRules.isEmpty());
+    assertConsistent(sequenceRules, classRules);
+    assertConsistent(definitions(sequence), definitions(classes));
+    // Still the same bytes for the same diagram
+    assertEquals(sequence, render(sequencePuml));
+  }
+
+  @Test
+  void differentStylesAndDefinitionsGetDifferentNames() throws Exception {
+    // Named s0 and f0 in both documents if the names were handed out in order
+    String red = optimize(shadowedRects("fk3j2abcdefgh", "1", "red"));
+    String blue = optimize(shadowedRects("f9x01abcdefgh", "3", "blue"));
+
+    Map<String, String> redRules = rules(red);
+    Map<String, String> blueRules = rules(blue);
+    assertEquals(1, redRules.size());
+    assertEquals(1, blueRules.size());
+    assertNotEquals(redRules.keySet(), blueRules.keySet());
+    Map<String, String> redDefinitions = definitions(red);
+    Map<String, String> blueDefinitions = definitions(blue);
+    assertNotEquals(redDefinitions.keySet(), blueDefinitions.keySet());
+    // References follow the renamed filter
+    String filter = redDefinitions.keySet().iterator().next();
+    assertEquals("fill:red;filter:url(#" + filter + ")", redRules.values().iterator().next());
+  }
+
+  private static String shadowedRects(String filterId, String blur, String fill) {
+    String rect = "<rect x=\"1\" y=\"2\" style=\"fill: " + fill + "; filter: url(#" + filterId + ");\"/>\n";
+    return "<svg xmlns=\"http://www.w3.org/2000/svg\"><!-- generated -->\n"
+        + "<defs><filter id=\"" + filterId + "\"><feGaussianBlur stdDeviation=\"" + blur + "\"/></filter></defs>\n"
+        + rect.repeat(4) + "</svg>";
+  }
+
+  private void assertEquivalent(String puml) throws Exception {
+    String svg = renderService.renderSvg(puml).toString(StandardCharsets.UTF_8);
+    String optimized = optimize(svg);
+    assertTrue(optimized.length() < svg.length());
+    assertEquivalent(svg, optimized);
+  }
+
+  private void assertEquivalent(String svg, String optimized) throws Exception {
+    Element original = parse(svg).getDocumentElement();
+    Element minified = parse(optimized).getDocumentElement();
+    List<String> texts = texts(original, new ArrayList<>());
+    assertTrue(svg.contains("<svg") && !texts.isEmpty());
+    assertEquals(texts, texts(minified, new ArrayList<>()));
+    assertSameGeometry(original, minified);
+  }
+
+  /**
+   * Walk both trees in step, skipping the metadata the optimizer drops and the style sheet it adds
+   */
+  private static void assertSameGeometry(Element original, Element minified) {
+    assertEquals(original.getLocalName(), minified.getLocalName());
+    for (String name : GEOMETRY) {
+      if (original.hasAttribute(name)) {
+        List<Double> expected = numbers(original.getAttribute(name));
+        List<Double> actual = numbers(minified.getAttribute(name));
+        assertEquals(expected.size(), actual.size(), name + "=\"" + original.getAttribute(name) + "\"");
+        for (int i = 0; i < expected.size(); i++) {
+          assertTrue(Math.abs(expected.get(i) - actual.get(i)) <= ROUNDING,
+              name + "=\"" + original.getAttribute(name) + "\" became \"" + minified.getAttribute(name) + "\"");
+        }
+      }
+    }
+    List<Element> originalChildren = children(original, Set.of("metadata", "style"));
+    List<Element> minifiedChildren = children(minified, Set.of("style"));
+    assertEquals(originalChildren.size(), minifiedChildren.size(), "children of " + original.getLocalName());
+    for (int i = 0; i < originalChildren.size(); i++) {
+      assertSameGeometry(originalChildren.get(i), minifiedChildren.get(i));
+    }
+  }
+
+  private static List<Element> children(Element parent, Set<String> skipped) {
+    List<Element> children = new ArrayList<>();
+    for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+      if (child instanceof Element && !skipped.contains(child.getLocalName())) {
+        children.add((Element) child);
+      }
+    }
+    return children;
+  }
+
+  private static List<String> texts(Element element, List<String> texts) {
+    if ("text".equals(element.getLocalName())) {
+      texts.add(element.getTextContent());
+    }
+    for (Element child : children(element, Set.of())) {
+      texts(child, texts);
+    }
+    return texts;
+  }
+
+  private static List<Double> numbers(String value) {
+    List<Double> numbers = new ArrayList<>();
+    Matcher matcher = NUMBER.matcher(value);
+    while (matcher.find()) {
+      numbers.add(Double.parseDouble(matcher.group()));
+    }
+    return numbers;
+  }
+
+  private String render(String puml) throws Exception {
+    return optimize(renderService.renderSvg(puml).toString(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Class name to declarations, from the style sheet the optimizer adds
+   */
+  private static Map<String, String> rules(String svg) throws Exception {
+    Map<String, String> rules = new HashMap<>();
+    NodeList styles = parse(svg).getElementsByTagNameNS(SVG_NS, "style");
+    for (int i = 0; i < styles.getLength(); i++) {
+      Matcher matcher = RULE.matcher(styles.item(i).getTextContent());
+      while (matcher.find()) {
+        rules.put(matcher.group(1), matcher.group(2));
+      }
+    }
+    return rules;
+  }
+
+  /**
+   * ID to content of every filter and gradient
+   */
+  private static Map<String, String> definitions(String svg) throws Exception {
+    Map<String, String> definitions = new HashMap<>();
+    Document document = parse(svg);
+    for (String name : List.of("filter", "linearGradient", "radialGradient")) {
+      NodeList elements = document.getElementsByTagNameNS(SVG_NS, name);
+      for (int i = 0; i < elements.getLength(); i++) {
+        Element element = (Element) elements.item(i);
+        Element copy = (Element) element.cloneNode(true);
+        copy.removeAttribute("id");
+        StringWriter content = new StringWriter();
+        TransformerFactory.newInstance().newTransformer().transform(new DOMSource(copy), new StreamResult(content));
+        definitions.put(element.getAttribute("id"), content.toString());
+      }
+    }
+    return definitions;
+  }
+
+  /**
+   * A name used by both documents must stand for the same thing in both
+   */
+  private static void assertConsistent(Map<String, String> first, Map<String, String> second) {
+    for (Map.Entry<String, String> entry : first.entrySet()) {
+      if (second.containsKey(entry.getKey())) {
+        assertEquals(entry.getValue(), second.get(entry.getKey()), entry.getKey());
+      }
+    }
+  }
+
+  private String optimize(String svg) {
+    RenderedArtifact optimized = optimizer.optimize(RenderedArtifact.wrap(svg.getBytes(StandardCharsets.UTF_8)));
+    return optimized.toString(StandardCharsets.UTF_8);
+  }
+
+  private static Document parse(String svg) throws Exception {
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+    return factory.newDocumentBuilder().parse(new InputSource(new StringReader(svg)));
+  }
+}
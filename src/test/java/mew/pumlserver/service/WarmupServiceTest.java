@@ -0,0 +1,31 @@
+package mew.pumlserver.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.availability.ApplicationAvailability;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * One warm-up round of the built-in corpus; the other test contexts run without warm-up
+ */
+@SpringBootTest(properties = { "puml.warmup.enabled=true", "puml.warmup.rounds=1" })
+class WarmupServiceTest {
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  @Autowired
+  private ApplicationAvailability availability;
+
+  @Test
+  void corpusIsRenderedBeforeTheApplicationIsReady() {
+    assertEquals(ReadinessState.ACCEPTING_TRAFFIC, availability.getReadinessState());
+    assertTrue(meterRegistry.get("puml.warmup.duration").timeGauge().value() >= 0);
+    assertTrue(meterRegistry.get("puml.startup.time").timeGauge().value() >= 0);
+  }
+}